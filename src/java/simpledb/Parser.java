@@ -5,6 +5,8 @@ import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -25,6 +27,12 @@ import simpledb.transaction.TransactionId;
 public class Parser {
     static boolean explain = false;
 
+    static {
+        // the approximate aggregates, which Zql does not know
+        ZUtils.addCustomFunction("approx_count_distinct", 1);
+        ZUtils.addCustomFunction("approx_percentile", 2);
+    }
+
     public static Predicate.Op getOp(String s) throws simpledb.ParsingException {
         if (s.equals("="))
             return Predicate.Op.EQUALS;
@@ -63,6 +71,14 @@ public class Parser {
         } else if (wx.getOperator().equals("OR")) {
             throw new simpledb.ParsingException(
                     "OR expressions currently unsupported.");
+        } else if (wx.getOperator().equals("IN") || wx.getOperator().equals("NOT IN")) {
+            processInSubquery(tid, wx, lp);
+        } else if (wx.getOperator().equals("EXISTS")) {
+            processExists(tid, wx, false, lp);
+        } else if (wx.getOperator().equals("NOT") && wx.nbOperands() == 1
+                && wx.getOperand(0) instanceof ZExpression
+                && ((ZExpression) wx.getOperand(0)).getOperator().equals("EXISTS")) {
+            processExists(tid, (ZExpression) wx.getOperand(0), true, lp);
         } else {
             // this is a binary expression comparing two constants
             @SuppressWarnings("unchecked")
@@ -137,6 +153,137 @@ public class Parser {
 
     }
 
+    /**
+     * Adds field [NOT] IN (subquery) to lp as a semi-join (anti-join) of the
+     * table of the field with the subquery.
+     */
+    private void processInSubquery(TransactionId tid, ZExpression wx, LogicalPlan lp)
+            throws simpledb.ParsingException, IOException, ParseException {
+        if (wx.nbOperands() != 2 || !(wx.getOperand(0) instanceof ZConstant)
+                || ((ZConstant) wx.getOperand(0)).getType() != ZConstant.COLUMNNAME
+                || !(wx.getOperand(1) instanceof ZQuery)) {
+            throw new simpledb.ParsingException(
+                    "Only expressions of the form field [NOT] IN (subquery) are supported.");
+        }
+        LogicalPlan sublp = parseQueryLogicalPlan(tid, (ZQuery) wx.getOperand(1));
+        OpIterator pp = sublp.physicalPlan(tid, TableStats.getStatsMap(), explain);
+        if (pp.getTupleDesc().numFields() != 1) {
+            throw new simpledb.ParsingException("The subquery of IN must select a single field.");
+        }
+        lp.addSemiJoin(((ZConstant) wx.getOperand(0)).getValue(), pp, wx.getOperator().equals("NOT IN"));
+    }
+
+    /**
+     * Adds [NOT] EXISTS (subquery) to lp. An uncorrelated subquery is
+     * evaluated once. A subquery correlated with the outer query by a single
+     * equality inner.field = outer.field is turned into outer.field [NOT] IN
+     * (SELECT inner.field ...) without that equality, a semi-join (anti-join).
+     */
+    private void processExists(TransactionId tid, ZExpression wx, boolean negated, LogicalPlan lp)
+            throws simpledb.ParsingException, IOException, ParseException {
+        if (wx.nbOperands() != 1 || !(wx.getOperand(0) instanceof ZQuery)) {
+            throw new simpledb.ParsingException("EXISTS needs a subquery.");
+        }
+        ZQuery q = (ZQuery) wx.getOperand(0);
+        Set<String> innerTables = new HashSet<>();
+        @SuppressWarnings("unchecked")
+        List<ZFromItem> from = q.getFrom();
+        for (ZFromItem fromIt : from) {
+            innerTables.add(fromIt.getAlias() != null ? fromIt.getAlias() : fromIt.getTable());
+        }
+
+        List<ZExp> conjuncts = new ArrayList<>();
+        ZExp w = q.getWhere();
+        if (w instanceof ZExpression && ((ZExpression) w).getOperator().equals("AND")) {
+            for (int i = 0; i < ((ZExpression) w).nbOperands(); i++) {
+                conjuncts.add(((ZExpression) w).getOperand(i));
+            }
+        } else if (w != null) {
+            conjuncts.add(w);
+        }
+        String outerField = null, innerField = null;
+        List<ZExp> rest = new ArrayList<>();
+        for (ZExp c : conjuncts) {
+            String[] correlation = correlation(c, innerTables);
+            if (correlation == null) {
+                rest.add(c);
+            } else if (outerField != null) {
+                throw new simpledb.ParsingException(
+                        "Subqueries correlated by more than one predicate are not supported.");
+            } else {
+                outerField = correlation[0];
+                innerField = correlation[1];
+            }
+        }
+
+        if (outerField == null) {
+            LogicalPlan sublp = parseQueryLogicalPlan(tid, q);
+            lp.addExists(sublp.physicalPlan(tid, TableStats.getStatsMap(), explain), negated);
+            return;
+        }
+        if (q.getGroupBy() != null) {
+            throw new simpledb.ParsingException("Correlated subqueries with GROUP BY are not supported.");
+        }
+        ZQuery sub = new ZQuery();
+        Vector<ZSelectItem> select = new Vector<>();
+        select.add(new ZSelectItem(innerField));
+        sub.addSelect(select);
+        sub.addFrom(q.getFrom());
+        if (rest.size() == 1) {
+            sub.addWhere(rest.get(0));
+        } else if (rest.size() > 1) {
+            ZExpression and = new ZExpression("AND");
+            for (ZExp c : rest) {
+                and.addOperand(c);
+            }
+            sub.addWhere(and);
+        }
+        LogicalPlan sublp = parseQueryLogicalPlan(tid, sub);
+        lp.addSemiJoin(outerField, sublp.physicalPlan(tid, TableStats.getStatsMap(), explain), negated);
+    }
+
+    /**
+     * @return {outer field, inner field} if c is an equality of a field of
+     *         the outer query and a field of one of innerTables, null otherwise
+     */
+    private static String[] correlation(ZExp c, Set<String> innerTables) {
+        if (!(c instanceof ZExpression) || !((ZExpression) c).getOperator().equals("=")
+                || ((ZExpression) c).nbOperands() != 2) {
+            return null;
+        }
+        ZExp op1 = ((ZExpression) c).getOperand(0);
+        ZExp op2 = ((ZExpression) c).getOperand(1);
+        if (!(op1 instanceof ZConstant) || ((ZConstant) op1).getType() != ZConstant.COLUMNNAME
+                || !(op2 instanceof ZConstant) || ((ZConstant) op2).getType() != ZConstant.COLUMNNAME) {
+            return null;
+        }
+        String f1 = ((ZConstant) op1).getValue();
+        String f2 = ((ZConstant) op2).getValue();
+        boolean outer1 = isOuterField(f1, innerTables);
+        boolean outer2 = isOuterField(f2, innerTables);
+        if (outer1 == outer2) {
+            return null;
+        }
+        return outer1 ? new String[]{f1, f2} : new String[]{f2, f1};
+    }
+
+    /** @return true if field is qualified by a table that is not one of innerTables */
+    private static boolean isOuterField(String field, Set<String> innerTables) {
+        int dot = field.indexOf('.');
+        return dot > 0 && !innerTables.contains(field.substring(0, dot));
+    }
+
+    /** @return the percentile of APPROX_PERCENTILE(field, fraction), which must be a number between 0 and 1 */
+    private static double parseFraction(ZExp e) throws simpledb.ParsingException {
+        if (e instanceof ZConstant && ((ZConstant) e).getType() == ZConstant.NUMBER) {
+            double fraction = Double.parseDouble(((ZConstant) e).getValue());
+            if (fraction >= 0 && fraction <= 1) {
+                return fraction;
+            }
+        }
+        throw new simpledb.ParsingException("The percentile " + e + " must be a number between 0 and 1.");
+    }
+
     public LogicalPlan parseQueryLogicalPlan(TransactionId tid, ZQuery q)
             throws IOException, Zql.ParseException, simpledb.ParsingException {
         @SuppressWarnings("unchecked")
@@ -187,23 +334,20 @@ public class Parser {
 
         // now look for group by fields
         ZGroupBy gby = q.getGroupBy();
-        String groupByField = null;
+        List<String> groupByFields = new ArrayList<>();
         if (gby != null) {
             @SuppressWarnings("unchecked")
             List<ZExp> gbs = gby.getGroupBy();
-            if (gbs.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "At most one grouping field expression supported.");
-            }
-            if (gbs.size() == 1) {
-                ZExp gbe = gbs.get(0);
+            for (ZExp gbe : gbs) {
                 if (!(gbe instanceof ZConstant)) {
                     throw new simpledb.ParsingException(
                             "Complex grouping expressions (" + gbe
                                     + ") not supported.");
                 }
-                groupByField = ((ZConstant) gbe).getValue();
+                String groupByField = ((ZConstant) gbe).getValue();
                 System.out.println("GROUP BY FIELD : " + groupByField);
+                groupByFields.add(groupByField);
+                lp.addGroupByField(groupByField);
             }
 
         }
@@ -212,8 +356,7 @@ public class Parser {
         // validity
         @SuppressWarnings("unchecked")
         List<ZSelectItem> selectList = q.getSelect();
-        String aggField = null;
-        String aggFun = null;
+        boolean hasAggregate = false;
 
         for (int i = 0; i < selectList.size(); i++) {
             ZSelectItem si = selectList.get(i);
@@ -223,20 +366,26 @@ public class Parser {
                         "Expressions in SELECT list are not supported.");
             }
             if (si.getAggregate() != null) {
-                if (aggField != null) {
+                ZExp operand = ((ZExpression) si.getExpression()).getOperand(0);
+                if (!(operand instanceof ZConstant)) {
                     throw new simpledb.ParsingException(
-                            "Aggregates over multiple fields not supported.");
+                            "Aggregates over expressions (" + operand + ") not supported.");
                 }
-                aggField = ((ZConstant) ((ZExpression) si.getExpression())
-                        .getOperand(0)).getValue();
-                aggFun = si.getAggregate();
+                String aggField = ((ZConstant) operand).getValue();
+                String aggFun = si.getAggregate();
                 System.out.println("Aggregate field is " + aggField
                         + ", agg fun is : " + aggFun);
-                lp.addProjectField(aggField, aggFun);
+                double fraction = 0.5;
+                if (aggFun.equalsIgnoreCase("approx_percentile")) {
+                    fraction = parseFraction(((ZExpression) si.getExpression()).getOperand(1));
+                }
+                lp.addProjectField(aggField, aggFun, fraction);
+                lp.addAggregate(aggFun, aggField, null, fraction);
+                hasAggregate = true;
             } else {
-                if (groupByField != null
-                        && !(groupByField.equals(si.getTable() + "."
-                                + si.getColumn()) || groupByField.equals(si
+                if (!groupByFields.isEmpty()
+                        && !(groupByFields.contains(si.getTable() + "."
+                                + si.getColumn()) || groupByFields.contains(si
                                 .getColumn()))) {
                     throw new simpledb.ParsingException("Non-aggregate field "
                             + si.getColumn()
@@ -246,37 +395,140 @@ public class Parser {
             }
         }
 
-        if (groupByField != null && aggFun == null) {
+        if (!groupByFields.isEmpty() && !hasAggregate) {
             throw new simpledb.ParsingException("GROUP BY without aggregation.");
         }
 
-        if (aggFun != null) {
-            lp.addAggregate(aggFun, aggField, groupByField);
-        }
         // sort the data
 
         if (q.getOrderBy() != null) {
             @SuppressWarnings("unchecked")
             List<ZOrderBy> obys = q.getOrderBy();
-            if (obys.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "Multi-attribute ORDER BY is not supported.");
-            }
-            ZOrderBy oby = obys.get(0);
-            if (!(oby.getExpression() instanceof ZConstant)) {
-                throw new simpledb.ParsingException(
-                        "Complex ORDER BY's are not supported");
+            for (ZOrderBy oby : obys) {
+                if (!(oby.getExpression() instanceof ZConstant)) {
+                    throw new simpledb.ParsingException(
+                            "Complex ORDER BY's are not supported");
+                }
+                ZConstant f = (ZConstant) oby.getExpression();
+
+                lp.addOrderBy(f.getValue(), oby.getAscOrder());
             }
-            ZConstant f = (ZConstant) oby.getExpression();
 
-            lp.addOrderBy(f.getValue(), oby.getAscOrder());
+        }
+
+        lp.setDistinct(q.isDistinct());
 
+        int[] limit = limits.remove(q);
+        if (limit != null) {
+            lp.setLimit(limit[0], limit[1]);
         }
         return lp;
     }
 
+    /**
+     * A LIMIT n [OFFSET m] clause at the end of a SELECT statement. Zql does
+     * not know LIMIT, so the clause is cut off the statement before it is
+     * parsed, and applied when the logical plan of the query is built.
+     */
+    private static final Pattern LIMIT_CLAUSE = Pattern.compile(
+            "\\s+LIMIT\\s+(\\d+)(?:\\s+OFFSET\\s+(\\d+))?\\s*$", Pattern.CASE_INSENSITIVE);
+
+    // {limit, offset} of the queries read by readStatement
+    private final Map<ZQuery, int[]> limits = new WeakHashMap<>();
+
+    /**
+     * An EXPLAIN ANALYZE prefix of a SELECT statement, which runs the query
+     * with the counters of each operator and prints them on its plan instead
+     * of its result. Like LIMIT, it is cut off the statement before it is
+     * parsed.
+     */
+    private static final Pattern EXPLAIN_ANALYZE = Pattern.compile(
+            "^\\s*EXPLAIN\\s+ANALYZE\\s+", Pattern.CASE_INSENSITIVE);
+
+    // the queries read by readStatement with EXPLAIN ANALYZE
+    private final Set<ZQuery> analyzed = Collections.newSetFromMap(new WeakHashMap<>());
+
+    /**
+     * Parses the first statement of s, including an EXPLAIN ANALYZE prefix
+     * and a LIMIT clause at its end.
+     */
+    private ZStatement readStatement(String s) throws ParseException, simpledb.ParsingException {
+        Matcher explainAnalyze = EXPLAIN_ANALYZE.matcher(s);
+        boolean analyze = explainAnalyze.find();
+        if (analyze) {
+            s = s.substring(explainAnalyze.end());
+        }
+        int end = s.indexOf(';');
+        String statement = end < 0 ? s : s.substring(0, end);
+        Matcher m = LIMIT_CLAUSE.matcher(statement);
+        int[] limit = null;
+        if (m.find()) {
+            try {
+                limit = new int[]{Integer.parseInt(m.group(1)),
+                        m.group(2) == null ? 0 : Integer.parseInt(m.group(2))};
+            } catch (NumberFormatException e) {
+                throw new simpledb.ParsingException("LIMIT or OFFSET out of range: " + m.group().trim());
+            }
+            s = statement.substring(0, m.start()) + s.substring(statement.length());
+        }
+        ZqlParser p = new ZqlParser(new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8)));
+        ZStatement stmt = p.readStatement();
+        if (limit != null) {
+            if (!(stmt instanceof ZQuery)) {
+                throw new simpledb.ParsingException("LIMIT is only supported in SELECT statements");
+            }
+            limits.put((ZQuery) stmt, limit);
+        }
+        if (analyze) {
+            if (!(stmt instanceof ZQuery)) {
+                throw new simpledb.ParsingException("EXPLAIN ANALYZE is only supported in SELECT statements");
+            }
+            analyzed.add((ZQuery) stmt);
+        }
+        return stmt;
+    }
+
+    /**
+     * Reads the next statement from is, up to and including the ';' that ends
+     * it (outside of quotes), and leaves the rest of is unread.
+     */
+    private static String readStatementText(InputStream is) throws IOException {
+        ByteArrayOutputStream statement = new ByteArrayOutputStream();
+        int quote = -1;
+        for (int c; (c = is.read()) >= 0; ) {
+            statement.write(c);
+            if (quote >= 0) {
+                if (c == quote) {
+                    quote = -1;
+                }
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+            } else if (c == ';') {
+                break;
+            }
+        }
+        return new String(statement.toByteArray(), StandardCharsets.UTF_8);
+    }
+
     private Transaction curtrans = null;
     private boolean inUserTrans = false;
+    // the milliseconds each statement may run before it is cancelled, 0 for no limit
+    private long statementTimeout = 0;
+
+    /**
+     * Set the number of milliseconds each statement may run before it is
+     * cancelled and its transaction aborted; 0, the default, for no limit.
+     */
+    public void setStatementTimeout(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("the statement timeout must not be negative");
+        }
+        this.statementTimeout = millis;
+    }
+
+    public long getStatementTimeout() {
+        return statementTimeout;
+    }
 
     public Query handleQueryStatement(ZQuery s, TransactionId tId)
             throws IOException,
@@ -288,6 +540,7 @@ public class Parser {
                 TableStats.getStatsMap(), explain);
         query.setPhysicalPlan(physicalPlan);
         query.setLogicalPlan(lp);
+        query.setAnalyze(analyzed.remove(s));
 
         if (physicalPlan != null) {
             Class<?> c;
@@ -466,10 +719,8 @@ public class Parser {
 
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
             throws simpledb.ParsingException, IOException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
-        ZqlParser p = new ZqlParser(bis);
         try {
-            ZStatement stmt = p.readStatement();
+            ZStatement stmt = readStatement(s);
             if (stmt instanceof ZQuery) {
                 return parseQueryLogicalPlan(tid, (ZQuery) stmt);
             }
@@ -496,8 +747,7 @@ public class Parser {
 
     public void processNextStatement(InputStream is) {
         try {
-            ZqlParser p = new ZqlParser(is);
-            ZStatement s = p.readStatement();
+            ZStatement s = readStatement(readStatementText(is));
 
             Query query = null;
             if (s instanceof ZTransactStmt)
@@ -525,8 +775,10 @@ public class Parser {
                                         + s
                                         + "\n -- parser only handles SQL transactions, insert, delete, and select statements");
                     }
-                    if (query != null)
+                    if (query != null) {
+                        query.setTimeout(statementTimeout);
                         query.execute();
+                    }
 
                     if (!inUserTrans && curtrans != null) {
                         curtrans.commit();
@@ -543,6 +795,10 @@ public class Parser {
                     }
                     this.inUserTrans = false;
 
+                    if (a instanceof QueryCancelledException) {
+                        System.out.println(a.getMessage());
+                        return;
+                    }
                     if (a instanceof simpledb.ParsingException
                             || a instanceof Zql.ParseException)
                         throw new ParsingException((Exception) a);
@@ -572,7 +828,7 @@ public class Parser {
 
     public static void main(String[] argv) throws IOException {
 
-        if (argv.length < 1 || argv.length > 4) {
+        if (argv.length < 1 || argv.length > 6) {
             System.out.println("Invalid number of arguments.\n" + usage);
             System.exit(0);
         }
@@ -582,7 +838,7 @@ public class Parser {
         p.start(argv);
     }
 
-    static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
+    static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile] [-timeout milliseconds]";
     static final int SLEEP_TIME = 1000;
 
     protected void shutdown() {
@@ -612,6 +868,15 @@ public class Parser {
                     }
                     queryFile = argv[i];
 
+                } else if (argv[i].equals("-timeout")) {
+                    try {
+                        setStatementTimeout(Long.parseLong(argv[++i]));
+                    } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+                        System.out.println("Expected a number of milliseconds after -timeout\n"
+                                + usage);
+                        System.exit(0);
+                    }
+                    System.out.println("Statements time out after " + statementTimeout + " ms.");
                 } else {
                     System.out.println("Unknown argument " + argv[i] + "\n "
                             + usage);
@@ -4,6 +4,7 @@ import simpledb.storage.BufferPool;
 import simpledb.storage.LogFile;
 
 import java.io.*;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -26,6 +27,14 @@ public class Database {
     private final static String LOGFILENAME = "log";
     private final LogFile _logfile;
 
+    /**
+     * The worker pool is shared by every Database instance, so that reset()
+     * does not leave idle threads behind. Its size can be set with the
+     * simpledb.parallelism system property.
+     */
+    private static final ForkJoinPool _workerpool = new ForkJoinPool(
+            Integer.getInteger("simpledb.parallelism", Runtime.getRuntime().availableProcessors()));
+
     private Database() {
         _catalog = new Catalog();
         _bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES);
@@ -60,6 +69,11 @@ public class Database {
         return _instance.get()._catalog;
     }
 
+    /** Return the pool that runs the workers of parallel operators */
+    public static ForkJoinPool getWorkerPool() {
+        return _workerpool;
+    }
+
     /**
      * Method used for testing -- create a new instance of the buffer pool and
      * return it
@@ -1,27 +1,71 @@
 package simpledb.execution;
 
+import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
+import simpledb.storage.MorselSource;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionAbortedException;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicReference;
 
 
 /**
  * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
- * min). Note that we only support aggregates over a single column, grouped by a
- * single column.
+ * min), or several aggregates over the same groups at once, grouped by any
+ * number of columns.
+ * <p>
+ * The child is aggregated when the operator is opened, by a
+ * {@link HashAggregator} that spills the tuples of the groups that do not fit
+ * into the memory budget to disk; the results are then streamed from it.
+ * <p>
+ * If the child is a gather {@link Exchange}, the aggregation runs in two
+ * phases instead: each producer of the exchange is drained by a task on the
+ * {@link Database#getWorkerPool() worker pool} into a partial aggregate of its
+ * own, and the states of the groups of the partial aggregates are then
+ * merged into a final aggregate (see {@link HashAggregator#merge}), e.g. the
+ * sum and count of an AVG, or the sketch of an approximate aggregate.
+ * <p>
+ * Several aggregates, or several group-by fields, are computed by a
+ * {@link MultiAggregator} in a single pass over the child, with one lookup
+ * of the group per tuple.
+ * <p>
+ * APPROX_COUNT_DISTINCT and APPROX_PERCENTILE are computed by a
+ * {@link SketchAggregator} in constant memory per group.
+ * <p>
+ * If the child returns the tuples of each group next to each other, e.g.
+ * because it is ordered on the group-by fields (see {@link #isGroupedOn}),
+ * the aggregate can be streamed instead (see {@link #setStreaming}): the
+ * state of only the current group is kept, and each group is returned as
+ * soon as a tuple of the next group is read.
  */
 public class Aggregate extends Operator {
 
     private static final long serialVersionUID = 1L;
     private OpIterator child;
-    private int afield;
-    private int gfield;
-    private Aggregator.Op aop;
-    private OpIterator iter;
+    private final int[] afields;
+    private final int[] gfields;
+    private final Aggregator.Op[] aops;
+    private final double[] fractions;
+    private long memoryBudget = -1;
+    private boolean parallel = true;
+    private boolean streaming = false;
+
+    private HashAggregator aggregator;
+
+    private transient OpIterator iter;
+    private transient int spilledPartitions;
+    private transient int partialAggregates;
+
+    // streaming: the state of the current group, and the first tuple of the next group
+    private transient HashAggregator groupState;
+    private transient Tuple nextGroupTuple;
 
     /**
      * Constructor.
@@ -37,27 +81,206 @@ public class Aggregate extends Operator {
      * @param aop    The aggregation operator to use
      */
     public Aggregate(OpIterator child, int afield, int gfield, Aggregator.Op aop) {
+        this(child, new int[]{afield},
+                gfield == Aggregator.NO_GROUPING ? new int[0] : new int[]{gfield}, new Aggregator.Op[]{aop});
+    }
+
+    /**
+     * Constructor for several aggregates over the same groups.
+     *
+     * @param child   The OpIterator that is feeding us tuples.
+     * @param afields The columns over which the aggregates are computed.
+     * @param gfields The columns over which we are grouping the result, none
+     *                if there is no grouping
+     * @param aops    The aggregation operator of each aggregate column
+     * @throws IllegalArgumentException if there is not exactly one operator
+     *                                  per aggregate column, or an operator is
+     *                                  not supported for its column
+     */
+    public Aggregate(OpIterator child, int[] afields, int[] gfields, Aggregator.Op[] aops) {
+        this(child, afields, gfields, aops, medians(aops.length));
+    }
+
+    private static double[] medians(int n) {
+        double[] fractions = new double[n];
+        Arrays.fill(fractions, 0.5);
+        return fractions;
+    }
+
+    /**
+     * Constructor for several aggregates over the same groups, some of which
+     * are percentiles.
+     *
+     * @param child     The OpIterator that is feeding us tuples.
+     * @param afields   The columns over which the aggregates are computed.
+     * @param gfields   The columns over which we are grouping the result, none
+     *                  if there is no grouping
+     * @param aops      The aggregation operator of each aggregate column
+     * @param fractions The percentile each APPROX_PERCENTILE aggregate
+     *                  estimates, between 0 and 1; ignored for other
+     *                  operators
+     * @throws IllegalArgumentException if there is not exactly one operator
+     *                                  and fraction per aggregate column, or
+     *                                  an operator is not supported for its
+     *                                  column
+     */
+    public Aggregate(OpIterator child, int[] afields, int[] gfields, Aggregator.Op[] aops, double[] fractions) {
+        if (afields.length == 0 || afields.length != aops.length || afields.length != fractions.length) {
+            throw new IllegalArgumentException("every aggregate needs a column and an operator");
+        }
         setChildren(new OpIterator[]{child});
-        this.afield = afield;
-        this.gfield = gfield;
-        this.aop = aop;
-        Aggregator aggregator;
-        Type gbFieldType = gfield == -1 ? null : child.getTupleDesc().getFieldType(gfield);
-        if (child.getTupleDesc().getFieldType(afield).equals(Type.INT_TYPE)) {
-            aggregator = new IntegerAggregator(gfield, gbFieldType, afield, aop);
+        this.afields = afields;
+        this.gfields = gfields;
+        this.aops = aops;
+        this.fractions = fractions;
+        // fails early if an operator is not supported for its aggregate field
+        aggregator = newAggregator(aops);
+    }
+
+    private Type[] groupFieldTypes() {
+        Type[] types = new Type[gfields.length];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = child.getTupleDesc().getFieldType(gfields[i]);
+        }
+        return types;
+    }
+
+    /** @return an aggregator that computes the aggregates ops over the tuples of the child */
+    private HashAggregator newAggregator(Aggregator.Op[] ops) {
+        if (ops.length == 1) {
+            return newAggregator(gfields, 0, ops[0]);
+        }
+        HashAggregator[] aggregates = new HashAggregator[ops.length];
+        for (int i = 0; i < ops.length; i++) {
+            aggregates[i] = newAggregator(new int[0], i, ops[i]);
+        }
+        return new MultiAggregator(gfields, groupFieldTypes(), aggregates);
+    }
+
+    /** @return an aggregator that computes op over the field of aggregate i */
+    private HashAggregator newAggregator(int[] groupBy, int i, Aggregator.Op op) {
+        Type[] types = groupBy.length == 0 ? new Type[0] : groupFieldTypes();
+        int afield = afields[i];
+        if (SketchAggregator.isSketchOp(op)) {
+            if (op == Aggregator.Op.APPROX_PERCENTILE
+                    && !child.getTupleDesc().getFieldType(afield).equals(Type.INT_TYPE)) {
+                throw new IllegalArgumentException("Op " + op + " needs an INT field");
+            }
+            return new SketchAggregator(groupBy, types, afield, op, fractions[i]);
+        } else if (child.getTupleDesc().getFieldType(afield).equals(Type.INT_TYPE)) {
+            return new IntegerAggregator(groupBy, types, afield, op);
         } else {
-            aggregator = new StringAggregator(gfield, gbFieldType, afield, aop);
+            return new StringAggregator(groupBy, types, afield, op);
         }
-        try {
-            child.open();
-            while (child.hasNext()) {
-                aggregator.mergeTupleIntoGroup(child.next());
+    }
+
+    /**
+     * Set the number of bytes the groups may take in memory before tuples of
+     * new groups are spilled to disk; by default, {@link WorkMemory#getDefaultBytes()}.
+     */
+    public void setMemoryBudget(long bytes) {
+        this.memoryBudget = bytes;
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget < 0 ? WorkMemory.getDefaultBytes() : memoryBudget;
+    }
+
+    /** @return the number of partitions the last open spilled to disk */
+    public int getSpilledPartitions() {
+        return spilledPartitions;
+    }
+
+    /** Set whether the producers of a gather Exchange child are aggregated in parallel; on by default */
+    public void setParallelEnabled(boolean enabled) {
+        this.parallel = enabled;
+    }
+
+    /** @return the number of partial aggregates the last open computed in parallel, 0 if it ran on one thread */
+    public int getPartialAggregates() {
+        return partialAggregates;
+    }
+
+    /**
+     * Set whether the groups are aggregated one at a time as they are read
+     * from the child, which must then return the tuples of each group next to
+     * each other (see {@link #isGroupedOn}); off by default. An aggregate
+     * without grouping is never streamed.
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    /** @return true if the groups are aggregated one at a time as they are read */
+    public boolean isStreaming() {
+        return streaming && gfields.length > 0;
+    }
+
+    /**
+     * @return true if plan returns the tuples with equal values of fields
+     *         next to each other: it is ordered on the only field (see
+     *         {@link MergeJoin#isSortedOn}), it sorts on all fields first, in
+     *         any order and direction, or it keeps the order of such a child,
+     *         possibly projecting its fields
+     */
+    public static boolean isGroupedOn(OpIterator plan, int[] fields) {
+        if (fields.length == 0) {
+            return true;
+        }
+        if (fields.length == 1 && MergeJoin.isSortedOn(plan, fields[0])) {
+            return true;
+        }
+        int[] sortFields = null;
+        if (plan instanceof OrderBy) {
+            sortFields = ((OrderBy) plan).getOrderByFields();
+        } else if (plan instanceof TopN) {
+            sortFields = ((TopN) plan).getOrderByFields();
+        } else if (plan instanceof Filter || plan instanceof Limit) {
+            return isGroupedOn(((Operator) plan).getChildren()[0], fields);
+        } else if (plan instanceof Project) {
+            List<Integer> outFieldIds = ((Project) plan).getOutFieldIds();
+            int[] childFields = new int[fields.length];
+            for (int i = 0; i < fields.length; i++) {
+                childFields[i] = outFieldIds.get(fields[i]);
             }
-            iter = aggregator.iterator();
-            iter.open();
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+            return isGroupedOn(((Project) plan).getChildren()[0], childFields);
         }
+        if (sortFields == null || sortFields.length < fields.length) {
+            return false;
+        }
+        for (int f : fields) {
+            boolean leading = false;
+            for (int i = 0; i < fields.length; i++) {
+                leading |= sortFields[i] == f;
+            }
+            if (!leading) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** @return the producers to aggregate in parallel, or null if the child is aggregated on one thread */
+    private OpIterator[] parallelProducers() {
+        if (!parallel || !(child instanceof Exchange) || !((Exchange) child).isGather()
+                || ((Exchange) child).getChildren().length < 2) {
+            return null;
+        }
+        for (Aggregator.Op op : aops) {
+            switch (op) {
+                case MIN:
+                case MAX:
+                case SUM:
+                case AVG:
+                case COUNT:
+                case APPROX_COUNT_DISTINCT:
+                case APPROX_PERCENTILE:
+                    break;
+                default:
+                    return null;
+            }
+        }
+        return ((Exchange) child).getChildren();
     }
 
     /**
@@ -66,7 +289,12 @@ public class Aggregate extends Operator {
      * {@link Aggregator#NO_GROUPING}
      */
     public int groupField() {
-        return gfield;
+        return gfields.length == 0 ? Aggregator.NO_GROUPING : gfields[0];
+    }
+
+    /** @return the indexes of the group-by fields in the input tuples, none without grouping */
+    public int[] groupFields() {
+        return gfields;
     }
 
     /**
@@ -75,17 +303,31 @@ public class Aggregate extends Operator {
      * null;
      */
     public String groupFieldName() {
-        if (gfield != -1) {
-            return child.getTupleDesc().getFieldName(gfield);
+        if (gfields.length > 0) {
+            return child.getTupleDesc().getFieldName(gfields[0]);
         }
         return null;
     }
 
+    /** @return the names of the group-by fields */
+    public String[] groupFieldNames() {
+        String[] names = new String[gfields.length];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = child.getTupleDesc().getFieldName(gfields[i]);
+        }
+        return names;
+    }
+
     /**
      * @return the aggregate field
      */
     public int aggregateField() {
-        return afield;
+        return afields[0];
+    }
+
+    /** @return the aggregate fields, one per aggregate */
+    public int[] aggregateFields() {
+        return afields;
     }
 
     /**
@@ -93,14 +335,33 @@ public class Aggregate extends Operator {
      * tuples
      */
     public String aggregateFieldName() {
-        return child.getTupleDesc().getFieldName(afield);
+        return child.getTupleDesc().getFieldName(afields[0]);
+    }
+
+    /** @return the names of the aggregate fields */
+    public String[] aggregateFieldNames() {
+        String[] names = new String[afields.length];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = child.getTupleDesc().getFieldName(afields[i]);
+        }
+        return names;
     }
 
     /**
      * @return return the aggregate operator
      */
     public Aggregator.Op aggregateOp() {
-        return aop;
+        return aops[0];
+    }
+
+    /** @return the aggregate operators, one per aggregate */
+    public Aggregator.Op[] aggregateOps() {
+        return aops;
+    }
+
+    /** @return the percentile of each aggregate, used by APPROX_PERCENTILE only */
+    public double[] aggregateFractions() {
+        return fractions;
     }
 
     public static String nameOfAggregatorOp(Aggregator.Op aop) {
@@ -113,18 +374,180 @@ public class Aggregate extends Operator {
      * field is the field by which we are grouping, and the second field is the
      * result of computing the aggregate. If there is no group by field, then
      * the result tuple should contain one field representing the result of the
-     * aggregate. Should return null if there are no more tuples.
+     * aggregate. With several group-by fields or aggregates, the tuple has
+     * all group-by fields, then all aggregate values. Should return null if
+     * there are no more tuples.
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        try {
-            Tuple next = iter.next();
-            return next;
-        } catch (NoSuchElementException e) {
-            return null;
+        if (groupState != null) {
+            return nextGroup();
+        }
+        if (iter != null && iter.hasNext()) {
+            return iter.next();
         }
+        return null;
+    }
+
+    public void open() throws DbException, NoSuchElementException, TransactionAbortedException {
+        OpIterator[] producers = parallelProducers();
+        if (isStreaming()) {
+            partialAggregates = 0;
+            spilledPartitions = 0;
+            groupState = newGroupState();
+            nextGroupTuple = null;
+            child.open();
+        } else {
+            if (producers != null) {
+                aggregateInParallel(producers);
+            } else {
+                partialAggregates = 0;
+                aggregator = newAggregator(aops);
+                aggregator.setMemoryBudget(getMemoryBudget());
+                child.open();
+                while (child.hasNext()) {
+                    checkCancelled();
+                    aggregator.mergeTupleIntoGroup(child.next());
+                }
+                spilledPartitions = aggregator.getSpilledPartitions();
+            }
+            reportMemory(aggregator.getMemoryBytes());
+            iter = aggregator.iterator();
+            iter.open();
+        }
+        super.open();
+    }
+
+    /** @return an aggregator whose group 0 holds the state of the aggregates of one group */
+    private HashAggregator newGroupState() {
+        HashAggregator state;
+        if (aops.length == 1) {
+            state = newAggregator(new int[0], 0, aops[0]);
+        } else {
+            HashAggregator[] aggregates = new HashAggregator[aops.length];
+            for (int i = 0; i < aops.length; i++) {
+                aggregates[i] = newAggregator(new int[0], i, aops[i]);
+            }
+            state = new MultiAggregator(new int[0], new Type[0], aggregates);
+        }
+        state.growState(1);
+        return state;
+    }
+
+    /** @return the result of the group of the next tuple of the child, or null if there is none */
+    private Tuple nextGroup() throws DbException, TransactionAbortedException {
+        if (nextGroupTuple == null) {
+            if (!child.hasNext()) {
+                return null;
+            }
+            nextGroupTuple = child.next();
+        }
+        Tuple first = nextGroupTuple;
+        groupState.initGroup(0);
+        do {
+            groupState.mergeIntoGroup(0, nextGroupTuple);
+            nextGroupTuple = child.hasNext() ? child.next() : null;
+        } while (nextGroupTuple != null && sameGroup(first, nextGroupTuple));
+
+        Tuple result = new Tuple(getTupleDesc());
+        for (int i = 0; i < gfields.length; i++) {
+            result.setField(i, first.getField(gfields[i]));
+        }
+        groupState.setResult(result, gfields.length, 0);
+        return result;
+    }
+
+    private boolean sameGroup(Tuple t1, Tuple t2) {
+        for (int f : gfields) {
+            if (!t1.getField(f).equals(t2.getField(f))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Aggregates each producer into a partial aggregate on the worker pool,
+     * then merges the partial aggregates into the final aggregate. The memory
+     * budget is divided evenly between the partial and final aggregates.
+     */
+    private void aggregateInParallel(OpIterator[] producers) throws DbException, TransactionAbortedException {
+        MorselSource morsels = ((Exchange) child).getMorsels();
+        if (morsels != null) {
+            morsels.reset();
+        }
+        long budget = getMemoryBudget() / (producers.length + 1);
+        HashAggregator[] partials = new HashAggregator[producers.length];
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (int i = 0; i < producers.length; i++) {
+            HashAggregator partial = newAggregator(aops);
+            partial.setMemoryBudget(budget);
+            partials[i] = partial;
+            OpIterator source = producers[i];
+            tasks.add(Database.getWorkerPool().submit(() -> {
+                try {
+                    source.open();
+                    try {
+                        while (source.hasNext()) {
+                            partial.mergeTupleIntoGroup(source.next());
+                        }
+                    } finally {
+                        source.close();
+                    }
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            }));
+        }
+        for (ForkJoinTask<?> task : tasks) {
+            task.quietlyJoin();
+        }
+        Throwable e = error.get();
+        if (e != null) {
+            for (HashAggregator partial : partials) {
+                partial.delete();
+            }
+            if (e instanceof DbException) {
+                throw (DbException) e;
+            } else if (e instanceof TransactionAbortedException) {
+                throw (TransactionAbortedException) e;
+            } else if (e instanceof RuntimeException) {
+                throw (RuntimeException) e;
+            } else if (e instanceof Error) {
+                throw (Error) e;
+            }
+            throw new DbException("partial aggregation failed: " + e);
+        }
+
+        partialAggregates = partials.length;
+        spilledPartitions = 0;
+        for (HashAggregator partial : partials) {
+            spilledPartitions += partial.getSpilledPartitions();
+        }
+        aggregator = partials[0].newMergingAggregator();
+        aggregator.setMemoryBudget(budget);
+        aggregator.merge(Arrays.asList(partials));
+        spilledPartitions += aggregator.getSpilledPartitions();
+    }
+
+    public void close() {
+        super.close();
+        if (iter != null) {
+            iter.close();
+            iter = null;
+        }
+        groupState = null;
+        nextGroupTuple = null;
+        aggregator.delete();
+        child.close();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
+        if (groupState != null) {
+            child.rewind();
+            nextGroupTuple = null;
+            return;
+        }
         iter.rewind();
     }
 
@@ -140,7 +563,7 @@ public class Aggregate extends Operator {
      * iterator.
      */
     public TupleDesc getTupleDesc() {
-        return iter.getTupleDesc();
+        return aggregator.getResultTupleDesc();
     }
 
 
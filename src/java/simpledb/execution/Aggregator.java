@@ -28,7 +28,17 @@ public interface Aggregator extends Serializable {
          * SC_AVG: compute the avg of a set of SUM_COUNT tuples,
          * will be used to compute distributed avg in lab7.
          * */
-        SC_AVG;
+        SC_AVG,
+        /**
+         * APPROX_COUNT_DISTINCT: estimate the number of distinct values
+         * with a HyperLogLog sketch, in constant memory per group.
+         * */
+        APPROX_COUNT_DISTINCT,
+        /**
+         * APPROX_PERCENTILE: estimate a percentile of the values with a KLL
+         * sketch, in constant memory per group.
+         * */
+        APPROX_PERCENTILE;
 
         /**
          * Interface to access operations by a string containing an integer
@@ -66,6 +76,10 @@ public interface Aggregator extends Serializable {
         		return "count";
         	if (this==SC_AVG)
     			return "sc_avg";
+        	if (this==APPROX_COUNT_DISTINCT)
+        		return "approx_count_distinct";
+        	if (this==APPROX_PERCENTILE)
+        		return "approx_percentile";
         	throw new IllegalStateException("impossible to reach here");
         }
     }
@@ -0,0 +1,107 @@
+package simpledb.execution;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * CancellationToken stops a running query, on request from another thread
+ * or once its timeout has passed.
+ * <p>
+ * The token is attached to every operator and scan of a plan (see
+ * {@link #attach}). They check it whenever they are asked for a tuple, and
+ * the operators that read a whole input before returning a tuple (hash
+ * builds, sorts, aggregates) check it while they do, so a cancelled query
+ * throws a {@link QueryCancelledException} soon after, on whichever thread
+ * it runs. The exception unwinds the query like any other error: its
+ * operators are closed, deleting their spill files, and its transaction is
+ * aborted, releasing its locks and pages.
+ */
+public class CancellationToken {
+
+    // runs the timeouts of all queries
+    private static final Timer TIMER = new Timer("query-timeout", true);
+
+    // why the query was cancelled, null while it is not
+    private volatile String reason;
+    private TimerTask timeout;
+
+    /** Cancels the query, unless it has already been */
+    public void cancel() {
+        cancel("Query cancelled");
+    }
+
+    private synchronized void cancel(String why) {
+        if (reason == null) {
+            reason = why;
+        }
+    }
+
+    /** @return true if the query has been cancelled or has timed out */
+    public boolean isCancelled() {
+        return reason != null;
+    }
+
+    /**
+     * Cancels the query after the given number of milliseconds, replacing
+     * a previous timeout.
+     */
+    public synchronized void setTimeout(long millis) {
+        clearTimeout();
+        timeout = new TimerTask() {
+            @Override
+            public void run() {
+                CancellationToken.this.cancel("Query timed out after " + millis + " ms");
+            }
+        };
+        TIMER.schedule(timeout, millis);
+    }
+
+    /** Removes the timeout, e.g. once the query is done */
+    public synchronized void clearTimeout() {
+        if (timeout != null) {
+            timeout.cancel();
+            timeout = null;
+        }
+    }
+
+    /**
+     * Called by the operators of a query as it runs.
+     *
+     * @throws QueryCancelledException if the query has been cancelled
+     */
+    public void check() throws QueryCancelledException {
+        String why = reason;
+        if (why != null) {
+            throw new QueryCancelledException(why);
+        }
+    }
+
+    /**
+     * Attaches token to every operator and scan of a plan, including the
+     * producers of its exchanges; null detaches the previous one.
+     */
+    public static void attach(OpIterator plan, CancellationToken token) {
+        attach(plan, token, Collections.newSetFromMap(new IdentityHashMap<>()));
+    }
+
+    private static void attach(OpIterator plan, CancellationToken token, Set<OpIterator> attached) {
+        if (plan == null || !attached.add(plan)) {
+            return;
+        }
+        if (plan instanceof SeqScan) {
+            ((SeqScan) plan).setCancellationToken(token);
+        } else if (plan instanceof Operator) {
+            Operator op = (Operator) plan;
+            op.setCancellationToken(token);
+            OpIterator[] children = op.getChildren();
+            if (children != null) {
+                for (OpIterator child : children) {
+                    attach(child, token, attached);
+                }
+            }
+        }
+    }
+}
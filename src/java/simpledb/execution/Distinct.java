@@ -0,0 +1,336 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.SpillFile;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.util.IntHashTable;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Distinct is an operator that implements SELECT DISTINCT: it returns each
+ * tuple of its child once, comparing all fields.
+ * <p>
+ * By default, the tuples seen are kept in a hash set, and a tuple is returned
+ * as soon as it is first read, so the operator is pipelined. A tuple of a
+ * single INT field is looked up in an {@link IntHashTable}, without boxing.
+ * The set may take at most the memory budget of the operator; once it is
+ * reached, tuples that are not in the set are written to one of
+ * {@link HashAggregator#NUM_PARTITIONS} spill files chosen by their hash,
+ * and each partition is then deduplicated on its own with a new set, which
+ * spills again if the partition does not fit either.
+ * <p>
+ * If the child returns equal tuples next to each other, e.g. because it is
+ * ordered on all fields (see {@link Aggregate#isGroupedOn}), the tuples can
+ * be compared with the previous one instead (see {@link #setSorted}), which
+ * takes no memory.
+ */
+public class Distinct extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The deepest level of recursive partitioning, below which all tuples are kept in memory */
+    private static final int MAX_DEPTH = 4;
+
+    private OpIterator child;
+    private long memoryBudget = -1;
+    private boolean sorted = false;
+
+    // sorted: the last tuple returned
+    private transient Tuple previous;
+
+    // hashed: the tuples of the current pass, read from the child or from a
+    // spilled partition, and the tuples seen in it
+    private transient OpIterator source;
+    private transient SpillFile sourceFile;
+    private transient int depth;
+    private transient IntHashTable intSeen;
+    private transient Set<List<Field>> seen;
+    private transient boolean full;
+    private transient SpillFile[] partitions;
+    // the spilled partitions still to deduplicate, with their depths
+    private transient Deque<SpillFile> pending;
+    private transient Deque<Integer> pendingDepths;
+    private transient int spilledPartitions;
+
+    /**
+     * @param child the tuples to remove the duplicates of
+     */
+    public Distinct(OpIterator child) {
+        this.child = child;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    /**
+     * Set the number of bytes the set of the tuples seen may take before new
+     * tuples are spilled to disk; by default, {@link WorkMemory#getDefaultBytes()}.
+     */
+    public void setMemoryBudget(long bytes) {
+        this.memoryBudget = bytes;
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget < 0 ? WorkMemory.getDefaultBytes() : memoryBudget;
+    }
+
+    /**
+     * Set whether the child returns equal tuples next to each other, so that
+     * each tuple only needs to be compared with the previous one; off by
+     * default.
+     */
+    public void setSorted(boolean sorted) {
+        this.sorted = sorted;
+    }
+
+    public boolean isSorted() {
+        return sorted;
+    }
+
+    /** @return the number of partitions the last open spilled to disk, at all depths */
+    public int getSpilledPartitions() {
+        return spilledPartitions;
+    }
+
+    public void open() throws DbException, NoSuchElementException, TransactionAbortedException {
+        child.open();
+        reset();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        deleteSpillFiles();
+        child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        deleteSpillFiles();
+        child.rewind();
+        reset();
+    }
+
+    private void reset() {
+        previous = null;
+        spilledPartitions = 0;
+        pending = new ArrayDeque<>();
+        pendingDepths = new ArrayDeque<>();
+        startPass(child, 0);
+    }
+
+    /** Starts deduplicating the tuples of source with an empty set */
+    private void startPass(OpIterator source, int depth) {
+        this.source = source;
+        this.depth = depth;
+        TupleDesc td = getTupleDesc();
+        if (td.numFields() == 1 && td.getFieldType(0) == Type.INT_TYPE) {
+            intSeen = new IntHashTable();
+            seen = null;
+        } else {
+            intSeen = null;
+            seen = new HashSet<>();
+        }
+        full = false;
+        partitions = null;
+    }
+
+    /** Removes the spill files of the current pass and of the pending partitions */
+    private void deleteSpillFiles() {
+        if (source != null && source != child) {
+            source.close();
+            sourceFile.delete();
+            sourceFile = null;
+        }
+        source = null;
+        if (partitions != null) {
+            for (SpillFile f : partitions) {
+                if (f != null) {
+                    f.delete();
+                }
+            }
+            partitions = null;
+        }
+        if (pending != null) {
+            for (SpillFile f : pending) {
+                f.delete();
+            }
+            pending.clear();
+            pendingDepths.clear();
+        }
+    }
+
+    private long entryBytes() {
+        TupleDesc td = getTupleDesc();
+        if (intSeen != null) {
+            // a key and two hash table slots
+            return 20;
+        }
+        // a set entry and the list of the fields of the tuple
+        long bytes = 64 + 32 + 8L * td.numFields();
+        for (int i = 0; i < td.numFields(); i++) {
+            bytes += 16 + td.getFieldType(i).getLen();
+        }
+        return bytes;
+    }
+
+    private int seenSize() {
+        return intSeen != null ? intSeen.size() : seen.size();
+    }
+
+    /** @return whether a new tuple may be added to the set without exceeding the memory budget */
+    private boolean hasRoom() {
+        if (!full && seenSize() > 0 && depth < MAX_DEPTH
+                && (seenSize() + 1) * entryBytes() > getMemoryBudget()) {
+            full = true;
+            reportMemory(seenSize() * entryBytes());
+        }
+        return !full;
+    }
+
+    private static List<Field> keyOf(Tuple t) {
+        Field[] key = new Field[t.getTupleDesc().numFields()];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = t.getField(i);
+        }
+        return Arrays.asList(key);
+    }
+
+    private static boolean sameFields(Tuple t1, Tuple t2) {
+        for (int i = 0; i < t1.getTupleDesc().numFields(); i++) {
+            if (!t1.getField(i).equals(t2.getField(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if t was not seen before and has been added to the set;
+     *         false if it is a duplicate, or if it has been spilled because
+     *         the set is full
+     */
+    private boolean addIfNew(Tuple t) throws DbException {
+        if (intSeen != null) {
+            int k = ((IntField) t.getField(0)).getValue();
+            if (intSeen.find(k) >= 0) {
+                return false;
+            }
+            if (hasRoom()) {
+                intSeen.findOrInsert(k);
+                return true;
+            }
+            spill(t, k);
+        } else {
+            List<Field> key = keyOf(t);
+            if (seen.contains(key)) {
+                return false;
+            }
+            if (hasRoom()) {
+                seen.add(key);
+                return true;
+            }
+            spill(t, key.hashCode());
+        }
+        return false;
+    }
+
+    private void spill(Tuple t, int hash) throws DbException {
+        if (partitions == null) {
+            partitions = new SpillFile[HashAggregator.NUM_PARTITIONS];
+        }
+        // a different hash function on every level of recursion
+        int h = hash + depth * 0x61C88647;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        int p = Math.floorMod(h, HashAggregator.NUM_PARTITIONS);
+        if (partitions[p] == null) {
+            partitions[p] = new SpillFile(getTupleDesc());
+            spilledPartitions++;
+        }
+        partitions[p].add(t);
+    }
+
+    /**
+     * Returns the next tuple of the child that was not returned before, or
+     * null if there are no more tuples.
+     */
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        if (sorted) {
+            while (child.hasNext()) {
+                Tuple t = child.next();
+                if (previous == null || !sameFields(previous, t)) {
+                    previous = t;
+                    return t;
+                }
+            }
+            return null;
+        }
+        while (source != null) {
+            while (source.hasNext()) {
+                // the tuples of a spilled partition are not read through an operator
+                checkCancelled();
+                Tuple t = source.next();
+                if (addIfNew(t)) {
+                    return t;
+                }
+            }
+            nextPass();
+        }
+        return null;
+    }
+
+    /** Moves on to the next spilled partition, if any, once the current source is exhausted */
+    private void nextPass() throws DbException, TransactionAbortedException {
+        reportMemory(seenSize() * entryBytes());
+        if (source != child) {
+            source.close();
+            sourceFile.delete();
+            sourceFile = null;
+        }
+        if (partitions != null) {
+            for (SpillFile f : partitions) {
+                if (f != null) {
+                    pending.push(f);
+                    pendingDepths.push(depth + 1);
+                }
+            }
+            partitions = null;
+        }
+        if (pending.isEmpty()) {
+            source = null;
+            intSeen = null;
+            seen = null;
+            return;
+        }
+        sourceFile = pending.pop();
+        OpIterator it = sourceFile.iterator();
+        it.open();
+        startPass(it, pendingDepths.pop());
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+}
@@ -0,0 +1,318 @@
+package simpledb.execution;
+
+import simpledb.common.Debug;
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+import javax.tools.*;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * EvaluatorCompiler generates specialized Java classes for conjunctions of
+ * predicates, and compiles them in-process with the system Java compiler.
+ * <p>
+ * The generated code reads each field with a fixed index and a fixed cast, and
+ * compares it with a constant held in a primitive (or String) field, so the
+ * per-row cost is a direct comparison instead of a virtual
+ * {@link Field#compare} call and a switch on {@link Predicate.Op}.
+ * <p>
+ * Compiling a class costs far more than interpreting a conjunction over a
+ * small input, so an evaluator starts out interpreted and is only compiled
+ * once it has been applied to {@link #getCompileThreshold()} tuples, unless a
+ * class for its shape has already been compiled. Classes are cached by shape
+ * (field indexes, types and operators), while the operand values are passed to
+ * the constructor, so queries that differ only in their constants reuse the
+ * same class. If no compiler is available (e.g. when running on a JRE) or
+ * compilation fails, the evaluator stays interpreted, and a shape whose
+ * compilation failed is not compiled again.
+ */
+public class EvaluatorCompiler {
+
+    private static final String GEN_PACKAGE = "simpledb.execution.generated";
+
+    /** The default number of tuples an evaluator interprets before it is compiled */
+    public static final int DEFAULT_COMPILE_THRESHOLD = 50000;
+
+    private static volatile boolean enabled = !"false".equals(System.getProperty("simpledb.codegen"));
+    private static volatile int compileThreshold = DEFAULT_COMPILE_THRESHOLD;
+    private static Boolean compilerAvailable;
+
+    // the class compiled for each shape, or empty if its compilation failed
+    private static final Map<String, Optional<Class<?>>> classCache = new ConcurrentHashMap<>();
+    private static int classCounter = 0;
+
+    /**
+     * Turn code generation on or off. When off, the interpreted evaluators are
+     * always used.
+     */
+    public static void setEnabled(boolean enabled) {
+        EvaluatorCompiler.enabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Set the number of tuples an evaluator interprets before it is compiled;
+     * 0 compiles it when it is created.
+     */
+    public static void setCompileThreshold(int tuples) {
+        if (tuples < 0) {
+            throw new IllegalArgumentException("compile threshold must not be negative: " + tuples);
+        }
+        compileThreshold = tuples;
+    }
+
+    public static int getCompileThreshold() {
+        return compileThreshold;
+    }
+
+    /**
+     * Returns an evaluator for the conjunction of the given predicates over
+     * tuples described by td.
+     *
+     * @param preds the conjuncts, evaluated left to right with short-circuiting
+     * @param td the TupleDesc of the tuples the evaluator will be applied to
+     */
+    public static PredicateEvaluator compilePredicates(List<Predicate> preds, TupleDesc td) {
+        final List<Predicate> conjuncts = new ArrayList<>(preds);
+        PredicateEvaluator interpreted = t -> {
+            for (Predicate p : conjuncts) {
+                if (!p.filter(t)) {
+                    return false;
+                }
+            }
+            return true;
+        };
+        if (!enabled || !hasCompiler()) {
+            return interpreted;
+        }
+        Field[] operands = new Field[conjuncts.size()];
+        StringBuilder key = new StringBuilder("P");
+        for (int i = 0; i < conjuncts.size(); i++) {
+            Predicate p = conjuncts.get(i);
+            operands[i] = p.getOperand();
+            Type type = td.getFieldType(p.getField());
+            if (p.getOperand() == null || p.getOperand().getType() != type) {
+                return interpreted;
+            }
+            key.append('|').append(p.getField()).append(':').append(type).append(':').append(p.getOp());
+        }
+        String shape = key.toString();
+        Optional<Class<?>> cached = classCache.get(shape);
+        if (cached != null && !cached.isPresent()) {
+            // compiling this shape failed before, don't try again
+            return interpreted;
+        }
+        if (compileThreshold == 0 || cached != null) {
+            PredicateEvaluator compiled = instantiate(shape, conjuncts, td, operands);
+            return compiled != null ? compiled : interpreted;
+        }
+        return new PredicateEvaluator() {
+            private PredicateEvaluator current = interpreted;
+            private int evaluated = 0;
+
+            public boolean filter(Tuple t) {
+                if (current == interpreted && ++evaluated == compileThreshold) {
+                    PredicateEvaluator compiled = instantiate(shape, conjuncts, td, operands);
+                    if (compiled != null) {
+                        current = compiled;
+                    }
+                }
+                return current.filter(t);
+            }
+        };
+    }
+
+    private static PredicateEvaluator instantiate(String shape, List<Predicate> preds, TupleDesc td,
+                                                  Field[] operands) {
+        Class<?> c = loadOrCompile(shape, name -> predicateSource(name, preds, td));
+        if (c == null) {
+            return null;
+        }
+        try {
+            return (PredicateEvaluator) c.getConstructor(Field[].class).newInstance((Object) operands);
+        } catch (ReflectiveOperationException e) {
+            Debug.log("EvaluatorCompiler: could not instantiate %s: %s", c.getName(), e);
+            return null;
+        }
+    }
+
+    private static synchronized boolean hasCompiler() {
+        if (compilerAvailable == null) {
+            compilerAvailable = ToolProvider.getSystemJavaCompiler() != null;
+            if (!compilerAvailable) {
+                Debug.log("EvaluatorCompiler: no system Java compiler, falling back to interpretation");
+            }
+        }
+        return compilerAvailable;
+    }
+
+    // ===================== Source generation =================================
+
+    private interface SourceGenerator {
+        String generate(String simpleName);
+    }
+
+    private static String predicateSource(String name, List<Predicate> preds, TupleDesc td) {
+        StringBuilder fields = new StringBuilder();
+        StringBuilder ctor = new StringBuilder();
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < preds.size(); i++) {
+            Predicate p = preds.get(i);
+            String c = "c" + i;
+            String value;
+            if (td.getFieldType(p.getField()) == Type.INT_TYPE) {
+                fields.append("    private final int ").append(c).append(";\n");
+                ctor.append("        ").append(c).append(" = ((simpledb.storage.IntField) operands[")
+                        .append(i).append("]).getValue();\n");
+                value = "((simpledb.storage.IntField) t.getField(" + p.getField() + ")).getValue()";
+                body.append(i == 0 ? "        return " : "\n            && ")
+                        .append(intComparison(value, p.getOp(), c));
+            } else {
+                fields.append("    private final String ").append(c).append(";\n");
+                ctor.append("        ").append(c).append(" = ((simpledb.storage.StringField) operands[")
+                        .append(i).append("]).getValue();\n");
+                value = "((simpledb.storage.StringField) t.getField(" + p.getField() + ")).getValue()";
+                body.append(i == 0 ? "        return " : "\n            && ")
+                        .append(stringComparison(value, p.getOp(), c));
+            }
+        }
+        return "package " + GEN_PACKAGE + ";\n\n"
+                + "public final class " + name + " implements simpledb.execution.PredicateEvaluator {\n"
+                + fields
+                + "\n    public " + name + "(simpledb.storage.Field[] operands) {\n"
+                + ctor
+                + "    }\n\n"
+                + "    public boolean filter(simpledb.storage.Tuple t) {\n"
+                + body + ";\n"
+                + "    }\n"
+                + "}\n";
+    }
+
+    private static String intComparison(String value, Predicate.Op op, String c) {
+        switch (op) {
+            case EQUALS:
+            case LIKE:
+                return "(" + value + " == " + c + ")";
+            case NOT_EQUALS:
+                return "(" + value + " != " + c + ")";
+            case GREATER_THAN:
+                return "(" + value + " > " + c + ")";
+            case GREATER_THAN_OR_EQ:
+                return "(" + value + " >= " + c + ")";
+            case LESS_THAN:
+                return "(" + value + " < " + c + ")";
+            case LESS_THAN_OR_EQ:
+                return "(" + value + " <= " + c + ")";
+            default:
+                throw new IllegalStateException("impossible to reach here");
+        }
+    }
+
+    private static String stringComparison(String value, Predicate.Op op, String c) {
+        switch (op) {
+            case EQUALS:
+                return value + ".equals(" + c + ")";
+            case NOT_EQUALS:
+                return "!" + value + ".equals(" + c + ")";
+            case GREATER_THAN:
+                return "(" + value + ".compareTo(" + c + ") > 0)";
+            case GREATER_THAN_OR_EQ:
+                return "(" + value + ".compareTo(" + c + ") >= 0)";
+            case LESS_THAN:
+                return "(" + value + ".compareTo(" + c + ") < 0)";
+            case LESS_THAN_OR_EQ:
+                return "(" + value + ".compareTo(" + c + ") <= 0)";
+            case LIKE:
+                return value + ".contains(" + c + ")";
+            default:
+                throw new IllegalStateException("impossible to reach here");
+        }
+    }
+
+    // ===================== In-process compilation =================================
+
+    private static synchronized Class<?> loadOrCompile(String key, SourceGenerator generator) {
+        if (classCache.containsKey(key)) {
+            return classCache.get(key).orElse(null);
+        }
+        String simpleName = "Pred" + (classCounter++);
+        Class<?> c = compile(simpleName, generator.generate(simpleName));
+        // a failure is cached as well, so that each shape is compiled at most once
+        classCache.put(key, Optional.ofNullable(c));
+        return c;
+    }
+
+    private static Class<?> compile(String simpleName, String source) {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            return null;
+        }
+        String className = GEN_PACKAGE + "." + simpleName;
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        MemoryFileManager fileManager = new MemoryFileManager(compiler.getStandardFileManager(diagnostics, null, null));
+        List<String> options = Arrays.asList("-classpath", System.getProperty("java.class.path"), "-g:none");
+        JavaFileObject sourceFile = new SimpleJavaFileObject(
+                URI.create("string:///" + className.replace('.', '/') + JavaFileObject.Kind.SOURCE.extension),
+                JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return source;
+            }
+        };
+        Boolean ok = compiler.getTask(null, fileManager, diagnostics, options, null,
+                Collections.singletonList(sourceFile)).call();
+        if (ok == null || !ok) {
+            Debug.log("EvaluatorCompiler: failed to compile %s: %s", className, diagnostics.getDiagnostics());
+            return null;
+        }
+        byte[] bytes = fileManager.classBytes.get(className);
+        if (bytes == null) {
+            return null;
+        }
+        return new GeneratedClassLoader(EvaluatorCompiler.class.getClassLoader()).define(className, bytes);
+    }
+
+    /** Keeps the compiler output in memory instead of writing class files. */
+    private static class MemoryFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
+        final Map<String, byte[]> classBytes = new HashMap<>();
+
+        MemoryFileManager(StandardJavaFileManager fileManager) {
+            super(fileManager);
+        }
+
+        @Override
+        public JavaFileObject getJavaFileForOutput(Location location, String className,
+                                                   JavaFileObject.Kind kind, FileObject sibling) {
+            return new SimpleJavaFileObject(URI.create("mem:///" + className.replace('.', '/') + kind.extension), kind) {
+                @Override
+                public OutputStream openOutputStream() {
+                    return new ByteArrayOutputStream() {
+                        @Override
+                        public void close() {
+                            classBytes.put(className, toByteArray());
+                        }
+                    };
+                }
+            };
+        }
+    }
+
+    private static class GeneratedClassLoader extends ClassLoader {
+        GeneratedClassLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+}
@@ -0,0 +1,412 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.storage.MorselSource;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Exchange moves tuples between threads. Each producer child is drained by a
+ * task on the {@link Database#getWorkerPool() worker pool}, and its tuples are
+ * handed to the consuming thread in batches through a queue.
+ * <p>
+ * A gather exchange ({@link #Exchange(OpIterator[])}) merges the output of all
+ * of its producers into a single stream, in no particular order. A
+ * repartitioning exchange ({@link #repartition}) routes the tuples of its
+ * producers by the hash of one field into n streams, each read by its own
+ * Exchange, so that equal keys always end up in the same stream.
+ * <p>
+ * A gather exchange may be morsel-driven: its producers are pipelines over
+ * SeqScans that claim their pages from a shared {@link MorselSource}, so that
+ * the work is balanced between them at run time, and the number of producers
+ * that actually do work can be adapted by the {@link QueryScheduler}.
+ * <p>
+ * The producers are opened when the (first) consumer is opened and stopped when
+ * the (last) consumer is closed. An exception thrown by a producer is rethrown
+ * to the consumer.
+ */
+public class Exchange extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The number of tuples handed over at once */
+    public static final int BATCH_SIZE = 256;
+
+    /** The number of batches a gather producer may run ahead of its consumer */
+    private static final int QUEUE_CAPACITY = 16;
+
+    /** Marks the end of the output of one producer */
+    private static final List<Tuple> END = new ArrayList<>(0);
+
+    private final transient Router router;
+    private final int partition;
+
+    private transient Iterator<Tuple> batch;
+    private transient int ended;
+
+    /**
+     * Constructor for a gather exchange.
+     *
+     * @param producers
+     *            the children whose outputs are merged; they must all have
+     *            the same TupleDesc and must not be used by any other operator
+     */
+    public Exchange(OpIterator[] producers) {
+        this(new Router(producers, -1, 1, null), 0);
+    }
+
+    /**
+     * Constructor for a morsel-driven gather exchange.
+     *
+     * @param producers
+     *            the children whose outputs are merged; each must be a
+     *            pipeline over a SeqScan reading from morsels
+     * @param morsels
+     *            the morsels shared by the producers; they are handed out
+     *            anew whenever the producers are (re)started
+     */
+    public Exchange(OpIterator[] producers, MorselSource morsels) {
+        this(new Router(producers, -1, 1, morsels), 0);
+    }
+
+    private Exchange(Router router, int partition) {
+        this.router = router;
+        this.partition = partition;
+    }
+
+    /**
+     * Creates a repartitioning exchange.
+     *
+     * @param producers
+     *            the children whose tuples are repartitioned; they must all
+     *            have the same TupleDesc
+     * @param field
+     *            the index of the field whose hash determines the partition of
+     *            a tuple
+     * @param n
+     *            the number of partitions
+     * @return n exchanges, the i-th of which returns the tuples of partition i
+     */
+    public static Exchange[] repartition(OpIterator[] producers, int field, int n) {
+        if (n < 1) {
+            throw new IllegalArgumentException("the number of partitions must be positive");
+        }
+        Router router = new Router(producers, field, n, null);
+        Exchange[] consumers = new Exchange[n];
+        for (int i = 0; i < n; i++) {
+            consumers[i] = new Exchange(router, i);
+        }
+        return consumers;
+    }
+
+    /**
+     * @return the partition a tuple with the given key is routed to by a
+     *         repartitioning exchange with n partitions
+     */
+    public static int partitionOf(Object key, int n) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return Math.floorMod(h * 0x9E3779B9, n);
+    }
+
+    /** @return true if this exchange merges its producers into one stream */
+    public boolean isGather() {
+        return router.field < 0;
+    }
+
+    /** @return the morsels shared by the producers, or null if the exchange is not morsel-driven */
+    public MorselSource getMorsels() {
+        return router.morsels;
+    }
+
+    /** @return the number of partitions of a repartitioning exchange (1 for gather) */
+    public int getNumPartitions() {
+        return router.numPartitions;
+    }
+
+    public String getName() {
+        if (isGather()) {
+            return (router.morsels != null ? "gather(morsels," : "gather(") + router.producers.length + ")";
+        }
+        return "repartition(" + getTupleDesc().getFieldName(router.field) + ","
+                + partition + "/" + router.numPartitions + ")";
+    }
+
+    public TupleDesc getTupleDesc() {
+        return router.producers[0].getTupleDesc();
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        batch = null;
+        ended = 0;
+        router.open();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        batch = null;
+        router.close();
+    }
+
+    /**
+     * Restarts the producers of a gather exchange. Repartitioning exchanges
+     * share their producers, so they can not be rewound individually.
+     */
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (!isGather()) {
+            throw new DbException("a repartitioning exchange can not be rewound");
+        }
+        router.restart();
+        batch = null;
+        ended = 0;
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        while (batch == null || !batch.hasNext()) {
+            if (ended == router.producers.length) {
+                router.checkError();
+                return null;
+            }
+            List<Tuple> next = router.take(partition);
+            router.checkError();
+            if (next == END) {
+                ended++;
+                batch = null;
+            } else {
+                batch = next.iterator();
+            }
+        }
+        return batch.next();
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return router.producers;
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        router.producers = children;
+    }
+
+    /**
+     * Runs the producers of one or more exchanges and routes their batches to
+     * the queue of each partition.
+     */
+    private static class Router {
+        OpIterator[] producers;
+        final int field;
+        final int numPartitions;
+        final MorselSource morsels;
+
+        private Run run;
+        private int openConsumers = 0;
+
+        Router(OpIterator[] producers, int field, int numPartitions, MorselSource morsels) {
+            if (producers.length == 0) {
+                throw new IllegalArgumentException("an exchange needs at least one producer");
+            }
+            this.producers = producers;
+            this.field = field;
+            this.numPartitions = numPartitions;
+            this.morsels = morsels;
+        }
+
+        synchronized void open() {
+            if (openConsumers++ == 0) {
+                run = new Run();
+                run.start();
+            }
+        }
+
+        synchronized void close() {
+            if (openConsumers > 0 && --openConsumers == 0) {
+                run.stop();
+            }
+        }
+
+        synchronized void restart() {
+            if (run != null) {
+                run.stop();
+            }
+            run = new Run();
+            run.start();
+        }
+
+        List<Tuple> take(int partition) throws DbException {
+            Run r;
+            synchronized (this) {
+                r = run;
+            }
+            Taker taker = new Taker(r.queues.get(partition));
+            try {
+                ForkJoinPool.managedBlock(taker);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DbException("interrupted while waiting for exchange producers");
+            }
+            return taker.item;
+        }
+
+        void checkError() throws DbException, TransactionAbortedException {
+            Throwable e;
+            synchronized (this) {
+                e = run.error.get();
+            }
+            if (e == null) {
+                return;
+            }
+            if (e instanceof DbException) {
+                throw (DbException) e;
+            } else if (e instanceof TransactionAbortedException) {
+                throw (TransactionAbortedException) e;
+            } else if (e instanceof RuntimeException) {
+                throw (RuntimeException) e;
+            } else if (e instanceof Error) {
+                throw (Error) e;
+            }
+            throw new DbException("exchange producer failed: " + e);
+        }
+
+        /** The state of one execution of the producers */
+        private class Run {
+            final List<BlockingQueue<List<Tuple>>> queues;
+            final AtomicReference<Throwable> error = new AtomicReference<>();
+            volatile boolean cancelled = false;
+            final ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[producers.length];
+
+            Run() {
+                queues = new ArrayList<>(numPartitions);
+                for (int i = 0; i < numPartitions; i++) {
+                    // a single consumer applies back pressure; with several,
+                    // a slow consumer must not stall the others
+                    queues.add(numPartitions == 1 ? new ArrayBlockingQueue<>(QUEUE_CAPACITY)
+                            : new LinkedBlockingQueue<>());
+                }
+            }
+
+            void start() {
+                if (morsels != null) {
+                    morsels.reset();
+                }
+                for (int i = 0; i < producers.length; i++) {
+                    final OpIterator child = producers[i];
+                    tasks[i] = Database.getWorkerPool().submit(() -> produce(child));
+                }
+            }
+
+            void stop() {
+                cancelled = true;
+                for (BlockingQueue<List<Tuple>> q : queues) {
+                    q.clear();
+                }
+                for (ForkJoinTask<?> task : tasks) {
+                    task.quietlyJoin();
+                }
+                for (BlockingQueue<List<Tuple>> q : queues) {
+                    q.clear();
+                }
+            }
+
+            private void produce(OpIterator child) {
+                List<List<Tuple>> buffers = new ArrayList<>(numPartitions);
+                for (int i = 0; i < numPartitions; i++) {
+                    buffers.add(new ArrayList<>(BATCH_SIZE));
+                }
+                try {
+                    child.open();
+                    while (!cancelled && child.hasNext()) {
+                        Tuple t = child.next();
+                        int p = field < 0 ? 0 : partitionOf(t.getField(field), numPartitions);
+                        List<Tuple> buffer = buffers.get(p);
+                        buffer.add(t);
+                        if (buffer.size() >= BATCH_SIZE) {
+                            put(p, buffer);
+                            buffers.set(p, new ArrayList<>(BATCH_SIZE));
+                        }
+                    }
+                    for (int p = 0; p < numPartitions; p++) {
+                        if (!buffers.get(p).isEmpty()) {
+                            put(p, buffers.get(p));
+                        }
+                    }
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                } finally {
+                    child.close();
+                    for (int p = 0; p < numPartitions; p++) {
+                        put(p, END);
+                    }
+                }
+            }
+
+            private void put(int partition, List<Tuple> batch) {
+                try {
+                    ForkJoinPool.managedBlock(new Putter(this, queues.get(partition), batch));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    cancelled = true;
+                }
+            }
+        }
+    }
+
+    private static class Taker implements ForkJoinPool.ManagedBlocker {
+        private final BlockingQueue<List<Tuple>> queue;
+        List<Tuple> item;
+
+        Taker(BlockingQueue<List<Tuple>> queue) {
+            this.queue = queue;
+        }
+
+        public boolean isReleasable() {
+            return item != null || (item = queue.poll()) != null;
+        }
+
+        public boolean block() throws InterruptedException {
+            if (item == null) {
+                item = queue.take();
+            }
+            return true;
+        }
+    }
+
+    /** Blocks on a full queue until there is room or the run is cancelled */
+    private static class Putter implements ForkJoinPool.ManagedBlocker {
+        private final Router.Run run;
+        private final BlockingQueue<List<Tuple>> queue;
+        private final List<Tuple> batch;
+        private boolean done = false;
+
+        Putter(Router.Run run, BlockingQueue<List<Tuple>> queue, List<Tuple> batch) {
+            this.run = run;
+            this.queue = queue;
+            this.batch = batch;
+        }
+
+        public boolean isReleasable() {
+            return done || run.cancelled || (done = queue.offer(batch));
+        }
+
+        public boolean block() throws InterruptedException {
+            while (!done && !run.cancelled) {
+                done = queue.offer(batch, 10, TimeUnit.MILLISECONDS);
+            }
+            return true;
+        }
+    }
+}
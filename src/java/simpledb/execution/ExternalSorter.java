@@ -0,0 +1,333 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.SpillFile;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * ExternalSorter sorts a stream of tuples within a memory budget.
+ * <p>
+ * Tuples are collected in memory until the budget is used up; then they are
+ * sorted and written to a spill file as a sorted run. Once all tuples have
+ * been added, the runs (and the last, in-memory one) are merged through a
+ * heap while the sorted tuples are read. If there are more than
+ * {@link #MERGE_FAN_IN} runs, groups of runs are first merged into longer
+ * runs, so that the final merge reads from at most that many files at once.
+ * <p>
+ * The sort is stable: tuples that compare equal are returned in the order in
+ * which they were added.
+ * <p>
+ * When the sort is by fields of the tuples, the runs are sorted by a
+ * {@link NormalizedKeySorter}, whose keys count against the memory budget.
+ */
+public class ExternalSorter {
+
+    /** The largest number of runs that are merged at once */
+    public static final int MERGE_FAN_IN = 64;
+
+    private final TupleDesc td;
+    private final Comparator<Tuple> comparator;
+    private final NormalizedKeySorter keySorter;
+    private final long memoryBudget;
+    private final long tupleBytes;
+
+    private final List<Tuple> buffer = new ArrayList<>();
+    private final List<SpillFile> runs = new ArrayList<>();
+    private int spilledRuns = 0;
+    private long peakBytes = 0;
+    private boolean finished = false;
+    private CancellationToken cancellation;
+
+    /**
+     * @param td the TupleDesc of the tuples to sort
+     * @param comparator the order to sort the tuples in
+     * @param memoryBudget the number of bytes the tuples kept in memory may
+     *                     take (see {@link WorkMemory})
+     */
+    public ExternalSorter(TupleDesc td, Comparator<Tuple> comparator, long memoryBudget) {
+        this.td = td;
+        this.comparator = comparator;
+        this.keySorter = null;
+        this.memoryBudget = memoryBudget;
+        this.tupleBytes = WorkMemory.estimateTupleBytes(td);
+    }
+
+    /**
+     * @param td the TupleDesc of the tuples to sort
+     * @param fields the fields to sort by, most significant first
+     * @param asc for each field, true if it is sorted in ascending order
+     * @param memoryBudget the number of bytes the tuples kept in memory may
+     *                     take, including their sort keys
+     */
+    public ExternalSorter(TupleDesc td, int[] fields, boolean[] asc, long memoryBudget) {
+        this.td = td;
+        this.comparator = new TupleComparator(fields, asc);
+        this.keySorter = new NormalizedKeySorter(td, fields, asc);
+        this.memoryBudget = memoryBudget;
+        // the key and the two position arrays of the radix sort
+        this.tupleBytes = WorkMemory.estimateTupleBytes(td) + keySorter.getKeyWidth() + 8;
+    }
+
+    private void sort(List<Tuple> tuples) {
+        if (keySorter != null) {
+            keySorter.sort(tuples);
+        } else {
+            tuples.sort(comparator);
+        }
+    }
+
+    /**
+     * Adds a tuple to the input of the sort.
+     *
+     * @throws IllegalStateException if the sorted tuples have been requested
+     */
+    public void add(Tuple t) throws DbException {
+        if (finished) {
+            throw new IllegalStateException("no tuples can be added to a finished sort");
+        }
+        buffer.add(t);
+        if (buffer.size() * tupleBytes > memoryBudget) {
+            peakBytes = Math.max(peakBytes, buffer.size() * tupleBytes);
+            runs.add(writeRun(buffer));
+            buffer.clear();
+        }
+    }
+
+    /** Adds all tuples of an open iterator. */
+    public void addAll(OpIterator it) throws DbException, TransactionAbortedException {
+        while (it.hasNext()) {
+            checkCancelled();
+            add(it.next());
+        }
+    }
+
+    /**
+     * Set the token of the query this sort is a part of, which is checked
+     * while tuples are added and runs are merged; null if there is none.
+     */
+    public void setCancellationToken(CancellationToken cancellation) {
+        this.cancellation = cancellation;
+    }
+
+    private void checkCancelled() throws QueryCancelledException {
+        if (cancellation != null) {
+            cancellation.check();
+        }
+    }
+
+    private SpillFile writeRun(List<Tuple> tuples) throws DbException {
+        sort(tuples);
+        SpillFile run = new SpillFile(td);
+        for (Tuple t : tuples) {
+            run.add(t);
+        }
+        spilledRuns++;
+        return run;
+    }
+
+    /** @return the most bytes the tuples kept in memory took at once */
+    public long getPeakBytes() {
+        return peakBytes;
+    }
+
+    /** @return the number of sorted runs written to disk, including merged ones */
+    public int getSpilledRuns() {
+        return spilledRuns;
+    }
+
+    /**
+     * Finishes the input of the sort and returns an iterator over the sorted
+     * tuples. The iterator can be opened and rewound any number of times,
+     * until the sorter is deleted.
+     */
+    public OpIterator sorted() throws DbException, TransactionAbortedException {
+        if (!finished) {
+            finished = true;
+            peakBytes = Math.max(peakBytes, buffer.size() * tupleBytes);
+            sort(buffer);
+            while (runs.size() > MERGE_FAN_IN) {
+                mergeRuns();
+            }
+        }
+        List<OpIterator> inputs = new ArrayList<>();
+        for (SpillFile run : runs) {
+            inputs.add(run.iterator());
+        }
+        if (!buffer.isEmpty() || inputs.isEmpty()) {
+            inputs.add(new ListIterator(td, buffer));
+        }
+        return inputs.size() == 1 ? inputs.get(0) : new MergeIterator(td, comparator, inputs);
+    }
+
+    /** Merges the runs in groups of MERGE_FAN_IN into longer runs */
+    private void mergeRuns() throws DbException, TransactionAbortedException {
+        List<SpillFile> merged = new ArrayList<>();
+        try {
+            for (int from = 0; from < runs.size(); from += MERGE_FAN_IN) {
+                List<SpillFile> group = runs.subList(from, Math.min(runs.size(), from + MERGE_FAN_IN));
+                if (group.size() == 1) {
+                    merged.add(group.get(0));
+                    continue;
+                }
+                List<OpIterator> inputs = new ArrayList<>();
+                for (SpillFile run : group) {
+                    inputs.add(run.iterator());
+                }
+                MergeIterator merge = new MergeIterator(td, comparator, inputs);
+                SpillFile out = new SpillFile(td);
+                merged.add(out);
+                merge.open();
+                try {
+                    while (merge.hasNext()) {
+                        checkCancelled();
+                        out.add(merge.next());
+                    }
+                } finally {
+                    merge.close();
+                }
+                for (SpillFile run : group) {
+                    run.delete();
+                }
+                spilledRuns++;
+            }
+        } catch (DbException | TransactionAbortedException | RuntimeException e) {
+            // so that delete removes the runs merged so far as well
+            runs.addAll(merged);
+            throw e;
+        }
+        runs.clear();
+        runs.addAll(merged);
+    }
+
+    /** Removes the spill files and drops the buffered tuples. */
+    public void delete() {
+        for (SpillFile run : runs) {
+            run.delete();
+        }
+        runs.clear();
+        buffer.clear();
+    }
+
+    /** Iterates over a list of tuples */
+    private static class ListIterator implements OpIterator {
+        private static final long serialVersionUID = 1L;
+        private final TupleDesc td;
+        private final List<Tuple> tuples;
+        private int pos = -1;
+
+        ListIterator(TupleDesc td, List<Tuple> tuples) {
+            this.td = td;
+            this.tuples = tuples;
+        }
+
+        public void open() {
+            pos = 0;
+        }
+
+        public boolean hasNext() {
+            if (pos < 0) {
+                throw new IllegalStateException("iterator not open");
+            }
+            return pos < tuples.size();
+        }
+
+        public Tuple next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return tuples.get(pos++);
+        }
+
+        public void rewind() {
+            pos = 0;
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        public void close() {
+            pos = -1;
+        }
+    }
+
+    /**
+     * Merges sorted inputs through a heap of their current tuples; ties are
+     * broken by the position of the input, which keeps the merge stable.
+     */
+    private static class MergeIterator implements OpIterator {
+        private static final long serialVersionUID = 1L;
+        private final TupleDesc td;
+        private final List<OpIterator> inputs;
+        private final transient PriorityQueue<Head> heap;
+
+        private static class Head {
+            final Tuple tuple;
+            final int input;
+
+            Head(Tuple tuple, int input) {
+                this.tuple = tuple;
+                this.input = input;
+            }
+        }
+
+        MergeIterator(TupleDesc td, Comparator<Tuple> comparator, List<OpIterator> inputs) {
+            this.td = td;
+            this.inputs = inputs;
+            Comparator<Head> byTuple = (a, b) -> comparator.compare(a.tuple, b.tuple);
+            this.heap = new PriorityQueue<>(Math.max(1, inputs.size()),
+                    byTuple.thenComparingInt(h -> h.input));
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            heap.clear();
+            for (int i = 0; i < inputs.size(); i++) {
+                OpIterator input = inputs.get(i);
+                input.open();
+                if (input.hasNext()) {
+                    heap.add(new Head(input.next(), i));
+                }
+            }
+        }
+
+        public boolean hasNext() {
+            return !heap.isEmpty();
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException {
+            Head head = heap.poll();
+            if (head == null) {
+                throw new NoSuchElementException();
+            }
+            OpIterator input = inputs.get(head.input);
+            if (input.hasNext()) {
+                heap.add(new Head(input.next(), head.input));
+            }
+            return head.tuple;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        public void close() {
+            heap.clear();
+            for (OpIterator input : inputs) {
+                input.close();
+            }
+        }
+    }
+}
@@ -9,10 +9,20 @@ import java.util.*;
 
 /**
  * Filter is an operator that implements a relational select.
+ * <p>
+ * The predicates of a Filter directly over a {@link SeqScan} of a heap file
+ * are pushed down into the scan when it is opened, and evaluated on the bytes
+ * of the pages; the Filter then only applies its runtime filters.
  */
 public class Filter extends Operator {
 
     private Predicate predicate;
+    private final List<Predicate> conjuncts;
+    private transient PredicateEvaluator evaluator;
+    // whether the child scan evaluates the predicates
+    private transient boolean pushedDown;
+    // the filters pushed down by joins
+    private transient List<RuntimeFilter> runtimeFilters;
     private OpIterator child;
     private static final long serialVersionUID = 1L;
 
@@ -27,13 +37,41 @@ public class Filter extends Operator {
      */
     public Filter(Predicate p, OpIterator child) {
         predicate = p;
+        conjuncts = Collections.singletonList(p);
         this.child = child;
     }
 
+    /**
+     * Constructor for a filter over the conjunction (AND) of several
+     * predicates. The conjunction is evaluated with a specialized evaluator
+     * generated by {@link EvaluatorCompiler}.
+     *
+     * @param conjuncts
+     *            The predicates that every returned tuple satisfies; must not
+     *            be empty
+     * @param child
+     *            The child operator
+     */
+    public Filter(List<Predicate> conjuncts, OpIterator child) {
+        predicate = conjuncts.get(0);
+        this.conjuncts = new ArrayList<>(conjuncts);
+        this.child = child;
+    }
+
+    /**
+     * @return the first predicate of this filter
+     */
     public Predicate getPredicate() {
         return predicate;
     }
 
+    /**
+     * @return all the predicates of this filter, which are ANDed together
+     */
+    public List<Predicate> getPredicates() {
+        return conjuncts;
+    }
+
     public TupleDesc getTupleDesc() {
         return child.getTupleDesc();
     }
@@ -44,6 +82,10 @@ public class Filter extends Operator {
     }
 
     public void open() throws DbException, TransactionAbortedException {
+        pushedDown = child instanceof SeqScan && ((SeqScan) child).pushDownPredicates(conjuncts);
+        if (!pushedDown && evaluator == null && conjuncts.size() > 1) {
+            evaluator = EvaluatorCompiler.compilePredicates(conjuncts, child.getTupleDesc());
+        }
         child.open();
         super.open();
     }
@@ -64,13 +106,33 @@ public class Filter extends Operator {
     protected Tuple fetchNext() throws NoSuchElementException, TransactionAbortedException, DbException {
         while (child.hasNext()) {
             Tuple next = child.next();
-            if (predicate.filter(next)) {
+            if (runtimeFilters != null && !RuntimeFilter.mightMatch(runtimeFilters, next)) {
+                continue;
+            }
+            if (pushedDown || (evaluator != null ? evaluator.filter(next) : predicate.filter(next))) {
                 return next;
             }
         }
         return null;
     }
 
+    /**
+     * Drops the tuples rejected by filter before the predicates of this
+     * Filter are evaluated; see {@link RuntimeFilter#pushDown}.
+     */
+    public void addRuntimeFilter(RuntimeFilter filter) {
+        if (runtimeFilters == null) {
+            runtimeFilters = new ArrayList<>();
+        }
+        runtimeFilters.add(filter);
+    }
+
+    public void removeRuntimeFilter(RuntimeFilter filter) {
+        if (runtimeFilters != null) {
+            runtimeFilters.remove(filter);
+        }
+    }
+
     @Override
     public OpIterator[] getChildren() {
         return new OpIterator[]{child};
@@ -0,0 +1,557 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.SpillFile;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.util.IntHashTable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * HashAggregator is the base of the aggregators that keep the state of every
+ * group in memory: each group gets a dense id when its key is first seen, and
+ * subclasses keep their per-group state in arrays indexed by that id. A single
+ * INT group key is looked up in an {@link IntHashTable}, without boxing; other
+ * keys, including composite keys over several group-by fields, in a HashMap.
+ * <p>
+ * The groups may take at most the memory budget of the aggregator. Once it is
+ * reached, no more groups are created: the tuples of groups that are not in
+ * memory are written, reduced to their group-by fields and the fields the
+ * aggregate reads, to one of {@link #NUM_PARTITIONS} spill files chosen by the
+ * hash of their group. The iterator returns the groups in memory first, then
+ * aggregates each spilled partition on its own with a new aggregator of the
+ * same kind, which spills again if the partition does not fit either. Results
+ * are produced one group at a time and never collected into a list.
+ * <p>
+ * Aggregators of the same kind over different tuples, e.g. the partial
+ * aggregates of parallel workers, can be merged group by group (see
+ * {@link #merge}), without going through their results.
+ */
+public abstract class HashAggregator implements Aggregator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The number of partitions the tuples of new groups are spilled to once memory is full */
+    public static final int NUM_PARTITIONS = 16;
+
+    /** The deepest level of recursive partitioning, below which all groups are kept in memory */
+    private static final int MAX_DEPTH = 4;
+
+    protected final int[] gbfields;
+    protected final Type[] gbfieldtypes;
+    private long memoryBudget = -1;
+    private int depth = 0;
+
+    // the group ids: a single INT key, other keys (a Field, or a List of
+    // Fields for a composite key), or the single group without grouping
+    private transient IntHashTable intGroups;
+    private transient Map<Object, Integer> groups;
+    private transient List<Object> groupKeys;
+    private transient int numGroups;
+    private transient int capacity;
+
+    // the spilled partitions, once memory is full
+    private transient boolean full;
+    private transient SpillFile[] partitions;
+    private transient int spilledTuples;
+
+    /**
+     * @param gbfield     the 0-based index of the group-by field in the tuple,
+     *                    or NO_GROUPING if there is no grouping
+     * @param gbfieldtype the type of the group by field, or null if there is
+     *                    no grouping
+     */
+    protected HashAggregator(int gbfield, Type gbfieldtype) {
+        this(gbfield == NO_GROUPING ? new int[0] : new int[]{gbfield},
+                gbfield == NO_GROUPING ? new Type[0] : new Type[]{gbfieldtype});
+    }
+
+    /**
+     * @param gbfields     the 0-based indexes of the group-by fields in the
+     *                     tuple, none if there is no grouping
+     * @param gbfieldtypes the types of the group-by fields
+     */
+    protected HashAggregator(int[] gbfields, Type[] gbfieldtypes) {
+        if (gbfields.length != gbfieldtypes.length) {
+            throw new IllegalArgumentException("every group-by field needs a type");
+        }
+        this.gbfields = gbfields;
+        this.gbfieldtypes = gbfieldtypes;
+    }
+
+    /** Makes room for the state of groups with ids below capacity, keeping the state of existing groups */
+    protected abstract void growState(int capacity);
+
+    /** Sets the state of the new group id to that of a group without tuples */
+    protected abstract void initGroup(int id);
+
+    /** Merges the aggregate field of tup into the state of group id */
+    protected abstract void mergeIntoGroup(int id, Tuple tup);
+
+    /**
+     * Merges the state of group otherId of other, an aggregator of the same
+     * kind over other tuples, into the state of group id
+     */
+    protected abstract void mergeGroup(int id, HashAggregator other, int otherId);
+
+    /** Sets the fields of the aggregate value of group id in t, from the field start on */
+    protected abstract void setResult(Tuple t, int start, int id);
+
+    /** @return the types of the fields of an aggregate value */
+    protected Type[] resultTypes() {
+        return new Type[]{Type.INT_TYPE};
+    }
+
+    /** @return the indexes of the fields of a tuple that are merged into its group, in ascending order */
+    protected abstract int[] inputFields();
+
+    /** @return an estimate of the heap space taken by the state of one group, in bytes */
+    protected abstract long groupStateBytes();
+
+    /**
+     * @return an empty aggregator of the same kind as this one, for tuples
+     *         whose group-by fields are gbfields, and whose field fieldMap[i]
+     *         holds the value of the input field i of this aggregator
+     */
+    protected abstract HashAggregator newAggregator(int[] gbfields, int[] fieldMap);
+
+    /**
+     * Set the number of bytes the groups of this aggregator may take before
+     * tuples of new groups are spilled to disk; by default,
+     * {@link WorkMemory#getDefaultBytes()}. Only takes effect for tuples
+     * merged afterwards.
+     */
+    public void setMemoryBudget(long bytes) {
+        this.memoryBudget = bytes;
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget < 0 ? WorkMemory.getDefaultBytes() : memoryBudget;
+    }
+
+    /** @return the number of groups held in memory */
+    public int getGroupsInMemory() {
+        return numGroups;
+    }
+
+    /** @return an estimate of the heap space taken by the groups held in memory, in bytes */
+    public long getMemoryBytes() {
+        return numGroups * groupBytes();
+    }
+
+    /** @return the number of partitions tuples were spilled to */
+    public int getSpilledPartitions() {
+        int n = 0;
+        if (partitions != null) {
+            for (SpillFile f : partitions) {
+                if (f != null) {
+                    n++;
+                }
+            }
+        }
+        return n;
+    }
+
+    /** @return the number of tuples that were spilled to disk */
+    public int getSpilledTuples() {
+        return spilledTuples;
+    }
+
+    private boolean isIntKey() {
+        return gbfields.length == 1 && gbfieldtypes[0] == Type.INT_TYPE;
+    }
+
+    private long groupBytes() {
+        long keyBytes;
+        if (gbfields.length == 0) {
+            keyBytes = 0;
+        } else if (isIntKey()) {
+            // a key and two hash table slots
+            keyBytes = 20;
+        } else {
+            // a map entry, the boxed id and the key, with a list for a composite key
+            keyBytes = 64 + (gbfields.length > 1 ? 32 + 8L * gbfields.length : 0);
+            for (Type t : gbfieldtypes) {
+                keyBytes += 16 + t.getLen();
+            }
+        }
+        return keyBytes + groupStateBytes();
+    }
+
+    private void ensureGroups() {
+        if (capacity > 0) {
+            return;
+        }
+        capacity = 16;
+        growState(capacity);
+        if (gbfields.length == 0) {
+            // the single group exists even if no tuple is merged
+            numGroups = 1;
+            initGroup(0);
+        } else if (isIntKey()) {
+            intGroups = new IntHashTable();
+        } else {
+            groups = new HashMap<>();
+            groupKeys = new ArrayList<>();
+        }
+    }
+
+    /** @return whether a new group may be created without exceeding the memory budget */
+    private boolean hasRoomForGroup() {
+        if (!full && numGroups > 0 && depth < MAX_DEPTH
+                && (numGroups + 1) * groupBytes() > getMemoryBudget()) {
+            full = true;
+        }
+        return !full;
+    }
+
+    /** @return the group key of tup: a Field, or a List of Fields for a composite key */
+    private Object keyOf(Tuple tup) {
+        if (gbfields.length == 1) {
+            return tup.getField(gbfields[0]);
+        }
+        Field[] key = new Field[gbfields.length];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = tup.getField(gbfields[i]);
+        }
+        return Arrays.asList(key);
+    }
+
+    /** @return the id of the group of tup, or -1 if it is not in memory and cannot be created */
+    private int groupOf(Tuple tup) {
+        if (gbfields.length == 0) {
+            return 0;
+        }
+        if (intGroups != null) {
+            return groupOf(((IntField) tup.getField(gbfields[0])).getValue(), false);
+        }
+        return groupOf(keyOf(tup), false);
+    }
+
+    /**
+     * @return the id of the group of the INT key k, or -1 if it is not in
+     *         memory and cannot be created; with force, it is always created
+     */
+    private int groupOf(int k, boolean force) {
+        int id = intGroups.find(k);
+        if (id < 0 && (force || hasRoomForGroup())) {
+            id = intGroups.findOrInsert(k);
+            initNewGroup(id);
+        }
+        return id;
+    }
+
+    /**
+     * @return the id of the group of key (see {@link #keyOf}), or -1 if it is
+     *         not in memory and cannot be created; with force, it is always
+     *         created
+     */
+    private int groupOf(Object key, boolean force) {
+        Integer found = groups.get(key);
+        if (found != null) {
+            return found;
+        }
+        if (!force && !hasRoomForGroup()) {
+            return -1;
+        }
+        int id = groupKeys.size();
+        groups.put(key, id);
+        groupKeys.add(key);
+        initNewGroup(id);
+        return id;
+    }
+
+    /** Makes room for the state of the group id that was just created, and initializes it */
+    private void initNewGroup(int id) {
+        if (id == capacity) {
+            capacity *= 2;
+            growState(capacity);
+        }
+        numGroups++;
+        initGroup(id);
+    }
+
+    /**
+     * Merge a new tuple into the aggregate, grouping as indicated in the
+     * constructor; if the group of the tuple is not in memory and there is no
+     * room for it, the tuple is spilled to disk instead.
+     *
+     * @param tup the Tuple containing an aggregate field and a group-by field
+     */
+    public void mergeTupleIntoGroup(Tuple tup) {
+        ensureGroups();
+        int id = groupOf(tup);
+        if (id >= 0) {
+            mergeIntoGroup(id, tup);
+        } else {
+            try {
+                spill(tup);
+            } catch (DbException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private int partition(Object key) {
+        // a different hash function on every level of recursion
+        int h = key.hashCode() + depth * 0x61C88647;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return Math.floorMod(h, NUM_PARTITIONS);
+    }
+
+    /** Writes the group-by fields of tup, followed by its input fields, to the partition of its group */
+    private void spill(Tuple tup) throws DbException {
+        if (partitions == null) {
+            partitions = new SpillFile[NUM_PARTITIONS];
+        }
+        int p = partition(keyOf(tup));
+        int[] inputs = inputFields();
+        if (partitions[p] == null) {
+            Type[] types = Arrays.copyOf(gbfieldtypes, gbfields.length + inputs.length);
+            for (int i = 0; i < inputs.length; i++) {
+                types[gbfields.length + i] = tup.getTupleDesc().getFieldType(inputs[i]);
+            }
+            partitions[p] = new SpillFile(new TupleDesc(types));
+        }
+        Tuple t = new Tuple(partitions[p].getTupleDesc());
+        for (int i = 0; i < gbfields.length; i++) {
+            t.setField(i, tup.getField(gbfields[i]));
+        }
+        for (int i = 0; i < inputs.length; i++) {
+            t.setField(gbfields.length + i, tup.getField(inputs[i]));
+        }
+        partitions[p].add(t);
+        spilledTuples++;
+    }
+
+    /** @return an empty aggregator for the tuples of the spill files */
+    private HashAggregator newPartitionAggregator() {
+        int[] spilledGbfields = new int[gbfields.length];
+        for (int i = 0; i < spilledGbfields.length; i++) {
+            spilledGbfields[i] = i;
+        }
+        int[] inputs = inputFields();
+        int[] fieldMap = new int[inputs.length == 0 ? 0 : inputs[inputs.length - 1] + 1];
+        Arrays.fill(fieldMap, -1);
+        for (int i = 0; i < inputs.length; i++) {
+            fieldMap[inputs[i]] = gbfields.length + i;
+        }
+        HashAggregator agg = newAggregator(spilledGbfields, fieldMap);
+        agg.depth = depth + 1;
+        agg.memoryBudget = memoryBudget;
+        return agg;
+    }
+
+    /**
+     * @return an empty aggregator of the same kind as this one, into which
+     *         this aggregator and others created like it can be
+     *         {@link #merge merged}; it reads the tuples they spill, which
+     *         have the group-by fields first, then the fields they read
+     */
+    public HashAggregator newMergingAggregator() {
+        HashAggregator agg = newPartitionAggregator();
+        agg.depth = depth;
+        return agg;
+    }
+
+    /**
+     * Merges others, aggregators of the same kind as this one over other
+     * tuples, into this aggregator, which must be empty and created by
+     * {@link #newMergingAggregator}, then deletes them. The states of the
+     * groups others hold in memory are merged as they are, and are all kept
+     * in memory, as there are no more of them than others held; the tuples
+     * others spilled are then merged like any other tuples, and are spilled
+     * again if their groups are not in memory.
+     */
+    public void merge(List<HashAggregator> others) throws DbException, TransactionAbortedException {
+        ensureGroups();
+        for (HashAggregator other : others) {
+            for (int otherId = 0; otherId < other.numGroups; otherId++) {
+                int id;
+                if (gbfields.length == 0) {
+                    id = 0;
+                } else if (intGroups != null) {
+                    id = groupOf(other.intGroups.keyAt(otherId), true);
+                } else {
+                    id = groupOf(other.groupKeys.get(otherId), true);
+                }
+                mergeGroup(id, other, otherId);
+            }
+        }
+        for (HashAggregator other : others) {
+            if (other.partitions != null) {
+                for (SpillFile f : other.partitions) {
+                    if (f == null) {
+                        continue;
+                    }
+                    OpIterator in = f.iterator();
+                    in.open();
+                    while (in.hasNext()) {
+                        mergeTupleIntoGroup(in.next());
+                    }
+                    in.close();
+                }
+            }
+            other.delete();
+        }
+    }
+
+    /** @return the TupleDesc of the results: the group-by fields, if any, then the aggregate value */
+    public TupleDesc getResultTupleDesc() {
+        Type[] result = resultTypes();
+        Type[] types = Arrays.copyOf(gbfieldtypes, gbfields.length + result.length);
+        System.arraycopy(result, 0, types, gbfields.length, result.length);
+        return new TupleDesc(types);
+    }
+
+    private Tuple resultTuple(TupleDesc td, int id) {
+        Tuple t = new Tuple(td);
+        if (intGroups != null) {
+            t.setField(0, new IntField(intGroups.keyAt(id)));
+        } else if (gbfields.length == 1) {
+            t.setField(0, (Field) groupKeys.get(id));
+        } else if (gbfields.length > 1) {
+            List<?> key = (List<?>) groupKeys.get(id);
+            for (int i = 0; i < key.size(); i++) {
+                t.setField(i, (Field) key.get(i));
+            }
+        }
+        setResult(t, gbfields.length, id);
+        return t;
+    }
+
+    /** Removes the spill files of this aggregator; it cannot be iterated over afterwards */
+    public void delete() {
+        if (partitions != null) {
+            for (SpillFile f : partitions) {
+                if (f != null) {
+                    f.delete();
+                }
+            }
+            partitions = null;
+        }
+    }
+
+    /**
+     * Create a OpIterator over group aggregate results. The results of the
+     * groups in memory are computed as they are returned, from the state at
+     * that time; the spilled partitions are aggregated one at a time.
+     *
+     * @return a OpIterator whose tuples are the pair (groupVal, aggregateVal)
+     *         if using group, or a single (aggregateVal) if no grouping.
+     */
+    public OpIterator iterator() {
+        ensureGroups();
+        return new HashAggregatorIterator();
+    }
+
+    private class HashAggregatorIterator implements OpIterator {
+
+        private static final long serialVersionUID = 1L;
+
+        private final TupleDesc td = getResultTupleDesc();
+        private boolean isOpen;
+        // the next group in memory, and the next spilled partition
+        private int nextGroup;
+        private int nextPartition;
+        // the aggregator of the current spilled partition, and its results
+        private HashAggregator partitionAgg;
+        private OpIterator partitionResults;
+
+        @Override
+        public void open() throws DbException, TransactionAbortedException {
+            isOpen = true;
+            nextGroup = 0;
+            nextPartition = 0;
+        }
+
+        @Override
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            if (!isOpen) {
+                throw new IllegalStateException("the iterator hasn't open");
+            }
+            if (nextGroup < numGroups) {
+                return true;
+            }
+            while (partitionResults == null || !partitionResults.hasNext()) {
+                closePartition();
+                if (partitions == null || nextPartition == NUM_PARTITIONS) {
+                    return false;
+                }
+                openPartition(partitions[nextPartition++]);
+            }
+            return true;
+        }
+
+        /** Aggregates the tuples of a spilled partition, if there are any */
+        private void openPartition(SpillFile file) throws DbException, TransactionAbortedException {
+            if (file == null) {
+                return;
+            }
+            partitionAgg = newPartitionAggregator();
+            OpIterator in = file.iterator();
+            in.open();
+            while (in.hasNext()) {
+                partitionAgg.mergeTupleIntoGroup(in.next());
+            }
+            in.close();
+            partitionResults = partitionAgg.iterator();
+            partitionResults.open();
+        }
+
+        private void closePartition() {
+            if (partitionResults != null) {
+                partitionResults.close();
+                partitionResults = null;
+                partitionAgg.delete();
+                partitionAgg = null;
+            }
+        }
+
+        @Override
+        public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            if (nextGroup < numGroups) {
+                return resultTuple(td, nextGroup++);
+            }
+            return partitionResults.next();
+        }
+
+        @Override
+        public void rewind() throws DbException, TransactionAbortedException {
+            if (!isOpen) {
+                throw new IllegalStateException("the iterator hasn't open");
+            }
+            closePartition();
+            nextGroup = 0;
+            nextPartition = 0;
+        }
+
+        @Override
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        @Override
+        public void close() {
+            closePartition();
+            isOpen = false;
+        }
+    }
+}
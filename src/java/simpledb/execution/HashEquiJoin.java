@@ -2,24 +2,87 @@ package simpledb.execution;
 
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
+import simpledb.storage.Field;
+import simpledb.storage.SpillFile;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
 import java.util.*;
 
 /**
- * The Join operator implements the relational join operation.
+ * The HashEquiJoin operator implements an equi-join as a hybrid hash join.
+ * <p>
+ * The left (build) child is loaded into an in-memory hash table, and the
+ * right (probe) child is streamed past it. If the build side does not fit into
+ * the operator's memory budget, both inputs are split by the hash of the join
+ * key into {@link #NUM_PARTITIONS} partitions; the largest partitions are
+ * moved to spill files until the rest fits into memory. Probe tuples of
+ * in-memory partitions are joined right away, those of spilled partitions are
+ * written to spill files as well, and each spilled partition pair is then
+ * joined on its own (recursively, with a different hash function, if its build
+ * side still does not fit). Each input is thus read about twice, instead of
+ * once per memory-sized chunk of the build side.
+ * <p>
+ * Int join keys are looked up without boxing (see {@link JoinHashTable}).
+ * <p>
+ * Once the build side has been read, a {@link RuntimeFilter} of its join keys
+ * is pushed down into the scan of the probe side, so that probe tuples that
+ * cannot match are dropped before they are hashed, or even spilled.
+ * <p>
+ * The optimizer picks the build side from estimated cardinalities. When the
+ * build side overflows the memory budget, the join reads the probe side up
+ * to the budget; if the probe side fits, the inputs are swapped at run time:
+ * the hash table is built from the probe side and probed with the build side,
+ * and nothing is spilled. Otherwise the probe tuples read are set aside in a
+ * spill file, and the build goes on partitioning as above.
  */
 public class HashEquiJoin extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** The number of partitions the inputs are split into when the build side overflows */
+    public static final int NUM_PARTITIONS = 32;
+
+    /** The deepest level of recursive partitioning, below which partitions are joined in memory */
+    private static final int MAX_DEPTH = 4;
+
     private final JoinPredicate pred;
     private OpIterator child1, child2;
     private final TupleDesc comboTD;
-    transient private Tuple t1 = null;
-    transient private Tuple t2 = null;
+    private final int depth;
+    private long memoryBudget = -1;
+    private boolean useRuntimeFilter = true;
+    private boolean adaptive = true;
     public boolean bothBaseTable = true;
 
+    transient private JoinHashTable table;
+    transient private RuntimeFilter runtimeFilter;
+    transient private long memoryUsed;
+    transient private long tupleBytes;
+    // the state of the partitions, once the build side has overflowed
+    transient private boolean partitioned;
+    transient private boolean[] spilled;
+    transient private long[] partitionBytes;
+    transient private SpillFile[] buildFiles;
+    transient private SpillFile[] probeFiles;
+    transient private int spilledPartitions;
+    transient private int nextPartition;
+
+    // the input the hash table is probed with first: child2, the probe
+    // tuples set aside while deciding whether to swap the inputs followed by
+    // the rest of child2, or the build side if the inputs were swapped
+    transient private OpIterator probeInput;
+    transient private boolean probeOpen;
+    transient private SpillFile probePrefix;
+    transient private boolean swapped;
+
+    transient private OpIterator probe;
+    transient private boolean routeProbe;
+    transient private HashEquiJoin subJoin;
+    // the current probe tuple, of child1 if the inputs are swapped
+    transient private Tuple t2 = null;
+    transient private int matchRow = -1;
+
     /**
      * Constructor. Accepts to children to join and the predicate to join them
      * on
@@ -32,9 +95,14 @@ public class HashEquiJoin extends Operator {
      *            Iterator for the right(inner) relation to join
      */
     public HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this(p, child1, child2, 0);
+    }
+
+    private HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2, int depth) {
         this.pred = p;
         this.child1 = child1;
         this.child2 = child2;
+        this.depth = depth;
         comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
     }
 
@@ -55,54 +123,309 @@ public class HashEquiJoin extends Operator {
     {
 	return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
     }
-    
-    final Map<Object, List<Tuple>> map = new HashMap<>();
-    public final static int MAP_SIZE = 20000;
 
-    private boolean loadMap() throws DbException, TransactionAbortedException {
-        int cnt = 0;
-        map.clear();
+    /**
+     * Set the number of bytes the hash table of this join may take before
+     * partitions are spilled to disk; by default, {@link WorkMemory#getDefaultBytes()}.
+     */
+    public void setMemoryBudget(long bytes) {
+        this.memoryBudget = bytes;
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget < 0 ? WorkMemory.getDefaultBytes() : memoryBudget;
+    }
+
+    /** Set whether a runtime filter of the build keys is pushed down into the probe side; on by default */
+    public void setRuntimeFilterEnabled(boolean enabled) {
+        this.useRuntimeFilter = enabled;
+    }
+
+    /**
+     * Set whether the inputs are swapped when the build side overflows the
+     * memory budget but the probe side fits into it; on by default.
+     */
+    public void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+
+    /** @return true if the last build swapped the inputs, building the hash table from the probe side */
+    public boolean hasSwappedInputs() {
+        return swapped;
+    }
+
+    /**
+     * @return the runtime filter pushed down into the probe side by the last
+     *         build, or null if none was (e.g. because the inputs were swapped)
+     */
+    public RuntimeFilter getRuntimeFilter() {
+        return runtimeFilter;
+    }
+
+    /** @return the number of partitions that were spilled to disk by the last build */
+    public int getSpilledPartitions() {
+        return spilledPartitions;
+    }
+
+    private int partition(Field key) {
+        // a different hash function on every level of recursion, which is
+        // also independent of the one used by the hash table
+        int h = key.hashCode() + depth * 0x61C88647;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return Math.floorMod(h, NUM_PARTITIONS);
+    }
+
+    private JoinHashTable newTable() {
+        return JoinHashTable.forJoin(pred, child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    private void build() throws DbException, TransactionAbortedException {
+        table = newTable();
+        memoryUsed = 0;
+        tupleBytes = WorkMemory.estimateTupleBytes(child1.getTupleDesc());
+        partitioned = false;
+        spilledPartitions = 0;
+        swapped = false;
+        probeInput = child2;
+        RuntimeFilter.Builder filter = null;
+        if (useRuntimeFilter && RuntimeFilter.canPushDown(child2) && child1.getTupleDesc().getFieldType(pred.getField1())
+                == child2.getTupleDesc().getFieldType(pred.getField2())) {
+            filter = new RuntimeFilter.Builder(pred.getField2());
+        }
+        runtimeFilter = null;
         while (child1.hasNext()) {
-            t1 = child1.next();
-            List<Tuple> list = map.computeIfAbsent(t1.getField(pred.getField1()), k -> new ArrayList<>());
-            list.add(t1);
-            if (cnt++ == MAP_SIZE)
+            checkCancelled();
+            Tuple t1 = child1.next();
+            Field key = t1.getField(pred.getField1());
+            if (filter != null) {
+                filter.add(key);
+            }
+            if (partitioned) {
+                int p = partition(key);
+                if (spilled[p]) {
+                    buildFiles[p].add(t1);
+                    continue;
+                }
+                partitionBytes[p] += tupleBytes;
+            }
+            table.add(t1);
+            memoryUsed += tupleBytes;
+            if (memoryUsed > getMemoryBudget() && !partitioned && adaptive && depth == 0 && swapInputs()) {
+                break;
+            }
+            while (memoryUsed > getMemoryBudget() && spilledPartitions < NUM_PARTITIONS) {
+                spillLargestPartition();
+            }
+        }
+        reportMemory(memoryUsed);
+        if (filter != null && !swapped) {
+            runtimeFilter = filter.build();
+            runtimeFilter.pushDown(child2);
+        }
+        probe = probeInput;
+        routeProbe = partitioned;
+        nextPartition = 0;
+    }
+
+    /**
+     * Called when the build side first overflows the memory budget: reads the
+     * probe side up to the budget and, if all of it fits, swaps the inputs.
+     * Otherwise the probe tuples read are set aside in a spill file, to be
+     * probed before the rest of the probe side.
+     *
+     * @return true if the inputs were swapped, in which case the hash table
+     *         holds the probe side, and the tuples of the build side read so
+     *         far followed by the rest of it are the input to probe it with
+     */
+    private boolean swapInputs() throws DbException, TransactionAbortedException {
+        if (!probeOpen) {
+            child2.open();
+            probeOpen = true;
+        }
+        long probeTupleBytes = WorkMemory.estimateTupleBytes(child2.getTupleDesc());
+        List<Tuple> read = new ArrayList<>();
+        while (read.size() * probeTupleBytes <= getMemoryBudget() && child2.hasNext()) {
+            read.add(child2.next());
+        }
+        reportMemory(memoryUsed + read.size() * probeTupleBytes);
+        if (read.size() * probeTupleBytes > getMemoryBudget()) {
+            probePrefix = new SpillFile(child2.getTupleDesc());
+            for (Tuple t : read) {
+                probePrefix.add(t);
+            }
+            probeInput = new PrefixedIterator(probePrefix.iterator(), child2);
+            probeInput.open();
+            return false;
+        }
+        List<Tuple> built = new ArrayList<>(table.size());
+        for (int row = 0; row < table.size(); row++) {
+            built.add(table.getRow(row));
+        }
+        JoinPredicate reversed = new JoinPredicate(pred.getField2(), pred.getOperator(), pred.getField1());
+        table = JoinHashTable.forJoin(reversed, child2.getTupleDesc(), child1.getTupleDesc());
+        for (Tuple t : read) {
+            table.add(t);
+        }
+        memoryUsed = read.size() * probeTupleBytes;
+        probeInput = new PrefixedIterator(built, child1);
+        probeInput.open();
+        swapped = true;
+        return true;
+    }
+
+    private void spillLargestPartition() throws DbException {
+        reportMemory(memoryUsed);
+        if (!partitioned) {
+            partitioned = true;
+            spilled = new boolean[NUM_PARTITIONS];
+            partitionBytes = new long[NUM_PARTITIONS];
+            buildFiles = new SpillFile[NUM_PARTITIONS];
+            probeFiles = new SpillFile[NUM_PARTITIONS];
+            for (int row = 0; row < table.size(); row++) {
+                partitionBytes[partition(table.getRow(row).getField(pred.getField1()))] += tupleBytes;
+            }
+        }
+        int largest = -1;
+        for (int p = 0; p < NUM_PARTITIONS; p++) {
+            if (!spilled[p] && (largest < 0 || partitionBytes[p] > partitionBytes[largest])) {
+                largest = p;
+            }
+        }
+        spilled[largest] = true;
+        spilledPartitions++;
+        buildFiles[largest] = new SpillFile(child1.getTupleDesc());
+        probeFiles[largest] = new SpillFile(child2.getTupleDesc());
+        table.spill(this::partition, largest, buildFiles[largest]);
+        memoryUsed -= partitionBytes[largest];
+        partitionBytes[largest] = 0;
+    }
+
+    /**
+     * Prepares the join of the next spilled partition pair.
+     *
+     * @return false if there is no spilled partition left
+     */
+    private boolean nextSpilledPartition() throws DbException, TransactionAbortedException {
+        if (probe != probeInput) {
+            // done with the previous spilled partition
+            if (probe != null) {
+                probe.close();
+            }
+            deletePartition(nextPartition - 1);
+        }
+        table.clear();
+        routeProbe = false;
+        while (partitioned && nextPartition < NUM_PARTITIONS) {
+            checkCancelled();
+            int p = nextPartition++;
+            if (!spilled[p]) {
+                continue;
+            }
+            SpillFile build = buildFiles[p];
+            SpillFile probeFile = probeFiles[p];
+            if (build.size() == 0 || probeFile.size() == 0) {
+                deletePartition(p);
+                continue;
+            }
+            if (build.size() * tupleBytes > getMemoryBudget() && depth < MAX_DEPTH) {
+                subJoin = new HashEquiJoin(pred, build.iterator(), probeFile.iterator(), depth + 1);
+                subJoin.setMemoryBudget(getMemoryBudget());
+                subJoin.setCancellationToken(getCancellationToken());
+                subJoin.open();
+                probe = null;
                 return true;
+            }
+            OpIterator it = build.iterator();
+            it.open();
+            while (it.hasNext()) {
+                table.add(it.next());
+            }
+            it.close();
+            reportMemory(build.size() * tupleBytes);
+            probe = probeFile.iterator();
+            probe.open();
+            return true;
+        }
+        probe = probeInput;
+        return false;
+    }
+
+    private void deletePartition(int p) {
+        if (buildFiles[p] != null) {
+            buildFiles[p].delete();
+            probeFiles[p].delete();
+            buildFiles[p] = null;
+            probeFiles[p] = null;
         }
-        return cnt > 0;
+    }
 
+    private void releaseState() {
+        if (subJoin != null) {
+            subJoin.close();
+            subJoin = null;
+        }
+        if (probe != null && probe != probeInput) {
+            probe.close();
+        }
+        probe = null;
+        if (probeInput != null && probeInput != child2) {
+            probeInput.close();
+        }
+        probeInput = null;
+        if (probePrefix != null) {
+            probePrefix.delete();
+            probePrefix = null;
+        }
+        if (partitioned) {
+            for (int p = 0; p < NUM_PARTITIONS; p++) {
+                deletePartition(p);
+            }
+            partitioned = false;
+        }
+        if (runtimeFilter != null) {
+            runtimeFilter.remove(child2);
+        }
+        table = null;
+        t2 = null;
+        matchRow = -1;
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
-        child2.open();
-        loadMap();
+        // the probe side is opened once the runtime filter is in place,
+        // unless it is read to decide whether to swap the inputs
+        probeOpen = false;
+        build();
+        if (!probeOpen) {
+            child2.open();
+            probeOpen = true;
+        }
         super.open();
     }
 
     public void close() {
         super.close();
+        releaseState();
         child2.close();
         child1.close();
-        this.t1=null;
-        this.t2=null;
-        this.listIt=null;
-        this.map.clear();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
+        releaseState();
         child1.rewind();
         child2.rewind();
+        build();
     }
 
-    transient Iterator<Tuple> listIt = null;
-
     /**
      * Returns the next tuple generated by the join, or null if there are no
      * more tuples. Logically, this is the next tuple in r1 cross r2 that
-     * satisfies the join predicate. There are many possible implementations;
-     * the simplest is a nested loops join.
+     * satisfies the join predicate.
      * <p>
      * Note that the tuples returned from this particular implementation of Join
      * are simply the concatenation of joining tuples from the left and right
@@ -116,49 +439,41 @@ public class HashEquiJoin extends Operator {
      * @return The next matching tuple.
      * @see JoinPredicate#filter
      */
-    private Tuple processList() {
-        t1 = listIt.next();
-
-        int td1n = t1.getTupleDesc().numFields();
-        int td2n = t2.getTupleDesc().numFields();
-
-        // set fields in combined tuple
-        Tuple t = new Tuple(comboTD);
-        for (int i = 0; i < td1n; i++)
-            t.setField(i, t1.getField(i));
-        for (int i = 0; i < td2n; i++)
-            t.setField(td1n + i, t2.getField(i));
-        return t;
-
-    }
-
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (listIt != null && listIt.hasNext()) {
-            return processList();
-        }
-
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
-
-            // if match, create a combined tuple and fill it with the values
-            // from both tuples
-            List<Tuple> l = map.get(t2.getField(pred.getField2()));
-            if (l == null)
+        while (true) {
+            if (subJoin != null) {
+                if (subJoin.hasNext()) {
+                    return subJoin.next();
+                }
+                subJoin.close();
+                subJoin = null;
+                if (!nextSpilledPartition()) {
+                    return null;
+                }
                 continue;
-            listIt = l.iterator();
-
-            return processList();
-
-        }
-
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
+            }
+            if (matchRow >= 0) {
+                Tuple t1 = table.getRow(matchRow);
+                matchRow = table.nextRow(matchRow);
+                return swapped ? Tuple.merge(comboTD, t2, t1) : Tuple.merge(comboTD, t1, t2);
+            }
+            if (probe.hasNext()) {
+                t2 = probe.next();
+                Field key = t2.getField(swapped ? pred.getField1() : pred.getField2());
+                if (routeProbe) {
+                    int p = partition(key);
+                    if (spilled[p]) {
+                        probeFiles[p].add(t2);
+                        continue;
+                    }
+                }
+                matchRow = table.firstRow(key);
+                continue;
+            }
+            if (!nextSpilledPartition()) {
+                return null;
+            }
         }
-
-        return null;
     }
 
     @Override
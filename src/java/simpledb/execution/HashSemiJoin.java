@@ -0,0 +1,174 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.util.IntHashTable;
+
+import java.util.HashSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * HashSemiJoin implements a semi-join (IN, EXISTS) or an anti-join (NOT IN,
+ * NOT EXISTS) of its children: it returns each left tuple at most once, if
+ * there is (semi-join) or there is no (anti-join) right tuple that joins with
+ * it. Its output has the fields of the left child only.
+ * <p>
+ * With an equality predicate, the distinct join keys of the right child are
+ * loaded into a hash set, and each left tuple is returned or dropped after a
+ * single lookup, however many right tuples have its key. Without a predicate,
+ * every left tuple joins with every right tuple, so only the first right
+ * tuple is read: the left tuples are all returned or all dropped.
+ */
+public class HashSemiJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private OpIterator child1, child2;
+    private final JoinPredicate predicate;
+    private final boolean anti;
+
+    private transient IntHashTable intKeys;
+    private transient Set<Field> keys;
+    private transient boolean rightEmpty;
+
+    /**
+     * @param p the equality predicate to join the children on
+     * @param child1 the tuples to return
+     * @param child2 the tuples to look for matches in
+     * @param anti true for an anti-join, false for a semi-join
+     */
+    public HashSemiJoin(JoinPredicate p, OpIterator child1, OpIterator child2, boolean anti) {
+        if (p.getOperator() != Predicate.Op.EQUALS) {
+            throw new IllegalArgumentException("a hash semi-join needs an equality predicate");
+        }
+        this.predicate = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.anti = anti;
+    }
+
+    /**
+     * A semi-join or anti-join without a predicate, as for an uncorrelated
+     * EXISTS or NOT EXISTS: it returns all tuples of child1 if child2 is not
+     * (semi-join) or is (anti-join) empty, and none otherwise.
+     */
+    public HashSemiJoin(OpIterator child1, OpIterator child2, boolean anti) {
+        this.predicate = null;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.anti = anti;
+    }
+
+    /** @return the predicate of the join, or null if it has none */
+    public JoinPredicate getJoinPredicate() {
+        return predicate;
+    }
+
+    public boolean isAnti() {
+        return anti;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(predicate.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(predicate.getField2());
+    }
+
+    /** @return the number of distinct right keys the last open loaded */
+    public int getBuildKeys() {
+        return intKeys != null ? intKeys.size() : keys != null ? keys.size() : 0;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child1.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException, TransactionAbortedException {
+        child2.open();
+        build();
+        child1.open();
+        super.open();
+    }
+
+    private void build() throws DbException, TransactionAbortedException {
+        intKeys = null;
+        keys = null;
+        if (predicate == null) {
+            rightEmpty = !child2.hasNext();
+            return;
+        }
+        boolean ints = child1.getTupleDesc().getFieldType(predicate.getField1()) == Type.INT_TYPE
+                && child2.getTupleDesc().getFieldType(predicate.getField2()) == Type.INT_TYPE;
+        if (ints) {
+            intKeys = new IntHashTable();
+        } else {
+            keys = new HashSet<>();
+        }
+        while (child2.hasNext()) {
+            checkCancelled();
+            Field key = child2.next().getField(predicate.getField2());
+            if (ints) {
+                intKeys.findOrInsert(((IntField) key).getValue());
+            } else {
+                keys.add(key);
+            }
+        }
+        rightEmpty = getBuildKeys() == 0;
+    }
+
+    public void close() {
+        super.close();
+        intKeys = null;
+        keys = null;
+        child1.close();
+        child2.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        // the right keys are kept
+        child1.rewind();
+    }
+
+    private boolean hasMatch(Tuple t) {
+        if (predicate == null || rightEmpty) {
+            return !rightEmpty;
+        }
+        Field key = t.getField(predicate.getField1());
+        if (intKeys != null) {
+            return intKeys.find(((IntField) key).getValue()) >= 0;
+        }
+        return keys.contains(key);
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        if (predicate == null && rightEmpty != anti) {
+            // no left tuple can be returned
+            return null;
+        }
+        while (child1.hasNext()) {
+            Tuple t = child1.next();
+            if (hasMatch(t) != anti) {
+                return t;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{child1, child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        child1 = children[0];
+        child2 = children[1];
+    }
+}
@@ -0,0 +1,202 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.index.BTreeFile;
+import simpledb.storage.DbFile;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * IndexNestedLoopJoin joins each outer (left) tuple with the inner tuples
+ * that match it, which it looks up in a B+ tree with
+ * {@link BTreeFile#indexIterator} instead of scanning the inner relation.
+ * <p>
+ * The inner (right) child must be a scan of a B+ tree file whose key is the
+ * right join field, possibly under Filters (see {@link #canProbe}). It
+ * describes the inner relation, but is never opened: the predicates of its
+ * Filters are applied to the tuples found in the tree. A predicate
+ * outer.f1 op inner.f2 is looked up as inner.f2 op' outer.f1, with op'
+ * the reverse of op, so any predicate but NOT_EQUALS and LIKE can be probed.
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private OpIterator child1, child2;
+    private final JoinPredicate predicate;
+    public boolean bothBaseTable;
+
+    private transient TupleDesc comboTD;
+    private transient TransactionId tid;
+    private transient BTreeFile file;
+    private transient SeqScan scan;
+    private transient List<Predicate> innerFilters;
+    private transient Tuple outerTuple;
+    private transient DbFileIterator probe;
+    private transient int probes;
+
+    /**
+     * @param p the predicate to join the children on
+     * @param child1 the outer relation
+     * @param child2 the inner relation, a scan of a B+ tree on the join field
+     * @throws IllegalArgumentException if the inner relation cannot be probed
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        if (!canProbe(p, child2)) {
+            throw new IllegalArgumentException(
+                    "the inner relation of an index join must be a scan of a B+ tree on the join field");
+        }
+        this.predicate = p;
+        this.child1 = child1;
+        this.child2 = child2;
+    }
+
+    /**
+     * @return true if the tuples of inner that match an outer tuple can be
+     *         looked up in an index for the predicate p: inner is a SeqScan of
+     *         a B+ tree file keyed on the right join field, possibly under
+     *         Filters, and the predicate is not NOT_EQUALS or LIKE
+     */
+    public static boolean canProbe(JoinPredicate p, OpIterator inner) {
+        if (p.getOperator() == Predicate.Op.NOT_EQUALS || p.getOperator() == Predicate.Op.LIKE) {
+            return false;
+        }
+        SeqScan scan = innerScan(inner, new ArrayList<>());
+        if (scan == null) {
+            return false;
+        }
+        DbFile f = Database.getCatalog().getDatabaseFile(scan.getTableId());
+        return f instanceof BTreeFile && ((BTreeFile) f).keyField() == scan.tableField(p.getField2());
+    }
+
+    /** @return the scan under the Filters of inner, whose predicates are added to filters, or null */
+    private static SeqScan innerScan(OpIterator inner, List<Predicate> filters) {
+        while (inner instanceof Filter) {
+            filters.addAll(((Filter) inner).getPredicates());
+            inner = ((Filter) inner).getChildren()[0];
+        }
+        return inner instanceof SeqScan ? (SeqScan) inner : null;
+    }
+
+    /** @return the operator that looks up inner.f2 for outer.f1 op inner.f2 */
+    private static Predicate.Op reverse(Predicate.Op op) {
+        switch (op) {
+            case LESS_THAN:
+                return Predicate.Op.GREATER_THAN;
+            case LESS_THAN_OR_EQ:
+                return Predicate.Op.GREATER_THAN_OR_EQ;
+            case GREATER_THAN:
+                return Predicate.Op.LESS_THAN;
+            case GREATER_THAN_OR_EQ:
+                return Predicate.Op.LESS_THAN_OR_EQ;
+            default:
+                return op;
+        }
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return predicate;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(predicate.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(predicate.getField2());
+    }
+
+    /** @return the number of lookups in the index since the join was opened */
+    public int getProbes() {
+        return probes;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        comboTD = getTupleDesc();
+        innerFilters = new ArrayList<>();
+        SeqScan scan = innerScan(child2, innerFilters);
+        if (scan == null) {
+            throw new DbException("the inner relation of an index join must be a scan of a B+ tree");
+        }
+        this.scan = scan;
+        tid = scan.getTransactionId();
+        file = (BTreeFile) Database.getCatalog().getDatabaseFile(scan.getTableId());
+        child1.open();
+        outerTuple = null;
+        probe = null;
+        probes = 0;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        closeProbe();
+        child1.close();
+    }
+
+    private void closeProbe() {
+        if (probe != null) {
+            probe.close();
+            probe = null;
+        }
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        closeProbe();
+        child1.rewind();
+        outerTuple = null;
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        Predicate.Op probeOp = reverse(predicate.getOperator());
+        while (true) {
+            if (probe != null) {
+                while (probe.hasNext()) {
+                    // narrowed to the fields of the inner scan, which the filters refer to
+                    Tuple inner = scan.project(probe.next());
+                    if (passesFilters(inner)) {
+                        return Tuple.merge(comboTD, outerTuple, inner);
+                    }
+                }
+                closeProbe();
+            }
+            if (!child1.hasNext()) {
+                return null;
+            }
+            outerTuple = child1.next();
+            probe = file.indexIterator(tid, new IndexPredicate(probeOp, outerTuple.getField(predicate.getField1())));
+            probe.open();
+            probes++;
+        }
+    }
+
+    private boolean passesFilters(Tuple t) {
+        for (Predicate p : innerFilters) {
+            if (!p.filter(t)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{child1, child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        child1 = children[0];
+        child2 = children[1];
+    }
+}
@@ -1,33 +1,20 @@
 package simpledb.execution;
 
-import simpledb.common.DbException;
 import simpledb.common.Type;
-import simpledb.storage.*;
-import simpledb.transaction.TransactionAbortedException;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.NoSuchElementException;
-import java.util.function.Predicate;
+import java.util.Arrays;
 
 /**
  * Knows how to compute some aggregate over a set of IntFields.
  */
-public class IntegerAggregator implements Aggregator {
-
-    private int groupByField;
-    private Type groupByFiledType;
-    private int affectField;
-    private Op op;
-    // key=-1，存储的是不分组的中间结果
-    private HashMap<Object, InnerRes> innerResMap;
-    private class InnerRes {
-        private int min = Integer.MAX_VALUE;
-        private int max = Integer.MIN_VALUE;
-        private int sum;
-        private int count;
-    }
+public class IntegerAggregator extends HashAggregator {
+
+    private final int afield;
+    private final Op what;
+    // 每个分组的中间结果存在以分组id为下标的数组里
+    private transient int[] mins, maxs, sums, counts;
 
     private static final long serialVersionUID = 1L;
 
@@ -47,187 +34,116 @@ public class IntegerAggregator implements Aggregator {
      */
 
     public IntegerAggregator(int gbfield, Type gbfieldtype, int afield, Op what) {
-        groupByField = gbfield;
-        groupByFiledType = gbfieldtype;
-        affectField = afield;
-        op = what;
-        innerResMap = new HashMap<>();
-        if (groupByField == Aggregator.NO_GROUPING) {
-            innerResMap.put(-1, new InnerRes());    
-        }
+        super(gbfield, gbfieldtype);
+        this.afield = afield;
+        this.what = what;
     }
 
     /**
-     * Merge a new tuple into the aggregate, grouping as indicated in the
-     * constructor
-     * 
-     * @param tup
-     *            the Tuple containing an aggregate field and a group-by field
+     * Aggregate constructor for grouping by several fields
+     *
+     * @param gbfields
+     *            the 0-based indexes of the group-by fields in the tuple, none
+     *            if there is no grouping
+     * @param gbfieldtypes
+     *            the types of the group-by fields
+     * @param afield
+     *            the 0-based index of the aggregate field in the tuple
+     * @param what
+     *            the aggregation operator
      */
-    public void mergeTupleIntoGroup(Tuple tup) {
-        Object key = -1;
-        boolean noGroup = (groupByField == Aggregator.NO_GROUPING);
-        if (!noGroup) {
-            if (groupByFiledType.equals(Type.INT_TYPE)) {
-                key = ((IntField) tup.getField(groupByField)).getValue();
-            } else {
-                key = ((StringField) tup.getField(groupByField)).getValue();
-            }
-        }
-        IntField afField = (IntField) tup.getField(affectField);
-        int value = afField.getValue();
-        if (!noGroup && !innerResMap.containsKey(key)) {
-            innerResMap.put(key, new InnerRes());
+    public IntegerAggregator(int[] gbfields, Type[] gbfieldtypes, int afield, Op what) {
+        super(gbfields, gbfieldtypes);
+        this.afield = afield;
+        this.what = what;
+    }
+
+    @Override
+    protected void growState(int capacity) {
+        mins = mins == null ? new int[capacity] : Arrays.copyOf(mins, capacity);
+        maxs = maxs == null ? new int[capacity] : Arrays.copyOf(maxs, capacity);
+        sums = sums == null ? new int[capacity] : Arrays.copyOf(sums, capacity);
+        counts = counts == null ? new int[capacity] : Arrays.copyOf(counts, capacity);
+    }
+
+    @Override
+    protected void initGroup(int id) {
+        mins[id] = Integer.MAX_VALUE;
+        maxs[id] = Integer.MIN_VALUE;
+        sums[id] = 0;
+        counts[id] = 0;
+    }
+
+    @Override
+    protected void mergeIntoGroup(int id, Tuple tup) {
+        int value = ((IntField) tup.getField(afield)).getValue();
+        if (what == Op.SC_AVG) {
+            // 合并SUM_COUNT的部分结果：(sum, count)
+            sums[id] += value;
+            counts[id] += ((IntField) tup.getField(afield + 1)).getValue();
+            return;
         }
-        switch (op) {
+        mins[id] = Math.min(mins[id], value);
+        maxs[id] = Math.max(maxs[id], value);
+        sums[id] += value;
+        counts[id]++;
+    }
+
+    @Override
+    protected void mergeGroup(int id, HashAggregator other, int otherId) {
+        IntegerAggregator o = (IntegerAggregator) other;
+        mins[id] = Math.min(mins[id], o.mins[otherId]);
+        maxs[id] = Math.max(maxs[id], o.maxs[otherId]);
+        sums[id] += o.sums[otherId];
+        counts[id] += o.counts[otherId];
+    }
+
+    @Override
+    protected void setResult(Tuple t, int start, int id) {
+        switch (what) {
             case MIN:
-                // no grouping
-                innerResMap.get(key).min = Math.min(value, innerResMap.get(key).min);
+                t.setField(start, new IntField(mins[id]));
                 break;
             case MAX:
-                innerResMap.get(key).max = Math.max(value, innerResMap.get(key).max);
+                t.setField(start, new IntField(maxs[id]));
                 break;
             case SUM:
-                innerResMap.get(key).sum += value;
+                t.setField(start, new IntField(sums[id]));
                 break;
             case COUNT:
-                innerResMap.get(key).count += 1;
+                t.setField(start, new IntField(counts[id]));
                 break;
             case AVG:
-                innerResMap.get(key).sum += value;
-                innerResMap.get(key).count += 1;
+            case SC_AVG:
+                t.setField(start, new IntField(counts[id] == 0 ? 0 : sums[id] / counts[id]));
+                break;
+            case SUM_COUNT:
+                t.setField(start, new IntField(sums[id]));
+                t.setField(start + 1, new IntField(counts[id]));
                 break;
             default:
                 throw new IllegalArgumentException("没有OP对应的聚合操作");
         }
     }
 
-    /**
-     * Create a OpIterator over group aggregate results.
-     * 
-     * @return a OpIterator whose tuples are the pair (groupVal, aggregateVal)
-     *         if using group, or a single (aggregateVal) if no grouping. The
-     *         aggregateVal is determined by the type of aggregate specified in
-     *         the constructor.
-     */
-    public OpIterator iterator() {
-        return new IntegerAggregatorOpIterator();
+    @Override
+    protected Type[] resultTypes() {
+        return what == Op.SUM_COUNT ? new Type[]{Type.INT_TYPE, Type.INT_TYPE} : super.resultTypes();
     }
 
-    private class IntegerAggregatorOpIterator implements OpIterator {
-
-        private ArrayList<Tuple> tuples;
-        private Iterator<Tuple> iter;
-        private boolean isOpen;
-        public IntegerAggregatorOpIterator() {
-            tuples = new ArrayList<>();
-            isOpen = false;
-            boolean noGroup = (groupByField == Aggregator.NO_GROUPING);
-            if (noGroup) {
-                Tuple temp = new Tuple(new TupleDesc(new Type[]{Type.INT_TYPE}));
-                Field field;
-                InnerRes value = innerResMap.get(-1);
-                switch (op) {
-                    case MIN:
-                        field = new IntField(value.min);
-                        break;
-                    case MAX:
-                        field = new IntField(value.max);
-                        break;
-                    case SUM:
-                        field = new IntField(value.sum);
-                        break;
-                    case COUNT:
-                        field = new IntField(value.count);
-                        break;
-                    case AVG:
-                        field = new IntField(value.sum/value.count);
-                        break;
-                    default:
-                        throw new IllegalArgumentException("没有OP对应的聚合操作");
-                }
-                temp.setField(0, field);
-                tuples.add(temp);
-            } else {
-                innerResMap.forEach((key, value) -> {
-                    Tuple temp = new Tuple(getTupleDesc());
-                    if (groupByFiledType == Type.INT_TYPE) {
-                        temp.setField(0, new IntField((Integer) key));
-                    } else {
-                        temp.setField(0, new StringField((String) key, Type.STRING_LEN));
-                    }
-                    Field field = null;
-                    switch (op) {
-                        case MIN:
-                            field = new IntField(value.min);
-                            break;
-                        case MAX:
-                            field = new IntField(value.max);
-                            break;
-                        case SUM:
-                            field = new IntField(value.sum);
-                            break;
-                        case COUNT:
-                            field = new IntField(value.count);
-                            break;
-                        case AVG:
-                            field = new IntField(value.sum/value.count);
-                            break;
-                        default:
-                            throw new IllegalArgumentException("没有OP对应的聚合操作");
-                    }
-                    temp.setField(1, field);
-                    tuples.add(temp);
-                });
-            }
-            iter = tuples.iterator();
-        }
-
-        @Override
-        public void open() throws DbException, TransactionAbortedException {
-            isOpen = true;
-        }
-
-        @Override
-        public boolean hasNext() throws DbException, TransactionAbortedException {
-            if (!isOpen) {
-                throw new IllegalStateException("the iterator hasn't open");
-            }
-            return iter.hasNext();
-        }
-
-        @Override
-        public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
-            if (!isOpen) {
-                throw new IllegalStateException("the iterator hasn't open");
-            }
-            if (!hasNext()) {
-                throw new NoSuchElementException();
-            }
-            return iter.next();
-        }
-
-        @Override
-        public void rewind() throws DbException, TransactionAbortedException {
-            if (!isOpen) {
-                throw new IllegalStateException("the iterator hasn't open");
-            }
-            iter = tuples.iterator();
-        }
-
-        @Override
-        public TupleDesc getTupleDesc() {
-            if (groupByField == Aggregator.NO_GROUPING) {
-                return new TupleDesc(new Type[]{Type.INT_TYPE});
-            } else {
-                return new TupleDesc(new Type[]{groupByFiledType, Type.INT_TYPE});
-            }
-        }
+    @Override
+    protected int[] inputFields() {
+        // SC_AVG合并的是(sum, count)两个字段
+        return what == Op.SC_AVG ? new int[]{afield, afield + 1} : new int[]{afield};
+    }
 
-        @Override
-        public void close() {
-            isOpen = false;
-        }
+    @Override
+    protected long groupStateBytes() {
+        return 4L * 4;
     }
 
+    @Override
+    protected HashAggregator newAggregator(int[] gbfields, int[] fieldMap) {
+        return new IntegerAggregator(gbfields, gbfieldtypes, fieldMap[afield], what);
+    }
 }
@@ -9,16 +9,44 @@ import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * It is a block nested-loop join: the outer (left) relation is read in blocks
+ * of as many tuples as fit into the memory budget of the join, and the inner
+ * (right) relation is scanned once per block, each inner tuple being joined
+ * with all tuples of the block. The inner relation is therefore rescanned
+ * once per block rather than once per outer tuple.
+ * <p>
+ * An equi-join adapts to the actual size of the outer relation, which the
+ * optimizer may have underestimated: a block of {@link #HASH_BLOCK_THRESHOLD}
+ * or more tuples is hashed on the join key instead of being compared with
+ * each inner tuple, and if the outer relation does not fit into one block,
+ * the join switches to a {@link HashEquiJoin} over the tuples read so far and
+ * the rest of the outer relation, so that the inner relation is read about
+ * twice instead of once per block.
  */
 public class Join extends Operator {
 
     private OpIterator child1, child2;
     private JoinPredicate predicate;
-    private Tuple outerTuple;
     public boolean bothBaseTable = true;
+    private long memoryBudget = -1;
+    private boolean adaptive = true;
+
+    private transient TupleDesc comboTD;
+    private transient List<Tuple> block;
+    private transient JoinHashTable blockTable;
+    private transient Tuple innerTuple;
+    private transient int blockPos;
+    private transient int matchRow = -1;
+    private transient int blocks;
+    private transient HashEquiJoin hashJoin;
+    private transient boolean switched;
 
     private static final long serialVersionUID = 1L;
 
+    /** Blocks of fewer outer tuples are compared with each inner tuple rather than hashed */
+    public static final int HASH_BLOCK_THRESHOLD = 16;
+
     /**
      * Constructor. Accepts two children to join and the predicate to join them
      * on
@@ -36,18 +64,98 @@ public class Join extends Operator {
         this.predicate = p;
     }
 
+    /**
+     * Set the number of bytes a block of outer tuples may take; by default,
+     * {@link WorkMemory#getDefaultBytes()}.
+     */
+    public void setMemoryBudget(long bytes) {
+        this.memoryBudget = bytes;
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget < 0 ? WorkMemory.getDefaultBytes() : memoryBudget;
+    }
+
+    /**
+     * @return the number of outer tuples described by td in a block of a join
+     *         with the specified memory budget; at least 1
+     */
+    public static int blockTuples(TupleDesc td, long memoryBudget) {
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryBudget / WorkMemory.estimateTupleBytes(td)));
+    }
+
+    /** @return the number of blocks of outer tuples, i.e. scans of the inner relation, read so far */
+    public int getBlocks() {
+        return blocks;
+    }
+
+    /**
+     * Set whether an equi-join hashes its blocks and switches to a hash join
+     * when the outer relation does not fit into one block; on by default.
+     */
+    public void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+
+    /**
+     * @return true if the last run found the outer relation too large for one
+     *         block and switched to a hash join
+     */
+    public boolean hasSwitchedToHashJoin() {
+        return switched;
+    }
+
+    /** @return true if the predicate can be evaluated by hashing the join keys */
+    private boolean hashable() {
+        return adaptive && predicate.getOperator() == Predicate.Op.EQUALS
+                && child1.getTupleDesc().getFieldType(predicate.getField1())
+                == child2.getTupleDesc().getFieldType(predicate.getField2());
+    }
+
     public void open() throws DbException, TransactionAbortedException {
+        comboTD = getTupleDesc();
         child1.open();
-        child2.open();
-        if (outerTuple == null) {
-            outerTuple = child1.next();
+        block = new ArrayList<>();
+        blocks = 0;
+        switched = false;
+        readBlock();
+        if (hashable() && block.size() >= blockTuples(child1.getTupleDesc(), getMemoryBudget()) && child1.hasNext()) {
+            switchToHashJoin();
+        } else {
+            child2.open();
         }
         super.open();
     }
+
+    /**
+     * Hands the block read so far and the rest of the outer relation over to
+     * a hash join, which opens the inner relation.
+     */
+    private void switchToHashJoin() throws DbException, TransactionAbortedException {
+        OpIterator outer = new PrefixedIterator(block, child1);
+        hashJoin = new HashEquiJoin(predicate, outer, child2);
+        hashJoin.setMemoryBudget(getMemoryBudget());
+        hashJoin.setCancellationToken(getCancellationToken());
+        hashJoin.bothBaseTable = bothBaseTable;
+        block = null;
+        blockTable = null;
+        switched = true;
+        hashJoin.open();
+    }
+
     public void close() {
-        child1.close();;
-        child2.close();
         super.close();
+        block = null;
+        blockTable = null;
+        innerTuple = null;
+        child1.close();
+        if (hashJoin != null) {
+            // which closes the inner relation
+            hashJoin.close();
+            hashJoin = null;
+        } else {
+            child2.close();
+        }
     }
     
     public JoinPredicate getJoinPredicate() {
@@ -81,16 +189,48 @@ public class Join extends Operator {
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
+        if (hashJoin != null) {
+            // the outer relation is known not to fit into one block
+            hashJoin.rewind();
+            return;
+        }
         child1.rewind();
         child2.rewind();
-        outerTuple = child1.next();
+        blocks = 0;
+        readBlock();
+    }
+
+    /** Reads the next block of outer tuples; the block is empty once the outer relation is exhausted */
+    private void readBlock() throws DbException, TransactionAbortedException {
+        block.clear();
+        int max = blockTuples(child1.getTupleDesc(), getMemoryBudget());
+        while (block.size() < max && child1.hasNext()) {
+            block.add(child1.next());
+        }
+        reportMemory(block.size() * WorkMemory.estimateTupleBytes(child1.getTupleDesc()));
+        if (!block.isEmpty()) {
+            blocks++;
+        }
+        blockTable = null;
+        if (block.size() >= HASH_BLOCK_THRESHOLD && hashable()) {
+            // the rows of a key are chained in block order, so the tuples
+            // are returned in the same order as by comparing
+            blockTable = JoinHashTable.forJoin(predicate, child1.getTupleDesc(), child2.getTupleDesc());
+            for (Tuple t : block) {
+                blockTable.add(t);
+            }
+        }
+        innerTuple = null;
+        matchRow = -1;
     }
 
     /**
      * Returns the next tuple generated by the join, or null if there are no
      * more tuples. Logically, this is the next tuple in r1 cross r2 that
-     * satisfies the join predicate. There are many possible implementations;
-     * the simplest is a nested loops join.
+     * satisfies the join predicate. The tuples are returned block by block
+     * of the outer relation, and in the order of the inner relation within a
+     * block; or in the order of {@link HashEquiJoin} once the join has
+     * switched to it.
      * <p>
      * Note that the tuples returned from this particular implementation of Join
      * are simply the concatenation of joining tuples from the left and right
@@ -105,28 +245,36 @@ public class Join extends Operator {
      * @see JoinPredicate#filter
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        TupleDesc tupleDesc = getTupleDesc();
-        while (outerTuple != null) {
-            while (child2.hasNext()) {
-                Tuple innerTuple = child2.next();
-                if (!predicate.filter(outerTuple, innerTuple)) {
-                    continue;
+        if (hashJoin != null) {
+            return hashJoin.hasNext() ? hashJoin.next() : null;
+        }
+        while (block != null && !block.isEmpty()) {
+            if (blockTable != null) {
+                if (matchRow >= 0) {
+                    Tuple outerTuple = blockTable.getRow(matchRow);
+                    matchRow = blockTable.nextRow(matchRow);
+                    return Tuple.merge(comboTD, outerTuple, innerTuple);
                 }
-                Tuple res = new Tuple(tupleDesc);
-                for (int i = 0; i < tupleDesc.numFields(); i++) {
-                    if (i < child1.getTupleDesc().numFields()) {
-                        res.setField(i, outerTuple.getField(i));
-                    } else {
-                        res.setField(i, innerTuple.getField(i-child1.getTupleDesc().numFields()));
+            } else {
+                while (innerTuple != null && blockPos < block.size()) {
+                    Tuple outerTuple = block.get(blockPos++);
+                    if (predicate.filter(outerTuple, innerTuple)) {
+                        return Tuple.merge(comboTD, outerTuple, innerTuple);
                     }
                 }
-                return res;
             }
-            child2.rewind();
-            if (child1.hasNext()) {
-                outerTuple = child1.next();
-            } else {
-                outerTuple = null;
+            if (child2.hasNext()) {
+                innerTuple = child2.next();
+                blockPos = 0;
+                if (blockTable != null) {
+                    matchRow = blockTable.firstRow(innerTuple.getField(predicate.getField2()));
+                }
+                continue;
+            }
+            // the inner relation is done with this block
+            readBlock();
+            if (!block.isEmpty()) {
+                child2.rewind();
             }
         }
         return null;
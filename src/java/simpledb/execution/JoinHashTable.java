@@ -0,0 +1,153 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.SpillFile;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.util.IntHashTable;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.ToIntFunction;
+
+/**
+ * JoinHashTable is the build-side hash table of a hash join. Each distinct key
+ * gets a dense id; the rows of a key are chained through flat arrays, so the
+ * table does not allocate a list per key or an entry object per row.
+ * <p>
+ * Keys of an INT_TYPE join field are looked up in an {@link IntHashTable}
+ * without boxing; other keys go through a HashMap from Field to id.
+ * <p>
+ * A lookup returns a row handle; {@link #nextRow} follows the chain of rows
+ * with the same key, in insertion order, until it returns -1.
+ */
+class JoinHashTable {
+
+    private final int keyField;
+    private final IntHashTable intKeys;
+    private final Map<Field, Integer> keys;
+
+    // key id -> first and last row of the key
+    private int[] head = new int[16];
+    private int[] tail = new int[16];
+    // row -> next row of the same key
+    private int[] next = new int[16];
+    private Tuple[] rows = new Tuple[16];
+    private int numRows = 0;
+
+    /**
+     * @param keyField the index of the join field in the tuples of the table
+     * @param keyType the type of the join field
+     */
+    JoinHashTable(int keyField, Type keyType) {
+        this.keyField = keyField;
+        if (keyType == Type.INT_TYPE) {
+            intKeys = new IntHashTable();
+            keys = null;
+        } else {
+            intKeys = null;
+            keys = new HashMap<>();
+        }
+    }
+
+    /**
+     * @return an empty table for the build side of a join with predicate p;
+     *         int keys are hashed without boxing if both join fields are ints
+     */
+    static JoinHashTable forJoin(JoinPredicate p, TupleDesc build, TupleDesc probe) {
+        Type keyType = build.getFieldType(p.getField1());
+        if (probe.getFieldType(p.getField2()) != keyType) {
+            keyType = null;
+        }
+        return new JoinHashTable(p.getField1(), keyType);
+    }
+
+    void add(Tuple t) {
+        Field key = t.getField(keyField);
+        int numKeys = numKeys();
+        int id;
+        if (intKeys != null) {
+            id = intKeys.findOrInsert(((IntField) key).getValue());
+        } else {
+            id = keys.computeIfAbsent(key, k -> numKeys);
+        }
+        if (numRows == rows.length) {
+            rows = Arrays.copyOf(rows, numRows * 2);
+            next = Arrays.copyOf(next, numRows * 2);
+        }
+        int row = numRows++;
+        rows[row] = t;
+        next[row] = -1;
+        if (id == numKeys) {
+            // ids are dense, so a new key always gets the next one
+            if (id == head.length) {
+                head = Arrays.copyOf(head, id * 2);
+                tail = Arrays.copyOf(tail, id * 2);
+            }
+            head[id] = row;
+        } else {
+            next[tail[id]] = row;
+        }
+        tail[id] = row;
+    }
+
+    private int numKeys() {
+        return intKeys != null ? intKeys.size() : keys.size();
+    }
+
+    /** @return the first row with the given key, or -1 if there is none */
+    int firstRow(Field key) {
+        int id;
+        if (intKeys != null) {
+            id = intKeys.find(((IntField) key).getValue());
+        } else {
+            Integer known = keys.get(key);
+            id = known == null ? -1 : known;
+        }
+        return id < 0 ? -1 : head[id];
+    }
+
+    /** @return the row after row with the same key, or -1 */
+    int nextRow(int row) {
+        return next[row];
+    }
+
+    Tuple getRow(int row) {
+        return rows[row];
+    }
+
+    /** @return the number of rows in the table */
+    int size() {
+        return numRows;
+    }
+
+    /**
+     * Moves the rows whose key is mapped to partition by partitioner into out,
+     * keeping the order of the remaining rows.
+     */
+    void spill(ToIntFunction<Field> partitioner, int partition, SpillFile out) throws DbException {
+        Tuple[] old = Arrays.copyOf(rows, numRows);
+        clear();
+        for (Tuple t : old) {
+            if (partitioner.applyAsInt(t.getField(keyField)) == partition) {
+                out.add(t);
+            } else {
+                add(t);
+            }
+        }
+    }
+
+    void clear() {
+        if (intKeys != null) {
+            intKeys.clear();
+        } else {
+            keys.clear();
+        }
+        Arrays.fill(rows, 0, numRows, null);
+        numRows = 0;
+    }
+}
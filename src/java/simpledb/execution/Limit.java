@@ -0,0 +1,116 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Limit is an operator that implements LIMIT n OFFSET m: it skips the first m
+ * tuples of its child and returns at most the next n.
+ * <p>
+ * Once the last tuple has been returned, the child is closed right away, so
+ * that the operators below it (scans on the worker pool, in particular) stop
+ * working and release their state before the query is closed.
+ */
+public class Limit extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private OpIterator child;
+    private final int limit;
+    private final int offset;
+
+    private transient int returned;
+    private transient boolean skipped;
+    private transient boolean childOpen;
+
+    /**
+     * @param limit the largest number of tuples to return
+     * @param offset the number of tuples of the child to skip
+     * @param child the tuples to limit
+     */
+    public Limit(int limit, int offset, OpIterator child) {
+        if (limit < 0 || offset < 0) {
+            throw new IllegalArgumentException("LIMIT and OFFSET must not be negative");
+        }
+        this.limit = limit;
+        this.offset = offset;
+        this.child = child;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException, TransactionAbortedException {
+        child.open();
+        childOpen = true;
+        returned = 0;
+        skipped = false;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        closeChild();
+    }
+
+    private void closeChild() {
+        if (childOpen) {
+            childOpen = false;
+            child.close();
+        }
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (childOpen) {
+            child.rewind();
+        } else {
+            child.open();
+            childOpen = true;
+        }
+        returned = 0;
+        skipped = false;
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        if (!childOpen) {
+            return null;
+        }
+        if (returned < limit) {
+            if (!skipped) {
+                for (int i = 0; i < offset && child.hasNext(); i++) {
+                    child.next();
+                }
+                skipped = true;
+            }
+            if (child.hasNext()) {
+                returned++;
+                return child.next();
+            }
+        }
+        // stop the child as soon as the limit is reached
+        closeChild();
+        return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+}
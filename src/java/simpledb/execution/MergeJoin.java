@@ -1,21 +1,60 @@
 package simpledb.execution;
 
 import simpledb.common.DbException;
+import simpledb.index.BTreeScan;
 import simpledb.storage.Field;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionAbortedException;
 
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.List;
 
+/**
+ * MergeJoin is a sort-merge join.
+ * <p>
+ * For an equality predicate, both inputs are read in ascending order of their
+ * join field and merged by advancing a cursor on each: the right tuples with
+ * the key of the current left tuple are buffered as a group, which is joined
+ * with every left tuple with that key. An input that is already ordered on its
+ * join field (see {@link #isSortedOn}), like a scan of a B+ tree on its key,
+ * is read as it is; any other input is sorted by an {@link ExternalSorter}
+ * within the memory budget of the join.
+ * <p>
+ * For any other predicate, only the right input is sorted, also within the
+ * memory budget. If it fits into memory, each left tuple is joined with the
+ * range of right tuples that can satisfy the predicate, found by binary
+ * search; otherwise the sorted right input is read from disk again for each
+ * left tuple, up to the end of that range.
+ */
 public class MergeJoin extends Operator {
 
+    private static final long serialVersionUID = 1L;
     private OpIterator child1, child2;
-    private ArrayList<Tuple> t1Tuples, t2Tuples;
-    private int i, j;
-    private JoinPredicate predicate;
+    private final JoinPredicate predicate;
     public boolean bothBaseTable;
+    private long memoryBudget = -1;
+
+    private transient TupleDesc comboTD;
+    private transient ExternalSorter sorter1, sorter2;
+    private transient int sortedInputs;
+    // the inputs in order of their join fields
+    private transient OpIterator left, right;
+    private transient Tuple leftTuple;
+
+    // equality: the next right tuple after the current group, and the group
+    private transient Tuple rightTuple;
+    private transient List<Tuple> group;
+    private transient Field groupKey;
+    private transient int groupPos;
+
+    // other predicates: the sorted right tuples if they fit into memory, and
+    // the range of the current left tuple
+    private transient List<Tuple> rightTuples;
+    private transient int pos, end;
+    // other predicates, spilled right input: whether the range of the current
+    // left tuple has been read
+    private transient boolean rangeDone;
 
     public MergeJoin(JoinPredicate predicate, OpIterator child1, OpIterator child2) {
         this.child1 = child1;
@@ -37,101 +76,256 @@ public class MergeJoin extends Operator {
         return this.child2.getTupleDesc().getFieldName(this.predicate.getField2());
     }
 
+    /**
+     * Set the number of bytes the inputs that have to be sorted may take in
+     * memory, shared by both inputs; by default, {@link WorkMemory#getDefaultBytes()}.
+     */
+    public void setMemoryBudget(long bytes) {
+        this.memoryBudget = bytes;
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget < 0 ? WorkMemory.getDefaultBytes() : memoryBudget;
+    }
+
+    /** @return the number of inputs the last open had to sort, 0, 1 or 2 */
+    public int getSortedInputs() {
+        return sortedInputs;
+    }
+
+    /**
+     * @return true if the tuples of the specified plan are known to come in
+     *         ascending order of field: a B+ tree scan on its key, an
+     *         ascending ORDER BY on field, an equality merge join on one of
+     *         its join fields, or an operator that keeps the order of such a
+     *         child
+     */
+    public static boolean isSortedOn(OpIterator plan, int field) {
+        if (plan instanceof SeqScan) {
+            return ((SeqScan) plan).isSortedOn(field);
+        } else if (plan instanceof BTreeScan) {
+            return ((BTreeScan) plan).isSortedOn(field);
+        } else if (plan instanceof OrderBy) {
+            OrderBy o = (OrderBy) plan;
+            return o.getOrderByFields()[0] == field && o.getAscOrders()[0];
+        } else if (plan instanceof TopN) {
+            TopN t = (TopN) plan;
+            return t.getOrderByFields()[0] == field && t.getAscOrders()[0];
+        } else if (plan instanceof MergeJoin) {
+            JoinPredicate p = ((MergeJoin) plan).getJoinPredicate();
+            int width1 = ((MergeJoin) plan).getChildren()[0].getTupleDesc().numFields();
+            return p.getOperator() == Predicate.Op.EQUALS
+                    && (field == p.getField1() || field == width1 + p.getField2());
+        } else if (plan instanceof Filter || plan instanceof Limit) {
+            return isSortedOn(((Operator) plan).getChildren()[0], field);
+        }
+        return false;
+    }
+
     @Override
     public void open() throws DbException, TransactionAbortedException {
+        comboTD = getTupleDesc();
         child1.open();
         child2.open();
+        if (predicate.getOperator() == Predicate.Op.EQUALS) {
+            boolean sort1 = !isSortedOn(child1, predicate.getField1());
+            boolean sort2 = !isSortedOn(child2, predicate.getField2());
+            sortedInputs = (sort1 ? 1 : 0) + (sort2 ? 1 : 0);
+            long budget = sort1 && sort2 ? getMemoryBudget() / 2 : getMemoryBudget();
+            if (sort1) {
+                sorter1 = new ExternalSorter(child1.getTupleDesc(),
+                        new int[]{predicate.getField1()}, new boolean[]{true}, budget);
+                sorter1.setCancellationToken(getCancellationToken());
+                sorter1.addAll(child1);
+                left = sorter1.sorted();
+                left.open();
+            } else {
+                left = child1;
+            }
+            if (sort2) {
+                sorter2 = new ExternalSorter(child2.getTupleDesc(),
+                        new int[]{predicate.getField2()}, new boolean[]{true}, budget);
+                sorter2.setCancellationToken(getCancellationToken());
+                sorter2.addAll(child2);
+                right = sorter2.sorted();
+                right.open();
+            } else {
+                right = child2;
+            }
+            group = new ArrayList<>();
+        } else {
+            sortedInputs = 1;
+            left = child1;
+            sorter2 = new ExternalSorter(child2.getTupleDesc(),
+                    new int[]{predicate.getField2()}, new boolean[]{true}, getMemoryBudget());
+            sorter2.setCancellationToken(getCancellationToken());
+            sorter2.addAll(child2);
+            right = sorter2.sorted();
+            right.open();
+            if (sorter2.getSpilledRuns() == 0) {
+                // the tuples are held by the sorter already; index them for binary search
+                rightTuples = new ArrayList<>();
+                while (right.hasNext()) {
+                    rightTuples.add(right.next());
+                }
+            }
+        }
+        start();
         super.open();
     }
 
+    /** Puts the cursors before the first tuples of the inputs */
+    private void start() throws DbException, TransactionAbortedException {
+        leftTuple = null;
+        if (group != null) {
+            group.clear();
+            groupKey = null;
+            groupPos = 0;
+            rightTuple = right.hasNext() ? right.next() : null;
+        } else {
+            pos = end = 0;
+            rangeDone = false;
+        }
+    }
+
     @Override
     public void close() {
+        super.close();
+        if (sorter1 != null) {
+            left.close();
+            sorter1.delete();
+            sorter1 = null;
+        }
+        if (sorter2 != null) {
+            right.close();
+            sorter2.delete();
+            sorter2 = null;
+        }
+        left = right = null;
+        group = null;
+        rightTuples = null;
         child1.close();
         child2.close();
-        super.close();
     }
 
     @Override
     public void rewind() throws DbException, TransactionAbortedException {
-        child1.rewind();
-        child2.rewind();
-        i = 0;
-        j = 0;
+        left.rewind();
+        if (right != null) {
+            right.rewind();
+        }
+        start();
     }
 
-    private void sortTuples() throws TransactionAbortedException, DbException {
-        t1Tuples = new ArrayList<>();
-        t2Tuples = new ArrayList<>();
-        while (child1.hasNext()) {
-            t1Tuples.add(child1.next());
-        }
-        while (child2.hasNext()) {
-            t2Tuples.add(child2.next());
+    @Override
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        if (left == null) {
+            return null;
         }
-        Comparator<Tuple> comparator1 = (a, b) -> {
-            Field field1 = a.getField(predicate.getField1());
-            Field field2 = b.getField(predicate.getField1());
-            if (field1.compare(Predicate.Op.LESS_THAN, field2)) {
-                return -1;
-            } else if (field1.compare(Predicate.Op.EQUALS, field2)) {
-                return 0;
-            } else {
-                return 1;
+        return group != null ? fetchNextEqual() : fetchNextInRange();
+    }
+
+    private Tuple fetchNextEqual() throws DbException, TransactionAbortedException {
+        while (true) {
+            if (leftTuple != null && groupPos < group.size()) {
+                return Tuple.merge(comboTD, leftTuple, group.get(groupPos++));
             }
-        };
-        Comparator<Tuple> comparator2 = (a, b) -> {
-            Field field1 = a.getField(predicate.getField2());
-            Field field2 = b.getField(predicate.getField2());
-            if (field1.compare(Predicate.Op.LESS_THAN, field2)) {
-                return -1;
-            } else if (field1.compare(Predicate.Op.EQUALS, field2)) {
-                return 0;
-            } else {
-                return 1;
+            if (!left.hasNext()) {
+                return null;
             }
-        };
-        t1Tuples.sort(comparator1);
-        t2Tuples.sort(comparator2);
-    }
-
-    private Tuple getTuple(int i, int j) {
-        TupleDesc tupleDesc = getTupleDesc();
-        Tuple t1 = t1Tuples.get(i), t2 = t2Tuples.get(j);
-        Tuple res = new Tuple(tupleDesc);
-        for (int k = 0; k < tupleDesc.numFields(); k++) {
-            if (k < t1.getTupleDesc().numFields()) {
-                res.setField(k, t1.getField(k));
-            } else {
-                res.setField(k, t2.getField(k - t1.getTupleDesc().numFields()));
+            leftTuple = left.next();
+            Field key = leftTuple.getField(predicate.getField1());
+            groupPos = 0;
+            if (groupKey != null && key.compare(Predicate.Op.EQUALS, groupKey)) {
+                // a duplicate left key joins the same group again
+                continue;
+            }
+            group.clear();
+            groupKey = key;
+            Field rightKey;
+            while (rightTuple != null
+                    && (rightKey = rightTuple.getField(predicate.getField2())).compare(Predicate.Op.LESS_THAN_OR_EQ, key)) {
+                if (rightKey.compare(Predicate.Op.EQUALS, key)) {
+                    group.add(rightTuple);
+                }
+                rightTuple = right.hasNext() ? right.next() : null;
+            }
+            if (group.isEmpty() && rightTuple == null) {
+                // no right tuples left to join with
+                return null;
             }
         }
-        return res;
     }
 
-    @Override
-    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
-        if (t1Tuples == null) {
-            sortTuples();
+    private Tuple fetchNextInRange() throws DbException, TransactionAbortedException {
+        if (rightTuples == null) {
+            return fetchNextSpilled();
         }
-        while (i < t1Tuples.size()) {
-            if (j == t2Tuples.size()) {
-                j = 0;
-                i++;
-                continue;
+        while (true) {
+            while (leftTuple != null && pos < end) {
+                Tuple r = rightTuples.get(pos++);
+                if (predicate.filter(leftTuple, r)) {
+                    return Tuple.merge(comboTD, leftTuple, r);
+                }
             }
-            if (predicate.filter(t1Tuples.get(i), t2Tuples.get(j))) {
-                return getTuple(i, j++);
-            } else {
-                switch (predicate.getOperator()) {
-                    case GREATER_THAN:
-                    case GREATER_THAN_OR_EQ:
-                        j = t2Tuples.size();
-                        continue;
+            if (!left.hasNext()) {
+                return null;
+            }
+            leftTuple = left.next();
+            switch (predicate.getOperator()) {
+                case GREATER_THAN:
+                case GREATER_THAN_OR_EQ:
+                    // the right tuples that match form a prefix
+                    pos = 0;
+                    end = firstIndex(false);
+                    break;
+                case LESS_THAN:
+                case LESS_THAN_OR_EQ:
+                    // the right tuples that match form a suffix
+                    pos = firstIndex(true);
+                    end = rightTuples.size();
+                    break;
+                default:
+                    pos = 0;
+                    end = rightTuples.size();
+            }
+        }
+    }
+
+    /** Joins each left tuple with a scan of the sorted right input on disk */
+    private Tuple fetchNextSpilled() throws DbException, TransactionAbortedException {
+        Predicate.Op op = predicate.getOperator();
+        // the right tuples that match form a prefix
+        boolean prefix = op == Predicate.Op.GREATER_THAN || op == Predicate.Op.GREATER_THAN_OR_EQ;
+        while (true) {
+            while (leftTuple != null && !rangeDone && right.hasNext()) {
+                Tuple r = right.next();
+                if (predicate.filter(leftTuple, r)) {
+                    return Tuple.merge(comboTD, leftTuple, r);
                 }
-                j++;
+                rangeDone = prefix;
+            }
+            if (!left.hasNext()) {
+                return null;
+            }
+            leftTuple = left.next();
+            right.rewind();
+            rangeDone = false;
+        }
+    }
+
+    /** @return the first index of rightTuples whose tuple does (not) match leftTuple */
+    private int firstIndex(boolean matches) {
+        int lo = 0, hi = rightTuples.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (predicate.filter(leftTuple, rightTuples.get(mid)) == matches) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
             }
         }
-        return null;
+        return lo;
     }
 
     @Override
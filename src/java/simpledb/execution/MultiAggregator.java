@@ -0,0 +1,126 @@
+package simpledb.execution;
+
+import simpledb.common.Type;
+import simpledb.storage.Tuple;
+
+import java.util.Arrays;
+import java.util.TreeSet;
+
+/**
+ * Knows how to compute several aggregates over the same groups in one pass:
+ * a group is looked up once per tuple, and its id is used to merge the tuple
+ * into the state of every aggregate.
+ * <p>
+ * The aggregates are given as aggregators without grouping, e.g.
+ * {@code new IntegerAggregator(NO_GROUPING, null, afield, op)}; only their
+ * per-group state is used. The results have the group-by fields first, then
+ * the fields of each aggregate value in order.
+ */
+public class MultiAggregator extends HashAggregator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final HashAggregator[] aggregates;
+    // the number of fields of the value of each aggregate
+    private final int[] widths;
+
+    /**
+     * @param gbfields     the 0-based indexes of the group-by fields in the
+     *                     tuple, none if there is no grouping
+     * @param gbfieldtypes the types of the group-by fields
+     * @param aggregates   the aggregates to compute, without grouping
+     */
+    public MultiAggregator(int[] gbfields, Type[] gbfieldtypes, HashAggregator[] aggregates) {
+        super(gbfields, gbfieldtypes);
+        if (aggregates.length == 0) {
+            throw new IllegalArgumentException("there must be at least one aggregate");
+        }
+        for (HashAggregator a : aggregates) {
+            if (a.gbfields.length > 0) {
+                throw new IllegalArgumentException("the aggregates are grouped by the MultiAggregator");
+            }
+        }
+        this.aggregates = aggregates;
+        widths = new int[aggregates.length];
+        for (int i = 0; i < aggregates.length; i++) {
+            widths[i] = aggregates[i].resultTypes().length;
+        }
+    }
+
+    @Override
+    protected void growState(int capacity) {
+        for (HashAggregator a : aggregates) {
+            a.growState(capacity);
+        }
+    }
+
+    @Override
+    protected void initGroup(int id) {
+        for (HashAggregator a : aggregates) {
+            a.initGroup(id);
+        }
+    }
+
+    @Override
+    protected void mergeIntoGroup(int id, Tuple tup) {
+        for (HashAggregator a : aggregates) {
+            a.mergeIntoGroup(id, tup);
+        }
+    }
+
+    @Override
+    protected void mergeGroup(int id, HashAggregator other, int otherId) {
+        HashAggregator[] others = ((MultiAggregator) other).aggregates;
+        for (int i = 0; i < aggregates.length; i++) {
+            aggregates[i].mergeGroup(id, others[i], otherId);
+        }
+    }
+
+    @Override
+    protected void setResult(Tuple t, int start, int id) {
+        for (int i = 0; i < aggregates.length; i++) {
+            aggregates[i].setResult(t, start, id);
+            start += widths[i];
+        }
+    }
+
+    @Override
+    protected Type[] resultTypes() {
+        Type[] types = new Type[0];
+        for (HashAggregator a : aggregates) {
+            Type[] result = a.resultTypes();
+            types = Arrays.copyOf(types, types.length + result.length);
+            System.arraycopy(result, 0, types, types.length - result.length, result.length);
+        }
+        return types;
+    }
+
+    @Override
+    protected int[] inputFields() {
+        TreeSet<Integer> fields = new TreeSet<>();
+        for (HashAggregator a : aggregates) {
+            for (int f : a.inputFields()) {
+                fields.add(f);
+            }
+        }
+        return fields.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    @Override
+    protected long groupStateBytes() {
+        long bytes = 0;
+        for (HashAggregator a : aggregates) {
+            bytes += a.groupStateBytes();
+        }
+        return bytes;
+    }
+
+    @Override
+    protected HashAggregator newAggregator(int[] gbfields, int[] fieldMap) {
+        HashAggregator[] spilled = new HashAggregator[aggregates.length];
+        for (int i = 0; i < aggregates.length; i++) {
+            spilled[i] = aggregates[i].newAggregator(new int[0], fieldMap);
+        }
+        return new MultiAggregator(gbfields, gbfieldtypes, spilled);
+    }
+}
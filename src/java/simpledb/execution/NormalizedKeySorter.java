@@ -0,0 +1,216 @@
+package simpledb.execution;
+
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * NormalizedKeySorter sorts tuples by one or more fields with a radix sort
+ * over normalized keys instead of a comparison sort.
+ * <p>
+ * The sort key of each tuple is encoded into a fixed-width byte string that
+ * orders like the key when compared byte by byte (unsigned): an int is written
+ * big-endian with its sign bit flipped, a string as the first
+ * {@link #STRING_PREFIX_CHARS} chars, two bytes each and padded with zeros,
+ * and the bytes of a descending field are inverted. The keys of all tuples are
+ * kept in one byte array, and an array of tuple positions is sorted by an MSD
+ * radix sort over it, so that no Field is touched while sorting.
+ * <p>
+ * A string longer than the prefix does not fit into its key, so the key ends
+ * with the first string field, and if there is one, tuples with equal keys
+ * are finally ordered by a {@link TupleComparator} on all fields. The sort is
+ * stable.
+ */
+public class NormalizedKeySorter {
+
+    /** The number of leading chars of a string that are part of its key */
+    public static final int STRING_PREFIX_CHARS = 8;
+
+    /** Ranges smaller than this are sorted by insertion sort */
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+    private final int[] fields;
+    private final boolean[] asc;
+    private final Type[] types;
+    private final int keyFields;
+    private final int keyWidth;
+    private final boolean exact;
+    private final Comparator<Tuple> comparator;
+
+    /**
+     * @param td the TupleDesc of the tuples to sort
+     * @param fields the fields to sort by, most significant first
+     * @param asc for each field, true if it is sorted in ascending order
+     */
+    public NormalizedKeySorter(TupleDesc td, int[] fields, boolean[] asc) {
+        if (fields.length == 0 || fields.length != asc.length) {
+            throw new IllegalArgumentException("a sort needs one order for each of its fields");
+        }
+        this.fields = fields.clone();
+        this.asc = asc.clone();
+        this.types = new Type[fields.length];
+        int width = 0;
+        int keyFields = 0;
+        boolean exact = true;
+        while (exact && keyFields < fields.length) {
+            types[keyFields] = td.getFieldType(fields[keyFields]);
+            if (types[keyFields] == Type.INT_TYPE) {
+                width += 4;
+            } else {
+                // the fields after a string prefix would not decide the order of the keys
+                width += 2 * STRING_PREFIX_CHARS;
+                exact = false;
+            }
+            keyFields++;
+        }
+        this.keyFields = keyFields;
+        this.keyWidth = width;
+        this.exact = exact;
+        this.comparator = new TupleComparator(fields, asc);
+    }
+
+    /** @return the number of bytes of the normalized key of a tuple */
+    public int getKeyWidth() {
+        return keyWidth;
+    }
+
+    /** @return true if equal keys mean equal sort fields, that is, no field is a string */
+    public boolean isExact() {
+        return exact;
+    }
+
+    /** Sorts a list of tuples in place. */
+    public void sort(List<Tuple> tuples) {
+        int n = tuples.size();
+        if (n < 2) {
+            return;
+        }
+        Tuple[] input = tuples.toArray(new Tuple[0]);
+        byte[] keys = new byte[n * keyWidth];
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            encode(input[i], keys, i * keyWidth);
+            order[i] = i;
+        }
+        radixSort(keys, order, new int[n], 0, n, 0, input);
+        for (int i = 0; i < n; i++) {
+            tuples.set(i, input[order[i]]);
+        }
+    }
+
+    private void encode(Tuple t, byte[] keys, int pos) {
+        for (int i = 0; i < keyFields; i++) {
+            Field f = t.getField(fields[i]);
+            int start = pos;
+            if (types[i] == Type.INT_TYPE) {
+                int v = ((IntField) f).getValue() ^ Integer.MIN_VALUE;
+                keys[pos++] = (byte) (v >>> 24);
+                keys[pos++] = (byte) (v >>> 16);
+                keys[pos++] = (byte) (v >>> 8);
+                keys[pos++] = (byte) v;
+            } else {
+                String s = ((StringField) f).getValue();
+                for (int c = 0; c < STRING_PREFIX_CHARS; c++) {
+                    char ch = c < s.length() ? s.charAt(c) : 0;
+                    keys[pos++] = (byte) (ch >>> 8);
+                    keys[pos++] = (byte) ch;
+                }
+            }
+            if (!asc[i]) {
+                for (int b = start; b < pos; b++) {
+                    keys[b] = (byte) ~keys[b];
+                }
+            }
+        }
+    }
+
+    /**
+     * Sorts order[lo, hi), whose keys are equal before byte depth, by the
+     * bytes from depth on.
+     */
+    private void radixSort(byte[] keys, int[] order, int[] aux, int lo, int hi, int depth, Tuple[] input) {
+        if (hi - lo < INSERTION_SORT_THRESHOLD) {
+            insertionSort(keys, order, lo, hi, depth);
+            if (!exact) {
+                // order the runs of equal keys
+                int from = lo;
+                for (int i = lo + 1; i <= hi; i++) {
+                    if (i == hi || compareKeys(keys, order[from], order[i], depth) != 0) {
+                        breakTies(order, from, i, input);
+                        from = i;
+                    }
+                }
+            }
+            return;
+        }
+        if (depth == keyWidth) {
+            breakTies(order, lo, hi, input);
+            return;
+        }
+        // stable counting sort by the byte at depth
+        int[] end = new int[257];
+        for (int i = lo; i < hi; i++) {
+            end[(keys[order[i] * keyWidth + depth] & 0xFF) + 1]++;
+        }
+        for (int b = 1; b < 257; b++) {
+            end[b] += end[b - 1];
+        }
+        for (int i = lo; i < hi; i++) {
+            aux[end[keys[order[i] * keyWidth + depth] & 0xFF]++] = order[i];
+        }
+        System.arraycopy(aux, 0, order, lo, hi - lo);
+        // now end[b] is the end of bucket b, relative to lo
+        int from = 0;
+        for (int b = 0; b < 256; b++) {
+            if (end[b] - from > 1) {
+                radixSort(keys, order, aux, lo + from, lo + end[b], depth + 1, input);
+            }
+            from = end[b];
+        }
+    }
+
+    private void insertionSort(byte[] keys, int[] order, int lo, int hi, int depth) {
+        for (int i = lo + 1; i < hi; i++) {
+            int t = order[i];
+            int j = i;
+            while (j > lo && compareKeys(keys, order[j - 1], t, depth) > 0) {
+                order[j] = order[j - 1];
+                j--;
+            }
+            order[j] = t;
+        }
+    }
+
+    private int compareKeys(byte[] keys, int a, int b, int depth) {
+        int pa = a * keyWidth, pb = b * keyWidth;
+        for (int d = depth; d < keyWidth; d++) {
+            int x = keys[pa + d] & 0xFF, y = keys[pb + d] & 0xFF;
+            if (x != y) {
+                return x - y;
+            }
+        }
+        return 0;
+    }
+
+    /** Orders tuples with equal keys by their fields; a stable sort keeps the input order of equal ones */
+    private void breakTies(int[] order, int lo, int hi, Tuple[] input) {
+        if (exact || hi - lo < 2) {
+            return;
+        }
+        Integer[] range = new Integer[hi - lo];
+        for (int i = lo; i < hi; i++) {
+            range[i - lo] = order[i];
+        }
+        Arrays.sort(range, (a, b) -> comparator.compare(input[a], input[b]));
+        for (int i = lo; i < hi; i++) {
+            order[i] = range[i - lo];
+        }
+    }
+}
@@ -11,6 +11,12 @@ import java.util.NoSuchElementException;
  * Abstract class for implementing operators. It handles <code>close</code>,
  * <code>next</code> and <code>hasNext</code>. Subclasses only need to implement
  * <code>open</code> and <code>readNext</code>.
+ * <p>
+ * An operator of a plan run with EXPLAIN ANALYZE has an {@link OperatorProfile},
+ * which counts the tuples it returns and the time spent fetching them.
+ * <p>
+ * An operator of a query that can be cancelled has a {@link CancellationToken},
+ * which is checked before each tuple is fetched.
  */
 public abstract class Operator implements OpIterator {
 
@@ -20,8 +26,10 @@ public abstract class Operator implements OpIterator {
         if (!this.open)
             throw new IllegalStateException("Operator not yet open");
         
-        if (next == null)
-            next = fetchNext();
+        if (next == null) {
+            checkCancelled();
+            next = profile == null ? fetchNext() : profiledFetchNext();
+        }
         return next != null;
     }
 
@@ -29,7 +37,8 @@ public abstract class Operator implements OpIterator {
         if (!this.open)
             throw new IllegalStateException("Operator not yet open");
         if (next == null) {
-            next = fetchNext();
+            checkCancelled();
+            next = profile == null ? fetchNext() : profiledFetchNext();
             if (next == null)
                 throw new NoSuchElementException();
         }
@@ -49,6 +58,19 @@ public abstract class Operator implements OpIterator {
      */
     protected abstract Tuple fetchNext() throws DbException, TransactionAbortedException;
 
+    private Tuple profiledFetchNext() throws DbException, TransactionAbortedException {
+        profile.enter();
+        try {
+            Tuple t = fetchNext();
+            if (t != null) {
+                profile.addRow();
+            }
+            return t;
+        } finally {
+            profile.exit();
+        }
+    }
+
     /**
      * Closes this iterator. If overridden by a subclass, they should call
      * super.close() in order for Operator's internal state to be consistent.
@@ -57,14 +79,22 @@ public abstract class Operator implements OpIterator {
         // Ensures that a future call to next() will fail
         next = null;
         this.open = false;
+        if (profile != null) {
+            profile.closed();
+        }
     }
 
     private Tuple next = null;
     private boolean open = false;
     private int estimatedCardinality = 0;
+    private transient OperatorProfile profile;
+    private transient CancellationToken cancellation;
 
     public void open() throws DbException, TransactionAbortedException {
         this.open = true;
+        if (profile != null) {
+            profile.opened();
+        }
     }
 
     /**
@@ -109,4 +139,46 @@ public abstract class Operator implements OpIterator {
         this.estimatedCardinality = card;
     }
 
+    /** @return the run time counters of this operator, or null if it is not profiled */
+    public OperatorProfile getProfile() {
+        return profile;
+    }
+
+    /** Set the run time counters of this operator; see {@link OperatorProfile#attach} */
+    public void setProfile(OperatorProfile profile) {
+        this.profile = profile;
+    }
+
+    /** @return the token that cancels the query of this operator, or null if there is none */
+    public CancellationToken getCancellationToken() {
+        return cancellation;
+    }
+
+    /** Set the token that cancels the query of this operator; see {@link CancellationToken#attach} */
+    public void setCancellationToken(CancellationToken cancellation) {
+        this.cancellation = cancellation;
+    }
+
+    /**
+     * Called before each tuple is fetched, and by the loops that read a whole
+     * input before the first tuple is returned.
+     *
+     * @throws QueryCancelledException if the query of this operator has been cancelled
+     */
+    protected void checkCancelled() throws QueryCancelledException {
+        if (cancellation != null) {
+            cancellation.check();
+        }
+    }
+
+    /**
+     * Records that the in-memory state of this operator takes the given
+     * number of bytes, for its peak memory when it is profiled.
+     */
+    protected void reportMemory(long bytes) {
+        if (profile != null) {
+            profile.reportMemory(bytes);
+        }
+    }
+
 }
@@ -0,0 +1,274 @@
+package simpledb.execution;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * OperatorProfile holds the run time counters of one operator of a plan that
+ * is executed with EXPLAIN ANALYZE (see {@link #attach}): the tuples it
+ * returned, the time spent in it, the pages it requested from the BufferPool,
+ * and the peak memory taken by its in-memory state.
+ * <p>
+ * Time is charged by events. Whenever a profiled operator is asked for a
+ * tuple, returns one, or finishes opening, the time since the previous event
+ * on the same thread goes to the operator that was running in between. An
+ * operator is running while it fetches a tuple, and while it opens: since
+ * the start of its open cannot be observed, it is taken as running from the
+ * first event of one of its children during its open. The pages requested
+ * from the BufferPool are counted for the operator that is running.
+ * <p>
+ * Time and pages are thus counted for the operator itself (self); the totals
+ * of an operator add those of its children, see {@link #summarize}. The
+ * producers of an Exchange run on the worker pool, so their counters are
+ * summed over threads.
+ */
+public class OperatorProfile {
+
+    /** The operators running on a thread, innermost last, and the time of the last event */
+    private static final class Clock {
+        private final List<OperatorProfile> running = new ArrayList<>();
+        private long last = System.nanoTime();
+
+        /** @return the nanoseconds since the last event, which is now */
+        long lap() {
+            long now = System.nanoTime();
+            long elapsed = now - last;
+            last = now;
+            return elapsed;
+        }
+
+        OperatorProfile current() {
+            return running.isEmpty() ? null : running.get(running.size() - 1);
+        }
+
+        /** Marks the ancestors that are still opening as running, outermost first */
+        void enterOpening(OperatorProfile profile) {
+            if (profile == null || profile.opened || running.contains(profile)) {
+                return;
+            }
+            enterOpening(profile.parent);
+            running.add(profile);
+        }
+
+        void leave(OperatorProfile profile) {
+            int i = running.lastIndexOf(profile);
+            if (i >= 0) {
+                // and the operators above it, left by an exception
+                running.subList(i, running.size()).clear();
+            }
+        }
+    }
+
+    private static final ThreadLocal<Clock> CLOCK = new ThreadLocal<>();
+
+    // the profile of the operator that opens this one on the same thread, if any
+    private final OperatorProfile parent;
+    private boolean opened;
+
+    private long rows;
+    private long selfNanos;
+    private long totalNanos;
+    private long pagesRead;
+    private long pageHits;
+    private final AtomicLong peakMemory = new AtomicLong();
+
+    private OperatorProfile(OperatorProfile parent) {
+        this.parent = parent;
+    }
+
+    /**
+     * Attaches a new profile to every operator and scan of a plan, replacing
+     * the profiles of a previous run, and starts the clock of the calling
+     * thread.
+     */
+    public static void attach(OpIterator plan) {
+        attach(plan, null, Collections.newSetFromMap(new IdentityHashMap<>()));
+        CLOCK.set(new Clock());
+    }
+
+    private static void attach(OpIterator plan, OperatorProfile parent, Set<OpIterator> attached) {
+        if (plan == null || !attached.add(plan)) {
+            return;
+        }
+        OperatorProfile profile = new OperatorProfile(parent);
+        if (plan instanceof Operator) {
+            ((Operator) plan).setProfile(profile);
+        } else if (plan instanceof SeqScan) {
+            ((SeqScan) plan).setProfile(profile);
+        } else {
+            return;
+        }
+        // the producers of an exchange run on other threads
+        OperatorProfile childParent = plan instanceof Exchange ? null : profile;
+        for (OpIterator child : children(plan)) {
+            attach(child, childParent, attached);
+        }
+    }
+
+    private static OpIterator[] children(OpIterator plan) {
+        OpIterator[] children = plan instanceof Operator ? ((Operator) plan).getChildren() : null;
+        return children == null ? new OpIterator[0] : children;
+    }
+
+    private static OperatorProfile profileOf(OpIterator plan) {
+        if (plan instanceof Operator) {
+            return ((Operator) plan).getProfile();
+        }
+        return plan instanceof SeqScan ? ((SeqScan) plan).getProfile() : null;
+    }
+
+    private static Clock clock() {
+        Clock clock = CLOCK.get();
+        if (clock == null) {
+            clock = new Clock();
+            CLOCK.set(clock);
+        }
+        return clock;
+    }
+
+    /** Called when the operator is asked for a tuple, or starts opening or rewinding */
+    void enter() {
+        Clock clock = clock();
+        long elapsed = clock.lap();
+        OperatorProfile current = clock.current();
+        if (current != null) {
+            current.selfNanos += elapsed;
+        }
+        clock.enterOpening(parent);
+        clock.running.add(this);
+    }
+
+    /** Called when the operator returns from {@link #enter} */
+    void exit() {
+        Clock clock = clock();
+        selfNanos += clock.lap();
+        clock.leave(this);
+    }
+
+    /** Called at the end of the open of an operator, whose start is not observed */
+    void opened() {
+        Clock clock = clock();
+        selfNanos += clock.lap();
+        clock.leave(this);
+        opened = true;
+    }
+
+    void closed() {
+        opened = false;
+    }
+
+    void addRow() {
+        rows++;
+    }
+
+    /** Records that the operator holds the given number of bytes in memory */
+    void reportMemory(long bytes) {
+        peakMemory.accumulateAndGet(bytes, Math::max);
+    }
+
+    /**
+     * Counts a page requested from the BufferPool for the operator running on
+     * the calling thread, if any.
+     *
+     * @param hit whether the page was in the BufferPool
+     */
+    public static void pageRequested(boolean hit) {
+        Clock clock = CLOCK.get();
+        OperatorProfile current = clock == null ? null : clock.current();
+        if (current != null) {
+            if (hit) {
+                current.pageHits++;
+            } else {
+                current.pagesRead++;
+            }
+        }
+    }
+
+    /**
+     * Sums the profiles of a plan that has been run after {@link #attach}.
+     * The counters of an Exchange's child are those of all its producers,
+     * and the total time of an operator includes the total times of its
+     * children.
+     *
+     * @return the summed profile of each operator and scan of the plan that
+     *         is not a producer of an Exchange other than the first
+     */
+    public static Map<OpIterator, OperatorProfile> summarize(OpIterator plan) {
+        Map<OpIterator, OperatorProfile> profiles = new IdentityHashMap<>();
+        summarize(plan, Collections.singletonList(plan), profiles);
+        return profiles;
+    }
+
+    /** Sums the profiles of peers, the copies of plan run in parallel */
+    private static OperatorProfile summarize(OpIterator plan, List<OpIterator> peers,
+                                             Map<OpIterator, OperatorProfile> profiles) {
+        OperatorProfile sum = new OperatorProfile(null);
+        for (OpIterator peer : peers) {
+            OperatorProfile p = profileOf(peer);
+            if (p != null) {
+                sum.rows += p.rows;
+                sum.selfNanos += p.selfNanos;
+                sum.pagesRead += p.pagesRead;
+                sum.pageHits += p.pageHits;
+                sum.peakMemory.accumulateAndGet(p.peakMemory.get(), Math::max);
+            }
+        }
+        sum.totalNanos = sum.selfNanos;
+        OpIterator[] children = children(plan);
+        for (int i = 0; i < children.length; i++) {
+            if (plan instanceof Exchange && i > 0) {
+                break;
+            }
+            Set<OpIterator> childPeers = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (OpIterator peer : peers) {
+                OpIterator[] peerChildren = children(peer);
+                if (plan instanceof Exchange) {
+                    // the first producer stands for all of them
+                    Collections.addAll(childPeers, peerChildren);
+                } else if (i < peerChildren.length) {
+                    childPeers.add(peerChildren[i]);
+                }
+            }
+            if (children[i] != null) {
+                sum.totalNanos += summarize(children[i], new ArrayList<>(childPeers), profiles).totalNanos;
+            }
+        }
+        profiles.put(plan, sum);
+        return sum;
+    }
+
+    /** @return the number of tuples the operator returned */
+    public long getRows() {
+        return rows;
+    }
+
+    /** @return the time spent in the operator itself, in nanoseconds */
+    public long getSelfNanos() {
+        return selfNanos;
+    }
+
+    /** @return the time spent in the operator and its children, in nanoseconds; only set by {@link #summarize} */
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    /** @return the number of pages the operator read into the BufferPool */
+    public long getPagesRead() {
+        return pagesRead;
+    }
+
+    /** @return the number of pages the operator found in the BufferPool */
+    public long getPageHits() {
+        return pageHits;
+    }
+
+    /** @return the largest number of bytes the operator reported to hold in memory at once */
+    public long getPeakMemory() {
+        return peakMemory.get();
+    }
+}
@@ -2,25 +2,31 @@ package simpledb.execution;
 
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
-import simpledb.storage.Field;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
 import java.util.*;
 
 /**
- * OrderBy is an operator that implements a relational ORDER BY.
+ * OrderBy is an operator that implements a relational ORDER BY on one or more
+ * fields.
+ * <p>
+ * The child is sorted by an {@link ExternalSorter}: if it does not fit into
+ * the operator's memory budget, it is sorted in runs on disk that are merged
+ * while the output is read. The runs are sorted on normalized keys by a
+ * {@link NormalizedKeySorter}.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
     private OpIterator child;
     private final TupleDesc td;
-    private final List<Tuple> childTups = new ArrayList<>();
-    private final int orderByField;
-    private final String orderByFieldName;
-    private Iterator<Tuple> it;
-    private final boolean asc;
+    private final int[] orderByFields;
+    private final boolean[] asc;
+    private long memoryBudget = -1;
+
+    private transient ExternalSorter sorter;
+    private transient OpIterator it;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
@@ -33,50 +39,129 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, OpIterator child) {
+        this(new int[]{orderbyField}, new boolean[]{asc}, child);
+    }
+
+    /**
+     * Creates a new OrderBy node that sorts by several fields.
+     *
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first.
+     * @param asc
+     *            for each field, true if its sort order is ascending.
+     * @param child
+     *            the tuples to sort.
+     */
+    public OrderBy(int[] orderbyFields, boolean[] asc, OpIterator child) {
+        if (orderbyFields.length == 0 || orderbyFields.length != asc.length) {
+            throw new IllegalArgumentException("ORDER BY needs one order for each of its fields");
+        }
         this.child = child;
         td = child.getTupleDesc();
-        this.orderByField = orderbyField;
-        this.orderByFieldName = td.getFieldName(orderbyField);
-        this.asc = asc;
+        this.orderByFields = orderbyFields.clone();
+        this.asc = asc.clone();
     }
     
+    /**
+     * @return true if the first (most significant) field is sorted ascending
+     * @deprecated only describes the first field of a multi-field ORDER BY;
+     *             use {@link #getAscOrders()}
+     */
+    @Deprecated
     public boolean isASC()
     {
-	return this.asc;
+	return this.asc[0];
     }
     
+    /**
+     * @return the first (most significant) field the sort is applied to
+     * @deprecated only describes the first field of a multi-field ORDER BY;
+     *             use {@link #getOrderByFields()}
+     */
+    @Deprecated
     public int getOrderByField()
     {
-        return this.orderByField;
+        return this.orderByFields[0];
     }
     
+    /**
+     * @return the name of the first (most significant) field the sort is
+     *         applied to
+     * @deprecated only describes the first field of a multi-field ORDER BY;
+     *             use {@link #getOrderByFields()}
+     */
+    @Deprecated
     public String getOrderFieldName()
     {
-	return this.orderByFieldName;
+	return td.getFieldName(this.orderByFields[0]);
+    }
+
+    /** @return the fields the sort is applied to, most significant first */
+    public int[] getOrderByFields() {
+        return orderByFields.clone();
+    }
+
+    /** @return for each of {@link #getOrderByFields()}, true if it is sorted ascending */
+    public boolean[] getAscOrders() {
+        return asc.clone();
     }
     
     public TupleDesc getTupleDesc() {
         return td;
     }
 
+    /**
+     * Set the number of bytes the tuples sorted in memory may take before they
+     * are written to disk; by default, {@link WorkMemory#getDefaultBytes()}.
+     */
+    public void setMemoryBudget(long bytes) {
+        this.memoryBudget = bytes;
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget < 0 ? WorkMemory.getDefaultBytes() : memoryBudget;
+    }
+
+    /** @return the number of sorted runs the last sort wrote to disk */
+    public int getSpilledRuns() {
+        return sorter == null ? 0 : sorter.getSpilledRuns();
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
+        // the runs of an earlier open that was not closed
+        if (it != null) {
+            it.close();
+            it = null;
+        }
+        if (sorter != null) {
+            sorter.delete();
+        }
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add(child.next());
-        childTups.sort(new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+        sorter = new ExternalSorter(td, orderByFields, asc, getMemoryBudget());
+        sorter.setCancellationToken(getCancellationToken());
+        sorter.addAll(child);
+        it = sorter.sorted();
+        reportMemory(sorter.getPeakBytes());
+        it.open();
         super.open();
     }
 
     public void close() {
         super.close();
-        it = null;
+        if (it != null) {
+            it.close();
+            it = null;
+        }
+        if (sorter != null) {
+            sorter.delete();
+        }
+        child.close();
     }
 
-    public void rewind() {
-        it = childTups.iterator();
+    public void rewind() throws DbException, TransactionAbortedException {
+        it.rewind();
     }
 
     /**
@@ -86,7 +171,7 @@ public class OrderBy extends Operator {
      * @return The next tuple in the ordering, or null if there are no more
      *         tuples
      */
-    protected Tuple fetchNext() throws NoSuchElementException {
+    protected Tuple fetchNext() throws NoSuchElementException, DbException, TransactionAbortedException {
         if (it != null && it.hasNext()) {
             return it.next();
         } else
@@ -104,25 +189,3 @@ public class OrderBy extends Operator {
     }
 
 }
-
-class TupleComparator implements Comparator<Tuple> {
-    final int field;
-    final boolean asc;
-
-    public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
-    }
-
-    public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
-    }
-    
-}
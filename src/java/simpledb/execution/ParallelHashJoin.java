@@ -0,0 +1,526 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.storage.Field;
+import simpledb.storage.MorselSource;
+import simpledb.storage.SpillFile;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The ParallelHashJoin operator implements an equi-join as a radix-partitioned
+ * hash join that runs on the {@link Database#getWorkerPool() worker pool}.
+ * <p>
+ * First both inputs are split by the hash of the join key into partitions,
+ * as many as needed for the build side of a partition to fit into a CPU cache
+ * ({@link #PARTITION_BYTES}). An input that is a gather {@link Exchange} is
+ * partitioned by its producers in parallel: each worker buffers the tuples of
+ * each partition and hands them over in small chunks. Then the workers claim
+ * one partition pair at a time, build a hash table over its build side and
+ * probe it with its probe side; their output is gathered by an Exchange.
+ * <p>
+ * The partitions are held in memory. If they do not fit into the memory
+ * budget, the largest partitions are moved to spill files, and each spilled
+ * partition pair is later joined by a {@link HashEquiJoin} of its own.
+ * <p>
+ * The join returns the same tuples as HashEquiJoin, in no particular order.
+ */
+public class ParallelHashJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The size of the build side of a partition that the number of partitions is chosen for */
+    public static final int PARTITION_BYTES = 256 * 1024;
+
+    /** The largest number of partitions the inputs are split into */
+    public static final int MAX_PARTITIONS = 1024;
+
+    /** The number of partitions if the size of the build side is not known */
+    private static final int DEFAULT_PARTITIONS = 64;
+
+    /** The number of tuples of a partition a worker hands over at once */
+    private static final int CHUNK_SIZE = 64;
+
+    private final JoinPredicate pred;
+    private OpIterator child1, child2;
+    private final TupleDesc comboTD;
+    private long memoryBudget = -1;
+    private int numPartitions = -1;
+    public boolean bothBaseTable = true;
+
+    transient private Partition[] partitions;
+    transient private int bits;
+    transient private AtomicLong memoryUsed;
+    transient private int spilledPartitions;
+    transient private int workers;
+    transient private AtomicInteger nextPartition;
+    transient private Exchange output;
+
+    /**
+     * Constructor. Accepts to children to join and the predicate to join them
+     * on
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left (build) relation to join
+     * @param child2
+     *            Iterator for the right (probe) relation to join
+     */
+    public ParallelHashJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    /**
+     * Set the number of bytes the partitions of this join may take before they
+     * are spilled to disk; by default, {@link WorkMemory#getDefaultBytes()}.
+     */
+    public void setMemoryBudget(long bytes) {
+        this.memoryBudget = bytes;
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget < 0 ? WorkMemory.getDefaultBytes() : memoryBudget;
+    }
+
+    /**
+     * Set the number of partitions the inputs are split into, instead of
+     * deriving it from the estimated cardinality of the build side.
+     *
+     * @param n a power of two between 2 and {@link #MAX_PARTITIONS}
+     */
+    public void setNumPartitions(int n) {
+        if (n < 2 || n > MAX_PARTITIONS || Integer.bitCount(n) != 1) {
+            throw new IllegalArgumentException("the number of partitions must be a power of two between 2 and "
+                    + MAX_PARTITIONS);
+        }
+        this.numPartitions = n;
+    }
+
+    /** @return the number of partitions of the last run, or the configured number before the first one */
+    public int getNumPartitions() {
+        return partitions != null ? partitions.length : numPartitions;
+    }
+
+    /** @return the number of partitions that were spilled to disk by the last run */
+    public int getSpilledPartitions() {
+        return spilledPartitions;
+    }
+
+    private int choosePartitions(long tupleBytes) {
+        if (numPartitions > 0) {
+            return numPartitions;
+        }
+        if (!(child1 instanceof Operator) || ((Operator) child1).getEstimatedCardinality() <= 0) {
+            return DEFAULT_PARTITIONS;
+        }
+        long bytes = ((Operator) child1).getEstimatedCardinality() * tupleBytes;
+        int n = Integer.highestOneBit(Math.max(2, workers * 2 - 1)) << 1;
+        while (n < MAX_PARTITIONS && (long) n * PARTITION_BYTES < bytes) {
+            n <<= 1;
+        }
+        return Math.min(n, MAX_PARTITIONS);
+    }
+
+    private int partition(Field key) {
+        // the top bits of the hash, so that the low bits, which pick the
+        // slot in the hash table of a partition, still differ within it
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h >>> (32 - bits);
+    }
+
+    public void open() throws DbException, NoSuchElementException, TransactionAbortedException {
+        workers = QueryScheduler.getWorkersPerQuery();
+        long tupleBytes1 = WorkMemory.estimateTupleBytes(child1.getTupleDesc());
+        long tupleBytes2 = WorkMemory.estimateTupleBytes(child2.getTupleDesc());
+        int n = choosePartitions(tupleBytes1);
+        bits = Integer.numberOfTrailingZeros(n);
+        partitions = new Partition[n];
+        for (int p = 0; p < n; p++) {
+            partitions[p] = new Partition();
+        }
+        memoryUsed = new AtomicLong();
+        spilledPartitions = 0;
+        try {
+            partitionInput(child1, pred.getField1(), true, tupleBytes1);
+            partitionInput(child2, pred.getField2(), false, tupleBytes2);
+            startJoin();
+        } catch (DbException | TransactionAbortedException | RuntimeException e) {
+            releaseState();
+            throw e;
+        }
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        releaseState();
+    }
+
+    /** Joins the partitions again; the children are not read a second time. */
+    public void rewind() throws DbException, TransactionAbortedException {
+        output.close();
+        startJoin();
+    }
+
+    private void releaseState() {
+        if (output != null) {
+            output.close();
+            output = null;
+        }
+        if (partitions != null) {
+            for (Partition partition : partitions) {
+                partition.delete();
+            }
+        }
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        return output.hasNext() ? output.next() : null;
+    }
+
+    /**
+     * Splits one input into the partitions, with one task per producer if the
+     * input is a gather exchange.
+     */
+    private void partitionInput(OpIterator input, int field, boolean build, long tupleBytes)
+            throws DbException, TransactionAbortedException {
+        OpIterator[] sources = new OpIterator[]{input};
+        if (input instanceof Exchange && ((Exchange) input).isGather()) {
+            MorselSource morsels = ((Exchange) input).getMorsels();
+            if (morsels != null) {
+                morsels.reset();
+            }
+            sources = ((Exchange) input).getChildren();
+        }
+        if (sources.length == 1) {
+            partitionSource(sources[0], field, build, tupleBytes);
+            return;
+        }
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (OpIterator source : sources) {
+            tasks.add(Database.getWorkerPool().submit(() -> {
+                try {
+                    partitionSource(source, field, build, tupleBytes);
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            }));
+        }
+        for (ForkJoinTask<?> task : tasks) {
+            task.quietlyJoin();
+        }
+        Throwable e = error.get();
+        if (e instanceof DbException) {
+            throw (DbException) e;
+        } else if (e instanceof TransactionAbortedException) {
+            throw (TransactionAbortedException) e;
+        } else if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        } else if (e instanceof Error) {
+            throw (Error) e;
+        } else if (e != null) {
+            throw new DbException("partitioning failed: " + e);
+        }
+    }
+
+    private void partitionSource(OpIterator source, int field, boolean build, long tupleBytes)
+            throws DbException, TransactionAbortedException {
+        List<List<Tuple>> chunks = new ArrayList<>(partitions.length);
+        for (int p = 0; p < partitions.length; p++) {
+            chunks.add(null);
+        }
+        source.open();
+        try {
+            while (source.hasNext()) {
+                Tuple t = source.next();
+                int p = partition(t.getField(field));
+                if (chunks.get(p) == null) {
+                    chunks.set(p, new ArrayList<>(CHUNK_SIZE));
+                }
+                chunks.get(p).add(t);
+                if (chunks.get(p).size() == CHUNK_SIZE) {
+                    addChunk(p, chunks.get(p), build, tupleBytes);
+                    chunks.set(p, null);
+                }
+            }
+            for (int p = 0; p < chunks.size(); p++) {
+                if (chunks.get(p) != null) {
+                    addChunk(p, chunks.get(p), build, tupleBytes);
+                }
+            }
+        } finally {
+            source.close();
+        }
+    }
+
+    private void addChunk(int p, List<Tuple> chunk, boolean build, long tupleBytes) throws DbException {
+        long added = partitions[p].add(chunk, build, chunk.size() * tupleBytes);
+        long used = memoryUsed.addAndGet(added);
+        reportMemory(used);
+        if (used > getMemoryBudget()) {
+            spillLargestPartition();
+        }
+    }
+
+    private synchronized void spillLargestPartition() throws DbException {
+        while (memoryUsed.get() > getMemoryBudget()) {
+            Partition largest = null;
+            for (Partition partition : partitions) {
+                if (!partition.isSpilled() && (largest == null || partition.bytes() > largest.bytes())) {
+                    largest = partition;
+                }
+            }
+            if (largest == null) {
+                return;
+            }
+            memoryUsed.addAndGet(-largest.spill(child1.getTupleDesc(), child2.getTupleDesc()));
+            spilledPartitions++;
+        }
+    }
+
+    /** Starts the workers that join the partition pairs */
+    private void startJoin() throws DbException, TransactionAbortedException {
+        nextPartition = new AtomicInteger();
+        OpIterator[] joiners = new OpIterator[Math.max(1, Math.min(workers, partitions.length))];
+        for (int i = 0; i < joiners.length; i++) {
+            joiners[i] = new PartitionJoiner(getMemoryBudget() / joiners.length);
+        }
+        output = new Exchange(joiners);
+        output.open();
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+
+    /**
+     * The tuples of both inputs that fall into one partition, in chunks in
+     * memory or, once spilled, in a spill file per input.
+     */
+    private static class Partition {
+        private final List<List<Tuple>> build = new ArrayList<>();
+        private final List<List<Tuple>> probe = new ArrayList<>();
+        private long bytes = 0;
+        private SpillFile buildFile, probeFile;
+
+        /** @return the number of bytes added to memory */
+        synchronized long add(List<Tuple> chunk, boolean toBuild, long chunkBytes) throws DbException {
+            if (buildFile != null) {
+                SpillFile file = toBuild ? buildFile : probeFile;
+                for (Tuple t : chunk) {
+                    file.add(t);
+                }
+                return 0;
+            }
+            (toBuild ? build : probe).add(chunk);
+            bytes += chunkBytes;
+            return chunkBytes;
+        }
+
+        synchronized boolean isSpilled() {
+            return buildFile != null;
+        }
+
+        synchronized long bytes() {
+            return bytes;
+        }
+
+        /** @return the number of bytes freed */
+        synchronized long spill(TupleDesc buildTD, TupleDesc probeTD) throws DbException {
+            buildFile = new SpillFile(buildTD);
+            probeFile = new SpillFile(probeTD);
+            for (List<Tuple> chunk : build) {
+                for (Tuple t : chunk) {
+                    buildFile.add(t);
+                }
+            }
+            for (List<Tuple> chunk : probe) {
+                for (Tuple t : chunk) {
+                    probeFile.add(t);
+                }
+            }
+            build.clear();
+            probe.clear();
+            long freed = bytes;
+            bytes = 0;
+            return freed;
+        }
+
+        synchronized void delete() {
+            if (buildFile != null) {
+                buildFile.delete();
+                probeFile.delete();
+            }
+            build.clear();
+            probe.clear();
+        }
+    }
+
+    /**
+     * A worker of the join phase: claims partition pairs until there are none
+     * left and returns the joined tuples of each.
+     */
+    private class PartitionJoiner extends Operator {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long subJoinBudget;
+
+        private JoinHashTable table;
+        private List<List<Tuple>> probeChunks;
+        private int chunk, pos;
+        private Tuple t2;
+        private int matchRow = -1;
+        private HashEquiJoin subJoin;
+
+        PartitionJoiner(long subJoinBudget) {
+            this.subJoinBudget = subJoinBudget;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            table = null;
+            probeChunks = null;
+            matchRow = -1;
+            super.open();
+        }
+
+        public void close() {
+            super.close();
+            if (subJoin != null) {
+                subJoin.close();
+                subJoin = null;
+            }
+            table = null;
+            probeChunks = null;
+        }
+
+        public void rewind() throws DbException {
+            throw new DbException("a partition joiner is restarted by its join");
+        }
+
+        /**
+         * Prepares the join of the next partition pair.
+         *
+         * @return false if there is no partition left
+         */
+        private boolean nextPartition() throws DbException, TransactionAbortedException {
+            table = null;
+            probeChunks = null;
+            while (true) {
+                checkCancelled();
+                int p = nextPartition.getAndIncrement();
+                if (p >= partitions.length) {
+                    return false;
+                }
+                Partition partition = partitions[p];
+                if (partition.isSpilled()) {
+                    if (partition.buildFile.size() == 0 || partition.probeFile.size() == 0) {
+                        continue;
+                    }
+                    subJoin = new HashEquiJoin(pred, partition.buildFile.iterator(), partition.probeFile.iterator());
+                    subJoin.setMemoryBudget(subJoinBudget);
+                    subJoin.setCancellationToken(getCancellationToken());
+                    subJoin.open();
+                    return true;
+                }
+                if (partition.build.isEmpty() || partition.probe.isEmpty()) {
+                    continue;
+                }
+                table = JoinHashTable.forJoin(pred, child1.getTupleDesc(), child2.getTupleDesc());
+                for (List<Tuple> buildChunk : partition.build) {
+                    for (Tuple t : buildChunk) {
+                        table.add(t);
+                    }
+                }
+                probeChunks = partition.probe;
+                chunk = 0;
+                pos = 0;
+                return true;
+            }
+        }
+
+        protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+            while (true) {
+                if (subJoin != null) {
+                    if (subJoin.hasNext()) {
+                        return subJoin.next();
+                    }
+                    subJoin.close();
+                    subJoin = null;
+                } else if (matchRow >= 0) {
+                    Tuple t1 = table.getRow(matchRow);
+                    matchRow = table.nextRow(matchRow);
+                    return Tuple.merge(comboTD, t1, t2);
+                } else if (probeChunks != null && chunk < probeChunks.size()) {
+                    List<Tuple> probeChunk = probeChunks.get(chunk);
+                    t2 = probeChunk.get(pos++);
+                    if (pos == probeChunk.size()) {
+                        chunk++;
+                        pos = 0;
+                    }
+                    matchRow = table.firstRow(t2.getField(pred.getField2()));
+                    continue;
+                }
+                if (!nextPartition()) {
+                    return null;
+                }
+            }
+        }
+
+        public TupleDesc getTupleDesc() {
+            return comboTD;
+        }
+
+        @Override
+        public OpIterator[] getChildren() {
+            return new OpIterator[0];
+        }
+
+        @Override
+        public void setChildren(OpIterator[] children) {
+        }
+    }
+}
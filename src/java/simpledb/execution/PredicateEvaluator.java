@@ -0,0 +1,18 @@
+package simpledb.execution;
+
+import simpledb.storage.Tuple;
+
+/**
+ * PredicateEvaluator tests a tuple against a conjunction of predicates that
+ * has been specialized for a particular TupleDesc.
+ *
+ * @see EvaluatorCompiler#compilePredicates
+ */
+public interface PredicateEvaluator {
+
+    /**
+     * @param t the tuple to test
+     * @return true if t satisfies every predicate of the conjunction
+     */
+    boolean filter(Tuple t);
+}
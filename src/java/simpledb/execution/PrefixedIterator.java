@@ -0,0 +1,94 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * PrefixedIterator returns the tuples of a prefix, then the rest of an open
+ * input. It lets an operator that has already read the first tuples of its
+ * input hand them on together with the tuples it has not read yet, e.g. when
+ * a join switches its strategy at run time.
+ * <p>
+ * The input is opened and closed by its owner, not by this iterator. Once
+ * rewound, this iterator returns the input from its start, without the prefix.
+ */
+class PrefixedIterator implements OpIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    // the prefix is either held in memory or read from an iterator
+    private List<Tuple> buffered;
+    private Iterator<Tuple> bufferedIt;
+    private OpIterator prefix;
+    private final OpIterator input;
+
+    /**
+     * @param buffered the tuples read from input so far
+     * @param input    the open input whose remaining tuples follow them
+     */
+    PrefixedIterator(List<Tuple> buffered, OpIterator input) {
+        this.buffered = buffered;
+        this.input = input;
+    }
+
+    /**
+     * @param prefix the tuples read from input so far, stored elsewhere;
+     *               opened and closed by this iterator
+     * @param input  the open input whose remaining tuples follow the prefix
+     */
+    PrefixedIterator(OpIterator prefix, OpIterator input) {
+        this.prefix = prefix;
+        this.input = input;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        if (buffered != null) {
+            bufferedIt = buffered.iterator();
+        } else if (prefix != null) {
+            prefix.open();
+        }
+    }
+
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+        if (bufferedIt != null ? bufferedIt.hasNext() : prefix != null && prefix.hasNext()) {
+            return true;
+        }
+        // done with the prefix
+        close();
+        return input.hasNext();
+    }
+
+    public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        if (bufferedIt != null) {
+            return bufferedIt.next();
+        }
+        return prefix != null ? prefix.next() : input.next();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        close();
+        input.rewind();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return input.getTupleDesc();
+    }
+
+    public void close() {
+        buffered = null;
+        bufferedIt = null;
+        if (prefix != null) {
+            prefix.close();
+            prefix = null;
+        }
+    }
+}
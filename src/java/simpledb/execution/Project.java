@@ -48,6 +48,11 @@ public class Project extends Operator {
         return td;
     }
 
+    /** @return the ids of the fields of the child that are projected out, in order */
+    public List<Integer> getOutFieldIds() {
+        return outFieldIds;
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
@@ -2,6 +2,7 @@ package simpledb.execution;
 
 import simpledb.common.Database;
 import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.QueryPlanVisualizer;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 import simpledb.common.DbException;
@@ -16,6 +17,14 @@ import java.util.*;
  * plan in the form of a high level OpIterator (built by initiating the
  * constructors of query plans) and runs it as a part of a specified
  * transaction.
+ * <p>
+ * A query run with EXPLAIN ANALYZE (see {@link #setAnalyze}) counts the
+ * tuples, time, pages and memory of each operator, and prints them on the
+ * plan after it has run.
+ * <p>
+ * A query can be cancelled while it runs (see {@link #cancel}), or after a
+ * timeout (see {@link #setTimeout}); its operators then throw a
+ * {@link QueryCancelledException}.
  * 
  * @author Sam Madden
  */
@@ -28,6 +37,9 @@ public class Query implements Serializable {
     transient private LogicalPlan logicalPlan;
     final TransactionId tid;
     transient private boolean started = false;
+    transient private boolean analyze = false;
+    transient private long timeout = 0;
+    transient private CancellationToken cancellation = new CancellationToken();
 
     public TransactionId getTransactionId() {
         return this.tid;
@@ -49,6 +61,48 @@ public class Query implements Serializable {
         return this.op;
     }
 
+    /**
+     * Set whether the operators of the plan are profiled when the query is
+     * started, and execute prints the profiled plan instead of the result
+     */
+    public void setAnalyze(boolean analyze) {
+        this.analyze = analyze;
+    }
+
+    public boolean isAnalyze() {
+        return analyze;
+    }
+
+    /**
+     * Set the number of milliseconds the query may run once started, after
+     * which it is cancelled; 0, the default, for no limit
+     */
+    public void setTimeout(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("the timeout must not be negative");
+        }
+        this.timeout = millis;
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Cancels the query, e.g. from another thread while it runs: its
+     * operators throw a QueryCancelledException the next time they are asked
+     * for a tuple, and whoever runs the query is expected to close it and to
+     * abort its transaction.
+     */
+    public void cancel() {
+        cancellation.cancel();
+    }
+
+    /** @return true if the query has been cancelled or has timed out */
+    public boolean isCancelled() {
+        return cancellation.isCancelled();
+    }
+
     public Query(TransactionId t) {
         tid = t;
     }
@@ -60,7 +114,20 @@ public class Query implements Serializable {
 
     public void start() throws DbException,
             TransactionAbortedException {
-        op.open();
+        QueryScheduler.admit(this);
+        CancellationToken.attach(op, cancellation);
+        if (timeout > 0) {
+            cancellation.setTimeout(timeout);
+        }
+        if (analyze) {
+            OperatorProfile.attach(op);
+        }
+        try {
+            op.open();
+        } catch (DbException | TransactionAbortedException | RuntimeException e) {
+            release();
+            throw e;
+        }
 
         started = true;
     }
@@ -71,7 +138,18 @@ public class Query implements Serializable {
 
     /** @return true if there are more tuples remaining. */
     public boolean hasNext() throws DbException, TransactionAbortedException {
-        return op.hasNext();
+        try {
+            if (op.hasNext()) {
+                return true;
+            }
+        } catch (DbException | TransactionAbortedException | RuntimeException e) {
+            release();
+            throw e;
+        }
+        // the workers of an exhausted query go to the others, also if it is
+        // never closed
+        release();
+        return false;
     }
 
     /**
@@ -91,13 +169,27 @@ public class Query implements Serializable {
         if (!started)
             throw new DbException("Database not started.");
 
-        return op.next();
+        try {
+            return op.next();
+        } catch (DbException | TransactionAbortedException | RuntimeException e) {
+            if (!(e instanceof NoSuchElementException)) {
+                release();
+            }
+            throw e;
+        }
     }
 
     /** Close the iterator */
     public void close() {
         op.close();
         started = false;
+        release();
+    }
+
+    /** Stops the timeout and hands the workers of this query to the others */
+    private void release() {
+        cancellation.clearTimeout();
+        QueryScheduler.finish(this);
     }
 
     public void execute() throws DbException, TransactionAbortedException {
@@ -115,20 +207,34 @@ public class Query implements Serializable {
 
         this.start();
         int cnt = 0;
-        while (this.hasNext()) {
-            Tuple tup = this.next();
-            if (Database.isDebug()) {
-                if (cnt < 100) {
+        try {
+            while (this.hasNext()) {
+                Tuple tup = this.next();
+                // under EXPLAIN ANALYZE, only the count and the plan are printed
+                if (analyze) {
+                    cnt++;
+                    continue;
+                }
+                if (Database.isDebug()) {
+                    if (cnt < 100) {
+                        System.out.println(tup);
+                    } else if (cnt == 100) {
+                        System.out.println("...");
+                    }
+                } else {
                     System.out.println(tup);
-                } else if (cnt == 100) {
-                    System.out.println("...");
                 }
-            } else {
-                System.out.println(tup);
+                cnt++;
             }
-            cnt++;
+        } finally {
+            // also when the query fails or is cancelled, which releases the
+            // spill files and workers of its operators
+            this.close();
         }
         System.out.println("\n " + cnt + " rows.");
-        this.close();
+        if (analyze) {
+            System.out.println("The analyzed query plan is:");
+            new QueryPlanVisualizer().printAnalyzedQueryPlanTree(op, System.out);
+        }
     }
 }
@@ -0,0 +1,15 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+
+/**
+ * Exception that is thrown by the operators of a query that has been
+ * cancelled, or has run past its timeout; see {@link CancellationToken}.
+ */
+public class QueryCancelledException extends DbException {
+    private static final long serialVersionUID = 1L;
+
+    public QueryCancelledException(String s) {
+        super(s);
+    }
+}
@@ -0,0 +1,86 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.storage.MorselSource;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * QueryScheduler divides the worker pool between the queries that are running
+ * at the same time.
+ * <p>
+ * Parallel scans are planned with one producer per worker of the pool, and the
+ * producers claim morsels from a shared {@link MorselSource} (see
+ * {@link Exchange#Exchange(OpIterator[], MorselSource)}). When a query starts,
+ * the scheduler lets each of its morsel-driven scans run on (pool parallelism /
+ * running queries) workers, and lowers the parallelism of the scans that are
+ * already running accordingly; their surplus workers retire at their next
+ * morsel boundary. When a query finishes, the share of the remaining queries
+ * grows again, which is picked up by every worker that has not yet retired.
+ *
+ * @Threadsafe
+ */
+public class QueryScheduler {
+
+    private static final Map<Query, List<MorselSource>> running = new IdentityHashMap<>();
+
+    /**
+     * Registers a query that is about to be started and rebalances the
+     * parallelism of all running queries.
+     */
+    public static synchronized void admit(Query query) {
+        List<MorselSource> sources = new ArrayList<>();
+        collectMorsels(query.getPhysicalPlan(), sources);
+        running.put(query, sources);
+        rebalance();
+    }
+
+    /**
+     * Unregisters a query that has been exhausted, has failed or has been
+     * closed, and rebalances the parallelism of the remaining queries. Does
+     * nothing if the query is not registered.
+     */
+    public static synchronized void finish(Query query) {
+        if (running.remove(query) != null) {
+            rebalance();
+        }
+    }
+
+    /** @return the number of queries that are currently running */
+    public static synchronized int getRunningQueries() {
+        return running.size();
+    }
+
+    /**
+     * @return the number of workers each running query may use for a parallel
+     *         scan
+     */
+    public static synchronized int getWorkersPerQuery() {
+        return Math.max(1, Database.getWorkerPool().getParallelism() / Math.max(1, running.size()));
+    }
+
+    private static void rebalance() {
+        int workers = getWorkersPerQuery();
+        for (List<MorselSource> sources : running.values()) {
+            for (MorselSource morsels : sources) {
+                morsels.setParallelism(workers);
+            }
+        }
+    }
+
+    private static void collectMorsels(OpIterator plan, List<MorselSource> sources) {
+        if (plan instanceof Exchange && ((Exchange) plan).getMorsels() != null) {
+            sources.add(((Exchange) plan).getMorsels());
+        }
+        if (plan instanceof Operator) {
+            for (OpIterator child : ((Operator) plan).getChildren()) {
+                if (child != null) {
+                    collectMorsels(child, sources);
+                }
+            }
+        }
+    }
+}
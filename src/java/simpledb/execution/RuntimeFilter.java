@@ -0,0 +1,228 @@
+package simpledb.execution;
+
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * RuntimeFilter summarizes the join keys of the build side of a hash join by
+ * their [min, max] range and a Bloom filter. Once the build side has been
+ * read, the join pushes the filter down into the scan of its probe side (see
+ * {@link #pushDown}), which drops the tuples whose key cannot match any build
+ * key before they reach the join.
+ * <p>
+ * Neither test has false negatives, so dropping tuples never changes the
+ * result of the join. A build side with more than {@link #MAX_BLOOM_KEYS}
+ * tuples gets only the range test.
+ */
+public class RuntimeFilter {
+
+    /** The number of Bloom filter bits per build key, for about 2% false positives */
+    private static final int BITS_PER_KEY = 8;
+
+    /** The number of bits set per key */
+    private static final int NUM_HASHES = 4;
+
+    /** The largest number of build keys that get a Bloom filter */
+    public static final int MAX_BLOOM_KEYS = 1 << 22;
+
+    private final int field;
+    // the range of the build keys; null if there are none
+    private final Field min, max;
+    // the Bloom filter, or null if there are too many keys
+    private final long[] bits;
+    private final int mask;
+
+    private long tested, rejected;
+
+    /**
+     * Builder collects the keys of a build side.
+     */
+    public static class Builder {
+        private final int field;
+        private Field min, max;
+        private int[] hashes = new int[16];
+        private int numKeys = 0;
+
+        /**
+         * @param field the index of the join field in the probe tuples the
+         *              filter will be applied to
+         */
+        public Builder(int field) {
+            this.field = field;
+        }
+
+        public void add(Field key) {
+            if (min == null) {
+                min = max = key;
+            } else if (key.compare(Predicate.Op.LESS_THAN, min)) {
+                min = key;
+            } else if (key.compare(Predicate.Op.GREATER_THAN, max)) {
+                max = key;
+            }
+            if (numKeys == MAX_BLOOM_KEYS) {
+                // too many keys for a Bloom filter
+                hashes = null;
+            } else if (hashes != null) {
+                if (numKeys == hashes.length) {
+                    hashes = Arrays.copyOf(hashes, numKeys * 2);
+                }
+                hashes[numKeys] = key.hashCode();
+            }
+            numKeys++;
+        }
+
+        public RuntimeFilter build() {
+            return new RuntimeFilter(this);
+        }
+    }
+
+    private RuntimeFilter(Builder b) {
+        field = b.field;
+        min = b.min;
+        max = b.max;
+        if (b.hashes == null) {
+            bits = null;
+            mask = 0;
+        } else {
+            // a power of two of at least 64 bits
+            int numBits = 64;
+            while (numBits < b.numKeys * BITS_PER_KEY) {
+                numBits <<= 1;
+            }
+            bits = new long[numBits >>> 6];
+            mask = numBits - 1;
+            for (int i = 0; i < b.numKeys; i++) {
+                int h1 = mix(b.hashes[i]);
+                int h2 = mix(h1) | 1;
+                for (int k = 0; k < NUM_HASHES; k++) {
+                    int bit = (h1 + k * h2) & mask;
+                    bits[bit >>> 6] |= 1L << bit;
+                }
+            }
+        }
+    }
+
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /** @return the index of the join field in the probe tuples */
+    public int getField() {
+        return field;
+    }
+
+    /** @return true if t may join with a build tuple, false if it cannot */
+    public boolean mightMatch(Tuple t) {
+        return mightMatch(t.getField(field));
+    }
+
+    /** @return true if a probe tuple whose join field is key may join with a build tuple */
+    public boolean mightMatch(Field key) {
+        tested++;
+        if (min == null || key.compare(Predicate.Op.LESS_THAN, min)
+                || key.compare(Predicate.Op.GREATER_THAN, max) || !inBloomFilter(key)) {
+            rejected++;
+            return false;
+        }
+        return true;
+    }
+
+    private boolean inBloomFilter(Field key) {
+        if (bits == null) {
+            return true;
+        }
+        int h1 = mix(key.hashCode());
+        int h2 = mix(h1) | 1;
+        for (int k = 0; k < NUM_HASHES; k++) {
+            int bit = (h1 + k * h2) & mask;
+            if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** @return the number of tuples tested by this filter */
+    public long getTested() {
+        return tested;
+    }
+
+    /** @return the number of tuples this filter dropped */
+    public long getRejected() {
+        return rejected;
+    }
+
+    /**
+     * @return the operator of plan a runtime filter is applied in: the scan
+     *         under the Filters at the top of plan, or the lowest of those
+     *         Filters if there is no scan under them; null if there is none
+     */
+    private static OpIterator target(OpIterator plan) {
+        OpIterator lowest = null;
+        while (plan instanceof Filter) {
+            lowest = plan;
+            plan = ((Filter) plan).getChildren()[0];
+        }
+        return plan instanceof SeqScan ? plan : lowest;
+    }
+
+    /** @return true if a runtime filter can be pushed down into plan */
+    public static boolean canPushDown(OpIterator plan) {
+        return target(plan) != null;
+    }
+
+    /**
+     * Installs this filter in plan, which drops the tuples it rejects from
+     * then on.
+     *
+     * @throws IllegalArgumentException if the filter cannot be pushed down into plan
+     */
+    public void pushDown(OpIterator plan) {
+        OpIterator target = target(plan);
+        if (target instanceof SeqScan) {
+            ((SeqScan) target).addRuntimeFilter(this);
+        } else if (target != null) {
+            ((Filter) target).addRuntimeFilter(this);
+        } else {
+            throw new IllegalArgumentException("a runtime filter needs a scan or a Filter to be applied in");
+        }
+    }
+
+    /** Removes this filter from the plan it was pushed down into */
+    public void remove(OpIterator plan) {
+        while (plan instanceof Filter) {
+            ((Filter) plan).removeRuntimeFilter(this);
+            plan = ((Filter) plan).getChildren()[0];
+        }
+        if (plan instanceof SeqScan) {
+            ((SeqScan) plan).removeRuntimeFilter(this);
+        }
+    }
+
+    /** @return true if t passes all of filters */
+    static boolean mightMatch(List<RuntimeFilter> filters, Tuple t) {
+        return mightMatch(filters, t, null);
+    }
+
+    /**
+     * @param fields the field of t of each field of the probe tuples, or null
+     *               if t is a probe tuple
+     * @return true if t passes all filters
+     */
+    static boolean mightMatch(List<RuntimeFilter> filters, Tuple t, int[] fields) {
+        for (RuntimeFilter f : filters) {
+            if (!f.mightMatch(t.getField(fields == null ? f.field : fields[f.field]))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -6,7 +6,11 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 import simpledb.common.Type;
 import simpledb.common.DbException;
+import simpledb.index.BTreeFile;
+import simpledb.storage.DbFile;
 import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.MorselSource;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
@@ -16,14 +20,45 @@ import java.util.*;
  * SeqScan is an implementation of a sequential scan access method that reads
  * each tuple of a table in no particular order (e.g., as they are laid out on
  * disk).
+ * <p>
+ * A scan can be restricted to some fields of the table (see
+ * {@link #setOutputFields}), so that joins, sorts and hash tables above it
+ * only copy and keep the fields the query uses. On a heap file, only those
+ * fields are decoded from the bytes of the pages; on other files, the decoded
+ * tuples are narrowed after the runtime filters have dropped the ones they
+ * reject.
+ * <p>
+ * The predicates of a Filter over a heap file scan can be pushed down into
+ * the pages (see {@link #pushDownPredicates}), which evaluate them on their
+ * bytes and only build the tuples that satisfy them.
  */
 public class SeqScan implements OpIterator {
 
     private TransactionId tid;
     private int tableId;
     private String tableAlias;
+    // page range [startPage, endPage) of a partial scan; endPage < 0 scans the whole table
+    private int startPage = 0;
+    private int endPage = -1;
+    // the shared morsels of a morsel-driven scan, null otherwise
+    private transient MorselSource morsels;
+    private transient int worker;
 
     private DbFileIterator iterator;
+    // the fields of the table this scan returns, in order; null returns all of them
+    private int[] outputFields;
+    private transient TupleDesc outputTd;
+    // the predicates evaluated on the pages of a heap file, on fields of the table
+    private transient List<Predicate> pagePredicates;
+    // whether the iterator returns tuples narrowed to outputFields already
+    private transient boolean narrowedByPages;
+    // the filters pushed down by joins, and the next tuple that passed them
+    private transient List<RuntimeFilter> runtimeFilters;
+    private transient Tuple pending;
+    // the run time counters under EXPLAIN ANALYZE, null otherwise
+    private transient OperatorProfile profile;
+    // the token that cancels the query of this scan, null if there is none
+    private transient CancellationToken cancellation;
 
     private static final long serialVersionUID = 1L;
 
@@ -50,6 +85,84 @@ public class SeqScan implements OpIterator {
         this.iterator = Database.getCatalog().getDatabaseFile(tableId).iterator(tid);
     }
 
+    /**
+     * Creates a sequential scan over pages startPage (inclusive) to endPage
+     * (exclusive) of the specified table. Scans over disjoint page ranges can
+     * run concurrently; together they return each tuple of the table once.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableid
+     *            the table to scan; must be stored in a HeapFile.
+     * @param tableAlias
+     *            the alias of this table (see above).
+     * @param startPage
+     *            the first page to scan
+     * @param endPage
+     *            one past the last page to scan
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, int startPage, int endPage) {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        if (!(file instanceof HeapFile)) {
+            throw new IllegalArgumentException("page range scans are only supported on heap files");
+        }
+        if (startPage < 0 || endPage < startPage) {
+            throw new IllegalArgumentException("invalid page range [" + startPage + ", " + endPage + ")");
+        }
+        this.tid = tid;
+        this.tableId = tableid;
+        this.tableAlias = tableAlias;
+        this.startPage = startPage;
+        this.endPage = endPage;
+        this.iterator = ((HeapFile) file).iterator(tid, startPage, endPage);
+    }
+
+    /**
+     * Creates one worker of a morsel-driven scan of the specified table. The
+     * scan reads the morsels it claims from morsels; the workers sharing a
+     * MorselSource together return each tuple of the table once.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableid
+     *            the table to scan; must be stored in a HeapFile.
+     * @param tableAlias
+     *            the alias of this table (see above).
+     * @param morsels
+     *            the source of morsels shared by all workers of the scan
+     * @param worker
+     *            the index of this worker
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, MorselSource morsels, int worker) {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        if (!(file instanceof HeapFile)) {
+            throw new IllegalArgumentException("morsel-driven scans are only supported on heap files");
+        }
+        this.tid = tid;
+        this.tableId = tableid;
+        this.tableAlias = tableAlias;
+        this.morsels = morsels;
+        this.worker = worker;
+        this.iterator = ((HeapFile) file).iterator(tid, morsels, worker);
+    }
+
+    /**
+     * Splits a scan of the specified heap file table into at most n scans over
+     * disjoint, contiguous page ranges of (nearly) equal size.
+     *
+     * @return the partial scans, in page order; never empty
+     */
+    public static SeqScan[] partition(TransactionId tid, int tableid, String tableAlias, int n) {
+        int numPages = ((HeapFile) Database.getCatalog().getDatabaseFile(tableid)).numPages();
+        int parts = Math.max(1, Math.min(n, numPages));
+        SeqScan[] scans = new SeqScan[parts];
+        for (int i = 0; i < parts; i++) {
+            scans[i] = new SeqScan(tid, tableid, tableAlias,
+                    (int) ((long) numPages * i / parts), (int) ((long) numPages * (i + 1) / parts));
+        }
+        return scans;
+    }
+
     /**
      * @return
      *       return the table name of the table the operator scans. This should
@@ -59,6 +172,16 @@ public class SeqScan implements OpIterator {
         return Database.getCatalog().getTableName(tableId);
     }
 
+    /** @return the id of the table this operator scans */
+    public int getTableId() {
+        return tableId;
+    }
+
+    /** @return the transaction this scan runs in */
+    public TransactionId getTransactionId() {
+        return tid;
+    }
+
     /**
      * @return Return the alias of the table this operator scans.
      * */
@@ -82,6 +205,97 @@ public class SeqScan implements OpIterator {
     public void reset(int tableid, String tableAlias) {
         this.tableId = tableid;
         this.tableAlias = tableAlias;
+        this.outputTd = null;
+    }
+
+    /**
+     * Restricts the tuples returned by this scan to the given fields of the
+     * table, in that order; null, the default, returns all fields. The
+     * returned tuples keep the record ids of the tuples of the table. Must be
+     * called while the scan is closed.
+     *
+     * @throws IllegalArgumentException if fields is empty or a field is not
+     *         a field of the table
+     */
+    public void setOutputFields(int[] fields) {
+        if (fields != null) {
+            int numFields = Database.getCatalog().getTupleDesc(tableId).numFields();
+            if (fields.length == 0) {
+                throw new IllegalArgumentException("a scan must return at least one field");
+            }
+            for (int f : fields) {
+                if (f < 0 || f >= numFields) {
+                    throw new IllegalArgumentException("no field " + f + " in table " + getTableName());
+                }
+            }
+        }
+        this.outputFields = fields;
+        this.outputTd = null;
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        if (file instanceof HeapFile) {
+            iterator = heapIterator((HeapFile) file);
+            narrowedByPages = fields != null;
+        }
+    }
+
+    /** @return an iterator over the pages of this scan, with its pushed down predicates and output fields */
+    private DbFileIterator heapIterator(HeapFile file) {
+        TupleDesc td = outputFields == null ? null : getTupleDesc();
+        if (morsels != null) {
+            return file.iterator(tid, morsels, worker, pagePredicates, outputFields, td);
+        }
+        return file.iterator(tid, startPage, endPage < 0 ? Integer.MAX_VALUE : endPage, pagePredicates,
+                outputFields, td);
+    }
+
+    /** @return the fields of the table this scan returns, or null if it returns all of them */
+    public int[] getOutputFields() {
+        return outputFields;
+    }
+
+    /** @return the index in the table of the field of the tuples of this scan */
+    public int tableField(int field) {
+        return outputFields == null ? field : outputFields[field];
+    }
+
+    /**
+     * @return the fields of a tuple of the table that this scan returns, with
+     *         the record id of t; t itself if the scan returns all fields
+     */
+    public Tuple project(Tuple t) {
+        if (outputFields == null) {
+            return t;
+        }
+        Tuple out = new Tuple(getTupleDesc());
+        out.setRecordId(t.getRecordId());
+        for (int i = 0; i < outputFields.length; i++) {
+            out.setField(i, t.getField(outputFields[i]));
+        }
+        return out;
+    }
+
+    /**
+     * Makes this scan return only the tuples that satisfy all the given
+     * predicates, on fields of the tuples of this scan. The predicates are
+     * evaluated on the bytes of the pages of the table, so that the tuples
+     * they reject are never decoded; they replace the predicates pushed down
+     * before. Must be called while the scan is closed.
+     *
+     * @return true if the predicates are applied; false if the table is not
+     *         stored in a heap file, in which case the scan is unchanged
+     */
+    public boolean pushDownPredicates(List<Predicate> predicates) {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(file instanceof HeapFile)) {
+            return false;
+        }
+        List<Predicate> tablePredicates = new ArrayList<>(predicates.size());
+        for (Predicate p : predicates) {
+            tablePredicates.add(new Predicate(tableField(p.getField()), p.getOp(), p.getOperand()));
+        }
+        pagePredicates = tablePredicates;
+        iterator = heapIterator((HeapFile) file);
+        return true;
     }
 
     public SeqScan(TransactionId tid, int tableId) {
@@ -89,7 +303,16 @@ public class SeqScan implements OpIterator {
     }
 
     public void open() throws DbException, TransactionAbortedException {
-        iterator.open();
+        if (profile == null) {
+            iterator.open();
+            return;
+        }
+        profile.enter();
+        try {
+            iterator.open();
+        } finally {
+            profile.exit();
+        }
     }
 
     /**
@@ -100,36 +323,167 @@ public class SeqScan implements OpIterator {
      * (e.g., "alias.fieldName").
      *
      * @return the TupleDesc with field names from the underlying HeapFile,
-     *         prefixed with the tableAlias string from the constructor.
+     *         prefixed with the tableAlias string from the constructor, of
+     *         the output fields only if they are set.
      */
     public TupleDesc getTupleDesc() {
+        if (outputTd != null) {
+            return outputTd;
+        }
         TupleDesc tupleDesc = Database.getCatalog().getTupleDesc(tableId);
-        Type[] typeAr = new Type[tupleDesc.numFields()];
-        String[] fieldNameAr = new String[tupleDesc.numFields()];
-        for (int i = 0; i < tupleDesc.numFields(); i++) {
-            typeAr[i] = tupleDesc.getFieldType(i);
-            fieldNameAr[i] = String.format("%s.%s",tableAlias, tupleDesc.getFieldName(i));
+        int numFields = outputFields == null ? tupleDesc.numFields() : outputFields.length;
+        Type[] typeAr = new Type[numFields];
+        String[] fieldNameAr = new String[numFields];
+        for (int i = 0; i < numFields; i++) {
+            typeAr[i] = tupleDesc.getFieldType(tableField(i));
+            fieldNameAr[i] = String.format("%s.%s",tableAlias, tupleDesc.getFieldName(tableField(i)));
+        }
+        TupleDesc td = new TupleDesc(typeAr, fieldNameAr);
+        if (outputFields != null) {
+            // the narrowed tuples share it
+            outputTd = td;
         }
-        return new TupleDesc(typeAr, fieldNameAr);
+        return td;
     }
 
     public boolean hasNext() throws TransactionAbortedException, DbException {
-        return iterator.hasNext();
+        if (cancellation != null) {
+            cancellation.check();
+        }
+        if (profile == null) {
+            return hasNextTuple();
+        }
+        profile.enter();
+        try {
+            return hasNextTuple();
+        } finally {
+            profile.exit();
+        }
     }
 
     public Tuple next() throws NoSuchElementException, TransactionAbortedException, DbException {
-        return iterator.next();
+        if (cancellation != null) {
+            cancellation.check();
+        }
+        if (profile == null) {
+            return nextTuple();
+        }
+        profile.enter();
+        try {
+            Tuple t = nextTuple();
+            profile.addRow();
+            return t;
+        } finally {
+            profile.exit();
+        }
+    }
+
+    private boolean hasNextTuple() throws TransactionAbortedException, DbException {
+        if (runtimeFilters == null && (outputFields == null || narrowedByPages)) {
+            return iterator.hasNext();
+        }
+        while (pending == null && iterator.hasNext()) {
+            Tuple t = iterator.next();
+            if (narrowedByPages) {
+                if (RuntimeFilter.mightMatch(runtimeFilters, t)) {
+                    pending = t;
+                }
+            } else if (runtimeFilters == null || RuntimeFilter.mightMatch(runtimeFilters, t, outputFields)) {
+                pending = project(t);
+            }
+        }
+        return pending != null;
+    }
+
+    private Tuple nextTuple() throws NoSuchElementException, TransactionAbortedException, DbException {
+        if (runtimeFilters == null && (outputFields == null || narrowedByPages)) {
+            return iterator.next();
+        }
+        if (!hasNextTuple()) {
+            throw new NoSuchElementException();
+        }
+        Tuple t = pending;
+        pending = null;
+        return t;
     }
 
     public void close() {
+        pending = null;
         iterator.close();
     }
 
     public void rewind() throws DbException, NoSuchElementException, TransactionAbortedException {
-        iterator.rewind();
+        pending = null;
+        if (profile == null) {
+            iterator.rewind();
+            return;
+        }
+        profile.enter();
+        try {
+            iterator.rewind();
+        } finally {
+            profile.exit();
+        }
+    }
+
+    /** @return the run time counters of this scan, or null if it is not profiled */
+    public OperatorProfile getProfile() {
+        return profile;
+    }
+
+    /** Set the run time counters of this scan; see {@link OperatorProfile#attach} */
+    public void setProfile(OperatorProfile profile) {
+        this.profile = profile;
+    }
+
+    /** Set the token that cancels the query of this scan; see {@link CancellationToken#attach} */
+    public void setCancellationToken(CancellationToken cancellation) {
+        this.cancellation = cancellation;
+    }
+
+    /**
+     * Drops the tuples rejected by filter from the output of this scan, from
+     * the next tuple read on; see {@link RuntimeFilter#pushDown}.
+     */
+    public void addRuntimeFilter(RuntimeFilter filter) {
+        if (runtimeFilters == null) {
+            runtimeFilters = new ArrayList<>();
+        }
+        runtimeFilters.add(filter);
+    }
+
+    public void removeRuntimeFilter(RuntimeFilter filter) {
+        if (runtimeFilters != null) {
+            runtimeFilters.remove(filter);
+        }
+    }
+
+    /**
+     * @return true if the tuples are returned in ascending order of the
+     *         specified field, which is the case for a scan of a B+ tree file
+     *         on its key field
+     */
+    public boolean isSortedOn(int field) {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        return file instanceof BTreeFile && ((BTreeFile) file).keyField() == tableField(field);
+    }
+
+    /**
+     * @return the (expected) fraction of the pages of the table read by this
+     *         scan; 1 for a scan of the whole table
+     */
+    public double getScanFraction() {
+        if (morsels != null) {
+            return 1.0 / morsels.getWorkers();
+        }
+        if (endPage < 0) {
+            return 1;
+        }
+        int numPages = ((HeapFile) Database.getCatalog().getDatabaseFile(tableId)).numPages();
+        return numPages == 0 ? 0 : (double) Math.max(0, Math.min(endPage, numPages) - startPage) / numPages;
     }
 
     public int getEstimatedCardinality() {
-        return TableStats.getTableStats(Database.getCatalog().getTableName(tableId)).estimateTableCardinality(1);
+        return TableStats.getTableStats(Database.getCatalog().getTableName(tableId)).estimateTableCardinality(getScanFraction());
     }
 }
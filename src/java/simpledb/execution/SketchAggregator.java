@@ -0,0 +1,162 @@
+package simpledb.execution;
+
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.util.HyperLogLog;
+import simpledb.util.KllSketch;
+
+import java.util.Arrays;
+
+/**
+ * Knows how to compute approximate aggregates in constant memory per group:
+ * APPROX_COUNT_DISTINCT over any field with a {@link HyperLogLog} sketch, and
+ * APPROX_PERCENTILE over an IntField with a {@link KllSketch}.
+ * <p>
+ * For parallel aggregation, the sketches of the groups of partial aggregates
+ * are merged as they are (see {@link HashAggregator#merge}), so the estimate
+ * of the whole is that of the union of the values of its parts.
+ */
+public class SketchAggregator extends HashAggregator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int afield;
+    private final Op what;
+    private final double fraction;
+    // the sketch of each group, indexed by group id
+    private transient HyperLogLog[] hlls;
+    private transient KllSketch[] klls;
+
+    /**
+     * Aggregate constructor
+     *
+     * @param gbfield     the 0-based index of the group-by field in the tuple,
+     *                    or NO_GROUPING if there is no grouping
+     * @param gbfieldtype the type of the group by field (e.g., Type.INT_TYPE),
+     *                    or null if there is no grouping
+     * @param afield      the 0-based index of the aggregate field in the tuple
+     * @param what        the aggregation operator, APPROX_COUNT_DISTINCT or
+     *                    APPROX_PERCENTILE (the median)
+     * @throws IllegalArgumentException if what is not an approximate aggregate
+     */
+    public SketchAggregator(int gbfield, Type gbfieldtype, int afield, Op what) {
+        this(gbfield == NO_GROUPING ? new int[0] : new int[]{gbfield},
+                gbfield == NO_GROUPING ? new Type[0] : new Type[]{gbfieldtype}, afield, what, 0.5);
+    }
+
+    /**
+     * Aggregate constructor for grouping by several fields
+     *
+     * @param gbfields     the 0-based indexes of the group-by fields in the
+     *                     tuple, none if there is no grouping
+     * @param gbfieldtypes the types of the group-by fields
+     * @param afield       the 0-based index of the aggregate field in the
+     *                     tuple
+     * @param what         the aggregation operator
+     * @param fraction     the percentile of APPROX_PERCENTILE, between 0 and
+     *                     1; ignored by APPROX_COUNT_DISTINCT
+     * @throws IllegalArgumentException if what is not an approximate aggregate,
+     *                                  or fraction is not between 0 and 1
+     */
+    public SketchAggregator(int[] gbfields, Type[] gbfieldtypes, int afield, Op what, double fraction) {
+        super(gbfields, gbfieldtypes);
+        if (!isSketchOp(what)) {
+            throw new IllegalArgumentException("Op " + what + " is not an approximate aggregate");
+        }
+        if (!(fraction >= 0 && fraction <= 1)) {
+            throw new IllegalArgumentException("the fraction of a percentile must be between 0 and 1");
+        }
+        this.afield = afield;
+        this.what = what;
+        this.fraction = fraction;
+    }
+
+    /** @return true if op is computed by a SketchAggregator */
+    public static boolean isSketchOp(Op op) {
+        return op == Op.APPROX_COUNT_DISTINCT || op == Op.APPROX_PERCENTILE;
+    }
+
+    private boolean isDistinct() {
+        return what == Op.APPROX_COUNT_DISTINCT;
+    }
+
+    @Override
+    protected void growState(int capacity) {
+        if (isDistinct()) {
+            hlls = hlls == null ? new HyperLogLog[capacity] : Arrays.copyOf(hlls, capacity);
+        } else {
+            klls = klls == null ? new KllSketch[capacity] : Arrays.copyOf(klls, capacity);
+        }
+    }
+
+    @Override
+    protected void initGroup(int id) {
+        if (isDistinct()) {
+            hlls[id] = new HyperLogLog();
+        } else {
+            klls[id] = new KllSketch();
+        }
+    }
+
+    /** @return a 64-bit value that stands for f in a HyperLogLog sketch */
+    private static long valueOf(Field f) {
+        if (f instanceof IntField) {
+            return ((IntField) f).getValue();
+        }
+        // FNV-1a, which HyperLogLog mixes further
+        long h = 0xCBF29CE484222325L;
+        for (char c : ((StringField) f).getValue().toCharArray()) {
+            h ^= c;
+            h *= 0x100000001B3L;
+        }
+        return h;
+    }
+
+    @Override
+    protected void mergeIntoGroup(int id, Tuple tup) {
+        if (isDistinct()) {
+            hlls[id].add(valueOf(tup.getField(afield)));
+        } else {
+            klls[id].add(((IntField) tup.getField(afield)).getValue());
+        }
+    }
+
+    @Override
+    protected void mergeGroup(int id, HashAggregator other, int otherId) {
+        SketchAggregator o = (SketchAggregator) other;
+        if (isDistinct()) {
+            hlls[id].merge(o.hlls[otherId]);
+        } else {
+            klls[id].merge(o.klls[otherId]);
+        }
+    }
+
+    @Override
+    protected void setResult(Tuple t, int start, int id) {
+        if (isDistinct()) {
+            t.setField(start, new IntField((int) Math.min(Integer.MAX_VALUE, hlls[id].estimate())));
+        } else {
+            // like AVG, the percentile of no values is 0
+            t.setField(start, new IntField(klls[id].isEmpty() ? 0 : klls[id].quantile(fraction)));
+        }
+    }
+
+    @Override
+    protected int[] inputFields() {
+        return new int[]{afield};
+    }
+
+    @Override
+    protected long groupStateBytes() {
+        // the size a sketch can grow to, whatever the number of values
+        return isDistinct() ? HyperLogLog.M : 4L * KllSketch.MAX_ITEMS;
+    }
+
+    @Override
+    protected HashAggregator newAggregator(int[] gbfields, int[] fieldMap) {
+        return new SketchAggregator(gbfields, gbfieldtypes, fieldMap[afield], what, fraction);
+    }
+}
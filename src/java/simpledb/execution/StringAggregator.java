@@ -1,26 +1,19 @@
 package simpledb.execution;
 
-import simpledb.common.DbException;
 import simpledb.common.Type;
-import simpledb.storage.*;
-import simpledb.transaction.TransactionAbortedException;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.NoSuchElementException;
+import java.util.Arrays;
 
 /**
  * Knows how to compute some aggregate over a set of StringFields.
  */
-public class StringAggregator implements Aggregator {
+public class StringAggregator extends HashAggregator {
 
-    private int groupByField;
-    private Type groupByFiledType;
-    private int affectField;
-    private Op op;
-    // key=-1，存储的是不分组的中间结果
-    private HashMap<Object, Integer> innerResMap;
+    private final int afield;
+    // 每个分组的计数存在以分组id为下标的数组里
+    private transient int[] counts;
 
     private static final long serialVersionUID = 1L;
 
@@ -34,122 +27,63 @@ public class StringAggregator implements Aggregator {
      */
 
     public StringAggregator(int gbfield, Type gbfieldtype, int afield, Op what) {
-        groupByField = gbfield;
-        groupByFiledType = gbfieldtype;
-        affectField = afield;
-        op = what;
-        if (op != Op.COUNT) {
-            throw new IllegalArgumentException("Op only supports COUNT");
-        }
-        innerResMap = new HashMap<>();
+        this(gbfield == NO_GROUPING ? new int[0] : new int[]{gbfield},
+                gbfield == NO_GROUPING ? new Type[0] : new Type[]{gbfieldtype}, afield, what);
     }
 
     /**
-     * Merge a new tuple into the aggregate, grouping as indicated in the constructor
-     * @param tup the Tuple containing an aggregate field and a group-by field
+     * Aggregate constructor for grouping by several fields
+     * @param gbfields the 0-based indexes of the group-by fields in the tuple, none if there is no grouping
+     * @param gbfieldtypes the types of the group-by fields
+     * @param afield the 0-based index of the aggregate field in the tuple
+     * @param what aggregation operator to use -- only supports COUNT
+     * @throws IllegalArgumentException if what != COUNT
      */
-    public void mergeTupleIntoGroup(Tuple tup) {
-        boolean noGroup = (groupByField == Aggregator.NO_GROUPING);
-        Object key = -1;
-        if (!noGroup) {
-            Field gbField = tup.getField(groupByField);
-            if (groupByFiledType == Type.INT_TYPE) {
-                key = ((IntField) gbField).getValue();
-            } else {
-                key = ((StringField) gbField).getValue();
-            }
+    public StringAggregator(int[] gbfields, Type[] gbfieldtypes, int afield, Op what) {
+        super(gbfields, gbfieldtypes);
+        if (what != Op.COUNT) {
+            throw new IllegalArgumentException("Op only supports COUNT");
         }
-        innerResMap.put(key, innerResMap.getOrDefault(key, 0) + 1);
+        this.afield = afield;
     }
 
-    /**
-     * Create a OpIterator over group aggregate results.
-     *
-     * @return a OpIterator whose tuples are the pair (groupVal,
-     *   aggregateVal) if using group, or a single (aggregateVal) if no
-     *   grouping. The aggregateVal is determined by the type of
-     *   aggregate specified in the constructor.
-     */
-    public OpIterator iterator() {
-        return new StringAggregatorOpIterator();
+    @Override
+    protected void growState(int capacity) {
+        counts = counts == null ? new int[capacity] : Arrays.copyOf(counts, capacity);
     }
 
-    private class StringAggregatorOpIterator implements OpIterator {
-
-        private ArrayList<Tuple> tuples;
-        private Iterator<Tuple> iter;
-        private boolean isOpen;
-        public StringAggregatorOpIterator() {
-            tuples = new ArrayList<>();
-            isOpen = false;
-            boolean noGroup = (groupByField == Aggregator.NO_GROUPING);
-            if (noGroup) {
-                innerResMap.putIfAbsent(-1, 0);
-                Tuple temp = new Tuple(getTupleDesc());
-                temp.setField(0, new IntField(innerResMap.get(-1)));
-                tuples.add(temp);
-            } else {
-                innerResMap.forEach((key, value) -> {
-                    Tuple temp = new Tuple(getTupleDesc());
-                    if (groupByFiledType == Type.INT_TYPE) {
-                        temp.setField(0, new IntField((Integer) key));
-                    } else {
-                        temp.setField(0, new StringField((String) key, Type.STRING_LEN));
-                    }
-                    temp.setField(1, new IntField(value));
-                    tuples.add(temp);
-                });
-            }
-            iter = tuples.iterator();
-        }
-
-        @Override
-        public void open() throws DbException, TransactionAbortedException {
-            isOpen = true;
-        }
+    @Override
+    protected void initGroup(int id) {
+        counts[id] = 0;
+    }
 
-        @Override
-        public boolean hasNext() throws DbException, TransactionAbortedException {
-            if (!isOpen) {
-                throw new IllegalStateException("the iterator hasn't open");
-            }
-            return iter.hasNext();
-        }
+    @Override
+    protected void mergeIntoGroup(int id, Tuple tup) {
+        counts[id]++;
+    }
 
-        @Override
-        public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
-            if (!isOpen) {
-                throw new IllegalStateException("the iterator hasn't open");
-            }
-            if (!hasNext()) {
-                throw new NoSuchElementException();
-            }
-            return iter.next();
-        }
+    @Override
+    protected void mergeGroup(int id, HashAggregator other, int otherId) {
+        counts[id] += ((StringAggregator) other).counts[otherId];
+    }
 
-        @Override
-        public void rewind() throws DbException, TransactionAbortedException {
-            if (!isOpen) {
-                throw new IllegalStateException("the iterator hasn't open");
-            }
-            iter = tuples.iterator();
-        }
+    @Override
+    protected void setResult(Tuple t, int start, int id) {
+        t.setField(start, new IntField(counts[id]));
+    }
 
-        @Override
-        public TupleDesc getTupleDesc() {
-            if (groupByField == Aggregator.NO_GROUPING) {
-                return new TupleDesc(new Type[]{Type.INT_TYPE});
-            } else if (groupByFiledType == Type.INT_TYPE) {
-                return new TupleDesc(new Type[]{Type.INT_TYPE, Type.INT_TYPE});
-            } else {
-                return new TupleDesc(new Type[]{Type.STRING_TYPE, Type.INT_TYPE});
-            }
-        }
+    @Override
+    protected long groupStateBytes() {
+        return 4L;
+    }
 
-        @Override
-        public void close() {
-            isOpen = false;
-        }
+    @Override
+    protected int[] inputFields() {
+        return new int[]{afield};
     }
 
+    @Override
+    protected HashAggregator newAggregator(int[] gbfields, int[] fieldMap) {
+        return new StringAggregator(gbfields, gbfieldtypes, fieldMap[afield], Op.COUNT);
+    }
 }
@@ -0,0 +1,146 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * TopN is an operator that implements ORDER BY ... LIMIT n: it returns the
+ * first n tuples of its child in the order of one or more fields, like an OrderBy
+ * followed by a Limit would, but it keeps only n tuples in a bounded heap
+ * instead of sorting the whole input.
+ * <p>
+ * Tuples that compare equal are returned in the order of the child, as by
+ * OrderBy.
+ */
+public class TopN extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private OpIterator child;
+    private final int[] orderByFields;
+    private final boolean[] asc;
+    private final int n;
+
+    private transient List<Tuple> top;
+    private transient int pos;
+
+    /** A tuple of the heap, with its position in the input */
+    private static class Entry {
+        final Tuple tuple;
+        final long seq;
+
+        Entry(Tuple tuple, long seq) {
+            this.tuple = tuple;
+            this.seq = seq;
+        }
+    }
+
+    /**
+     * @param orderByField the field to which the sort is applied
+     * @param asc true if the sort order is ascending
+     * @param n the number of tuples to return
+     * @param child the tuples to sort
+     */
+    public TopN(int orderByField, boolean asc, int n, OpIterator child) {
+        this(new int[]{orderByField}, new boolean[]{asc}, n, child);
+    }
+
+    /**
+     * @param orderByFields the fields to which the sort is applied, most
+     *                      significant first
+     * @param asc for each field, true if its sort order is ascending
+     * @param n the number of tuples to return
+     * @param child the tuples to sort
+     */
+    public TopN(int[] orderByFields, boolean[] asc, int n, OpIterator child) {
+        if (n < 0) {
+            throw new IllegalArgumentException("the number of tuples must not be negative");
+        }
+        if (orderByFields.length == 0 || orderByFields.length != asc.length) {
+            throw new IllegalArgumentException("ORDER BY needs one order for each of its fields");
+        }
+        this.orderByFields = orderByFields.clone();
+        this.asc = asc.clone();
+        this.n = n;
+        this.child = child;
+    }
+
+    public int[] getOrderByFields() {
+        return orderByFields.clone();
+    }
+
+    public boolean[] getAscOrders() {
+        return asc.clone();
+    }
+
+    public int getN() {
+        return n;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException, TransactionAbortedException {
+        child.open();
+        Comparator<Tuple> order = new TupleComparator(orderByFields, asc);
+        Comparator<Entry> byOrder = (a, b) -> order.compare(a.tuple, b.tuple);
+        byOrder = byOrder.thenComparingLong(e -> e.seq);
+        // the head of the heap is the last of the n tuples kept so far
+        PriorityQueue<Entry> heap = new PriorityQueue<>(Math.max(1, Math.min(n, 1024)), byOrder.reversed());
+        long seq = 0;
+        while (n > 0 && child.hasNext()) {
+            Entry e = new Entry(child.next(), seq++);
+            if (heap.size() < n) {
+                heap.add(e);
+            } else if (byOrder.compare(e, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(e);
+            }
+        }
+        reportMemory(heap.size() * WorkMemory.estimateTupleBytes(child.getTupleDesc()));
+        Entry[] sorted = heap.toArray(new Entry[0]);
+        Arrays.sort(sorted, byOrder);
+        top = new ArrayList<>(sorted.length);
+        for (Entry e : sorted) {
+            top.add(e.tuple);
+        }
+        pos = 0;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        top = null;
+        child.close();
+    }
+
+    public void rewind() {
+        pos = 0;
+    }
+
+    protected Tuple fetchNext() {
+        if (top != null && pos < top.size()) {
+            return top.get(pos++);
+        }
+        return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+}
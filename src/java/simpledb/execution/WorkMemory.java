@@ -0,0 +1,41 @@
+package simpledb.execution;
+
+import simpledb.storage.BufferPool;
+import simpledb.storage.TupleDesc;
+
+/**
+ * WorkMemory holds the default amount of memory that a blocking operator
+ * (hash join, sort, hash aggregation, ...) may use for its in-memory state
+ * before it spills to disk. The budget is given in pages, like the size of
+ * the BufferPool, and can be set with the simpledb.workmem.pages system
+ * property. Operators may override it per instance.
+ */
+public class WorkMemory {
+
+    public static final int DEFAULT_PAGES = 1024;
+
+    private static int pages = Integer.getInteger("simpledb.workmem.pages", DEFAULT_PAGES);
+
+    /** @return the default memory budget of an operator, in bytes */
+    public static long getDefaultBytes() {
+        return (long) pages * BufferPool.getPageSize();
+    }
+
+    /** Set the default memory budget of an operator, in pages */
+    public static void setDefaultPages(int pages) {
+        WorkMemory.pages = pages;
+    }
+
+    /** Restore the default memory budget */
+    public static void resetDefaultPages() {
+        WorkMemory.pages = Integer.getInteger("simpledb.workmem.pages", DEFAULT_PAGES);
+    }
+
+    /**
+     * @return an estimate of the heap space taken by a Tuple described by td,
+     *         including the Tuple and Field objects
+     */
+    public static long estimateTupleBytes(TupleDesc td) {
+        return td.getSize() + 16L * td.numFields() + 32;
+    }
+}
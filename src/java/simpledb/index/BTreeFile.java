@@ -187,8 +187,23 @@ public class BTreeFile implements DbFile {
 	private BTreeLeafPage findLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
                                        Field f)
 					throws DbException, TransactionAbortedException {
-		// some code goes here
-        return null;
+		if (pid.pgcateg() == BTreePageId.LEAF) {
+			return (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
+		}
+		BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+		Iterator<BTreeEntry> it = page.iterator();
+		BTreeEntry entry = null;
+		while (it.hasNext()) {
+			entry = it.next();
+			// keys equal to f may be in the left child as well
+			if (f == null || entry.getKey().compare(Op.GREATER_THAN_OR_EQ, f)) {
+				return findLeafPage(tid, dirtypages, entry.getLeftChild(), perm, f);
+			}
+		}
+		if (entry == null) {
+			throw new DbException("empty internal page " + pid);
+		}
+		return findLeafPage(tid, dirtypages, entry.getRightChild(), perm, f);
 	}
 	
 	/**
@@ -231,16 +246,36 @@ public class BTreeFile implements DbFile {
 	 */
 	public BTreeLeafPage splitLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreeLeafPage page, Field field)
 			throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        //
-        // Split the leaf page by adding a new page on the right of the existing
-		// page and moving half of the tuples to the new page.  Copy the middle key up
-		// into the parent page, and recursively split the parent as needed to accommodate
-		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
-		// the sibling pointers of all the affected leaf pages.  Return the page into which a 
-		// tuple with the given key field should be inserted.
-        return null;
-		
+		// move the upper half of the tuples to a new page on the right
+		BTreeLeafPage rightPage = (BTreeLeafPage) getEmptyPage(tid, dirtypages, BTreePageId.LEAF);
+		List<Tuple> moved = new ArrayList<>();
+		Iterator<Tuple> it = page.reverseIterator();
+		for (int i = page.getNumTuples() / 2; i > 0 && it.hasNext(); i--) {
+			moved.add(it.next());
+		}
+		for (Tuple t : moved) {
+			page.deleteTuple(t);
+			rightPage.insertTuple(t);
+		}
+
+		// link the new page between the page and its right sibling
+		BTreePageId oldRightId = page.getRightSiblingId();
+		if (oldRightId != null) {
+			BTreeLeafPage oldRight = (BTreeLeafPage) getPage(tid, dirtypages, oldRightId, Permissions.READ_WRITE);
+			oldRight.setLeftSiblingId(rightPage.getId());
+		}
+		rightPage.setRightSiblingId(oldRightId);
+		rightPage.setLeftSiblingId(page.getId());
+		page.setRightSiblingId(rightPage.getId());
+
+		// copy the first key of the new page up into the parent
+		Field middleKey = rightPage.iterator().next().getField(keyField);
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), middleKey);
+		parent.insertEntry(new BTreeEntry(middleKey, page.getId(), rightPage.getId()));
+		page.setParentId(parent.getId());
+		rightPage.setParentId(parent.getId());
+
+		return field.compare(Op.GREATER_THAN_OR_EQ, middleKey) ? rightPage : page;
 	}
 	
 	/**
@@ -268,16 +303,29 @@ public class BTreeFile implements DbFile {
 	public BTreeInternalPage splitInternalPage(TransactionId tid, Map<PageId, Page> dirtypages,
 			BTreeInternalPage page, Field field) 
 					throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        //
-        // Split the internal page by adding a new page on the right of the existing
-		// page and moving half of the entries to the new page.  Push the middle key up
-		// into the parent page, and recursively split the parent as needed to accommodate
-		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
-		// the parent pointers of all the children moving to the new page.  updateParentPointers()
-		// will be useful here.  Return the page into which an entry with the given key field
-		// should be inserted.
-		return null;
+		// move the upper half of the entries to a new page on the right, in
+		// descending order so that each one shares a child with the last
+		BTreeInternalPage rightPage = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
+		List<BTreeEntry> moved = new ArrayList<>();
+		Iterator<BTreeEntry> it = page.reverseIterator();
+		for (int i = page.getNumEntries() / 2; i > 0 && it.hasNext(); i--) {
+			moved.add(it.next());
+		}
+		BTreeEntry middle = it.next();
+		for (BTreeEntry e : moved) {
+			page.deleteKeyAndRightChild(e);
+			rightPage.insertEntry(e);
+		}
+		updateParentPointers(tid, dirtypages, rightPage);
+
+		// push the middle key up into the parent
+		page.deleteKeyAndRightChild(middle);
+		Field middleKey = middle.getKey();
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), middleKey);
+		parent.insertEntry(new BTreeEntry(middleKey, page.getId(), rightPage.getId()));
+		updateParentPointers(tid, dirtypages, parent);
+
+		return field.compare(Op.GREATER_THAN_OR_EQ, middleKey) ? rightPage : page;
 	}
 	
 	/**
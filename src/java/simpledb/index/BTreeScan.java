@@ -106,6 +106,15 @@ public class BTreeScan implements OpIterator {
 		myTd = new TupleDesc(newTypes, newNames);
 	}
 
+	/**
+	 * @return true if the tuples are returned in ascending order of the
+	 *         specified field, that is, if it is the key field of the tree
+	 */
+	public boolean isSortedOn(int field) {
+		int tableid = Database.getCatalog().getTableId(tablename);
+		return ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).keyField() == field;
+	}
+
 	public BTreeScan(TransactionId tid, int tableid, IndexPredicate ipred) {
 		this(tid, tableid, Database.getCatalog().getTableName(tableid), ipred);
 	}
@@ -4,6 +4,9 @@ import simpledb.common.Database;
 import simpledb.ParsingException;
 import simpledb.execution.*;
 import simpledb.optimizer.histogram.JointHistogram;
+import simpledb.index.BTreeFile;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFile;
 import simpledb.storage.TupleDesc;
 
 import java.util.*;
@@ -33,6 +36,30 @@ public class JoinOptimizer {
         this.joins = joins;
     }
 
+    /**
+     * @return true if plan returns the unfiltered tuples of a base table,
+     *         either by a SeqScan or by gathering a partitioned SeqScan
+     */
+    private static boolean isBaseTableScan(OpIterator plan) {
+        if (plan instanceof Exchange && ((Exchange) plan).isGather()) {
+            for (OpIterator child : ((Exchange) plan).getChildren()) {
+                if (!(child instanceof SeqScan)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return plan instanceof SeqScan;
+    }
+
+    /**
+     * @return true if plan is computed in parallel, so that a join over it
+     *         should run in parallel as well
+     */
+    private static boolean isParallel(OpIterator plan) {
+        return (plan instanceof Exchange && ((Exchange) plan).isGather()) || plan instanceof ParallelHashJoin;
+    }
+
     /**
      * Return best iterator for computing a given logical join, given the
      * specified statistics, and the provided left and right subplans. Note that
@@ -72,14 +99,34 @@ public class JoinOptimizer {
         }
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
-        boolean bothBaseTable = plan1 instanceof SeqScan && plan2 instanceof SeqScan;
-        switch (lj.joinMethod) {
+        if (lj instanceof LogicalSubplanJoinNode && ((LogicalSubplanJoinNode) lj).kind != LogicalSubplanJoinNode.Kind.JOIN) {
+            // IN or NOT IN only needs to know whether a left tuple has a match
+            return new HashSemiJoin(p, plan1, plan2, ((LogicalSubplanJoinNode) lj).kind == LogicalSubplanJoinNode.Kind.ANTI);
+        }
+        boolean bothBaseTable = isBaseTableScan(plan1) && isBaseTableScan(plan2);
+        JoinMethod method = lj.joinMethod;
+        if (lj.p == Predicate.Op.EQUALS && MergeJoin.isSortedOn(plan1, t1id) && MergeJoin.isSortedOn(plan2, t2id)) {
+            // both inputs come in order of the join key: merge them without sorting or hashing
+            method = JoinMethod.MergeJoin;
+        } else if (method == JoinMethod.IndexNestedLoop && !IndexNestedLoopJoin.canProbe(p, plan2)) {
+            // the right side turned out not to be a plain scan of the index
+            method = lj.p == Predicate.Op.EQUALS ? JoinMethod.HashJoin : JoinMethod.NestedLoop;
+        }
+        switch (method) {
             case NestedLoop:
                 j = new Join(p, plan1, plan2);
                 /** logicalQuery plan 向execute operator{Join,HashJoin,MergeJoin}传递信息，方便{@link OperatorCardinality}进行更新cardinality*/
                 ((Join) j).bothBaseTable = bothBaseTable;
                 break;
             case HashJoin:
+                // a radix-partitioned join on the worker pool if an input is
+                // large enough to be scanned in parallel
+                if (Database.getWorkerPool().getParallelism() > 1 && lj.p == Predicate.Op.EQUALS
+                        && (isParallel(plan1) || isParallel(plan2))) {
+                    j = new ParallelHashJoin(p, plan1, plan2);
+                    ((ParallelHashJoin) j).bothBaseTable = bothBaseTable;
+                    break;
+                }
                 j = new HashEquiJoin(p, plan1, plan2);
                 ((HashEquiJoin) j).bothBaseTable = bothBaseTable;
                 break;
@@ -87,6 +134,10 @@ public class JoinOptimizer {
                 j = new MergeJoin(p, plan1, plan2);
                 ((MergeJoin) j).bothBaseTable = bothBaseTable;
                 break;
+            case IndexNestedLoop:
+                j = new IndexNestedLoopJoin(p, plan1, plan2);
+                ((IndexNestedLoopJoin) j).bothBaseTable = bothBaseTable;
+                break;
             default:
                 throw new IllegalArgumentException("No such join method");
         }
@@ -121,6 +172,18 @@ public class JoinOptimizer {
      *         cost2
      */
     public double estimateJoinCost(LogicalJoinNode j, int card1, int card2, double cost1, double cost2) {
+        return estimateJoinCost(j, card1, card2, cost1, cost2, true);
+    }
+
+    /**
+     * Estimate the cost of a join, as {@link #estimateJoinCost(LogicalJoinNode, int, int, double, double)}.
+     *
+     * @param innerIsBaseTable
+     *            true if the right-hand side is a scan of the base table
+     *            j.t2Alias, false if it is a subplan of joins
+     */
+    private double estimateJoinCost(LogicalJoinNode j, int card1, int card2, double cost1, double cost2,
+                                    boolean innerIsBaseTable) {
         if (j instanceof LogicalSubplanJoinNode) {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Lab 3.
@@ -130,10 +193,16 @@ public class JoinOptimizer {
             // HINT: You may need to use the variable "j" if you implemented
             // a join algorithm that's more complicated than a basic
             // nested-loops join.
-            double[] nestedLoopJoinCost = new double[]{cost1 + card1 * cost2 + card1 * card2, 0};
+            // a block nested-loop join scans the right side once per block of left tuples
+            double blocks = Math.max(1, Math.ceil(card1 / (double) outerBlockTuples(j)));
+            double[] nestedLoopJoinCost = new double[]{cost1 + blocks * cost2 + (double) card1 * card2, 0};
             double[] hashJoinCost = new double[]{cost1 + cost2 + card1 + card2, 1};
-            double[] mergeJoinCost = new double[]{cost1 + cost2 + card1*Math.log(card1) + card2*Math.log(card2) + (double) card1*card1/2, 2};
-            double[][] temp = new double[][]{nestedLoopJoinCost, hashJoinCost, mergeJoinCost};
+            // sorting both inputs, then merging them; an inequality joins each left tuple with half the right ones
+            double sortCost = card1 * Math.log(Math.max(card1, 1)) + card2 * Math.log(Math.max(card2, 1));
+            double mergeCost = j.p.equals(Predicate.Op.EQUALS) ? card1 + card2 : (double) card1 * card2 / 2;
+            double[] mergeJoinCost = new double[]{cost1 + cost2 + sortCost + mergeCost, 2};
+            double[] indexJoinCost = new double[]{indexJoinCost(j, card1, card2, cost1, cost2, innerIsBaseTable), 3};
+            double[][] temp = new double[][]{nestedLoopJoinCost, hashJoinCost, mergeJoinCost, indexJoinCost};
             Arrays.sort(temp, (a, b) -> {return Double.compare(a[0], b[0]);});
             if (j.p.equals(Predicate.Op.EQUALS)) {
                 j.joinMethod = JoinMethod.get((int) temp[0][1]);
@@ -149,6 +218,50 @@ public class JoinOptimizer {
         }
     }
 
+    /**
+     * @return the cost of an index nested-loop join, which looks up the
+     *         tuples matching each left tuple in a B+ tree on the right join
+     *         field, or infinity if the right table has no such index
+     */
+    private double indexJoinCost(LogicalJoinNode j, int card1, int card2, double cost1, double cost2,
+                                 boolean innerIsBaseTable) {
+        // only the base table itself can be probed, not a subplan that joins it
+        Integer tableId = innerIsBaseTable ? p.getTableId(j.t2Alias) : null;
+        if (tableId == null) {
+            return Double.POSITIVE_INFINITY;
+        }
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(file instanceof BTreeFile)) {
+            return Double.POSITIVE_INFINITY;
+        }
+        BTreeFile tree = (BTreeFile) file;
+        TupleDesc td = tree.getTupleDesc();
+        if (!td.getFieldName(tree.keyField()).equals(j.f2PureName)) {
+            return Double.POSITIVE_INFINITY;
+        }
+        // a lookup reads one page per level of the tree
+        int pages = Math.max(1, tree.numPages());
+        int fanout = Math.max(2, BufferPool.getPageSize() / (td.getFieldType(tree.keyField()).getLen() + 4));
+        double levels = 1 + Math.ceil(Math.log(pages) / Math.log(fanout));
+        double probeCost = levels * cost2 / pages;
+        // an inequality matches half the right tuples on average
+        double matches = j.p.equals(Predicate.Op.EQUALS) ? card1 : (double) card1 * card2 / 2;
+        return cost1 + card1 * probeCost + matches;
+    }
+
+    /**
+     * @return the number of left tuples in a block of a nested-loop join,
+     *         estimated from the width of the left table (1 if it is unknown)
+     */
+    private int outerBlockTuples(LogicalJoinNode j) {
+        Integer tableId = p.getTableId(j.t1Alias);
+        if (tableId == null) {
+            return 1;
+        }
+        TupleDesc td = Database.getCatalog().getTupleDesc(tableId);
+        return Join.blockTuples(td, WorkMemory.getDefaultBytes());
+    }
+
     public int estimateJoinCardinality(boolean bothBaseTable, LogicalJoinNode j, int card1, int card2, boolean t1pkey, boolean t2pkey, Map<String, TableStats> stats) {
         if (j instanceof LogicalSubplanJoinNode) {
             // A LogicalSubplanJoinNode represents a subquery.
@@ -316,10 +429,11 @@ public class JoinOptimizer {
 
     // ===================== Private Methods =================================
 
-    private CostCard swapAndCompareJoinCost(List<LogicalJoinNode> prevBestPlan, LogicalJoinNode j, int card1, int card2, double cost1, double cost2, boolean leftPkey, boolean rightPkey, boolean bothBaseTable, Map<String, TableStats> stats) {
-        double joinCost1 = estimateJoinCost(j, card1, card2, cost1, cost2);
+    private CostCard swapAndCompareJoinCost(List<LogicalJoinNode> prevBestPlan, LogicalJoinNode j, int card1, int card2, double cost1, double cost2, boolean leftPkey, boolean rightPkey, boolean leftBaseTable, boolean rightBaseTable, Map<String, TableStats> stats) {
+        double joinCost1 = estimateJoinCost(j, card1, card2, cost1, cost2, rightBaseTable);
         LogicalJoinNode j2 = j.swapInnerOuter();
-        double joinCost2 = estimateJoinCost(j2, card2, card1, cost2, cost1);
+        double joinCost2 = estimateJoinCost(j2, card2, card1, cost2, cost1, leftBaseTable);
+        boolean bothBaseTable = leftBaseTable && rightBaseTable;
         if (joinCost2 < joinCost1) {
             boolean tmp;
             j = j2;
@@ -345,7 +459,7 @@ public class JoinOptimizer {
         double t2cost = j.t2Alias == null ? 0 : stats.get(table2Name).estimateScanCost();
         int t2card = j.t2Alias == null ? 0 : stats.get(table2Name).estimateTableCardinality(filterSelectivities.get(j.t2Alias));
         boolean rightPkey = j.t2Alias != null && isPkey(j.t2Alias, j.f2PureName);
-        CostCard singleNode = swapAndCompareJoinCost(new ArrayList<>(), j, t1card, t2card, t1cost, t2cost, leftPkey, rightPkey, true, stats);
+        CostCard singleNode = swapAndCompareJoinCost(new ArrayList<>(), j, t1card, t2card, t1cost, t2cost, leftPkey, rightPkey, true, true, stats);
         return singleNode;
     }
 
@@ -369,7 +483,7 @@ public class JoinOptimizer {
                 t2cost = j.t2Alias == null ? 0 : stats.get(table2Name).estimateScanCost();
                 t2card = j.t2Alias == null ? 0 : stats.get(table2Name).estimateTableCardinality(filterSelectivities.get(j.t2Alias));
                 rightPkey = j.t2Alias != null && isPkey(j.t2Alias, j.f2PureName);
-                CostCard merge = swapAndCompareJoinCost(node1.plan, j, t1card, t2card, t1cost, t2cost, leftPkey, rightPkey, false, stats);
+                CostCard merge = swapAndCompareJoinCost(node1.plan, j, t1card, t2card, t1cost, t2cost, leftPkey, rightPkey, false, true, stats);
                 return new CostCard[]{merge};
             }
             if (doesJoin(node1.plan, table2Alias)) {
@@ -379,7 +493,7 @@ public class JoinOptimizer {
                 t1cost = stats.get(table1Name).estimateScanCost();
                 t1card = stats.get(table1Name).estimateTableCardinality(filterSelectivities.get(j.t1Alias));
                 leftPkey = isPkey(j.t1Alias, j.f1PureName);
-                CostCard merge = swapAndCompareJoinCost(node1.plan, j, t1card, t2card, t1cost, t2cost, leftPkey, rightPkey, false, stats);
+                CostCard merge = swapAndCompareJoinCost(node1.plan, j, t1card, t2card, t1cost, t2cost, leftPkey, rightPkey, true, false, stats);
                 return new CostCard[]{merge};
             }
             CostCard node2 = getSingleNode(stats, filterSelectivities, j);
@@ -393,7 +507,7 @@ public class JoinOptimizer {
                         prev.addAll(node2.plan);
                         leftPkey = isPkey(j.t1Alias, j.f1PureName);
                         rightPkey = isPkey(j.t2Alias, j.f2PureName);
-                        CostCard merge = swapAndCompareJoinCost(prev, j, node1.card, node2.card, node1.cost, node2.cost, leftPkey, rightPkey, false, stats);
+                        CostCard merge = swapAndCompareJoinCost(prev, j, node1.card, node2.card, node1.cost, node2.cost, leftPkey, rightPkey, false, false, stats);
                         CostCard[] res = new CostCard[nodes.length-1];
                         int k = 0;
                         for (int i = 0; i < nodes.length; i++) {
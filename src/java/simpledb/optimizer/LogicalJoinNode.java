@@ -4,7 +4,7 @@ import simpledb.execution.Predicate;
 
 
 enum JoinMethod {
-    NestedLoop, HashJoin, MergeJoin;
+    NestedLoop, HashJoin, MergeJoin, IndexNestedLoop;
 
     public static JoinMethod get(int index) {
         switch (index) {
@@ -14,6 +14,8 @@ enum JoinMethod {
                 return HashJoin;
             case 2:
                 return MergeJoin;
+            case 3:
+                return IndexNestedLoop;
             default:
                 throw new IllegalArgumentException("no such join method");
         }
@@ -15,9 +15,9 @@ import java.io.File;
  * the parser and is ready to be processed by the optimizer.
  * <p>
  * A LogicalPlan consits of a collection of table scan nodes, join
- * nodes, filter nodes, a select list, and a group by field.
- * LogicalPlans can only represent queries with one aggregation field
- * and one group by field.
+ * nodes, filter nodes, a select list, and a list of group by fields.
+ * All aggregates of a query are computed over the same groups by a
+ * single Aggregate operator.
  * <p>
  * LogicalPlans can be converted to physical (optimized) plans using
  * the {@link #physicalPlan} method, which uses the
@@ -32,15 +32,34 @@ public class LogicalPlan {
     private final Map<String,Integer> tableMap;
 
     private final List<LogicalSelectListNode> selectList;
-    private String groupByField = null;
+    private final List<String> groupByFields = new ArrayList<>();
     private boolean hasAgg = false;
-    private String aggOp;
-    private String aggField;
-    private boolean oByAsc, hasOrderBy = false;
-    private String oByField;
+    // the aggregates of the query, as parallel lists of operators and fields
+    private final List<String> aggOps = new ArrayList<>();
+    private final List<String> aggFields = new ArrayList<>();
+    private final List<Double> aggFractions = new ArrayList<>();
+    private boolean hasOrderBy = false;
+    private final List<String> oByFields = new ArrayList<>();
+    private final List<Boolean> oByAscs = new ArrayList<>();
+    private int limit = -1, offset = 0;
+    private boolean distinct = false;
+    // the subplans of uncorrelated [NOT] EXISTS conditions, and whether each is negated
+    private final List<OpIterator> existsSubplans = new ArrayList<>();
+    private final List<Boolean> existsNegated = new ArrayList<>();
     private String query;
 //    private Query owner;
 
+    /** The number of pages from which on a heap file is scanned in parallel */
+    private static int parallelScanMinPages = Integer.getInteger("simpledb.parallelscan.minpages", 64);
+
+    /**
+     * Set the number of pages from which on the scan of a heap file is split
+     * into page ranges that are scanned by several workers.
+     */
+    public static void setParallelScanMinPages(int pages) {
+        parallelScanMinPages = pages;
+    }
+
     /** Constructor -- generate an empty logical plan */
     public LogicalPlan() {
         joins = new ArrayList<>();
@@ -159,6 +178,36 @@ public class LogicalPlan {
         joins.add(lj);
     }
 
+    /** Add a semi-join (IN) or anti-join (NOT IN) of a field with a subquery.
+     *  The result keeps the fields of the table of the field only, and each
+     *  of its tuples at most once.
+     *  @param joinField1 The name of the field; see {@link #addJoin(String, OpIterator, Predicate.Op)}
+     *  @param subplan the subquery whose first field holds the values to look for
+     *  @param anti true for NOT IN, false for IN
+     *  @throws ParsingException if the field is ambiguous or unknown
+     */
+    public void addSemiJoin(String joinField1, OpIterator subplan, boolean anti) throws ParsingException {
+        joinField1 = disambiguateName(joinField1);
+
+        String table1 = joinField1.split("[.]")[0];
+        String pureField = joinField1.split("[.]")[1];
+
+        LogicalSubplanJoinNode lj = new LogicalSubplanJoinNode(table1, pureField, subplan, Predicate.Op.EQUALS,
+                anti ? LogicalSubplanJoinNode.Kind.ANTI : LogicalSubplanJoinNode.Kind.SEMI);
+        System.out.println("Added subplan " + (anti ? "anti-join" : "semi-join") + " on " + joinField1);
+        joins.add(lj);
+    }
+
+    /** Add an uncorrelated EXISTS (or NOT EXISTS) condition: the result of
+     *  the query is empty unless the subquery returns some (or no) tuple.
+     *  @param subplan the subquery
+     *  @param negated true for NOT EXISTS
+     */
+    public void addExists(OpIterator subplan, boolean negated) {
+        existsSubplans.add(subplan);
+        existsNegated.add(negated);
+    }
+
     /** Add a scan to the plan. One scan node needs to be added for each alias of a table
         accessed by the plan.
         @param table the id of the table accessed by the plan (can be resolved to a DbFile using {@link Catalog#getDatabaseFile}
@@ -178,6 +227,16 @@ public class LogicalPlan {
      * @throws ParsingException 
     */
     public void addProjectField(String fname, String aggOp) throws ParsingException {
+        addProjectField(fname, aggOp, 0.5);
+    }
+
+    /** Add a specified field/aggregate combination to the select list of the query.
+        @param fname the field to add to the output
+        @param aggOp the aggregate operation over the field.
+        @param fraction the percentile of an APPROX_PERCENTILE aggregate, between 0 and 1
+     * @throws ParsingException 
+    */
+    public void addProjectField(String fname, String aggOp, double fraction) throws ParsingException {
         fname=disambiguateName(fname);
         if (fname.equals("*"))
             fname="null.*";
@@ -185,40 +244,147 @@ public class LogicalPlan {
         if (aggOp != null) {
             System.out.println("\t with aggregator " + aggOp);
         }
-        selectList.add(new LogicalSelectListNode(aggOp, fname));
+        selectList.add(new LogicalSelectListNode(aggOp, fname, fraction));
     }
     
     /** Add an aggregate over the field with the specified grouping to
-        the query.  SimpleDb only supports a single aggregate
-        expression and GROUP BY field.
+        the query.  A query may have several aggregates, which are all
+        computed over the same groups; adding the same aggregate twice
+        has no effect.
         @param op the aggregation operator
-        @param afield the field to aggregate over
-        @param gfield the field to group by
+        @param afield the field to aggregate over, or * for COUNT(*)
+        @param gfield the field to group by, or null to add no group by field
      * @throws ParsingException 
     */
     public void addAggregate(String op, String afield, String gfield) throws ParsingException {
+        addAggregate(op, afield, gfield, 0.5);
+    }
+
+    /** Add an aggregate over the field with the specified grouping to
+        the query, like {@link #addAggregate(String, String, String)}.
+        @param fraction the percentile of an APPROX_PERCENTILE aggregate, between 0 and 1
+     * @throws ParsingException 
+    */
+    public void addAggregate(String op, String afield, String gfield, double fraction) throws ParsingException {
         afield=disambiguateName(afield);
+        if (afield.equals("*"))
+            afield="null.*";
         if (gfield!=null)
-            gfield=disambiguateName(gfield);
-        aggOp = op;
-        aggField = afield;
-        groupByField = gfield;
+            addGroupByField(gfield);
+        if (aggregateIndex(op, afield, fraction) < 0) {
+            aggOps.add(op);
+            aggFields.add(afield);
+            aggFractions.add(fraction);
+        }
         hasAgg = true;
     }
 
-    /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
-        a single ORDER BY field.
+    /** Add a field to group the aggregates of the query by; the groups are
+        formed by the combination of all group by fields.
+        @param gfield the field to group by
+     * @throws ParsingException 
+    */
+    public void addGroupByField(String gfield) throws ParsingException {
+        gfield=disambiguateName(gfield);
+        if (!groupByFields.contains(gfield))
+            groupByFields.add(gfield);
+    }
+
+    /**
+     * @return the qualified names of the fields the query refers to, in the
+     *         SELECT list, the WHERE clause, GROUP BY or ORDER BY; null if it
+     *         selects all fields
+     */
+    private Set<String> referencedFields() {
+        Set<String> names = new HashSet<>();
+        for (LogicalSelectListNode si : selectList) {
+            if (si.aggOp == null && si.fname.endsWith(".*")) {
+                return null;
+            }
+            names.add(si.fname);
+        }
+        names.addAll(aggFields);
+        names.addAll(groupByFields);
+        names.addAll(oByFields);
+        for (LogicalFilterNode lf : filters) {
+            names.add(lf.fieldQuantifiedName);
+        }
+        for (LogicalJoinNode lj : joins) {
+            names.add(lj.f1QuantifiedName);
+            names.add(lj.f2QuantifiedName);
+        }
+        return names;
+    }
+
+    /**
+     * @return the fields of table that the scan of it returns: those in
+     *         referenced, or the first one if there are none (COUNT(*) still
+     *         needs a tuple per row); null if all fields are referenced
+     */
+    private static int[] scanFields(LogicalScanNode table, Set<String> referenced) {
+        TupleDesc td = Database.getCatalog().getTupleDesc(table.t);
+        List<Integer> fields = new ArrayList<>();
+        for (int i = 0; i < td.numFields(); i++) {
+            if (referenced.contains(table.alias + "." + td.getFieldName(i))) {
+                fields.add(i);
+            }
+        }
+        if (fields.size() == td.numFields()) {
+            return null;
+        }
+        if (fields.isEmpty()) {
+            fields.add(0);
+        }
+        int[] result = new int[fields.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = fields.get(i);
+        }
+        return result;
+    }
+
+    /** @return the index of the aggregate op(afield) among the aggregates of the query, or -1 */
+    private int aggregateIndex(String op, String afield, double fraction) {
+        for (int i = 0; i < aggOps.size(); i++) {
+            if (aggOps.get(i).equalsIgnoreCase(op) && aggFields.get(i).equals(afield)
+                    && aggFractions.get(i) == fraction) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Add an ORDER BY expression in the specified order on the specified field.  The fields are
+        sorted by in the order in which they are added.
         @param field the field to order by
         @param asc true if should be ordered in ascending order, false for descending order
      * @throws ParsingException 
     */
     public void addOrderBy(String field, boolean asc) throws ParsingException {
         field=disambiguateName(field);
-        oByField = field;
-        oByAsc = asc;
+        oByFields.add(field);
+        oByAscs.add(asc);
         hasOrderBy = true;
     }
 
+    /** Remove the duplicates from the result of the query (SELECT DISTINCT).
+        @param distinct true if each tuple of the result should be returned once
+    */
+    public void setDistinct(boolean distinct) {
+        this.distinct = distinct;
+    }
+
+    /** Limit the result of the query to at most limit tuples, after skipping
+        the first offset ones (LIMIT limit OFFSET offset).
+     * @throws ParsingException if limit or offset is negative
+    */
+    public void setLimit(int limit, int offset) throws ParsingException {
+        if (limit < 0 || offset < 0) {
+            throw new ParsingException("LIMIT and OFFSET must not be negative");
+        }
+        this.limit = limit;
+        this.offset = offset;
+    }
+
     /** Given a name of a field, try to figure out what table it belongs to by looking
      *   through all of the tables added via {@link #addScan}. 
      *  @return A fully qualified name of the form tableAlias.name.  If the name parameter is already qualified
@@ -271,6 +437,8 @@ public class LogicalPlan {
         if (s.equals("COUNT")) return Aggregator.Op.COUNT;
         if (s.equals("MIN")) return Aggregator.Op.MIN;
         if (s.equals("MAX")) return Aggregator.Op.MAX;
+        if (s.equals("APPROX_COUNT_DISTINCT")) return Aggregator.Op.APPROX_COUNT_DISTINCT;
+        if (s.equals("APPROX_PERCENTILE")) return Aggregator.Op.APPROX_PERCENTILE;
         throw new ParsingException("Unknown predicate " + s);
     }
 
@@ -292,6 +460,9 @@ public class LogicalPlan {
         Map<String,String> equivMap = new HashMap<>();
         Map<String,Double> filterSelectivities = new HashMap<>();
         Map<String,TableStats> statsMap = new HashMap<>();
+        // the fields each scan returns: only those the query references
+        Set<String> referenced = referencedFields();
+        Map<String,int[]> scanFields = new HashMap<>();
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
@@ -301,6 +472,10 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
+            if (referenced != null) {
+                scanFields.put(table.alias, scanFields(table, referenced));
+                ss.setOutputFields(scanFields.get(table.alias));
+            }
             
             subplanMap.put(table.alias,ss);
             String baseTableName = Database.getCatalog().getTableName(table.t);
@@ -309,6 +484,9 @@ public class LogicalPlan {
 
         }
 
+        // collect the predicates of each table so that they can be evaluated
+        // as one conjunction by a single Filter
+        Map<String,List<Predicate>> conjuncts = new LinkedHashMap<>();
         for (LogicalFilterNode lf : filters) {
             OpIterator subplan = subplanMap.get(lf.tableAlias);
             if (subplan == null) {
@@ -335,16 +513,66 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            conjuncts.computeIfAbsent(lf.tableAlias, k -> new ArrayList<>()).add(p);
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
 
-            double sel = s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
+            // the statistics are over all fields of the table, which the scan may not return
+            int statsField = Database.getCatalog().getTupleDesc(this.getTableId(lf.tableAlias))
+                    .fieldNameToIndex(lf.fieldPureName);
+            double sel = s.estimateSelectivity(statsField, lf.p, f);
             filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
 
+        for (Map.Entry<String,List<Predicate>> e : conjuncts.entrySet()) {
+            OpIterator subplan = subplanMap.get(e.getKey());
+            List<Predicate> preds = e.getValue();
+            subplanMap.put(e.getKey(), preds.size() == 1 ? new Filter(preds.get(0), subplan) : new Filter(preds, subplan));
+        }
+
+        // scan (and filter) large heap files in parallel: one pipeline per
+        // worker, each claiming morsels of pages until the table is exhausted
+        int parallelism = Database.getWorkerPool().getParallelism();
+        if (parallelism > 1) {
+            for (LogicalScanNode table : tables) {
+                DbFile file = Database.getCatalog().getDatabaseFile(table.t);
+                if (!(file instanceof HeapFile) || ((HeapFile) file).numPages() < parallelScanMinPages) {
+                    continue;
+                }
+                MorselSource morsels = new MorselSource(((HeapFile) file).numPages(),
+                        MorselSource.DEFAULT_MORSEL_PAGES, parallelism);
+                List<Predicate> preds = conjuncts.get(table.alias);
+                OpIterator[] producers = new OpIterator[parallelism];
+                for (int i = 0; i < parallelism; i++) {
+                    SeqScan scan = new SeqScan(t, table.t, table.alias, morsels, i);
+                    scan.setOutputFields(scanFields.get(table.alias));
+                    producers[i] = preds == null ? scan : new Filter(preds, scan);
+                }
+                subplanMap.put(table.alias, new Exchange(producers, morsels));
+            }
+        }
+
+
+        // a join with a subquery involves a single table of the query: it is
+        // applied to the plan of that table, so that semi-joins and anti-joins
+        // filter the table before it is joined with the others
+        List<LogicalJoinNode> tableJoins = new ArrayList<>();
+        for (LogicalJoinNode lj : joins) {
+            if (!(lj instanceof LogicalSubplanJoinNode)) {
+                tableJoins.add(lj);
+                continue;
+            }
+            OpIterator plan1 = subplanMap.get(lj.t1Alias);
+            OpIterator plan2 = ((LogicalSubplanJoinNode) lj).subPlan;
+            if (plan1 == null)
+                throw new ParsingException("Unknown table in WHERE clause " + lj.t1Alias);
+            if (plan2 == null)
+                throw new ParsingException("Invalid subquery.");
+            subplanMap.put(lj.t1Alias, JoinOptimizer.instantiateJoin(lj, plan1, plan2));
+        }
+        joins = tableJoins;
 
         JoinOptimizer jo = new JoinOptimizer(this,joins);
 
@@ -409,6 +637,9 @@ public class LogicalPlan {
         }
         
         OpIterator node = subplanMap.entrySet().iterator().next().getValue();
+        for (int i = 0; i < existsSubplans.size(); i++) {
+            node = new HashSemiJoin(node, existsSubplans.get(i), existsNegated.get(i));
+        }
 
         //walk the select list, to determine order in which to project output fields
         List<Integer> outFields = new ArrayList<>();
@@ -416,30 +647,25 @@ public class LogicalPlan {
         for (int i = 0; i < selectList.size(); i++) {
             LogicalSelectListNode si = selectList.get(i);
             if (si.aggOp != null) {
-                outFields.add(groupByField!=null?1:0);
-                TupleDesc td = node.getTupleDesc();
-//                int  id;
-                try {
-//                    id = 
-                    td.fieldNameToIndex(si.fname);
-                } catch (NoSuchElementException e) {
-                    throw new ParsingException("Unknown field " +  si.fname + " in SELECT list");
+                int agg = aggregateIndex(si.aggOp, si.fname, si.fraction);
+                if (agg < 0) {
+                    throw new ParsingException("Aggregate " + si.aggOp + "(" + si.fname + ") is not computed by the query");
                 }
+                outFields.add(groupByFields.size() + agg);
                 outTypes.add(Type.INT_TYPE);  //the type of all aggregate functions is INT
 
             } else if (hasAgg) {
-                    if (groupByField == null) {
+                    int g = groupByFields.indexOf(si.fname);
+                    if (g < 0) {
                         throw new ParsingException("Field " + si.fname + " does not appear in GROUP BY list");
                     }
-                    outFields.add(0);
+                    outFields.add(g);
                     TupleDesc td = node.getTupleDesc();
-                    int  id;
                     try {
-                        id = td.fieldNameToIndex(groupByField);
+                        outTypes.add(td.getFieldType(td.fieldNameToIndex(si.fname)));
                     } catch (NoSuchElementException e) {
-                        throw new ParsingException("Unknown field " +  groupByField + " in GROUP BY statement");
+                        throw new ParsingException("Unknown field " +  si.fname + " in GROUP BY statement");
                     }
-                    outTypes.add(td.getFieldType(id));
             } else if (si.fname.equals("null.*")) {
                     TupleDesc td = node.getTupleDesc();
                     for ( i = 0; i < td.numFields(); i++) {
@@ -462,25 +688,112 @@ public class LogicalPlan {
 
         if (hasAgg) {
             TupleDesc td = node.getTupleDesc();
+            int[] afields = new int[aggOps.size()];
+            Aggregator.Op[] aops = new Aggregator.Op[aggOps.size()];
+            double[] fractions = new double[aggOps.size()];
+            int[] gfields = new int[groupByFields.size()];
             Aggregate aggNode;
             try {
-                aggNode = new Aggregate(node,
-                                        td.fieldNameToIndex(aggField),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
-                                getAggOp(aggOp));
+                for (int i = 0; i < afields.length; i++) {
+                    aops[i] = getAggOp(aggOps.get(i));
+                    fractions[i] = aggFractions.get(i);
+                    if (aggFields.get(i).equals("null.*")) {
+                        if (aops[i] != Aggregator.Op.COUNT) {
+                            throw new ParsingException("Only COUNT can be computed over *");
+                        }
+                        // COUNT(*) counts the tuples, whatever the field
+                        afields[i] = 0;
+                    } else {
+                        afields[i] = td.fieldNameToIndex(aggFields.get(i));
+                    }
+                }
+                for (int i = 0; i < gfields.length; i++) {
+                    gfields[i] = td.fieldNameToIndex(groupByFields.get(i));
+                }
+                aggNode = new Aggregate(node, afields, gfields, aops, fractions);
+                // no need to hash the groups if the input already returns them one after another
+                aggNode.setStreaming(Aggregate.isGroupedOn(node, gfields));
             } catch (NoSuchElementException | IllegalArgumentException e) {
                 throw new simpledb.ParsingException(e);
             }
             node = aggNode;
         }
 
+        if (distinct) {
+            return distinctPlan(node, outFields, outTypes);
+        }
+
         if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+            int[] oByIndexes = new int[oByFields.size()];
+            boolean[] oByAsc = new boolean[oByFields.size()];
+            for (int i = 0; i < oByIndexes.length; i++) {
+                oByIndexes[i] = node.getTupleDesc().fieldNameToIndex(oByFields.get(i));
+                oByAsc[i] = oByAscs.get(i);
+            }
+            node = orderBy(oByIndexes, oByAsc, node);
+        }
+
+        if (limit >= 0) {
+            node = new Limit(limit, offset, node);
         }
 
         return new Project(outFields, outTypes, node);
     }
 
+    /** @return node sorted on the given fields, keeping only the first limit + offset tuples if they fit in memory */
+    private OpIterator orderBy(int[] oByIndexes, boolean[] oByAsc, OpIterator node) {
+        long topBytes = ((long) limit + offset) * WorkMemory.estimateTupleBytes(node.getTupleDesc());
+        if (limit >= 0 && limit + offset >= 0 && topBytes <= WorkMemory.getDefaultBytes()) {
+            // keep only the first limit + offset tuples instead of sorting everything
+            return new TopN(oByIndexes, oByAsc, limit + offset, node);
+        }
+        return new OrderBy(oByIndexes, oByAsc, node);
+    }
+
+    /**
+     * @return the plan of a SELECT DISTINCT query over node: the output fields
+     *         are projected first, so that the duplicates are removed before
+     *         the result is sorted and limited
+     * @throws ParsingException if an ORDER BY field is not in the SELECT list
+     */
+    private OpIterator distinctPlan(OpIterator node, List<Integer> outFields, List<Type> outTypes)
+            throws ParsingException {
+        int[] oByIndexes = new int[oByFields.size()];
+        boolean[] oByAsc = new boolean[oByFields.size()];
+        for (int i = 0; i < oByIndexes.length; i++) {
+            int field;
+            try {
+                field = node.getTupleDesc().fieldNameToIndex(oByFields.get(i));
+            } catch (NoSuchElementException e) {
+                throw new ParsingException("Unknown field " + oByFields.get(i) + " in ORDER BY list");
+            }
+            oByIndexes[i] = outFields.indexOf(field);
+            if (oByIndexes[i] < 0) {
+                throw new ParsingException("ORDER BY field " + oByFields.get(i)
+                        + " of a SELECT DISTINCT must appear in the SELECT list");
+            }
+            oByAsc[i] = oByAscs.get(i);
+        }
+
+        Project project = new Project(outFields, outTypes, node);
+        int[] all = new int[outFields.size()];
+        for (int i = 0; i < all.length; i++) {
+            all[i] = i;
+        }
+        Distinct distinctNode = new Distinct(project);
+        // no need to hash the tuples if equal ones already come one after another
+        distinctNode.setSorted(Aggregate.isGroupedOn(project, all));
+        node = distinctNode;
+
+        if (hasOrderBy) {
+            node = orderBy(oByIndexes, oByAsc, node);
+        }
+        if (limit >= 0) {
+            node = new Limit(limit, offset, node);
+        }
+        return node;
+    }
+
     public static void main(String[] argv) {
         // construct a 3-column table schema
         Type[] types = new Type[]{ Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE };
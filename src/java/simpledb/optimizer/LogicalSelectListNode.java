@@ -12,8 +12,16 @@ public class LogicalSelectListNode {
     /** The aggregation operation over the field (if any) */
     public final String aggOp;
 
+    /** The percentile of an APPROX_PERCENTILE aggregation, between 0 and 1 */
+    public final double fraction;
+
     public LogicalSelectListNode(String aggOp, String fname) {
+        this(aggOp, fname, 0.5);
+    }
+
+    public LogicalSelectListNode(String aggOp, String fname, double fraction) {
         this.aggOp = aggOp;
         this.fname = fname;
+        this.fraction = fraction;
     }
 }
@@ -8,11 +8,27 @@ import simpledb.execution.Predicate;
  * {@link LogicalJoinNode}; t2 and f2 should always be null
  */
 public class LogicalSubplanJoinNode extends LogicalJoinNode {
-    
+
+    /** How the tuples of the table are joined with the subplan */
+    public enum Kind {
+        /** an ordinary join, with the fields of both sides */
+        JOIN,
+        /** the tuples of the table that have a match in the subplan, as for IN */
+        SEMI,
+        /** the tuples of the table that have no match in the subplan, as for NOT IN */
+        ANTI
+    }
+
     /** The subplan (used on the inner) of the join */
     final OpIterator subPlan;
-    
+
+    final Kind kind;
+
     public LogicalSubplanJoinNode(String table1, String joinField1, OpIterator sp, Predicate.Op pred) {
+        this(table1, joinField1, sp, pred, Kind.JOIN);
+    }
+
+    public LogicalSubplanJoinNode(String table1, String joinField1, OpIterator sp, Predicate.Op pred, Kind kind) {
         t1Alias = table1;
         String[] tmps = joinField1.split("[.]");
         if (tmps.length>1)
@@ -22,6 +38,11 @@ public class LogicalSubplanJoinNode extends LogicalJoinNode {
         f1QuantifiedName=t1Alias+"."+f1PureName;
         subPlan = sp;
         p = pred;
+        this.kind = kind;
+    }
+
+    public Kind getKind() {
+        return kind;
     }
     
     @Override public int hashCode() {
@@ -33,11 +54,12 @@ public class LogicalSubplanJoinNode extends LogicalJoinNode {
         if (!(o instanceof LogicalSubplanJoinNode))
             return false;
         
-        return (j2.t1Alias.equals(t1Alias)  && j2.f1PureName.equals(f1PureName) && ((LogicalSubplanJoinNode)o).subPlan.equals(subPlan));
+        return (j2.t1Alias.equals(t1Alias)  && j2.f1PureName.equals(f1PureName) && ((LogicalSubplanJoinNode)o).subPlan.equals(subPlan)
+                && ((LogicalSubplanJoinNode) o).kind == kind);
     }
     
     public LogicalSubplanJoinNode swapInnerOuter() {
-        return new LogicalSubplanJoinNode(t1Alias,f1PureName,subPlan, p);
+        return new LogicalSubplanJoinNode(t1Alias,f1PureName,subPlan, p, kind);
     }
 
 }
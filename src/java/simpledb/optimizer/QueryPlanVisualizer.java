@@ -3,6 +3,7 @@ package simpledb.optimizer;
 import java.io.PrintStream;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.Map;
 
 import simpledb.execution.*;
 import simpledb.storage.TupleDesc;
@@ -13,14 +14,77 @@ public class QueryPlanVisualizer {
     static final String JOIN = "⨝";
     static final String HASH_JOIN = "⨝(hash)";
     static final String MERGE_JOIN = "⨝(merge)";
+    static final String INDEX_JOIN = "⨝(index)";
+    static final String SEMI_JOIN = "⋉";
+    static final String ANTI_JOIN = "▷";
     static final String SELECT = "σ";
     static final String PROJECT = "π";
     static final String RENAME = "ρ";
     static final String SCAN = "scan";
     static final String ORDERBY = "o";
     static final String GROUPBY = "g";
+    static final String STREAM_GROUPBY = "g(stream)";
+    static final String DISTINCT = "δ";
+    static final String SORTED_DISTINCT = "δ(sorted)";
     static final String SPACE = "  ";
 
+    // the summed run time counters of the operators, when printing an analyzed plan
+    private Map<OpIterator, OperatorProfile> profiles;
+
+    /**
+     * @return the text of the estimated cardinality of an operator, followed
+     *         by its actual cardinality and counters if the plan is analyzed
+     */
+    private String card(OpIterator plan, int card) {
+        OperatorProfile p = profiles == null ? null : profiles.get(plan);
+        if (p == null) {
+            return "card:" + card;
+        }
+        String text = String.format("card:%d,actual:%d,time:%.3fms,self:%.3fms",
+                card, p.getRows(), p.getTotalNanos() / 1e6, p.getSelfNanos() / 1e6);
+        if (p.getPagesRead() + p.getPageHits() > 0) {
+            text += String.format(",pages:%d read/%d hit", p.getPagesRead(), p.getPageHits());
+        }
+        if (p.getPeakMemory() > 0) {
+            text += String.format(",mem:%dKB", (p.getPeakMemory() + 1023) / 1024);
+        }
+        // the strategy a join switched to at run time
+        if (plan instanceof Join && ((Join) plan).hasSwitchedToHashJoin()) {
+            text += ",switched to hash join";
+        } else if (plan instanceof HashEquiJoin && ((HashEquiJoin) plan).hasSwappedInputs()) {
+            text += ",swapped inputs";
+        }
+        return text;
+    }
+
+    /** @return the text of the node of an operator with one child */
+    private static String unaryOperatorName(OpIterator plan, OpIterator child) {
+        if (plan instanceof Limit) {
+            Limit l = (Limit) plan;
+            return l.getOffset() > 0 ? String.format("limit(%d,offset %d)", l.getLimit(), l.getOffset())
+                    : String.format("limit(%d)", l.getLimit());
+        } else if (plan instanceof TopN) {
+            TopN t = (TopN) plan;
+            return String.format("%1$s(%2$s),top %3$d", ORDERBY,
+                    orderByFieldNames(child, t.getOrderByFields()), t.getN());
+        } else if (plan instanceof Distinct) {
+            return ((Distinct) plan).isSorted() ? SORTED_DISTINCT : DISTINCT;
+        }
+        return ((Exchange) plan).getName();
+    }
+
+    /** @return the names of the fields a sort is by, separated by commas */
+    private static String orderByFieldNames(OpIterator child, int[] fields) {
+        StringBuilder names = new StringBuilder();
+        for (int field : fields) {
+            if (names.length() > 0) {
+                names.append(",");
+            }
+            names.append(child.getTupleDesc().getFieldName(field));
+        }
+        return names.toString();
+    }
+
     private int calculateQueryPlanTreeDepth(OpIterator root) {
         if (root == null)
             return 0;
@@ -30,7 +94,8 @@ public class QueryPlanVisualizer {
         Operator o = (Operator) root;
         OpIterator[] children = o.getChildren();
 
-        if (o instanceof Join || o instanceof HashEquiJoin || o instanceof MergeJoin) {
+        if (o instanceof Join || o instanceof HashEquiJoin || o instanceof ParallelHashJoin || o instanceof MergeJoin
+                || o instanceof IndexNestedLoopJoin || o instanceof HashSemiJoin) {
             int d1 = this.calculateQueryPlanTreeDepth(children[0]);
             int d2 = this.calculateQueryPlanTreeDepth(children[1]);
             return Math.max(d1, d2) + 3;
@@ -78,7 +143,7 @@ public class QueryPlanVisualizer {
             else
                 alias = "";
             thisNode.text = String
-                    .format("%1$s(%2$s),card:%3$d", SCAN, tableName + alias, s.getEstimatedCardinality());
+                    .format("%1$s(%2$s),%3$s", SCAN, tableName + alias, card(s, s.getEstimatedCardinality()));
             if (SCAN.length() / 2 < parentUpperBarStartShift) {
                 thisNode.upBarPosition = currentStartPosition
                         + parentUpperBarStartShift;
@@ -117,8 +182,8 @@ public class QueryPlanVisualizer {
                 String field1 = td.getFieldName(jp.getField1());
                 String field2 = td.getFieldName(jp.getField2()
                         + children[0].getTupleDesc().numFields());
-                thisNode.text = String.format("%1$s(%2$s),card:%3$d", JOIN,
-                        field1 + jp.getOperator() + field2,j.getEstimatedCardinality());
+                thisNode.text = String.format("%1$s(%2$s),%3$s", JOIN,
+                        field1 + jp.getOperator() + field2,card(j, j.getEstimatedCardinality()));
                 int upBarShift = parentUpperBarStartShift;
                 if (JOIN.length() / 2 > parentUpperBarStartShift)
                     upBarShift = JOIN.length() / 2;
@@ -139,15 +204,16 @@ public class QueryPlanVisualizer {
                 thisNode.leftChild = left;
                 thisNode.rightChild = right;
                 thisNode.height = currentDepth;
-            } else if (plan instanceof HashEquiJoin) {
-                HashEquiJoin j = (HashEquiJoin) plan;
-                JoinPredicate jp = j.getJoinPredicate();
+            } else if (plan instanceof HashEquiJoin || plan instanceof ParallelHashJoin) {
+                Operator j = plan;
+                JoinPredicate jp = plan instanceof HashEquiJoin ? ((HashEquiJoin) plan).getJoinPredicate()
+                        : ((ParallelHashJoin) plan).getJoinPredicate();
                 TupleDesc td = j.getTupleDesc();
                 String field1 = td.getFieldName(jp.getField1());
                 String field2 = td.getFieldName(jp.getField2()
                         + children[0].getTupleDesc().numFields());
-                thisNode.text = String.format("%1$s(%2$s),card:%3$d", HASH_JOIN, field1
-                        + jp.getOperator() + field2,j.getEstimatedCardinality());
+                thisNode.text = String.format("%1$s(%2$s),%3$s", HASH_JOIN, field1
+                        + jp.getOperator() + field2,card(j, j.getEstimatedCardinality()));
                 int upBarShift = parentUpperBarStartShift;
                 if (HASH_JOIN.length() / 2 > parentUpperBarStartShift)
                     upBarShift = HASH_JOIN.length() / 2;
@@ -167,18 +233,49 @@ public class QueryPlanVisualizer {
                 thisNode.leftChild = left;
                 thisNode.rightChild = right;
                 thisNode.height = currentDepth;
-            } else if (plan instanceof  MergeJoin) {
-                MergeJoin j = (MergeJoin) plan;
-                JoinPredicate jp = j.getJoinPredicate();
+            } else if (plan instanceof  MergeJoin || plan instanceof IndexNestedLoopJoin) {
+                Operator j = plan;
+                JoinPredicate jp = plan instanceof MergeJoin ? ((MergeJoin) plan).getJoinPredicate()
+                        : ((IndexNestedLoopJoin) plan).getJoinPredicate();
+                String joinName = plan instanceof MergeJoin ? MERGE_JOIN : INDEX_JOIN;
                 TupleDesc td = j.getTupleDesc();
                 String field1 = td.getFieldName(jp.getField1());
                 String field2 = td.getFieldName(jp.getField2()
                         + children[0].getTupleDesc().numFields());
-                thisNode.text = String.format("%1$s(%2$s),card:%3$d", MERGE_JOIN, field1
-                        + jp.getOperator() + field2,j.getEstimatedCardinality());
+                thisNode.text = String.format("%1$s(%2$s),%3$s", joinName, field1
+                        + jp.getOperator() + field2,card(j, j.getEstimatedCardinality()));
+                int upBarShift = parentUpperBarStartShift;
+                if (joinName.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = joinName.length() / 2;
+                SubTreeDescriptor left = this.buildTree(queryPlanDepth,
+                        currentDepth + 3 + adjustDepth, children[0],
+                        currentStartPosition, upBarShift);
+                SubTreeDescriptor right = this.buildTree(queryPlanDepth,
+                        currentDepth + 3 + adjustDepth, children[1],
+                        currentStartPosition + left.width + SPACE.length(), 0);
+                thisNode.upBarPosition = (left.upBarPosition + right.upBarPosition) / 2;
+                thisNode.textStartPosition = thisNode.upBarPosition
+                        - joinName.length() / 2;
+                thisNode.width = Math.max(
+                        left.width + right.width + SPACE.length(),
+                        thisNode.textStartPosition + thisNode.text.length()
+                                - currentStartPosition);
+                thisNode.leftChild = left;
+                thisNode.rightChild = right;
+                thisNode.height = currentDepth;
+            }
+            else if (plan instanceof HashSemiJoin) {
+                HashSemiJoin j = (HashSemiJoin) plan;
+                JoinPredicate jp = j.getJoinPredicate();
+                String joinName = j.isAnti() ? ANTI_JOIN : SEMI_JOIN;
+                String condition = jp == null ? "exists"
+                        : children[0].getTupleDesc().getFieldName(jp.getField1()) + jp.getOperator()
+                                + children[1].getTupleDesc().getFieldName(jp.getField2());
+                thisNode.text = String.format("%1$s(%2$s),%3$s", joinName, condition,
+                        card(j, j.getEstimatedCardinality()));
                 int upBarShift = parentUpperBarStartShift;
-                if (MERGE_JOIN.length() / 2 > parentUpperBarStartShift)
-                    upBarShift = MERGE_JOIN.length() / 2;
+                if (joinName.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = joinName.length() / 2;
                 SubTreeDescriptor left = this.buildTree(queryPlanDepth,
                         currentDepth + 3 + adjustDepth, children[0],
                         currentStartPosition, upBarShift);
@@ -187,7 +284,7 @@ public class QueryPlanVisualizer {
                         currentStartPosition + left.width + SPACE.length(), 0);
                 thisNode.upBarPosition = (left.upBarPosition + right.upBarPosition) / 2;
                 thisNode.textStartPosition = thisNode.upBarPosition
-                        - MERGE_JOIN.length() / 2;
+                        - joinName.length() / 2;
                 thisNode.width = Math.max(
                         left.width + right.width + SPACE.length(),
                         thisNode.textStartPosition + thisNode.text.length()
@@ -202,16 +299,26 @@ public class QueryPlanVisualizer {
                 String alignTxt;
                 TupleDesc td = a.getTupleDesc();
                 int gfield = a.groupField();
+                StringBuilder aggs = new StringBuilder();
+                for (int i = 0; i < a.aggregateOps().length; i++) {
+                    if (i > 0)
+                        aggs.append(", ");
+                    aggs.append(a.aggregateOps()[i]).append('(').append(a.aggregateFieldNames()[i]);
+                    if (a.aggregateOps()[i] == Aggregator.Op.APPROX_PERCENTILE)
+                        aggs.append(',').append(a.aggregateFractions()[i]);
+                    aggs.append(')');
+                }
 
                 if (gfield == Aggregator.NO_GROUPING) {
-                    thisNode.text = String.format("%1$s(%2$s),card:%3$d",
-                            a.aggregateOp(), a.aggregateFieldName(),a.getEstimatedCardinality());
+                    thisNode.text = String.format("%1$s,%2$s",
+                            aggs, card(a, a.getEstimatedCardinality()));
                     alignTxt = td.getFieldName(0);
                 } else {
-                    thisNode.text = String.format("%1$s(%2$s), %3$s(%4$s),card:%5$d",
-                            GROUPBY, a.groupFieldName(), a.aggregateOp(),
-                            a.aggregateFieldName(),a.getEstimatedCardinality());
-                    alignTxt = GROUPBY;
+                    String groupBy = a.isStreaming() ? STREAM_GROUPBY : GROUPBY;
+                    thisNode.text = String.format("%1$s(%2$s), %3$s,%4$s",
+                            groupBy, String.join(",", a.groupFieldNames()), aggs,
+                            card(a, a.getEstimatedCardinality()));
+                    alignTxt = groupBy;
                 }
                 if (alignTxt.length() / 2 > parentUpperBarStartShift)
                     upBarShift = alignTxt.length() / 2;
@@ -229,11 +336,15 @@ public class QueryPlanVisualizer {
                 thisNode.height = currentDepth;
             } else if (plan instanceof Filter) {
                 Filter f = (Filter) plan;
-                Predicate p = f.getPredicate();
-                thisNode.text = String.format("%1$s(%2$s),card:%3$d", SELECT, children[0]
-                        .getTupleDesc().getFieldName(p.getField())
-                        + p.getOp()
-                        + p.getOperand(),f.getEstimatedCardinality());
+                StringBuilder preds = new StringBuilder();
+                for (Predicate p : f.getPredicates()) {
+                    if (preds.length() > 0)
+                        preds.append(" AND ");
+                    preds.append(children[0].getTupleDesc().getFieldName(p.getField()))
+                            .append(p.getOp()).append(p.getOperand());
+                }
+                thisNode.text = String.format("%1$s(%2$s),%3$s", SELECT,
+                        preds.toString(),card(f, f.getEstimatedCardinality()));
                 int upBarShift = parentUpperBarStartShift;
                 if (SELECT.length() / 2 > parentUpperBarStartShift)
                     upBarShift = SELECT.length() / 2;
@@ -251,10 +362,10 @@ public class QueryPlanVisualizer {
             } else if (plan instanceof OrderBy) {
                 OrderBy o = (OrderBy) plan;
                 thisNode.text = String.format(
-                        "%1$s(%2$s),card:%3$d",
+                        "%1$s(%2$s),%3$s",
                         ORDERBY,
-                        children[0].getTupleDesc().getFieldName(
-                                o.getOrderByField()),o.getEstimatedCardinality());
+                        orderByFieldNames(children[0], o.getOrderByFields()),
+                        card(o, o.getEstimatedCardinality()));
                 int upBarShift = parentUpperBarStartShift;
                 if (ORDERBY.length() / 2 > parentUpperBarStartShift)
                     upBarShift = ORDERBY.length() / 2;
@@ -276,7 +387,7 @@ public class QueryPlanVisualizer {
                 while (it.hasNext())
                     fields.append(it.next().fieldName).append(",");
                 fields = new StringBuilder(fields.substring(0, fields.length() - 1));
-                thisNode.text = String.format("%1$s(%2$s),card:%3$d", PROJECT, fields.toString(),p.getEstimatedCardinality());
+                thisNode.text = String.format("%1$s(%2$s),%3$s", PROJECT, fields.toString(),card(p, p.getEstimatedCardinality()));
                 int upBarShift = parentUpperBarStartShift;
                 if (PROJECT.length() / 2 > parentUpperBarStartShift)
                     upBarShift = PROJECT.length() / 2;
@@ -292,17 +403,12 @@ public class QueryPlanVisualizer {
                 thisNode.leftChild = child;
                 thisNode.height = currentDepth;
             }
-            else if (plan.getClass().getSuperclass().getSuperclass().getSimpleName().equals("Exchange")) {
-                String name="Exchange";
-                int card=0;
-                try {
-                    name = (String) plan.getClass().getMethod("getName").invoke(plan);
-                    card = (Integer) plan.getClass().getMethod("getEstimatedCardinality").invoke(plan);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                } 
+            else if (plan instanceof Exchange || plan instanceof Limit || plan instanceof TopN
+                    || plan instanceof Distinct) {
+                String name = unaryOperatorName(plan, children[0]);
+                String card = card(plan, plan.getEstimatedCardinality());
 
-                thisNode.text = String.format("%1$s,card:%2$d", name,card);
+                thisNode.text = String.format("%1$s,%2$s", name,card);
                 int upBarShift = parentUpperBarStartShift;
                 if (name.length() / 2 > parentUpperBarStartShift)
                     upBarShift = name.length() / 2;
@@ -337,7 +443,7 @@ public class QueryPlanVisualizer {
                     e.printStackTrace();
                 } 
                 String oldName = plan.getChildren()[0].getTupleDesc().getFieldName(fieldIdx);
-                thisNode.text = String.format("%1$s,%2$s->%3$s,card:%4$d", RENAME,oldName,newName,plan.getEstimatedCardinality());
+                thisNode.text = String.format("%1$s,%2$s->%3$s,%4$s", RENAME,oldName,newName,card(plan, plan.getEstimatedCardinality()));
                 int upBarShift = parentUpperBarStartShift;
                 if (RENAME.length() / 2 > parentUpperBarStartShift)
                     upBarShift = RENAME.length() / 2;
@@ -421,6 +527,27 @@ public class QueryPlanVisualizer {
         return sb.reverse().toString();
     }
 
+    /**
+     * @return the tree of a plan that has been run with profiles attached
+     *         (see {@link OperatorProfile#attach}), with the actual counters
+     *         of each operator next to its estimated cardinality
+     */
+    public String getAnalyzedQueryPlanTree(OpIterator physicalPlan) {
+        profiles = OperatorProfile.summarize(physicalPlan);
+        try {
+            return getQueryPlanTree(physicalPlan);
+        } finally {
+            profiles = null;
+        }
+    }
+
+    public void printAnalyzedQueryPlanTree(OpIterator physicalPlan, PrintStream out) {
+        if (out == null)
+            out = System.out;
+
+        out.println(this.getAnalyzedQueryPlanTree(physicalPlan));
+    }
+
     public void printQueryPlanTree(OpIterator physicalPlan, PrintStream out) {
         if (out == null)
             out = System.out;
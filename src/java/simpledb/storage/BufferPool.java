@@ -3,6 +3,7 @@ package simpledb.storage;
 import simpledb.common.Database;
 import simpledb.common.Permissions;
 import simpledb.common.DbException;
+import simpledb.execution.OperatorProfile;
 import simpledb.storage.evict.Cache;
 import simpledb.storage.evict.LRUCache;
 import simpledb.transaction.TransactionAbortedException;
@@ -22,7 +23,9 @@ import java.util.concurrent.ConcurrentHashMap;
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
  * 
- * @Threadsafe, all fields are final
+ * @Threadsafe, all fields are final; accesses to the page cache are
+ * synchronized on the BufferPool, so pages may be fetched by several
+ * threads of a parallel query at once.
  */
 public class BufferPool {
 
@@ -78,18 +81,29 @@ public class BufferPool {
      */
     public Page getPage(TransactionId tid, PageId pid, Permissions perm) throws TransactionAbortedException, DbException {
         //todo tid和perm还未使用
-        if (pageCache.containsKey(pid)) {
-            return pageCache.get(pid);
+        synchronized (this) {
+            if (pageCache.containsKey(pid)) {
+                OperatorProfile.pageRequested(true);
+                return pageCache.get(pid);
+            }
         }
+        OperatorProfile.pageRequested(false);
+        // read and decode the page outside the lock so that parallel scans
+        // of different pages do not serialize on disk reads
         Page page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-        pageCache.put(pid, page);
+        synchronized (this) {
+            if (pageCache.containsKey(pid)) {
+                return pageCache.get(pid);
+            }
+            pageCache.put(pid, page);
+        }
         return page;
     }
 
     /**
      * is page in the bufferPool
      */
-    public boolean inBuffer(PageId pid) {
+    public synchronized boolean inBuffer(PageId pid) {
         return pageCache.containsKey(pid);
     }
 
@@ -153,10 +167,12 @@ public class BufferPool {
      */
     public void insertTuple(TransactionId tid, int tableId, Tuple t) throws DbException, IOException, TransactionAbortedException {
         List<Page> pages = Database.getCatalog().getDatabaseFile(tableId).insertTuple(tid, t);
-        pages.forEach(page -> {
-            page.markDirty(true, tid);
-            pageCache.put(page.getId(), page);
-        });
+        synchronized (this) {
+            pages.forEach(page -> {
+                page.markDirty(true, tid);
+                pageCache.put(page.getId(), page);
+            });
+        }
     }
 
     /**
@@ -174,10 +190,12 @@ public class BufferPool {
      */
     public void deleteTuple(TransactionId tid, Tuple t) throws DbException, IOException, TransactionAbortedException {
         List<Page> pages = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId()).deleteTuple(tid, t);
-        pages.forEach(page -> {
-            page.markDirty(true, tid);
-            pageCache.put(page.getId(), page);
-        });
+        synchronized (this) {
+            pages.forEach(page -> {
+                page.markDirty(true, tid);
+                pageCache.put(page.getId(), page);
+            });
+        }
     }
 
     /**
@@ -4,6 +4,7 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Debug;
 import simpledb.common.Permissions;
+import simpledb.execution.Predicate;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 import simpledb.util.FileUtil;
@@ -133,18 +134,100 @@ public class HeapFile implements DbFile {
 
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
-        return new HeapFileIterator(tid);
+        return new HeapFileIterator(tid, 0, Integer.MAX_VALUE, null, 0, null, null, null);
+    }
+
+    /**
+     * Returns an iterator over the tuples stored on pages startPage (inclusive)
+     * to endPage (exclusive) of this file. Disjoint page ranges can be scanned
+     * concurrently, which is how parallel scans partition a table.
+     *
+     * @param tid the transaction the scan is running as a part of
+     * @param startPage the first page to read
+     * @param endPage one past the last page to read; ranges past the end of
+     *                the file are truncated to {@link #numPages()}
+     */
+    public DbFileIterator iterator(TransactionId tid, int startPage, int endPage) {
+        return new HeapFileIterator(tid, startPage, endPage, null, 0, null, null, null);
+    }
+
+    /**
+     * Returns an iterator over the tuples stored on pages startPage
+     * (inclusive) to endPage (exclusive) of this file that satisfy all the
+     * given predicates. The predicates are evaluated on the bytes of each page,
+     * and only the matching tuples are decoded (see {@link HeapPage#iterator(List)}).
+     */
+    public DbFileIterator iterator(TransactionId tid, int startPage, int endPage, List<Predicate> predicates) {
+        return new HeapFileIterator(tid, startPage, endPage, null, 0, predicates, null, null);
+    }
+
+    /**
+     * Returns an iterator over the tuples stored on pages startPage
+     * (inclusive) to endPage (exclusive) of this file that satisfy all the
+     * given predicates (null for all tuples), narrowed to the given fields of
+     * the table as tuples of td. Only those fields of the matching tuples are
+     * decoded (see {@link HeapPage#iterator(List, int[], TupleDesc)}).
+     */
+    public DbFileIterator iterator(TransactionId tid, int startPage, int endPage, List<Predicate> predicates,
+                                   int[] fields, TupleDesc td) {
+        return new HeapFileIterator(tid, startPage, endPage, null, 0, predicates, fields, td);
+    }
+
+    /**
+     * Returns an iterator over the tuples stored on the morsels (page ranges)
+     * that it claims from morsels as worker. Iterators of different workers
+     * sharing one MorselSource together return each tuple of the file once.
+     * The iterator ends when no morsel is left or the worker is retired.
+     */
+    public DbFileIterator iterator(TransactionId tid, MorselSource morsels, int worker) {
+        return new HeapFileIterator(tid, 0, 0, morsels, worker, null, null, null);
+    }
+
+    /**
+     * Returns an iterator over the tuples stored on the morsels it claims, as
+     * above, that satisfy all the given predicates.
+     */
+    public DbFileIterator iterator(TransactionId tid, MorselSource morsels, int worker, List<Predicate> predicates) {
+        return new HeapFileIterator(tid, 0, 0, morsels, worker, predicates, null, null);
+    }
+
+    /**
+     * Returns an iterator over the tuples stored on the morsels it claims, as
+     * above, that satisfy all the given predicates (null for all tuples),
+     * narrowed to the given fields of the table as tuples of td.
+     */
+    public DbFileIterator iterator(TransactionId tid, MorselSource morsels, int worker, List<Predicate> predicates,
+                                   int[] fields, TupleDesc td) {
+        return new HeapFileIterator(tid, 0, 0, morsels, worker, predicates, fields, td);
     }
 
     private class HeapFileIterator extends AbstractDbFileIterator {
 
         private boolean isOpen;
-        private int curPid;
+        private final int startPage;
+        private final int endPage;
+        private final MorselSource morsels;
+        private final int worker;
+        // the predicates evaluated on the pages, null if there are none
+        private final List<Predicate> predicates;
+        // the fields of the returned tuples and their TupleDesc, null for whole tuples
+        private final int[] fields;
+        private final TupleDesc outTd;
+        private int nextPid;
+        private int rangeEnd;
         private TransactionId tid;
         private Iterator<Tuple> iter;
 
-        public HeapFileIterator(TransactionId tid) {
+        public HeapFileIterator(TransactionId tid, int startPage, int endPage, MorselSource morsels, int worker,
+                                List<Predicate> predicates, int[] fields, TupleDesc outTd) {
             this.tid = tid;
+            this.predicates = predicates;
+            this.fields = fields;
+            this.outTd = outTd;
+            this.startPage = startPage;
+            this.endPage = endPage;
+            this.morsels = morsels;
+            this.worker = worker;
             isOpen = false;
         }
 
@@ -153,12 +236,19 @@ public class HeapFile implements DbFile {
             if (!isOpen) {
                 return false;
             }
-            while (!iter.hasNext() && curPid < numPages()-1) {
-                curPid++;
-                HeapPage curPage = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(getId(), curPid), Permissions.READ_ONLY);
-                iter = curPage.iterator();
+            while (iter == null || !iter.hasNext()) {
+                if (nextPid >= Math.min(rangeEnd, numPages())) {
+                    if (!claimMorsel()) {
+                        return false;
+                    }
+                    continue;
+                }
+                //HeapFile的iterator应该从BufferPool里面去读取Page
+                HeapPage curPage = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(getId(), nextPid++), Permissions.READ_ONLY);
+                iter = fields != null ? curPage.iterator(predicates, fields, outTd)
+                        : predicates == null ? curPage.iterator() : curPage.iterator(predicates);
             }
-            return iter.hasNext();
+            return true;
         }
 
         @Override
@@ -175,12 +265,25 @@ public class HeapFile implements DbFile {
 
         @Override
         public void open() throws DbException, TransactionAbortedException {
+            if (!isOpen) {
+                nextPid = startPage;
+                rangeEnd = endPage;
+                iter = null;
+            }
             isOpen = true;
-            if (iter == null) {
-                //HeapFile的iterator应该从BufferPool里面去读取Page
-                HeapPage curPage = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(getId(), curPid), Permissions.READ_ONLY);
-                iter = curPage.iterator();
+        }
+
+        private boolean claimMorsel() {
+            if (morsels == null) {
+                return false;
+            }
+            int[] morsel = morsels.claim(worker);
+            if (morsel == null) {
+                return false;
             }
+            nextPid = morsel[0];
+            rangeEnd = morsel[1];
+            return true;
         }
 
         @Override
@@ -202,9 +305,12 @@ public class HeapFile implements DbFile {
             if (!isOpen) {
                 throw new DbException("the iterator hasn't open");
             }
-            curPid = 0;
+            if (morsels != null) {
+                throw new DbException("a morsel-driven iterator can not be rewound on its own");
+            }
+            nextPid = startPage;
+            rangeEnd = endPage;
             iter = null;
-            open();
         }
     }
 
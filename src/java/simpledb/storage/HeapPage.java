@@ -4,15 +4,22 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Debug;
 import simpledb.common.Catalog;
+import simpledb.common.Type;
+import simpledb.execution.Predicate;
 import simpledb.transaction.TransactionId;
 
 import java.lang.reflect.Array;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.io.*;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * The tuples of a page are decoded from its bytes when they are first read,
+ * so that a scan that pushes its predicates down to the page (see
+ * {@link #iterator(List)}) only builds the tuples that satisfy them.
  *
  * @see HeapFile
  * @see BufferPool
@@ -23,7 +30,9 @@ public class HeapPage implements Page {
     final HeapPageId pid;
     final TupleDesc td;
     final byte[] header;
-    final Tuple[] tuples;
+    // the bytes the page was read from; a slot is decoded into tuples on first use
+    final byte[] data;
+    final AtomicReferenceArray<Tuple> tuples;
     final int numSlots;
     byte[] oldData;
 
@@ -51,22 +60,11 @@ public class HeapPage implements Page {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        this.data = data;
 
         // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
+        header = Arrays.copyOf(data, getHeaderSize());
+        tuples = new AtomicReferenceArray<>(numSlots);
 
         setBeforeImage();
     }
@@ -119,37 +117,94 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * @return the tuple in a used slot, decoded from the bytes of the page if
+     *         it has not been read before
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
+    private Tuple tuple(int slotId) {
+        Tuple t = tuples.get(slotId);
+        if (t == null) {
+            int offset = slotOffset(slotId);
+            t = new Tuple(td);
+            t.setRecordId(new RecordId(pid, slotId));
+            for (int j = 0; j < td.numFields(); j++) {
+                Type type = td.getFieldType(j);
+                t.setField(j, readField(type, offset));
+                offset += type.getLen();
+            }
+            // concurrent readers may decode the same slot; either tuple will do
+            if (!tuples.compareAndSet(slotId, null, t)) {
+                t = tuples.get(slotId);
             }
-            return null;
         }
+        return t;
+    }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
+    private int slotOffset(int slotId) {
+        return header.length + slotId * td.getSize();
+    }
+
+    private int readInt(int offset) {
+        return (data[offset] & 0xFF) << 24 | (data[offset + 1] & 0xFF) << 16
+                | (data[offset + 2] & 0xFF) << 8 | (data[offset + 3] & 0xFF);
+    }
+
+    /** Decodes a field serialized at offset, like {@link Type#parse} */
+    private Field readField(Type type, int offset) {
+        if (type == Type.INT_TYPE) {
+            return new IntField(readInt(offset));
+        }
+        return new StringField(new String(data, offset + 4, readInt(offset)), Type.STRING_LEN);
+    }
+
+    /**
+     * @return whether the tuple in a used slot satisfies all predicates,
+     *         which are evaluated on the bytes of the page if the slot has
+     *         not been decoded; fieldOffsets are the offsets of the fields
+     *         within a slot
+     */
+    private boolean matches(int slotId, List<Predicate> predicates, int[] fieldOffsets) {
+        Tuple t = tuples.get(slotId);
+        if (t != null) {
+            for (Predicate p : predicates) {
+                if (!p.filter(t)) {
+                    return false;
+                }
             }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+            return true;
         }
+        int base = slotOffset(slotId);
+        for (Predicate p : predicates) {
+            int offset = base + fieldOffsets[p.getField()];
+            Field operand = p.getOperand();
+            if (operand.getType() == Type.INT_TYPE) {
+                if (!compareInts(p.getOp(), readInt(offset), ((IntField) operand).getValue())) {
+                    return false;
+                }
+            } else if (!readField(Type.STRING_TYPE, offset).compare(p.getOp(), operand)) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-        return t;
+    /** Compares two ints like {@link IntField#compare} */
+    private static boolean compareInts(Predicate.Op op, int value, int operand) {
+        switch (op) {
+            case EQUALS:
+            case LIKE:
+                return value == operand;
+            case NOT_EQUALS:
+                return value != operand;
+            case GREATER_THAN:
+                return value > operand;
+            case GREATER_THAN_OR_EQ:
+                return value >= operand;
+            case LESS_THAN:
+                return value < operand;
+            case LESS_THAN_OR_EQ:
+                return value <= operand;
+        }
+        return false;
     }
 
     /**
@@ -179,7 +234,7 @@ public class HeapPage implements Page {
         }
 
         // create the tuples
-        for (int i=0; i<tuples.length; i++) {
+        for (int i=0; i<numSlots; i++) {
 
             // empty slot
             if (!isSlotUsed(i)) {
@@ -194,9 +249,18 @@ public class HeapPage implements Page {
                 continue;
             }
 
-            // non-empty slot
+            // non-empty slot that was never decoded: copy its bytes
+            Tuple t = tuples.get(i);
+            if (t == null) {
+                try {
+                    dos.write(data, slotOffset(i), td.getSize());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                continue;
+            }
             for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
+                Field f = t.getField(j);
                 try {
                     f.serialize(dos);
                 } catch (IOException e) {
@@ -206,7 +270,7 @@ public class HeapPage implements Page {
         }
 
         // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
+        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * numSlots); //- numSlots * td.getSize();
         byte[] zeroes = new byte[zerolen];
         try {
             dos.write(zeroes, 0, zerolen);
@@ -246,12 +310,12 @@ public class HeapPage implements Page {
      */
     public void deleteTuple(Tuple t) throws DbException {
         int tupleNo = t.getRecordId().getTupleNumber();
-        if (!tuples[tupleNo].equals(t)) {
-            throw new DbException("the tuple is not on this page");
-        }
         if (!isSlotUsed(tupleNo)) {
             throw new DbException("the tuple slot is already empty");
         }
+        if (!tuple(tupleNo).equals(t)) {
+            throw new DbException("the tuple is not on this page");
+        }
         markSlotUsed(tupleNo, false);
     }
 
@@ -269,9 +333,9 @@ public class HeapPage implements Page {
         if (!td.equals(t.getTupleDesc())) {
             throw new DbException("the tupleDesc is mismatch");
         }
-        for (int i = 0; i < tuples.length; i++) {
+        for (int i = 0; i < numSlots; i++) {
             if (!isSlotUsed(i)) {
-                tuples[i] = t;
+                tuples.set(i, t);
                 markSlotUsed(i, true);
                 t.setRecordId(new RecordId(getId(), i));
                 return;
@@ -339,26 +403,90 @@ public class HeapPage implements Page {
      * (note that this iterator shouldn't return tuples in empty slots!)
      */
     public Iterator<Tuple> iterator() {
-        return new Iter();
+        return new Iter(null, null, null);
+    }
+
+    /**
+     * @return an iterator over the tuples on this page that satisfy all the
+     *         given predicates, whose fields are fields of the table; the
+     *         predicates are evaluated on the bytes of the page, and only the
+     *         tuples that satisfy them are decoded
+     */
+    public Iterator<Tuple> iterator(List<Predicate> predicates) {
+        return new Iter(predicates.isEmpty() ? null : predicates, null, null);
+    }
+
+    /**
+     * @return an iterator over the tuples on this page that satisfy all the
+     *         given predicates (null or empty for all tuples), narrowed to the
+     *         given fields of the table, in that order, as tuples of outTd
+     *         with the record ids of the tuples on the page. The predicates
+     *         are evaluated on the bytes of the page, and only the given
+     *         fields of the tuples that satisfy them are decoded; the narrowed
+     *         tuples are not kept by the page.
+     */
+    public Iterator<Tuple> iterator(List<Predicate> predicates, int[] fields, TupleDesc outTd) {
+        return new Iter(predicates == null || predicates.isEmpty() ? null : predicates, fields, outTd);
+    }
+
+    /**
+     * @return the given fields of the tuple in a used slot, as a new tuple of
+     *         outTd, decoded from the bytes of the page if the slot has not
+     *         been decoded before
+     */
+    private Tuple narrowedTuple(int slotId, int[] fields, TupleDesc outTd, int[] fieldOffsets) {
+        Tuple decoded = tuples.get(slotId);
+        Tuple t = new Tuple(outTd);
+        t.setRecordId(new RecordId(pid, slotId));
+        int base = slotOffset(slotId);
+        for (int i = 0; i < fields.length; i++) {
+            t.setField(i, decoded != null ? decoded.getField(fields[i])
+                    : readField(td.getFieldType(fields[i]), base + fieldOffsets[fields[i]]));
+        }
+        return t;
     }
 
     private class Iter implements Iterator<Tuple> {
+        private final List<Predicate> predicates;
+        // the fields of the returned tuples and their TupleDesc, null for whole tuples
+        private final int[] fields;
+        private final TupleDesc outTd;
+        private final int[] fieldOffsets;
         int cursor;
+        // whether the slot at cursor is used and satisfies the predicates
+        boolean ready;
+
+        Iter(List<Predicate> predicates, int[] fields, TupleDesc outTd) {
+            this.predicates = predicates;
+            this.fields = fields;
+            this.outTd = outTd;
+            boolean offsets = predicates != null || fields != null;
+            fieldOffsets = offsets ? new int[td.numFields()] : null;
+            for (int j = 1; offsets && j < fieldOffsets.length; j++) {
+                fieldOffsets[j] = fieldOffsets[j - 1] + td.getFieldType(j - 1).getLen();
+            }
+        }
+
         @Override
         public boolean hasNext() {
-            while (cursor < tuples.length && !isSlotUsed(cursor)) {
-                cursor++;
+            while (!ready && cursor < numSlots) {
+                if (isSlotUsed(cursor) && (predicates == null || matches(cursor, predicates, fieldOffsets))) {
+                    ready = true;
+                } else {
+                    cursor++;
+                }
             }
-            return cursor < tuples.length;
+            return ready;
         }
         @Override
         public Tuple next() {
-            if (cursor >= tuples.length) {
+            if (!hasNext()) {
                 return null;
             }
-            return tuples[cursor++];
+            ready = false;
+            int slotId = cursor++;
+            return fields == null ? tuple(slotId) : narrowedTuple(slotId, fields, outTd, fieldOffsets);
         }
     }
 
 }
-
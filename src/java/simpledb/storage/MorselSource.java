@@ -0,0 +1,145 @@
+package simpledb.storage;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * MorselSource hands out the pages of a heap file in small, contiguous page
+ * ranges ("morsels") to the workers of a parallel scan.
+ * <p>
+ * Each worker owns an equal, contiguous share of the pages and claims the
+ * morsels of its share from its front, so that it reads its pages in order.
+ * A worker whose share is exhausted steals a morsel from the back of the
+ * share with the most pages left, so a worker that is slowed down (e.g. by a
+ * filter that passes many tuples of its pages) simply claims fewer morsels,
+ * and no worker sits idle while pages are left.
+ * <p>
+ * The number of workers that may claim morsels can be lowered while the scan
+ * runs (see {@link #setParallelism}); a worker whose index is not below the
+ * parallelism is retired at its next morsel boundary, and the rest of its
+ * share is stolen by the others.
+ *
+ * @Threadsafe
+ */
+public class MorselSource {
+
+    /** The default number of pages per morsel */
+    public static final int DEFAULT_MORSEL_PAGES = 8;
+
+    private final int numPages;
+    private final int morselPages;
+    private final int workers;
+    // the remaining share [next, end) of each worker, packed into one long
+    // so that its owner and thieves update both ends atomically
+    private final AtomicLong[] shares;
+    private volatile int parallelism;
+
+    /**
+     * @param numPages the number of pages to hand out
+     * @param morselPages the number of pages per morsel
+     * @param workers the number of workers that claim morsels
+     */
+    public MorselSource(int numPages, int morselPages, int workers) {
+        if (morselPages < 1 || workers < 1) {
+            throw new IllegalArgumentException("morsels and workers must not be empty");
+        }
+        this.numPages = numPages;
+        this.morselPages = morselPages;
+        this.workers = workers;
+        this.parallelism = workers;
+        this.shares = new AtomicLong[workers];
+        for (int i = 0; i < workers; i++) {
+            shares[i] = new AtomicLong();
+        }
+        reset();
+    }
+
+    /**
+     * Claims the next morsel for a worker, from its own share if any pages
+     * are left in it and otherwise from another worker's share.
+     *
+     * @param worker the index of the claiming worker, in [0, workers)
+     * @return the page range [start, end) of the morsel, or null if all pages
+     *         have been handed out or the worker has been retired
+     */
+    public int[] claim(int worker) {
+        if (worker >= parallelism) {
+            return null;
+        }
+        AtomicLong own = shares[worker];
+        while (true) {
+            long share = own.get();
+            int next = next(share), end = end(share);
+            if (next >= end) {
+                break;
+            }
+            int stop = Math.min(next + morselPages, end);
+            if (own.compareAndSet(share, pack(stop, end))) {
+                return new int[]{next, stop};
+            }
+        }
+        return steal();
+    }
+
+    private int[] steal() {
+        while (true) {
+            AtomicLong victim = null;
+            long share = 0;
+            int left = 0;
+            for (AtomicLong s : shares) {
+                long current = s.get();
+                if (end(current) - next(current) > left) {
+                    victim = s;
+                    share = current;
+                    left = end(current) - next(current);
+                }
+            }
+            if (victim == null) {
+                return null;
+            }
+            int end = end(share);
+            int start = Math.max(next(share), end - morselPages);
+            if (victim.compareAndSet(share, pack(next(share), start))) {
+                return new int[]{start, end};
+            }
+        }
+    }
+
+    /** Hands out all pages again, e.g. when the scan is restarted. */
+    public void reset() {
+        for (int i = 0; i < workers; i++) {
+            int start = (int) ((long) numPages * i / workers);
+            int end = (int) ((long) numPages * (i + 1) / workers);
+            shares[i].set(pack(start, end));
+        }
+    }
+
+    private static long pack(int next, int end) {
+        return ((long) next << 32) | (end & 0xffffffffL);
+    }
+
+    private static int next(long share) {
+        return (int) (share >>> 32);
+    }
+
+    private static int end(long share) {
+        return (int) share;
+    }
+
+    /** @return the number of workers the scan was planned with */
+    public int getWorkers() {
+        return workers;
+    }
+
+    /** @return the number of workers that may currently claim morsels */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Set the number of workers that may claim morsels, between 1 and the
+     * number of workers the scan was planned with.
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, Math.min(workers, parallelism));
+    }
+}
@@ -0,0 +1,162 @@
+package simpledb.storage;
+
+import simpledb.common.DbException;
+import simpledb.execution.OpIterator;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.NoSuchElementException;
+
+/**
+ * SpillFile is a temporary file of tuples that operators use to move data out
+ * of memory, e.g. the partitions of a hash join or the sorted runs of an
+ * external sort. Tuples are appended with {@link #add} and read back, in the
+ * order they were added, through {@link #iterator()}. The fields are stored
+ * in their page format (see {@link Field#serialize}).
+ * <p>
+ * The file is removed by {@link #delete()}, or when the JVM exits.
+ */
+public class SpillFile {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final TupleDesc td;
+    private final File file;
+    private DataOutputStream out;
+    private int numTuples = 0;
+
+    /**
+     * Creates an empty spill file for tuples described by td.
+     */
+    public SpillFile(TupleDesc td) throws DbException {
+        this.td = td;
+        try {
+            file = File.createTempFile("simpledb-spill", ".tmp");
+            file.deleteOnExit();
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+        } catch (IOException e) {
+            throw new DbException("could not create spill file: " + e.getMessage());
+        }
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the number of tuples added to this file */
+    public int size() {
+        return numTuples;
+    }
+
+    /** @return the number of bytes of the tuples added to this file */
+    public long bytes() {
+        return (long) numTuples * td.getSize();
+    }
+
+    /**
+     * Appends a tuple to this file.
+     *
+     * @throws IllegalStateException if the file is being read or was deleted
+     */
+    public void add(Tuple t) throws DbException {
+        if (out == null) {
+            throw new IllegalStateException("spill file is closed for writing");
+        }
+        try {
+            for (int i = 0; i < td.numFields(); i++) {
+                t.getField(i).serialize(out);
+            }
+        } catch (IOException e) {
+            throw new DbException("could not write spill file: " + e.getMessage());
+        }
+        numTuples++;
+    }
+
+    /**
+     * Finishes writing and returns an iterator over the tuples of this file.
+     * No tuples can be added afterwards. The iterator can be opened and
+     * rewound any number of times, until the file is deleted.
+     */
+    public OpIterator iterator() throws DbException {
+        finishWriting();
+        return new Reader();
+    }
+
+    /** Removes the file; its iterators must not be used anymore. */
+    public void delete() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ignored) {
+            }
+            out = null;
+        }
+        file.delete();
+    }
+
+    private void finishWriting() throws DbException {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                throw new DbException("could not write spill file: " + e.getMessage());
+            }
+            out = null;
+        }
+    }
+
+    private class Reader implements OpIterator {
+        private static final long serialVersionUID = 1L;
+
+        private transient DataInputStream in;
+        private int read;
+
+        public void open() throws DbException {
+            close();
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+            } catch (FileNotFoundException e) {
+                throw new DbException("spill file has been deleted");
+            }
+            read = 0;
+        }
+
+        public boolean hasNext() {
+            return in != null && read < numTuples;
+        }
+
+        public Tuple next() throws DbException, NoSuchElementException {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Tuple t = new Tuple(td);
+            try {
+                for (int i = 0; i < td.numFields(); i++) {
+                    t.setField(i, td.getFieldType(i).parse(in));
+                }
+            } catch (ParseException e) {
+                throw new DbException("could not read spill file: " + e.getMessage());
+            }
+            read++;
+            return t;
+        }
+
+        public void rewind() throws DbException {
+            open();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        public void close() {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+                in = null;
+            }
+        }
+    }
+}
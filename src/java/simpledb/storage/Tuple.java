@@ -136,6 +136,26 @@ public class Tuple implements Serializable {
         return fields.iterator();
     }
 
+    /**
+     * Merge two tuples into one tuple, e.g. to return a pair of matching
+     * tuples from a join.
+     *
+     * @param td
+     *            the schema of the merged tuple, the fields of t1 followed by
+     *            those of t2 (see {@link TupleDesc#merge(TupleDesc, TupleDesc)})
+     * @return a new tuple with the fields of t1 followed by those of t2
+     */
+    public static Tuple merge(TupleDesc td, Tuple t1, Tuple t2) {
+        int td1n = t1.getTupleDesc().numFields();
+        int td2n = t2.getTupleDesc().numFields();
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < td2n; i++)
+            t.setField(td1n + i, t2.getField(i));
+        return t;
+    }
+
     /**
      * reset the TupleDesc of this tuple (only affecting the TupleDesc)
      * */
@@ -52,6 +52,9 @@ public class LRUCache implements Cache{
 
     public void remove(PageId pageId) {
         Node node = hashMap.get(pageId);
+        if (node == null) {
+            return;
+        }
         if (tail == node) {
             tail = node.pre;
         }
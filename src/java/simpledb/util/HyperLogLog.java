@@ -0,0 +1,74 @@
+package simpledb.util;
+
+import java.io.Serializable;
+
+/**
+ * HyperLogLog estimates the number of distinct values added to it in a fixed
+ * 2^{@link #P} bytes, with a standard error of about 1.04 / sqrt(2^P), 3.3%.
+ * <p>
+ * Each value is hashed to 64 bits: the first P bits pick a register, which
+ * keeps the largest number of leading zeros (plus one) seen in the other
+ * bits. Two sketches are merged by taking the maximum of each register, so a
+ * sketch of a union is the merge of the sketches of its parts.
+ */
+public class HyperLogLog implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The number of hash bits that pick a register */
+    public static final int P = 10;
+
+    /** The number of registers */
+    public static final int M = 1 << P;
+
+    private final byte[] registers = new byte[M];
+
+    /** @return a 64-bit hash of value (the finalizer of MurmurHash3) */
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xFF51AFD7ED558CCDL;
+        value ^= value >>> 33;
+        value *= 0xC4CEB9FE1A85EC53L;
+        value ^= value >>> 33;
+        return value;
+    }
+
+    /** Adds a value, e.g. an int or a 64-bit hash of a string */
+    public void add(long value) {
+        long h = mix(value);
+        int register = (int) (h >>> (64 - P));
+        // a register only sees 64 - P bits, so the rank is at most 64 - P + 1
+        int rank = Math.min(Long.numberOfLeadingZeros(h << P), 64 - P) + 1;
+        if (rank > registers[register]) {
+            registers[register] = (byte) rank;
+        }
+    }
+
+    /** Adds the values of other to this sketch */
+    public void merge(HyperLogLog other) {
+        for (int i = 0; i < M; i++) {
+            if (other.registers[i] > registers[i]) {
+                registers[i] = other.registers[i];
+            }
+        }
+    }
+
+    /** @return the estimated number of distinct values added */
+    public long estimate() {
+        double sum = 0;
+        int zeros = 0;
+        for (byte r : registers) {
+            sum += 1.0 / (1L << r);
+            if (r == 0) {
+                zeros++;
+            }
+        }
+        double alpha = 0.7213 / (1 + 1.079 / M);
+        double estimate = alpha * M * M / sum;
+        if (estimate <= 2.5 * M && zeros > 0) {
+            // few values: linear counting of the empty registers is more accurate
+            estimate = M * Math.log((double) M / zeros);
+        }
+        return Math.round(estimate);
+    }
+}
@@ -0,0 +1,129 @@
+package simpledb.util;
+
+import java.util.Arrays;
+
+/**
+ * IntHashTable maps int keys to dense ids 0, 1, 2, ... in the order in which
+ * the keys are first inserted. It is an open-addressing table with linear
+ * probing over flat int arrays, so it neither boxes its keys nor allocates an
+ * object per entry; callers keep their per-key state in arrays indexed by id.
+ */
+public class IntHashTable {
+
+    private static final int FREE = -1;
+    private static final float MAX_LOAD = 0.5f;
+
+    // slot -> key and slot -> id (FREE if the slot is unused)
+    private int[] slotKeys;
+    private int[] slotIds;
+    // id -> key
+    private int[] keys;
+    private int mask;
+    private int size = 0;
+
+    /**
+     * @param expectedKeys the number of distinct keys the table is sized for
+     *                     initially; it grows as needed
+     */
+    public IntHashTable(int expectedKeys) {
+        int capacity = Integer.highestOneBit(Math.max(4, (int) (expectedKeys / MAX_LOAD)) - 1) << 1;
+        allocate(capacity);
+        keys = new int[Math.max(4, expectedKeys)];
+    }
+
+    public IntHashTable() {
+        this(16);
+    }
+
+    private void allocate(int capacity) {
+        slotKeys = new int[capacity];
+        slotIds = new int[capacity];
+        Arrays.fill(slotIds, FREE);
+        mask = capacity - 1;
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /** @return the id of key, or -1 if key is not in the table */
+    public int find(int key) {
+        int slot = hash(key) & mask;
+        while (true) {
+            int id = slotIds[slot];
+            if (id == FREE) {
+                return -1;
+            }
+            if (slotKeys[slot] == key) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * @return the id of key; if key is not in the table, it is inserted with
+     *         the id {@link #size()}
+     */
+    public int findOrInsert(int key) {
+        int slot = hash(key) & mask;
+        while (true) {
+            int id = slotIds[slot];
+            if (id == FREE) {
+                break;
+            }
+            if (slotKeys[slot] == key) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+        int id = size++;
+        slotKeys[slot] = key;
+        slotIds[slot] = id;
+        if (id == keys.length) {
+            keys = Arrays.copyOf(keys, keys.length * 2);
+        }
+        keys[id] = key;
+        if (size > (mask + 1) * MAX_LOAD) {
+            rehash();
+        }
+        return id;
+    }
+
+    private void rehash() {
+        allocate((mask + 1) * 2);
+        for (int id = 0; id < size; id++) {
+            int slot = hash(keys[id]) & mask;
+            while (slotIds[slot] != FREE) {
+                slot = (slot + 1) & mask;
+            }
+            slotKeys[slot] = keys[id];
+            slotIds[slot] = id;
+        }
+    }
+
+    /** @return the key with the given id */
+    public int keyAt(int id) {
+        if (id < 0 || id >= size) {
+            throw new IndexOutOfBoundsException("no key with id " + id);
+        }
+        return keys[id];
+    }
+
+    /** @return the number of distinct keys in the table */
+    public int size() {
+        return size;
+    }
+
+    /** @return an estimate of the heap space taken by the table, in bytes */
+    public long bytes() {
+        return 8L * slotIds.length + 4L * keys.length;
+    }
+
+    /** Removes all keys; the table keeps its capacity. */
+    public void clear() {
+        Arrays.fill(slotIds, FREE);
+        size = 0;
+    }
+}
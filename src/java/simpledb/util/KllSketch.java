@@ -0,0 +1,138 @@
+package simpledb.util;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * KllSketch estimates the quantiles of the ints added to it in a bounded
+ * number of items, with a rank error of a few multiples of 1 / {@link #K}
+ * (Karnin, Lang and Liberty, "Optimal Quantile Approximation in Streams").
+ * <p>
+ * The items are kept in levels, where an item of level h stands for 2^h of
+ * the values added. Level h holds at most about K * (2/3)^(top - h) items;
+ * when the sketch is full, the lowest full level is sorted and every other
+ * item of it is promoted to the next level, with twice the weight. Two
+ * sketches are merged by concatenating their levels and compacting again.
+ */
+public class KllSketch implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The capacity of the top level, which bounds the error */
+    public static final int K = 128;
+
+    /** The largest number of levels, enough for 2^31 values */
+    public static final int MAX_LEVELS = 32;
+
+    private static final double C = 2.0 / 3.0;
+
+    /** The largest number of items a sketch keeps */
+    public static final int MAX_ITEMS = maxSize(MAX_LEVELS) - 1;
+
+    private int[][] levels = new int[][]{new int[8]};
+    private int[] sizes = new int[1];
+    private int numItems = 0;
+    // alternates the items that are promoted by a compaction
+    private boolean odd = false;
+
+    private static int capacity(int level, int numLevels) {
+        return Math.max(2, (int) Math.ceil(K * Math.pow(C, numLevels - 1 - level)));
+    }
+
+    private static int maxSize(int numLevels) {
+        int size = 0;
+        for (int h = 0; h < numLevels; h++) {
+            size += capacity(h, numLevels);
+        }
+        return size;
+    }
+
+    public void add(int value) {
+        append(0, value);
+        compress();
+    }
+
+    /** Adds the values of other to this sketch */
+    public void merge(KllSketch other) {
+        for (int h = 0; h < other.levels.length; h++) {
+            for (int i = 0; i < other.sizes[h]; i++) {
+                append(h, other.levels[h][i]);
+            }
+        }
+        compress();
+    }
+
+    /** @return true if no value was added */
+    public boolean isEmpty() {
+        return numItems == 0;
+    }
+
+    private void append(int level, int value) {
+        while (level >= levels.length) {
+            if (levels.length == MAX_LEVELS) {
+                throw new IllegalStateException("too many values for a KllSketch");
+            }
+            levels = Arrays.copyOf(levels, levels.length + 1);
+            levels[levels.length - 1] = new int[8];
+            sizes = Arrays.copyOf(sizes, levels.length);
+        }
+        if (sizes[level] == levels[level].length) {
+            levels[level] = Arrays.copyOf(levels[level], sizes[level] * 2);
+        }
+        levels[level][sizes[level]++] = value;
+        numItems++;
+    }
+
+    /** Compacts the lowest full levels until the sketch is no longer full */
+    private void compress() {
+        while (numItems >= maxSize(levels.length)) {
+            int h = 0;
+            while (sizes[h] < capacity(h, levels.length)) {
+                h++;
+            }
+            int[] items = levels[h];
+            int size = sizes[h];
+            Arrays.sort(items, 0, size);
+            // an odd item out stays on this level
+            int keep = size % 2;
+            sizes[h] = keep;
+            numItems -= size - keep;
+            for (int i = keep + (odd ? 1 : 0); i < size; i += 2) {
+                append(h + 1, items[i]);
+            }
+            odd = !odd;
+        }
+    }
+
+    /**
+     * @param fraction the rank of the quantile, between 0 and 1
+     * @return the smallest value with at least fraction of the values less
+     *         than or equal to it
+     * @throws IllegalStateException if the sketch is empty
+     */
+    public int quantile(double fraction) {
+        if (numItems == 0) {
+            throw new IllegalStateException("no quantile of an empty KllSketch");
+        }
+        // the items, ordered by value, with their weights in the low bits
+        long[] items = new long[numItems];
+        long total = 0;
+        int n = 0;
+        for (int h = 0; h < levels.length; h++) {
+            for (int i = 0; i < sizes[h]; i++) {
+                items[n++] = ((long) levels[h][i] << 8) | h;
+            }
+            total += (long) sizes[h] << h;
+        }
+        Arrays.sort(items);
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (long item : items) {
+            seen += 1L << (item & 0xFF);
+            if (seen >= rank) {
+                return (int) (item >> 8);
+            }
+        }
+        return (int) (items[items.length - 1] >> 8);
+    }
+}
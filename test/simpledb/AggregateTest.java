@@ -1,6 +1,7 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
@@ -13,7 +14,9 @@ import simpledb.common.Type;
 import simpledb.common.Utility;
 import simpledb.execution.Aggregate;
 import simpledb.execution.Aggregator;
+import simpledb.execution.Limit;
 import simpledb.execution.OpIterator;
+import simpledb.execution.OrderBy;
 import simpledb.storage.TupleDesc;
 import simpledb.systemtest.SimpleDbTestBase;
 
@@ -201,6 +204,53 @@ public class AggregateTest extends SimpleDbTestBase {
         TestUtil.matchAllTuples(min, op);
     }
 
+    /**
+     * Unit scantest for Aggregate.getNext() aggregating the groups of an
+     * input that returns them one after another as they are read
+     */
+    @Test
+    public void streamedAggregate() throws Exception {
+        Aggregate op = new Aggregate(scan1, 1, 0,
+                Aggregator.Op.SUM);
+        op.setStreaming(true);
+        assertTrue(op.isStreaming());
+        op.open();
+        sum.open();
+        TestUtil.matchAllTuples(sum, op);
+        assertEquals(0, op.getSpilledPartitions());
+
+        op.rewind();
+        sum.rewind();
+        TestUtil.matchAllTuples(sum, op);
+        op.close();
+
+        op = new Aggregate(scan3, new int[]{1, 0, 1}, new int[]{0},
+                new Aggregator.Op[]{Aggregator.Op.MAX, Aggregator.Op.COUNT, Aggregator.Op.AVG});
+        op.setStreaming(true);
+        op.open();
+        TestUtil.matchAllTuples(TestUtil.createTupleList(4,
+                new Object[]{"a", 6, 3, 4,
+                        "b", 6, 3, 4,
+                        "c", 7, 1, 7}), op);
+    }
+
+    /**
+     * Unit scantest for Aggregate.isGroupedOn()
+     */
+    @Test
+    public void isGroupedOn() {
+        OrderBy ordered = new OrderBy(new int[]{1, 0}, new boolean[]{false, true}, scan1);
+        assertTrue(Aggregate.isGroupedOn(ordered, new int[]{1}));
+        assertTrue(Aggregate.isGroupedOn(ordered, new int[]{0, 1}));
+        assertTrue(Aggregate.isGroupedOn(new Limit(3, 0, ordered), new int[]{1, 0}));
+        assertFalse(Aggregate.isGroupedOn(ordered, new int[]{0}));
+        assertFalse(Aggregate.isGroupedOn(scan1, new int[]{0}));
+
+        Aggregate ungrouped = new Aggregate(scan1, 1, Aggregator.NO_GROUPING, Aggregator.Op.SUM);
+        ungrouped.setStreaming(true);
+        assertFalse(ungrouped.isStreaming());
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,119 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Type;
+import simpledb.execution.Aggregate;
+import simpledb.execution.Distinct;
+import simpledb.execution.OpIterator;
+import simpledb.execution.OrderBy;
+import simpledb.execution.Project;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class DistinctTest extends SimpleDbTestBase {
+
+    /** @return the tuples of width fields whose values are i % distinct, for i in 0..n-1 */
+    private static OpIterator repeated(int width, int n, int distinct) {
+        int[] data = new int[width * n];
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < width; j++) {
+                data[i * width + j] = (i % distinct) * (j + 1);
+            }
+        }
+        return TestUtil.createTupleList(width, data);
+    }
+
+    /** Checks that op returns distinct tuples, and returns how many */
+    private static int countDistinct(OpIterator op) throws Exception {
+        Set<List<Integer>> seen = new HashSet<>();
+        int count = 0;
+        while (op.hasNext()) {
+            List<Integer> t = SystemTestUtil.tupleToList(op.next());
+            assertTrue("duplicate " + t, seen.add(t));
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Unit test for hashed Distinct, which returns the first occurrence of
+     * each tuple in input order
+     */
+    @Test public void hashDistinct() throws Exception {
+        Distinct op = new Distinct(TestUtil.createTupleList(2,
+                new int[]{1, 1, 2, 2, 1, 1, 3, 3, 2, 2, 1, 2}));
+        assertFalse(op.isSorted());
+        op.open();
+        TestUtil.compareDbIterators(TestUtil.createTupleList(2, new int[]{1, 1, 2, 2, 3, 3, 1, 2}), op);
+        op.rewind();
+        TestUtil.compareDbIterators(TestUtil.createTupleList(2, new int[]{1, 1, 2, 2, 3, 3, 1, 2}), op);
+        op.close();
+
+        op = new Distinct(TestUtil.createTupleList(1, new int[]{4, 0, 4, -1, 0, 4}));
+        op.open();
+        TestUtil.compareDbIterators(TestUtil.createTupleList(1, new int[]{4, 0, -1}), op);
+        op.close();
+    }
+
+    /**
+     * Unit test for Distinct with a memory budget that only holds a few
+     * tuples, so that the tuples are spilled and partitioned recursively
+     */
+    @Test public void spilledDistinct() throws Exception {
+        for (int width : new int[]{1, 3}) {
+            Distinct op = new Distinct(repeated(width, 20000, 3000));
+            op.setMemoryBudget(2000);
+            op.open();
+            assertEquals(3000, countDistinct(op));
+            assertTrue(op.getSpilledPartitions() > 0);
+            op.rewind();
+            assertEquals(3000, countDistinct(op));
+            op.close();
+        }
+    }
+
+    /**
+     * Unit test for sorted Distinct, which only compares each tuple with
+     * the previous one
+     */
+    @Test public void sortedDistinct() throws Exception {
+        Distinct op = new Distinct(TestUtil.createTupleList(2,
+                new int[]{1, 1, 1, 1, 1, 2, 2, 2, 2, 2, 3, 1}));
+        op.setSorted(true);
+        op.open();
+        TestUtil.compareDbIterators(TestUtil.createTupleList(2, new int[]{1, 1, 1, 2, 2, 2, 3, 1}), op);
+        op.rewind();
+        TestUtil.compareDbIterators(TestUtil.createTupleList(2, new int[]{1, 1, 1, 2, 2, 2, 3, 1}), op);
+        op.close();
+    }
+
+    /**
+     * Unit test for Aggregate.isGroupedOn through a projection, which decides
+     * whether a Distinct over it can be sorted
+     */
+    @Test public void groupedThroughProject() {
+        OpIterator sorted = new OrderBy(new int[]{2, 0}, new boolean[]{true, false}, repeated(3, 10, 5));
+        List<Type> types = Arrays.asList(Type.INT_TYPE, Type.INT_TYPE);
+        assertTrue(Aggregate.isGroupedOn(new Project(Arrays.asList(0, 2), types, sorted), new int[]{0, 1}));
+        assertFalse(Aggregate.isGroupedOn(new Project(Arrays.asList(0, 1), types, sorted), new int[]{0, 1}));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(DistinctTest.class);
+    }
+}
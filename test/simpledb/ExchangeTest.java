@@ -0,0 +1,147 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import simpledb.common.DbException;
+import simpledb.common.Utility;
+import simpledb.execution.Exchange;
+import simpledb.execution.OpIterator;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class ExchangeTest extends SimpleDbTestBase {
+
+    private static final int WIDTH = 2;
+
+    /**
+     * Unit test for a gather exchange: the union of its producers, also after a rewind
+     */
+    @Test
+    public void gather() throws Exception {
+        OpIterator[] producers = new OpIterator[]{
+                new TestUtil.MockScan(0, 1000, WIDTH),
+                new TestUtil.MockScan(1000, 1500, WIDTH),
+                new TestUtil.MockScan(1500, 1500, WIDTH)
+        };
+        Exchange op = new Exchange(producers);
+        assertEquals(Utility.getTupleDesc(WIDTH), op.getTupleDesc());
+
+        op.open();
+        TestUtil.matchAllTuples(new TestUtil.MockScan(0, 1500, WIDTH), op);
+        assertFalse(op.hasNext());
+        op.rewind();
+        TestUtil.matchAllTuples(new TestUtil.MockScan(0, 1500, WIDTH), op);
+        op.close();
+    }
+
+    /**
+     * Unit test for closing a gather exchange before its producers are drained
+     */
+    @Test
+    public void closeEarly() throws Exception {
+        Exchange op = new Exchange(new OpIterator[]{new TestUtil.MockScan(0, 100000, WIDTH)});
+        op.open();
+        assertTrue(op.hasNext());
+        op.next();
+        op.close();
+
+        op.open();
+        int count = 0;
+        while (op.hasNext()) {
+            op.next();
+            count++;
+        }
+        assertEquals(100000, count);
+        op.close();
+    }
+
+    /**
+     * Unit test for a repartitioning exchange: every tuple is returned once,
+     * and all tuples with the same key by the same partition
+     */
+    @Test
+    public void repartition() throws Exception {
+        OpIterator[] producers = new OpIterator[]{
+                new TestUtil.MockScan(0, 3000, WIDTH),
+                new TestUtil.MockScan(0, 3000, WIDTH)
+        };
+        Exchange[] partitions = Exchange.repartition(producers, 0, 3);
+        assertEquals(3, partitions.length);
+
+        Set<Integer> seen = new HashSet<>();
+        int total = 0;
+        for (Exchange p : partitions) {
+            p.open();
+        }
+        for (int i = 0; i < partitions.length; i++) {
+            Set<Integer> keys = new HashSet<>();
+            while (partitions[i].hasNext()) {
+                Tuple t = partitions[i].next();
+                int key = ((IntField) t.getField(0)).getValue();
+                assertEquals(i, Exchange.partitionOf(t.getField(0), 3));
+                keys.add(key);
+                total++;
+            }
+            for (Integer key : keys) {
+                assertTrue(seen.add(key));
+            }
+        }
+        for (Exchange p : partitions) {
+            p.close();
+        }
+        assertEquals(6000, total);
+        assertEquals(3000, seen.size());
+    }
+
+    /**
+     * Unit test for the propagation of an exception thrown by a producer
+     */
+    @Test
+    public void producerError() throws Exception {
+        OpIterator failing = new TestUtil.MockScan(0, 10, WIDTH) {
+            @Override
+            public Tuple next() {
+                throw new IllegalStateException("producer failed");
+            }
+        };
+        Exchange op = new Exchange(new OpIterator[]{new TestUtil.MockScan(0, 10, WIDTH), failing});
+        op.open();
+        try {
+            while (op.hasNext()) {
+                op.next();
+            }
+            fail("expected exception");
+        } catch (IllegalStateException e) {
+            assertEquals("producer failed", e.getMessage());
+        }
+        op.close();
+    }
+
+    /**
+     * Unit test for rewinding a repartitioning exchange, which is not supported
+     */
+    @Test(expected = DbException.class)
+    public void repartitionRewind() throws Exception {
+        Exchange[] partitions = Exchange.repartition(new OpIterator[]{new TestUtil.MockScan(0, 10, WIDTH)}, 0, 2);
+        partitions[0].open();
+        try {
+            partitions[0].rewind();
+        } finally {
+            partitions[0].close();
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ExchangeTest.class);
+    }
+}
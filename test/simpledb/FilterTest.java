@@ -3,15 +3,22 @@ package simpledb;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
 import junit.framework.JUnit4TestAdapter;
 
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.Arrays;
+
+import javax.tools.ToolProvider;
+
 import simpledb.common.Utility;
+import simpledb.execution.EvaluatorCompiler;
 import simpledb.execution.Filter;
 import simpledb.execution.OpIterator;
 import simpledb.execution.Predicate;
+import simpledb.execution.PredicateEvaluator;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.systemtest.SimpleDbTestBase;
@@ -82,6 +89,64 @@ public class FilterTest extends SimpleDbTestBase {
     op.close();
   }
 
+  /**
+   * Unit scantest for a Filter over a conjunction of predicates, with and
+   * without generated evaluators
+   */
+  @Test public void conjunctionFilter() throws Exception {
+    Predicate greaterThanOp = new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, TestUtil.getField(-2));
+    Predicate lessThanOp = new Predicate(1, Predicate.Op.LESS_THAN, TestUtil.getField(2));
+    boolean enabled = EvaluatorCompiler.isEnabled();
+    int threshold = EvaluatorCompiler.getCompileThreshold();
+    try {
+      // compiled after a few tuples, compiled up front, and interpreted
+      for (int compileAfter : new int[] { 3, 0, -1 }) {
+        EvaluatorCompiler.setEnabled(compileAfter >= 0);
+        EvaluatorCompiler.setCompileThreshold(Math.max(compileAfter, 0));
+        this.scan = new TestUtil.MockScan(-5, 5, testWidth);
+        Filter op = new Filter(Arrays.asList(greaterThanOp, lessThanOp), scan);
+        assertEquals(2, op.getPredicates().size());
+        TestUtil.MockScan expectedOut = new TestUtil.MockScan(-2, 2, testWidth);
+        op.open();
+        TestUtil.compareDbIterators(op, expectedOut);
+        op.close();
+      }
+    } finally {
+      EvaluatorCompiler.setEnabled(enabled);
+      EvaluatorCompiler.setCompileThreshold(threshold);
+    }
+  }
+
+  /**
+   * Unit test that a conjunction is actually compiled into a generated class
+   * when a system Java compiler is available
+   */
+  @Test public void compiledConjunction() throws Exception {
+    assumeTrue(ToolProvider.getSystemJavaCompiler() != null);
+    boolean enabled = EvaluatorCompiler.isEnabled();
+    int threshold = EvaluatorCompiler.getCompileThreshold();
+    try {
+      EvaluatorCompiler.setEnabled(true);
+      EvaluatorCompiler.setCompileThreshold(0);
+      PredicateEvaluator evaluator = EvaluatorCompiler.compilePredicates(Arrays.asList(
+          new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, TestUtil.getField(-2)),
+          new Predicate(1, Predicate.Op.LESS_THAN, TestUtil.getField(2))), scan.getTupleDesc());
+      assertTrue(evaluator.getClass().getName(),
+          evaluator.getClass().getName().startsWith("simpledb.execution.generated."));
+      scan.open();
+      int passed = 0;
+      while (scan.hasNext()) {
+        if (evaluator.filter(scan.next())) {
+          passed++;
+        }
+      }
+      assertEquals(4, passed);
+    } finally {
+      EvaluatorCompiler.setEnabled(enabled);
+      EvaluatorCompiler.setCompileThreshold(threshold);
+    }
+  }
+
   /**
    * Unit scantest for Filter.getNext() using a &lt; predicate that filters
    * everything
@@ -0,0 +1,93 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.execution.HashSemiJoin;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate;
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class HashSemiJoinTest extends SimpleDbTestBase {
+
+    private final JoinPredicate eq = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+
+    private static OpIterator left() {
+        return TestUtil.createTupleList(2, new int[]{1, 10, 2, 20, 3, 30, 2, 21, 4, 40});
+    }
+
+    /** The right keys 2 and 4 appear several times */
+    private static OpIterator right() {
+        return TestUtil.createTupleList(2, new int[]{2, 0, 2, 1, 4, 0, 5, 0, 4, 1});
+    }
+
+    /**
+     * Unit test for the semi-join: each matching left tuple once, with the
+     * fields of the left child only
+     */
+    @Test public void semiJoin() throws Exception {
+        HashSemiJoin op = new HashSemiJoin(eq, left(), right(), false);
+        assertEquals(2, op.getTupleDesc().numFields());
+        op.open();
+        TestUtil.compareDbIterators(TestUtil.createTupleList(2, new int[]{2, 20, 2, 21, 4, 40}), op);
+        assertEquals(3, op.getBuildKeys());
+        op.rewind();
+        TestUtil.compareDbIterators(TestUtil.createTupleList(2, new int[]{2, 20, 2, 21, 4, 40}), op);
+        op.close();
+    }
+
+    /**
+     * Unit test for the anti-join
+     */
+    @Test public void antiJoin() throws Exception {
+        HashSemiJoin op = new HashSemiJoin(eq, left(), right(), true);
+        op.open();
+        TestUtil.compareDbIterators(TestUtil.createTupleList(2, new int[]{1, 10, 3, 30}), op);
+        op.close();
+
+        // nothing to exclude
+        op = new HashSemiJoin(eq, left(), empty(), true);
+        op.open();
+        TestUtil.compareDbIterators(left(), op);
+        op.close();
+    }
+
+    private static OpIterator empty() {
+        return TestUtil.createTupleList(2, new int[0]);
+    }
+
+    /**
+     * Unit test for the joins without a predicate, as for EXISTS
+     */
+    @Test public void exists() throws Exception {
+        HashSemiJoin op = new HashSemiJoin(left(), right(), false);
+        op.open();
+        TestUtil.compareDbIterators(left(), op);
+        op.close();
+
+        op = new HashSemiJoin(left(), empty(), false);
+        op.open();
+        TestUtil.compareDbIterators(empty(), op);
+        op.close();
+
+        op = new HashSemiJoin(left(), right(), true);
+        op.open();
+        TestUtil.compareDbIterators(empty(), op);
+        op.close();
+
+        op = new HashSemiJoin(left(), empty(), true);
+        op.open();
+        TestUtil.compareDbIterators(left(), op);
+        op.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HashSemiJoinTest.class);
+    }
+}
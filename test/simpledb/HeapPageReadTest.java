@@ -2,7 +2,9 @@ package simpledb;
 
 import simpledb.TestUtil.SkeletonFile;
 import simpledb.common.Database;
+import simpledb.common.Type;
 import simpledb.common.Utility;
+import simpledb.execution.Predicate;
 import simpledb.storage.*;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
@@ -123,6 +125,106 @@ public class HeapPageReadTest extends SimpleDbTestBase {
             assertFalse(page.isSlotUsed(i));
     }
 
+    /**
+     * Unit test for HeapPage.iterator(List), which evaluates the predicates
+     * on the bytes of the page
+     */
+    @Test public void testPredicateIterator() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        List<Predicate> predicates = Arrays.asList(
+                new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(17876)),
+                new Predicate(1, Predicate.Op.LESS_THAN, new IntField(50000)));
+        List<Integer> rows = new ArrayList<>();
+        for (int row = 0; row < EXAMPLE_VALUES.length; row++) {
+            if (EXAMPLE_VALUES[row][0] >= 17876 && EXAMPLE_VALUES[row][1] < 50000) {
+                rows.add(row);
+            }
+        }
+
+        // twice: on the bytes, then on the tuples decoded by the first pass
+        for (int pass = 0; pass < 2; pass++) {
+            Iterator<Tuple> it = page.iterator(predicates);
+            for (int row : rows) {
+                assertTrue(it.hasNext());
+                Tuple tup = it.next();
+                assertEquals(row, tup.getRecordId().getTupleNumber());
+                assertEquals(EXAMPLE_VALUES[row][0], ((IntField) tup.getField(0)).getValue());
+                assertEquals(EXAMPLE_VALUES[row][1], ((IntField) tup.getField(1)).getValue());
+            }
+            assertFalse(it.hasNext());
+        }
+        assertTrue(Arrays.equals(EXAMPLE_DATA, page.getPageData()));
+    }
+
+    /**
+     * Unit test for HeapPage.iterator(List, int[], TupleDesc), which decodes
+     * only the given fields of the tuples that satisfy the predicates
+     */
+    @Test public void testNarrowedIterator() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        List<Predicate> predicates = Collections.singletonList(
+                new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(17876)));
+        TupleDesc outTd = new TupleDesc(new Type[]{Type.INT_TYPE});
+        Iterator<Tuple> it = page.iterator(predicates, new int[]{1}, outTd);
+        for (int row = 0; row < EXAMPLE_VALUES.length; row++) {
+            if (EXAMPLE_VALUES[row][0] < 17876) {
+                continue;
+            }
+            assertTrue(it.hasNext());
+            Tuple tup = it.next();
+            assertEquals(outTd, tup.getTupleDesc());
+            assertEquals(row, tup.getRecordId().getTupleNumber());
+            assertEquals(EXAMPLE_VALUES[row][1], ((IntField) tup.getField(0)).getValue());
+        }
+        assertFalse(it.hasNext());
+
+        // the narrowed tuples are not kept, so whole tuples are still returned
+        it = page.iterator();
+        for (int[] values : EXAMPLE_VALUES) {
+            Tuple tup = it.next();
+            assertEquals(2, tup.getTupleDesc().numFields());
+            assertEquals(values[0], ((IntField) tup.getField(0)).getValue());
+        }
+        assertFalse(it.hasNext());
+    }
+
+    /**
+     * Unit test for HeapPage.iterator(List) on string fields, and on slots
+     * written after the page was read
+     */
+    @Test public void testStringPredicateIterator() throws Exception {
+        TupleDesc td = new TupleDesc(new Type[]{Type.INT_TYPE, Type.STRING_TYPE});
+        Database.getCatalog().addTable(new SkeletonFile(-2, td), SystemTestUtil.getUUID());
+        HeapPageId stringPid = new HeapPageId(-2, 0);
+        HeapPage written = new HeapPage(stringPid, HeapPage.createEmptyPageData());
+        for (int i = 0; i < 20; i++) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(i));
+            t.setField(1, new StringField("value" + i, Type.STRING_LEN));
+            written.insertTuple(t);
+        }
+        HeapPage page = new HeapPage(stringPid, written.getPageData());
+        Tuple inserted = new Tuple(td);
+        inserted.setField(0, new IntField(100));
+        inserted.setField(1, new StringField("value1x", Type.STRING_LEN));
+        page.insertTuple(inserted);
+
+        List<Predicate> predicates = Arrays.asList(
+                new Predicate(1, Predicate.Op.LIKE, new StringField("value1", Type.STRING_LEN)),
+                new Predicate(0, Predicate.Op.NOT_EQUALS, new IntField(12)));
+        List<Integer> values = new ArrayList<>();
+        Iterator<Tuple> it = page.iterator(predicates);
+        while (it.hasNext()) {
+            values.add(((IntField) it.next().getField(0)).getValue());
+        }
+        assertEquals(Arrays.asList(1, 10, 11, 13, 14, 15, 16, 17, 18, 19, 100), values);
+
+        it = page.iterator(Collections.singletonList(
+                new Predicate(1, Predicate.Op.GREATER_THAN, new StringField("value8", Type.STRING_LEN))));
+        assertEquals("value9", ((StringField) it.next().getField(1)).getValue());
+        assertFalse(it.hasNext());
+    }
+
     /**
      * JUnit suite target
      */
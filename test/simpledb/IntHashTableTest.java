@@ -0,0 +1,52 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.util.IntHashTable;
+
+public class IntHashTableTest extends SimpleDbTestBase {
+
+    /**
+     * Unit test for IntHashTable.findOrInsert() and IntHashTable.find()
+     */
+    @Test public void denseIds() {
+        IntHashTable table = new IntHashTable(2);
+        int n = 10000;
+        for (int i = 0; i < n; i++) {
+            // negative keys and keys that collide in the low bits
+            assertEquals(i, table.findOrInsert((i - n / 2) << 8));
+        }
+        assertEquals(n, table.size());
+        for (int i = 0; i < n; i++) {
+            assertEquals(i, table.findOrInsert((i - n / 2) << 8));
+            assertEquals(i, table.find((i - n / 2) << 8));
+            assertEquals((i - n / 2) << 8, table.keyAt(i));
+        }
+        assertEquals(-1, table.find(1));
+        assertEquals(n, table.size());
+    }
+
+    /**
+     * Unit test for IntHashTable.clear()
+     */
+    @Test public void clear() {
+        IntHashTable table = new IntHashTable();
+        table.findOrInsert(7);
+        table.findOrInsert(-1);
+        table.clear();
+        assertEquals(0, table.size());
+        assertEquals(-1, table.find(7));
+        assertEquals(0, table.findOrInsert(-1));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(IntHashTableTest.class);
+    }
+}
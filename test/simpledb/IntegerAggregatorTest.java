@@ -135,6 +135,36 @@ public class IntegerAggregatorTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Test a SUM_COUNT over two halves of the input, whose partial results
+     * are merged by an SC_AVG into the average of the whole input
+     */
+    @Test
+    public void mergeSumCountScAvg() throws Exception {
+        scan1.open();
+        IntegerAggregator first = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SUM_COUNT);
+        IntegerAggregator second = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SUM_COUNT);
+        for (int i = 0; scan1.hasNext(); i++) {
+            (i % 2 == 0 ? first : second).mergeTupleIntoGroup(scan1.next());
+        }
+        OpIterator it = first.iterator();
+        it.open();
+        TestUtil.matchAllTuples(TestUtil.createTupleList(3, new int[]{1, 8, 2, 3, 4, 1, 5, 7, 1}), it);
+
+        IntegerAggregator avg = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SC_AVG);
+        for (IntegerAggregator partial : new IntegerAggregator[]{first, second}) {
+            it = partial.iterator();
+            it.open();
+            while (it.hasNext()) {
+                avg.mergeTupleIntoGroup(it.next());
+            }
+            it.close();
+        }
+        it = avg.iterator();
+        it.open();
+        TestUtil.matchAllTuples(TestUtil.createTupleList(width1, new int[]{1, 4, 3, 4, 5, 7}), it);
+    }
+
     /**
      * Test IntegerAggregator.iterator() for OpIterator behaviour
      */
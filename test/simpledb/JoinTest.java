@@ -128,6 +128,30 @@ public class JoinTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(eqJoin, mergeJoin);
   }
 
+  /**
+   * Unit test for Join with a block large enough to be hashed, which returns
+   * the tuples in the same order as comparing each pair
+   */
+  @Test public void hashedBlock() throws Exception {
+    int[] outer = new int[2 * 3 * Join.HASH_BLOCK_THRESHOLD];
+    for (int i = 0; i < outer.length / 2; i++) {
+      outer[2 * i] = i % 7;
+      outer[2 * i + 1] = i;
+    }
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 1);
+    int[] inner = { 1, 2, 3, 2, 3, 4, 3, 4, 5, 4, 5, 6, 5, 6, 7, 0, 0, 0 };
+    Join compared = new Join(pred, TestUtil.createTupleList(2, outer), TestUtil.createTupleList(3, inner));
+    compared.setAdaptive(false);
+    Join hashed = new Join(pred, TestUtil.createTupleList(2, outer), TestUtil.createTupleList(3, inner));
+    compared.open();
+    hashed.open();
+    TestUtil.compareDbIterators(compared, hashed);
+    hashed.rewind();
+    compared.rewind();
+    TestUtil.compareDbIterators(compared, hashed);
+    assertEquals(1, hashed.getBlocks());
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,130 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.execution.Limit;
+import simpledb.execution.OpIterator;
+import simpledb.execution.TopN;
+import simpledb.storage.IntField;
+import simpledb.storage.TupleDesc;
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LimitTest extends SimpleDbTestBase {
+
+    /** A MockScan that records whether it is open */
+    private static class TrackingScan extends TestUtil.MockScan {
+        private static final long serialVersionUID = 1L;
+
+        boolean open = false;
+
+        TrackingScan(int low, int high, int width) {
+            super(low, high, width);
+        }
+
+        public void open() {
+            super.open();
+            open = true;
+        }
+
+        public void close() {
+            super.close();
+            open = false;
+        }
+    }
+
+    /**
+     * Unit test for Limit with LIMIT and OFFSET
+     */
+    @Test public void limitOffset() throws Exception {
+        Limit op = new Limit(3, 2, new TestUtil.MockScan(0, 10, 2));
+        op.open();
+        TestUtil.compareDbIterators(TestUtil.createTupleList(2, new int[]{2, 2, 3, 3, 4, 4}), op);
+        op.rewind();
+        TestUtil.compareDbIterators(TestUtil.createTupleList(2, new int[]{2, 2, 3, 3, 4, 4}), op);
+        op.close();
+
+        op = new Limit(5, 8, new TestUtil.MockScan(0, 10, 1));
+        op.open();
+        TestUtil.compareDbIterators(TestUtil.createTupleList(1, new int[]{8, 9}), op);
+        op.close();
+    }
+
+    /**
+     * Unit test for the early termination of Limit: the child is closed as
+     * soon as the last tuple has been returned, and reopened by rewind
+     */
+    @Test public void closesChildEarly() throws Exception {
+        TrackingScan scan = new TrackingScan(0, 100, 1);
+        Limit op = new Limit(2, 0, scan);
+        op.open();
+        assertTrue(op.hasNext());
+        op.next();
+        op.next();
+        assertTrue(scan.open);
+        assertFalse(op.hasNext());
+        assertFalse(scan.open);
+        op.rewind();
+        assertTrue(scan.open);
+        assertEquals(new IntField(0), op.next().getField(0));
+        op.close();
+        assertFalse(scan.open);
+
+        scan = new TrackingScan(0, 100, 1);
+        op = new Limit(0, 0, scan);
+        op.open();
+        assertFalse(op.hasNext());
+        assertFalse(scan.open);
+        op.close();
+    }
+
+    /**
+     * Unit test for TopN, which must return the same tuples as a full sort
+     * followed by a limit, with ties in input order
+     */
+    @Test public void topN() throws Exception {
+        OpIterator input = TestUtil.createTupleList(2,
+                new int[]{5, 0, 1, 1, 9, 2, 1, 3, 7, 4, 3, 5, 1, 6, 8, 7});
+        TopN op = new TopN(0, true, 4, input);
+        op.open();
+        TestUtil.compareDbIterators(TestUtil.createTupleList(2, new int[]{1, 1, 1, 3, 1, 6, 3, 5}), op);
+        op.rewind();
+        TestUtil.compareDbIterators(TestUtil.createTupleList(2, new int[]{1, 1, 1, 3, 1, 6, 3, 5}), op);
+        op.close();
+
+        op = new TopN(0, false, 3, input);
+        op.open();
+        TestUtil.compareDbIterators(TestUtil.createTupleList(2, new int[]{9, 2, 8, 7, 7, 4}), op);
+        op.close();
+
+        op = new TopN(0, true, 100, input);
+        op.open();
+        int count = 0;
+        while (op.hasNext()) {
+            op.next();
+            count++;
+        }
+        assertEquals(8, count);
+        op.close();
+    }
+
+    /**
+     * Unit test for TopN.getTupleDesc()
+     */
+    @Test public void getTupleDesc() {
+        TopN op = new TopN(0, true, 1, new TestUtil.MockScan(0, 1, 3));
+        TupleDesc expected = new TestUtil.MockScan(0, 1, 3).getTupleDesc();
+        assertEquals(expected, op.getTupleDesc());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LimitTest.class);
+    }
+}
@@ -0,0 +1,130 @@
+package simpledb;
+
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Type;
+import simpledb.execution.Aggregator;
+import simpledb.execution.HashAggregator;
+import simpledb.execution.IntegerAggregator;
+import simpledb.execution.MultiAggregator;
+import simpledb.execution.OpIterator;
+import simpledb.execution.StringAggregator;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import junit.framework.JUnit4TestAdapter;
+
+public class MultiAggregatorTest extends SimpleDbTestBase {
+
+    OpIterator scan1;
+
+    /**
+     * Initialize each unit scantest
+     */
+    @Before
+    public void createTupleList() {
+        this.scan1 = TestUtil.createTupleList(3,
+                new int[]{1, 1, 2,
+                        1, 1, 4,
+                        1, 2, 6,
+                        3, 1, 2,
+                        3, 1, 4,
+                        3, 1, 6,
+                        1, 1, 7});
+    }
+
+    private static HashAggregator[] aggregates(int afield, Aggregator.Op... ops) {
+        HashAggregator[] aggregates = new HashAggregator[ops.length];
+        for (int i = 0; i < ops.length; i++) {
+            aggregates[i] = new IntegerAggregator(Aggregator.NO_GROUPING, null, afield, ops[i]);
+        }
+        return aggregates;
+    }
+
+    /**
+     * Test SUM, COUNT, MAX and AVG grouped by two fields, computed at once
+     */
+    @Test
+    public void mergeCompositeKey() throws Exception {
+        scan1.open();
+        MultiAggregator agg = new MultiAggregator(new int[]{0, 1}, new Type[]{Type.INT_TYPE, Type.INT_TYPE},
+                aggregates(2, Aggregator.Op.SUM, Aggregator.Op.COUNT, Aggregator.Op.MAX, Aggregator.Op.AVG));
+        while (scan1.hasNext()) {
+            agg.mergeTupleIntoGroup(scan1.next());
+        }
+        OpIterator it = agg.iterator();
+        it.open();
+        TestUtil.matchAllTuples(TestUtil.createTupleList(6,
+                new int[]{1, 1, 13, 3, 7, 4,
+                        1, 2, 6, 1, 6, 6,
+                        3, 1, 12, 3, 6, 4}), it);
+    }
+
+    /**
+     * Test aggregates without grouping, over INT and STRING fields
+     */
+    @Test
+    public void mergeNoGroup() throws Exception {
+        OpIterator scan = TestUtil.createTupleList(2,
+                new Object[]{"a", 1,
+                        "b", 5,
+                        "a", 3});
+        scan.open();
+        MultiAggregator agg = new MultiAggregator(new int[0], new Type[0], new HashAggregator[]{
+                new StringAggregator(Aggregator.NO_GROUPING, null, 0, Aggregator.Op.COUNT),
+                new IntegerAggregator(Aggregator.NO_GROUPING, null, 1, Aggregator.Op.MIN),
+                new IntegerAggregator(Aggregator.NO_GROUPING, null, 1, Aggregator.Op.SUM)});
+        while (scan.hasNext()) {
+            agg.mergeTupleIntoGroup(scan.next());
+        }
+        OpIterator it = agg.iterator();
+        it.open();
+        TestUtil.matchAllTuples(TestUtil.createTupleList(3, new int[]{3, 1, 9}), it);
+    }
+
+    /**
+     * Test a composite key of a STRING and an INT field with more groups than
+     * fit into the memory budget, which are spilled to disk
+     */
+    @Test
+    public void mergeSpilled() throws Exception {
+        MultiAggregator agg = new MultiAggregator(new int[]{0, 2}, new Type[]{Type.STRING_TYPE, Type.INT_TYPE},
+                aggregates(1, Aggregator.Op.MIN, Aggregator.Op.COUNT));
+        agg.setMemoryBudget(2000);
+        Map<List<Object>, List<Integer>> expected = new HashMap<>();
+        for (int i = 0; i < 900; i++) {
+            List<Object> key = Arrays.asList("k" + (i % 30), i % 7);
+            agg.mergeTupleIntoGroup(TestUtil.createTupleList(3, new Object[]{key.get(0), i, key.get(1)}).next());
+            List<Integer> value = expected.get(key);
+            expected.put(key, value == null ? Arrays.asList(i, 1) : Arrays.asList(value.get(0), value.get(1) + 1));
+        }
+        assertTrue(agg.getSpilledPartitions() > 0);
+
+        OpIterator it = agg.iterator();
+        it.open();
+        Map<List<Object>, List<Integer>> actual = new HashMap<>();
+        while (it.hasNext()) {
+            Tuple next = it.next();
+            actual.put(Arrays.asList(((StringField) next.getField(0)).getValue(), ((IntField) next.getField(1)).getValue()),
+                    Arrays.asList(((IntField) next.getField(2)).getValue(), ((IntField) next.getField(3)).getValue()));
+        }
+        assertEquals(expected, actual);
+        it.close();
+        agg.delete();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(MultiAggregatorTest.class);
+    }
+}
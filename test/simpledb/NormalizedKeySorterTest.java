@@ -0,0 +1,133 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import simpledb.common.Type;
+import simpledb.execution.NormalizedKeySorter;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class NormalizedKeySorterTest extends SimpleDbTestBase {
+
+    private static final TupleDesc TD = new TupleDesc(
+            new Type[]{Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE});
+
+    /** Strings that share long prefixes, or differ only past the normalized key */
+    private static final String[] STRINGS = {"", "a", "a\u0000", "ab", "abcdefgh", "abcdefgh1",
+            "abcdefgh2", "abcdefghij", "b", "\u00e9t\u00e9", "\u4e2d\u6587", "zzzzzzzzzzzz"};
+
+    private static List<Tuple> randomTuples(Random rand, int n, int intRange) {
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            Tuple t = new Tuple(TD);
+            t.setField(0, new IntField(rand.nextInt(intRange) - intRange / 2));
+            t.setField(1, new StringField(STRINGS[rand.nextInt(STRINGS.length)], Type.STRING_LEN));
+            // the input position, to check stability
+            t.setField(2, new IntField(i));
+            tuples.add(t);
+        }
+        return tuples;
+    }
+
+    private static Comparator<Tuple> comparator(int[] fields, boolean[] asc) {
+        return (a, b) -> {
+            for (int i = 0; i < fields.length; i++) {
+                int c;
+                if (TD.getFieldType(fields[i]) == Type.INT_TYPE) {
+                    c = Integer.compare(((IntField) a.getField(fields[i])).getValue(),
+                            ((IntField) b.getField(fields[i])).getValue());
+                } else {
+                    c = ((StringField) a.getField(fields[i])).getValue()
+                            .compareTo(((StringField) b.getField(fields[i])).getValue());
+                }
+                if (c != 0) {
+                    return asc[i] ? c : -c;
+                }
+            }
+            return 0;
+        };
+    }
+
+    /** Sorts with the NormalizedKeySorter and checks against a stable comparison sort */
+    private void validateSort(List<Tuple> tuples, int[] fields, boolean[] asc) {
+        List<Tuple> expected = new ArrayList<>(tuples);
+        expected.sort(comparator(fields, asc));
+        List<Tuple> actual = new ArrayList<>(tuples);
+        new NormalizedKeySorter(TD, fields, asc).sort(actual);
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertSame(expected.get(i), actual.get(i));
+        }
+    }
+
+    /**
+     * Unit test for sorting by int fields, with negative values and ranges
+     * small enough to go to the insertion sort and large enough to take
+     * every byte of the key
+     */
+    @Test public void sortInts() {
+        Random rand = new Random(1);
+        for (int n : new int[]{0, 1, 10, 100, 5000}) {
+            for (int range : new int[]{3, 1000, Integer.MAX_VALUE}) {
+                List<Tuple> tuples = randomTuples(rand, n, range);
+                validateSort(tuples, new int[]{0}, new boolean[]{true});
+                validateSort(tuples, new int[]{0}, new boolean[]{false});
+            }
+        }
+    }
+
+    /** Unit test for sorting by strings whose order is decided past their prefix */
+    @Test public void sortStrings() {
+        Random rand = new Random(2);
+        List<Tuple> tuples = randomTuples(rand, 3000, 10);
+        validateSort(tuples, new int[]{1}, new boolean[]{true});
+        validateSort(tuples, new int[]{1}, new boolean[]{false});
+    }
+
+    /** Unit test for sorting by several fields in mixed orders */
+    @Test public void sortMultipleFields() {
+        Random rand = new Random(3);
+        List<Tuple> tuples = randomTuples(rand, 4000, 20);
+        validateSort(tuples, new int[]{0, 1}, new boolean[]{true, false});
+        validateSort(tuples, new int[]{1, 0}, new boolean[]{false, true});
+        validateSort(tuples, new int[]{1, 0, 2}, new boolean[]{true, true, false});
+    }
+
+    /** Unit test for the key layout */
+    @Test public void keyWidth() {
+        NormalizedKeySorter ints = new NormalizedKeySorter(TD, new int[]{0, 2}, new boolean[]{true, false});
+        assertEquals(8, ints.getKeyWidth());
+        assertTrue(ints.isExact());
+        NormalizedKeySorter strings = new NormalizedKeySorter(TD, new int[]{1}, new boolean[]{true});
+        assertEquals(2 * NormalizedKeySorter.STRING_PREFIX_CHARS, strings.getKeyWidth());
+        assertFalse(strings.isExact());
+        NormalizedKeySorter mixed = new NormalizedKeySorter(TD, new int[]{0, 1, 2}, new boolean[]{true, true, true});
+        assertEquals(4 + 2 * NormalizedKeySorter.STRING_PREFIX_CHARS, mixed.getKeyWidth());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mismatchedOrders() {
+        new NormalizedKeySorter(TD, new int[]{0, 1}, new boolean[]{true});
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(NormalizedKeySorterTest.class);
+    }
+}
@@ -0,0 +1,60 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Utility;
+import simpledb.execution.RuntimeFilter;
+import simpledb.storage.IntField;
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class RuntimeFilterTest extends SimpleDbTestBase {
+
+    /**
+     * Unit test for RuntimeFilter.mightMatch(): no build key is rejected,
+     * keys out of the range of the build keys always are, and few others pass
+     */
+    @Test public void mightMatch() {
+        RuntimeFilter.Builder builder = new RuntimeFilter.Builder(0);
+        for (int i = 0; i < 1000; i++) {
+            builder.add(new IntField(i * 10));
+        }
+        RuntimeFilter filter = builder.build();
+        assertEquals(0, filter.getField());
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(filter.mightMatch(Utility.getHeapTuple(new int[]{i * 10})));
+        }
+        assertEquals(0, filter.getRejected());
+        assertFalse(filter.mightMatch(Utility.getHeapTuple(new int[]{-1})));
+        assertFalse(filter.mightMatch(Utility.getHeapTuple(new int[]{9991})));
+
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (i % 10 != 0 && filter.mightMatch(Utility.getHeapTuple(new int[]{i}))) {
+                falsePositives++;
+            }
+        }
+        assertTrue(falsePositives < 9000 * 0.05);
+        assertEquals(1000 + 2 + 9000, filter.getTested());
+    }
+
+    /**
+     * Unit test for RuntimeFilter.mightMatch() without build keys
+     */
+    @Test public void empty() {
+        RuntimeFilter filter = new RuntimeFilter.Builder(0).build();
+        assertFalse(filter.mightMatch(Utility.getHeapTuple(new int[]{0})));
+        assertEquals(1, filter.getRejected());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(RuntimeFilterTest.class);
+    }
+}
@@ -0,0 +1,140 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Type;
+import simpledb.execution.Aggregator;
+import simpledb.execution.HashAggregator;
+import simpledb.execution.OpIterator;
+import simpledb.execution.SketchAggregator;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class SketchAggregatorTest extends SimpleDbTestBase {
+
+    private static final TupleDesc INTS = new TupleDesc(new Type[]{Type.INT_TYPE, Type.INT_TYPE});
+
+    private static Tuple tuple(int group, int value) {
+        Tuple t = new Tuple(INTS);
+        t.setField(0, new IntField(group));
+        t.setField(1, new IntField(value));
+        return t;
+    }
+
+    private static List<Tuple> results(SketchAggregator agg) throws Exception {
+        OpIterator it = agg.iterator();
+        it.open();
+        List<Tuple> results = new ArrayList<>();
+        while (it.hasNext()) {
+            results.add(it.next());
+        }
+        it.close();
+        return results;
+    }
+
+    private static int intResult(SketchAggregator agg) throws Exception {
+        return ((IntField) results(agg).get(0).getField(0)).getValue();
+    }
+
+    /**
+     * Test the estimates of APPROX_COUNT_DISTINCT over ints and strings
+     */
+    @Test
+    public void countDistinct() throws Exception {
+        for (int distinct : new int[]{1, 100, 20000}) {
+            SketchAggregator ints = new SketchAggregator(Aggregator.NO_GROUPING, null, 1,
+                    Aggregator.Op.APPROX_COUNT_DISTINCT);
+            SketchAggregator strings = new SketchAggregator(Aggregator.NO_GROUPING, null, 0,
+                    Aggregator.Op.APPROX_COUNT_DISTINCT);
+            TupleDesc td = new TupleDesc(new Type[]{Type.STRING_TYPE});
+            for (int i = 0; i < 3 * distinct; i++) {
+                ints.mergeTupleIntoGroup(tuple(0, i % distinct * 7919));
+                Tuple t = new Tuple(td);
+                t.setField(0, new StringField("value" + i % distinct, Type.STRING_LEN));
+                strings.mergeTupleIntoGroup(t);
+            }
+            assertEquals(distinct, intResult(ints), distinct * 0.1);
+            assertEquals(distinct, intResult(strings), distinct * 0.1);
+        }
+    }
+
+    /**
+     * Test the estimates of APPROX_PERCENTILE, which are exact for few values
+     */
+    @Test
+    public void percentile() throws Exception {
+        for (double fraction : new double[]{0, 0.5, 0.9, 1}) {
+            SketchAggregator agg = new SketchAggregator(new int[]{0}, new Type[]{Type.INT_TYPE}, 1,
+                    Aggregator.Op.APPROX_PERCENTILE, fraction);
+            int n = 100000;
+            for (int i = 0; i < n; i++) {
+                // a permutation of 1..n in the first group, and 1..10 in the second
+                agg.mergeTupleIntoGroup(tuple(0, (int) ((i * 7919L) % n) + 1));
+                if (i < 10) {
+                    agg.mergeTupleIntoGroup(tuple(1, 10 - i));
+                }
+            }
+            for (Tuple t : results(agg)) {
+                int value = ((IntField) t.getField(1)).getValue();
+                if (((IntField) t.getField(0)).getValue() == 0) {
+                    assertEquals(Math.max(1, fraction * n), value, n * 0.03);
+                } else {
+                    assertEquals(Math.max(1, (int) Math.ceil(fraction * 10)), value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Test that the sketches of partial aggregates are merged into the
+     * estimates of the whole
+     */
+    @Test
+    public void mergeSketches() throws Exception {
+        for (Aggregator.Op op : new Aggregator.Op[]{Aggregator.Op.APPROX_COUNT_DISTINCT,
+                Aggregator.Op.APPROX_PERCENTILE}) {
+            List<HashAggregator> partials = new ArrayList<>();
+            for (int part = 0; part < 4; part++) {
+                SketchAggregator partial = new SketchAggregator(new int[]{0}, new Type[]{Type.INT_TYPE}, 1, op, 0.5);
+                for (int i = part; i < 40000; i += 4) {
+                    partial.mergeTupleIntoGroup(tuple(i / 4 % 2, i));
+                }
+                partials.add(partial);
+            }
+            SketchAggregator merged = (SketchAggregator) partials.get(0).newMergingAggregator();
+            merged.merge(partials);
+            List<Tuple> results = results(merged);
+            assertEquals(2, results.size());
+            for (Tuple t : results) {
+                int value = ((IntField) t.getField(1)).getValue();
+                // 20000 distinct values per group, of which the median is about 20000
+                assertEquals(20000, value, 20000 * 0.1);
+            }
+        }
+    }
+
+    /**
+     * Test that only approximate aggregates are accepted
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void unsupportedOp() {
+        new SketchAggregator(Aggregator.NO_GROUPING, null, 0, Aggregator.Op.SUM);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SketchAggregatorTest.class);
+    }
+}
@@ -15,6 +15,7 @@ import simpledb.storage.Tuple;
 import simpledb.systemtest.SimpleDbTestBase;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import junit.framework.JUnit4TestAdapter;
 
@@ -107,6 +108,38 @@ public class StringAggregatorTest extends SimpleDbTestBase {
         assertEquals(7, countField.getValue());
     }
 
+    /**
+     * Test a COUNT over more groups than fit into the memory budget, which
+     * are spilled to disk and counted by partition
+     */
+    @Test
+    public void mergeCountSpilled() throws Exception {
+        StringAggregator agg = new StringAggregator(0, Type.STRING_TYPE, 1, Aggregator.Op.COUNT);
+        agg.setMemoryBudget(1000);
+        Map<String, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 600; i++) {
+            String key = "k" + (i % 200);
+            agg.mergeTupleIntoGroup(TestUtil.createTupleList(width1, new Object[]{key, i}).next());
+            expected.merge(key, 1, Integer::sum);
+        }
+        assertTrue(agg.getSpilledPartitions() > 0);
+        assertTrue(agg.getGroupsInMemory() < 200);
+
+        OpIterator it = agg.iterator();
+        it.open();
+        for (int pass = 0; pass < 2; pass++) {
+            Map<String, Integer> actual = new HashMap<>();
+            while (it.hasNext()) {
+                Tuple next = it.next();
+                actual.put(((StringField) next.getField(0)).getValue(), ((IntField) next.getField(1)).getValue());
+            }
+            assertEquals(expected, actual);
+            it.rewind();
+        }
+        it.close();
+        agg.delete();
+    }
+
 
     /**
      * Test StringAggregator.iterator() for OpIterator behaviour
@@ -0,0 +1,199 @@
+package simpledb.bench;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.common.Utility;
+import simpledb.execution.*;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+/**
+ * Compares int-keyed group-bys and hash joins on boxed java.util.HashMap
+ * keys (the way IntegerAggregator and HashEquiJoin used to work) with the
+ * primitive open-addressing tables they use now.
+ * <p>
+ * Usage: ant runbench -Dbench=IntKeyHashBenchmark [-Dargs="rows"]; the
+ * default is 10M rows. For each variant it prints the run time, the
+ * throughput and the number and total time of garbage collections.
+ */
+public class IntKeyHashBenchmark {
+
+    private static final TupleDesc TD = Utility.getTupleDesc(2);
+
+    /** Generates rows (key, value) with pseudo-random keys in [0, keys) */
+    private static class RowSource implements OpIterator {
+        private static final long serialVersionUID = 1L;
+        private final int rows;
+        private final int keys;
+        private final boolean sequentialKeys;
+        private Random random;
+        private int produced;
+
+        RowSource(int rows, int keys, boolean sequentialKeys) {
+            this.rows = rows;
+            this.keys = keys;
+            this.sequentialKeys = sequentialKeys;
+        }
+
+        public void open() {
+            random = new Random(42);
+            produced = 0;
+        }
+
+        public boolean hasNext() {
+            return produced < rows;
+        }
+
+        public Tuple next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Tuple t = new Tuple(TD);
+            t.setField(0, new IntField(sequentialKeys ? produced : random.nextInt(keys)));
+            t.setField(1, new IntField(produced));
+            produced++;
+            return t;
+        }
+
+        public void rewind() {
+            open();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return TD;
+        }
+
+        public void close() {
+        }
+    }
+
+    private interface Run {
+        long run() throws DbException, TransactionAbortedException;
+    }
+
+    private static void measure(String name, int rows, Run run) throws Exception {
+        System.gc();
+        long gcCount = 0, gcTime = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount -= gc.getCollectionCount();
+            gcTime -= gc.getCollectionTime();
+        }
+        long start = System.nanoTime();
+        long result = run.run();
+        long ms = (System.nanoTime() - start) / 1000000;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount += gc.getCollectionCount();
+            gcTime += gc.getCollectionTime();
+        }
+        System.out.printf("%-28s %7d ms %8.2f Mrows/s %5d GCs %6d ms GC  (result %d)%n",
+                name, ms, rows / 1000.0 / Math.max(1, ms), gcCount, gcTime, result);
+    }
+
+    private static long boxedGroupBy(OpIterator rows) throws DbException, TransactionAbortedException {
+        Map<Object, int[]> groups = new HashMap<>();
+        rows.open();
+        while (rows.hasNext()) {
+            Tuple t = rows.next();
+            Object key = ((IntField) t.getField(0)).getValue();
+            int[] state = groups.computeIfAbsent(key, k -> new int[2]);
+            state[0] += ((IntField) t.getField(1)).getValue();
+            state[1]++;
+        }
+        return groups.size();
+    }
+
+    private static long intGroupBy(OpIterator rows) throws DbException, TransactionAbortedException {
+        IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SUM);
+        rows.open();
+        while (rows.hasNext()) {
+            agg.mergeTupleIntoGroup(rows.next());
+        }
+        OpIterator it = agg.iterator();
+        it.open();
+        long groups = 0;
+        while (it.hasNext()) {
+            it.next();
+            groups++;
+        }
+        return groups;
+    }
+
+    private static long boxedJoin(OpIterator build, OpIterator probe) throws DbException, TransactionAbortedException {
+        TupleDesc combo = TupleDesc.merge(TD, TD);
+        Map<Object, List<Tuple>> map = new HashMap<>();
+        build.open();
+        while (build.hasNext()) {
+            Tuple t = build.next();
+            map.computeIfAbsent(t.getField(0), k -> new ArrayList<>()).add(t);
+        }
+        long matches = 0;
+        probe.open();
+        while (probe.hasNext()) {
+            Tuple t2 = probe.next();
+            List<Tuple> l = map.get(t2.getField(0));
+            if (l == null) {
+                continue;
+            }
+            for (Tuple t1 : l) {
+                Tuple out = new Tuple(combo);
+                for (int i = 0; i < 2; i++) {
+                    out.setField(i, t1.getField(i));
+                    out.setField(2 + i, t2.getField(i));
+                }
+                matches++;
+            }
+        }
+        return matches;
+    }
+
+    private static long intJoin(OpIterator build, OpIterator probe) throws DbException, TransactionAbortedException {
+        HashEquiJoin join = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0), build, probe);
+        join.setMemoryBudget(Long.MAX_VALUE);
+        join.open();
+        long matches = 0;
+        while (join.hasNext()) {
+            join.next();
+            matches++;
+        }
+        join.close();
+        return matches;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+        int keys = Math.max(1, rows / 10);
+        System.out.printf("%d rows, %d distinct keys%n", rows, keys);
+
+        // warm up both variants on a small input first
+        for (int round = 0; round < 2; round++) {
+            boolean warmup = round == 0;
+            int n = warmup ? rows / 20 : rows;
+            int k = Math.max(1, warmup ? keys / 20 : keys);
+            if (!warmup) {
+                System.out.println("GROUP BY key, SUM(value)");
+            }
+            Run boxedAgg = () -> boxedGroupBy(new RowSource(n, k, false));
+            Run intAgg = () -> intGroupBy(new RowSource(n, k, false));
+            Run boxedJoin = () -> boxedJoin(new RowSource(k, k, true), new RowSource(n, k, false));
+            Run intJoin = () -> intJoin(new RowSource(k, k, true), new RowSource(n, k, false));
+            if (warmup) {
+                boxedAgg.run();
+                intAgg.run();
+                boxedJoin.run();
+                intJoin.run();
+                continue;
+            }
+            measure("  boxed HashMap", n, boxedAgg);
+            measure("  IntegerAggregator", n, intAgg);
+            System.out.println("hash join, " + k + " build rows");
+            measure("  boxed HashMap", n, boxedJoin);
+            measure("  HashEquiJoin", n, intJoin);
+        }
+    }
+}
@@ -2,18 +2,35 @@ package simpledb.systemtest;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 
 import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import simpledb.Parser;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.execution.Aggregate;
 import simpledb.execution.Aggregator;
+import simpledb.execution.Exchange;
+import simpledb.execution.OpIterator;
+import simpledb.execution.OrderBy;
 import simpledb.execution.SeqScan;
+import simpledb.execution.SketchAggregator;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.optimizer.TableStats;
 import simpledb.storage.DbFile;
 import simpledb.storage.HeapFile;
+import simpledb.storage.MorselSource;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
@@ -121,6 +138,313 @@ public class AggregateTest extends SimpleDbTestBase {
         doAggregate(Aggregator.Op.AVG, Aggregator.NO_GROUPING);
     }
 
+    /**
+     * Groups by a column with many more values than fit into the memory
+     * budget, so that groups are spilled to disk and partitions are split
+     * again, and checks the results, also after a rewind.
+     */
+    @Test public void testSpilling() throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> createdTuples = new ArrayList<>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 5000, 4000, null, createdTuples);
+        for (Aggregator.Op operation : new Aggregator.Op[]{Aggregator.Op.SUM, Aggregator.Op.MIN, Aggregator.Op.AVG}) {
+            List<List<Integer>> expected = aggregate(createdTuples, operation, 0);
+            TransactionId tid = new TransactionId();
+            Aggregate ag = new Aggregate(new SeqScan(tid, table.getId(), ""), 1, 0, operation);
+            ag.setMemoryBudget(2000);
+            ag.open();
+            for (int pass = 0; pass < 2; pass++) {
+                List<List<Integer>> actual = new ArrayList<>();
+                while (ag.hasNext()) {
+                    actual.add(SystemTestUtil.tupleToList(ag.next()));
+                }
+                assertEquals(expected.size(), actual.size());
+                assertTrue(new HashSet<>(actual).equals(new HashSet<>(expected)));
+                ag.rewind();
+            }
+            ag.close();
+            assertTrue(ag.getSpilledPartitions() > 0);
+            Database.getBufferPool().transactionComplete(tid);
+        }
+    }
+
+    /**
+     * Aggregates a morsel-driven parallel scan in two phases, with and
+     * without grouping and with a memory budget that makes the partial
+     * aggregates spill, and checks that the results are those of the serial
+     * aggregate.
+     */
+    @Test public void testParallel() throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> createdTuples = new ArrayList<>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 20000, 2000, null, createdTuples);
+        final int workers = 4;
+        for (Aggregator.Op operation : Aggregator.Op.values()) {
+            if (operation == Aggregator.Op.SUM_COUNT || operation == Aggregator.Op.SC_AVG
+                    || SketchAggregator.isSketchOp(operation)) {
+                // internal or approximate, see testApproximate
+                continue;
+            }
+            for (int groupColumn : new int[]{0, Aggregator.NO_GROUPING}) {
+                for (long budget : new long[]{-1, 4000}) {
+                    TransactionId tid = new TransactionId();
+                    MorselSource morsels = new MorselSource(table.numPages(), 2, workers);
+                    OpIterator[] producers = new OpIterator[workers];
+                    for (int i = 0; i < workers; i++) {
+                        producers[i] = new SeqScan(tid, table.getId(), "", morsels, i);
+                    }
+                    Aggregate ag = new Aggregate(new Exchange(producers, morsels), 1, groupColumn, operation);
+                    ag.setMemoryBudget(budget);
+                    ag.open();
+                    List<List<Integer>> actual = new ArrayList<>();
+                    while (ag.hasNext()) {
+                        actual.add(SystemTestUtil.tupleToList(ag.next()));
+                    }
+                    ag.close();
+                    Database.getBufferPool().transactionComplete(tid);
+
+                    List<List<Integer>> expected = aggregate(createdTuples, operation, groupColumn);
+                    assertEquals(workers, ag.getPartialAggregates());
+                    assertEquals(budget > 0 && groupColumn != Aggregator.NO_GROUPING, ag.getSpilledPartitions() > 0);
+                    assertEquals(expected.size(), actual.size());
+                    assertTrue(new HashSet<>(actual).equals(new HashSet<>(expected)));
+                }
+            }
+        }
+    }
+
+    /** @return SUM(c2), COUNT(*), MAX(c2) and AVG(c2) of tuples, grouped by (c0, c1) */
+    private static List<List<Integer>> multipleAggregates(List<List<Integer>> tuples) {
+        Map<List<Integer>, List<Integer>> groups = new HashMap<>();
+        for (List<Integer> t : tuples) {
+            List<Integer> key = t.subList(0, 2);
+            List<Integer> g = groups.get(key);
+            if (g == null) {
+                g = new ArrayList<>();
+                g.add(0);
+                g.add(0);
+                g.add(Integer.MIN_VALUE);
+                groups.put(key, g);
+            }
+            g.set(0, g.get(0) + t.get(2));
+            g.set(1, g.get(1) + 1);
+            g.set(2, Math.max(g.get(2), t.get(2)));
+        }
+        List<List<Integer>> result = new ArrayList<>();
+        for (Map.Entry<List<Integer>, List<Integer>> e : groups.entrySet()) {
+            List<Integer> row = new ArrayList<>(e.getKey());
+            row.addAll(e.getValue());
+            row.add(e.getValue().get(0) / e.getValue().get(1));
+            result.add(row);
+        }
+        return result;
+    }
+
+    /**
+     * Computes several aggregates grouped by two columns in one Aggregate,
+     * serially, with spilling and in two phases over a parallel scan.
+     */
+    @Test public void testMultipleAggregates() throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> createdTuples = new ArrayList<>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 10000, 40, null, createdTuples);
+        List<List<Integer>> expected = multipleAggregates(createdTuples);
+        final int workers = 4;
+        for (boolean parallel : new boolean[]{false, true}) {
+            for (long budget : new long[]{-1, 4000}) {
+                TransactionId tid = new TransactionId();
+                OpIterator child;
+                if (parallel) {
+                    MorselSource morsels = new MorselSource(table.numPages(), 2, workers);
+                    OpIterator[] producers = new OpIterator[workers];
+                    for (int i = 0; i < workers; i++) {
+                        producers[i] = new SeqScan(tid, table.getId(), "", morsels, i);
+                    }
+                    child = new Exchange(producers, morsels);
+                } else {
+                    child = new SeqScan(tid, table.getId(), "");
+                }
+                Aggregate ag = new Aggregate(child, new int[]{2, 0, 2, 2}, new int[]{0, 1},
+                        new Aggregator.Op[]{Aggregator.Op.SUM, Aggregator.Op.COUNT, Aggregator.Op.MAX, Aggregator.Op.AVG});
+                ag.setMemoryBudget(budget);
+                ag.open();
+                List<List<Integer>> actual = new ArrayList<>();
+                while (ag.hasNext()) {
+                    actual.add(SystemTestUtil.tupleToList(ag.next()));
+                }
+                ag.close();
+                Database.getBufferPool().transactionComplete(tid);
+
+                assertEquals(parallel ? workers : 0, ag.getPartialAggregates());
+                assertEquals(budget > 0, ag.getSpilledPartitions() > 0);
+                assertEquals(expected.size(), actual.size());
+                assertEquals(new HashSet<>(expected), new HashSet<>(actual));
+            }
+        }
+    }
+
+    /**
+     * Parses a query with several aggregates and a GROUP BY on two columns.
+     */
+    @Test public void testParsedMultipleAggregates() throws Exception {
+        List<List<Integer>> createdTuples = new ArrayList<>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(3, 2000, 10, null, createdTuples, "c");
+        Database.getCatalog().addTable(table, "agg_t");
+        TableStats.setTableStats("agg_t", new TableStats(table.getId(), 1));
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> row : multipleAggregates(createdTuples)) {
+            expected.add(row.subList(0, 5));
+        }
+
+        TransactionId tid = new TransactionId();
+        OpIterator plan = new Parser().generateLogicalPlan(tid,
+                "SELECT agg_t.c0, agg_t.c1, SUM(agg_t.c2), COUNT(*), MAX(agg_t.c2) FROM agg_t"
+                        + " GROUP BY agg_t.c0, agg_t.c1;")
+                .physicalPlan(tid, TableStats.getStatsMap(), false);
+        List<List<Integer>> actual = new ArrayList<>();
+        plan.open();
+        while (plan.hasNext()) {
+            actual.add(SystemTestUtil.tupleToList(plan.next()));
+        }
+        plan.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(expected.size(), actual.size());
+        assertEquals(new HashSet<>(expected), new HashSet<>(actual));
+    }
+
+    /**
+     * Streams the groups of a scan of a B+ tree on the group-by column, and
+     * of an input sorted on two group-by columns, and checks that the
+     * results are those of the hash aggregate.
+     */
+    @Test public void testStreaming() throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> createdTuples = new ArrayList<>();
+        BTreeFile table = BTreeUtility.createRandomBTreeFile(
+                COLUMNS, 5000, 200, null, createdTuples, 0);
+        for (Aggregator.Op operation : new Aggregator.Op[]{Aggregator.Op.SUM, Aggregator.Op.MIN, Aggregator.Op.AVG}) {
+            TransactionId tid = new TransactionId();
+            SeqScan scan = new SeqScan(tid, table.getId(), "");
+            assertTrue(Aggregate.isGroupedOn(scan, new int[]{0}));
+            assertFalse(Aggregate.isGroupedOn(scan, new int[]{1}));
+            Aggregate ag = new Aggregate(scan, 1, 0, operation);
+            ag.setStreaming(true);
+            ag.open();
+            List<List<Integer>> actual = new ArrayList<>();
+            while (ag.hasNext()) {
+                actual.add(SystemTestUtil.tupleToList(ag.next()));
+            }
+            ag.close();
+            Database.getBufferPool().transactionComplete(tid);
+
+            List<List<Integer>> expected = aggregate(createdTuples, operation, 0);
+            expected.sort(Comparator.comparing(t -> t.get(0)));
+            // in order of the group-by column, like the scan
+            assertEquals(expected, actual);
+        }
+
+        TransactionId tid = new TransactionId();
+        OpIterator sorted = new OrderBy(new int[]{1, 0}, new boolean[]{true, false},
+                new SeqScan(tid, table.getId(), ""));
+        assertTrue(Aggregate.isGroupedOn(sorted, new int[]{0, 1}));
+        Aggregate ag = new Aggregate(sorted, new int[]{2, 0, 2, 2}, new int[]{0, 1},
+                new Aggregator.Op[]{Aggregator.Op.SUM, Aggregator.Op.COUNT, Aggregator.Op.MAX, Aggregator.Op.AVG});
+        ag.setStreaming(true);
+        ag.open();
+        List<List<Integer>> actual = new ArrayList<>();
+        while (ag.hasNext()) {
+            actual.add(SystemTestUtil.tupleToList(ag.next()));
+        }
+        ag.close();
+        Database.getBufferPool().transactionComplete(tid);
+        List<List<Integer>> expected = multipleAggregates(createdTuples);
+        assertEquals(expected.size(), actual.size());
+        assertEquals(new HashSet<>(expected), new HashSet<>(actual));
+    }
+
+    /** @return the fraction of values that are less than or equal to value */
+    private static double rank(List<Integer> values, int value) {
+        int rank = 0;
+        for (int v : values) {
+            if (v <= value) {
+                rank++;
+            }
+        }
+        return (double) rank / values.size();
+    }
+
+    /**
+     * Estimates the distinct values and percentiles of a column, serially
+     * and in two phases over a parallel scan, and of the groups of a column
+     * parsed from SQL, and checks that the estimates are close to the exact
+     * values.
+     */
+    @Test public void testApproximate() throws Exception {
+        List<List<Integer>> createdTuples = new ArrayList<>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 30000, 20000, null, createdTuples, "c");
+        List<Integer> values = new ArrayList<>();
+        for (List<Integer> t : createdTuples) {
+            values.add(t.get(1));
+        }
+        int distinct = new HashSet<>(values).size();
+        final int workers = 4;
+        for (boolean parallel : new boolean[]{false, true}) {
+            TransactionId tid = new TransactionId();
+            OpIterator child;
+            if (parallel) {
+                MorselSource morsels = new MorselSource(table.numPages(), 2, workers);
+                OpIterator[] producers = new OpIterator[workers];
+                for (int i = 0; i < workers; i++) {
+                    producers[i] = new SeqScan(tid, table.getId(), "", morsels, i);
+                }
+                child = new Exchange(producers, morsels);
+            } else {
+                child = new SeqScan(tid, table.getId(), "");
+            }
+            Aggregate ag = new Aggregate(child, new int[]{1, 1, 1}, new int[0],
+                    new Aggregator.Op[]{Aggregator.Op.APPROX_COUNT_DISTINCT,
+                            Aggregator.Op.APPROX_PERCENTILE, Aggregator.Op.APPROX_PERCENTILE},
+                    new double[]{0.5, 0.5, 0.9});
+            ag.open();
+            List<Integer> result = SystemTestUtil.tupleToList(ag.next());
+            assertFalse(ag.hasNext());
+            ag.close();
+            Database.getBufferPool().transactionComplete(tid);
+
+            assertEquals(parallel ? workers : 0, ag.getPartialAggregates());
+            assertEquals(distinct, result.get(0), distinct * 0.1);
+            assertEquals(0.5, rank(values, result.get(1)), 0.03);
+            assertEquals(0.9, rank(values, result.get(2)), 0.03);
+        }
+
+        Database.getCatalog().addTable(table, "approx_t");
+        TableStats.setTableStats("approx_t", new TableStats(table.getId(), 1));
+        TransactionId tid = new TransactionId();
+        OpIterator plan = new Parser().generateLogicalPlan(tid,
+                "SELECT approx_t.c0, APPROX_COUNT_DISTINCT(approx_t.c1), APPROX_PERCENTILE(approx_t.c1, 1)"
+                        + " FROM approx_t WHERE approx_t.c0 < 100 GROUP BY approx_t.c0;")
+                .physicalPlan(tid, TableStats.getStatsMap(), false);
+        Map<Integer, List<Integer>> groups = new HashMap<>();
+        for (List<Integer> t : createdTuples) {
+            if (t.get(0) < 100) {
+                groups.computeIfAbsent(t.get(0), k -> new ArrayList<>()).add(t.get(1));
+            }
+        }
+        plan.open();
+        int numGroups = 0;
+        while (plan.hasNext()) {
+            List<Integer> result = SystemTestUtil.tupleToList(plan.next());
+            // the groups have a few values, which the sketches count exactly
+            List<Integer> group = groups.get(result.get(0));
+            assertEquals(new HashSet<>(group).size(), (int) result.get(1));
+            assertEquals(Collections.max(group), result.get(2));
+            numGroups++;
+        }
+        plan.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(groups.size(), numGroups);
+    }
+
     /** Make scantest compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(AggregateTest.class);
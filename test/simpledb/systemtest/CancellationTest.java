@@ -0,0 +1,153 @@
+package simpledb.systemtest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import simpledb.Parser;
+import simpledb.common.Database;
+import simpledb.execution.Aggregate;
+import simpledb.execution.Aggregator;
+import simpledb.execution.HashEquiJoin;
+import simpledb.execution.Join;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.OrderBy;
+import simpledb.execution.Predicate;
+import simpledb.execution.Query;
+import simpledb.execution.QueryCancelledException;
+import simpledb.execution.QueryScheduler;
+import simpledb.execution.SeqScan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.transaction.TransactionId;
+
+public class CancellationTest extends SimpleDbTestBase {
+    private static final int ROWS = 3000;
+
+    private HeapFile table1;
+    private HeapFile table2;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        // every tuple of one table joins with every tuple of the other
+        table1 = SystemTestUtil.createRandomHeapFile(2, ROWS, Collections.singletonMap(0, 1), null, "c");
+        table2 = SystemTestUtil.createRandomHeapFile(2, ROWS, Collections.singletonMap(0, 1), null, "c");
+        Database.getCatalog().addTable(table1, "cancel_a");
+        Database.getCatalog().addTable(table2, "cancel_b");
+        TableStats.setTableStats("cancel_a", new TableStats(table1.getId(), 1));
+        TableStats.setTableStats("cancel_b", new TableStats(table2.getId(), 1));
+    }
+
+    private OpIterator crossJoin(TransactionId tid) {
+        return new Join(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                new SeqScan(tid, table1.getId(), "a"), new SeqScan(tid, table2.getId(), "b"));
+    }
+
+    /** A query cancelled while it returns tuples fails the next time it is asked for one */
+    @Test public void testCancel() throws Exception {
+        TransactionId tid = new TransactionId();
+        Query query = new Query(crossJoin(tid), tid);
+        query.start();
+        for (int i = 0; i < 100; i++) {
+            query.next();
+        }
+        query.cancel();
+        assertTrue(query.isCancelled());
+        try {
+            query.hasNext();
+            fail("expected the query to be cancelled");
+        } catch (QueryCancelledException e) {
+            assertEquals("Query cancelled", e.getMessage());
+        }
+        query.close();
+        assertEquals(0, QueryScheduler.getRunningQueries());
+        Database.getBufferPool().transactionComplete(tid, false);
+    }
+
+    /**
+     * A query cancelled from another thread stops in the loop of a join
+     * that finds no matches, without returning a tuple
+     */
+    @Test public void testCancelFromAnotherThread() throws Exception {
+        TransactionId tid = new TransactionId();
+        Join join = new Join(new JoinPredicate(0, Predicate.Op.NOT_EQUALS, 0),
+                new SeqScan(tid, table1.getId(), "a"), new SeqScan(tid, table2.getId(), "b"));
+        // a block per outer tuple, so that the inner relation is scanned once per outer tuple
+        join.setMemoryBudget(1);
+        Query query = new Query(join, tid);
+        query.start();
+        Thread canceller = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException ignored) {
+            }
+            query.cancel();
+        });
+        canceller.start();
+        try {
+            query.hasNext();
+            fail("expected the query to be cancelled");
+        } catch (QueryCancelledException expected) {
+        } finally {
+            query.close();
+            canceller.join();
+        }
+        Database.getBufferPool().transactionComplete(tid, false);
+    }
+
+    /** The build phases of hash joins, sorts and aggregates check the token before the first tuple */
+    @Test public void testCancelBuild() throws Exception {
+        TransactionId tid = new TransactionId();
+        OpIterator[] plans = {
+                new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                        new SeqScan(tid, table1.getId(), "a"), new SeqScan(tid, table2.getId(), "b")),
+                new OrderBy(1, true, new SeqScan(tid, table1.getId(), "a")),
+                new Aggregate(new SeqScan(tid, table1.getId(), "a"), 1, 0, Aggregator.Op.SUM),
+        };
+        for (OpIterator plan : plans) {
+            Query query = new Query(plan, tid);
+            query.cancel();
+            try {
+                query.start();
+                fail("expected the query to be cancelled");
+            } catch (QueryCancelledException expected) {
+            }
+            assertEquals(0, QueryScheduler.getRunningQueries());
+        }
+        Database.getBufferPool().transactionComplete(tid, false);
+    }
+
+    /**
+     * A statement that runs past the timeout of the parser is cancelled,
+     * and its transaction aborted
+     */
+    @Test public void testStatementTimeout() throws Exception {
+        Parser parser = new Parser();
+        parser.setStatementTimeout(200);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(output, true));
+        long start = System.currentTimeMillis();
+        try {
+            parser.processNextStatement("SELECT cancel_a.c1, cancel_b.c1 FROM cancel_a, cancel_b"
+                    + " WHERE cancel_a.c0 = cancel_b.c0;");
+        } finally {
+            System.setOut(out);
+        }
+        String printed = output.toString();
+        assertTrue(System.currentTimeMillis() - start < 10000);
+        assertTrue(printed, printed.contains("aborted because of unhandled error"));
+        assertTrue(printed, printed.contains("Query timed out after 200 ms"));
+        assertFalse(printed, printed.contains(" rows."));
+        assertEquals(0, QueryScheduler.getRunningQueries());
+    }
+}
@@ -0,0 +1,106 @@
+package simpledb.systemtest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+import simpledb.Parser;
+import simpledb.ParsingException;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.execution.OpIterator;
+import simpledb.execution.WorkMemory;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+public class DistinctTest extends SimpleDbTestBase {
+    private static final String TABLE = "distinct_t";
+
+    private List<List<Integer>> tuples;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(3, 5000, 40, null, tuples, "c");
+        Database.getCatalog().addTable(table, TABLE);
+        TableStats.setTableStats(TABLE, new TableStats(table.getId(), 1));
+    }
+
+    @After public void tearDown() {
+        WorkMemory.resetDefaultPages();
+    }
+
+    /** Runs a query through the parser and returns its rows in order */
+    private List<List<Integer>> runQuery(String sql)
+            throws IOException, ParsingException, DbException, TransactionAbortedException {
+        TransactionId tid = new TransactionId();
+        OpIterator plan = new Parser().generateLogicalPlan(tid, sql)
+                .physicalPlan(tid, TableStats.getStatsMap(), false);
+        List<List<Integer>> rows = new ArrayList<>();
+        plan.open();
+        while (plan.hasNext()) {
+            rows.add(SystemTestUtil.tupleToList(plan.next()));
+        }
+        plan.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return rows;
+    }
+
+    /** @return the distinct values of the given columns of the table, in order of first occurrence */
+    private List<List<Integer>> distinct(int... columns) {
+        LinkedHashSet<List<Integer>> rows = new LinkedHashSet<>();
+        for (List<Integer> t : tuples) {
+            List<Integer> row = new ArrayList<>();
+            for (int c : columns) {
+                row.add(t.get(c));
+            }
+            rows.add(row);
+        }
+        return new ArrayList<>(rows);
+    }
+
+    @Test public void testDistinct() throws Exception {
+        assertEquals(distinct(0), runQuery("SELECT DISTINCT " + TABLE + ".c0 FROM " + TABLE + ";"));
+        assertEquals(distinct(1, 0), runQuery("SELECT DISTINCT " + TABLE + ".c1, "
+                + TABLE + ".c0 FROM " + TABLE + ";"));
+        assertEquals(tuples.size(), runQuery("SELECT " + TABLE + ".c0 FROM " + TABLE + ";").size());
+    }
+
+    /**
+     * Removes the duplicates with a work memory of one page, which makes
+     * Distinct spill its tuples to disk
+     */
+    @Test public void testSpilledDistinct() throws Exception {
+        WorkMemory.setDefaultPages(1);
+        List<List<Integer>> expected = distinct(0, 1, 2);
+        List<List<Integer>> actual = runQuery("SELECT DISTINCT * FROM " + TABLE + ";");
+        assertEquals(expected.size(), actual.size());
+        assertEquals(new LinkedHashSet<>(expected), new LinkedHashSet<>(actual));
+    }
+
+    @Test public void testDistinctOrderByLimit() throws Exception {
+        Comparator<List<Integer>> order = Comparator.comparing((List<Integer> t) -> t.get(1)).reversed()
+                .thenComparing(t -> t.get(0));
+        List<List<Integer>> expected = distinct(0, 1);
+        expected.sort(order);
+        assertEquals(expected, runQuery("SELECT DISTINCT " + TABLE + ".c0, " + TABLE + ".c1 FROM " + TABLE
+                + " ORDER BY " + TABLE + ".c1 DESC, " + TABLE + ".c0;"));
+        assertEquals(expected.subList(5, 15), runQuery("SELECT DISTINCT " + TABLE + ".c0, " + TABLE + ".c1 FROM "
+                + TABLE + " ORDER BY " + TABLE + ".c1 DESC, " + TABLE + ".c0 LIMIT 10 OFFSET 5;"));
+    }
+
+    @Test(expected = ParsingException.class)
+    public void testOrderByNotSelected() throws Exception {
+        runQuery("SELECT DISTINCT " + TABLE + ".c0 FROM " + TABLE + " ORDER BY " + TABLE + ".c1;");
+    }
+}
@@ -0,0 +1,148 @@
+package simpledb.systemtest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import simpledb.Parser;
+import simpledb.ParsingException;
+import simpledb.common.Database;
+import simpledb.execution.Exchange;
+import simpledb.execution.Filter;
+import simpledb.execution.OpIterator;
+import simpledb.execution.OperatorProfile;
+import simpledb.execution.OrderBy;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.optimizer.QueryPlanVisualizer;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.transaction.TransactionId;
+
+public class ExplainAnalyzeTest extends SimpleDbTestBase {
+    private static final String TABLE = "analyze_t";
+    private static final int ROWS = 5000;
+
+    private List<List<Integer>> tuples;
+    private HeapFile table;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<>();
+        table = SystemTestUtil.createRandomHeapFile(3, ROWS, 100, null, tuples, "c");
+        Database.getCatalog().addTable(table, TABLE);
+        TableStats.setTableStats(TABLE, new TableStats(table.getId(), 1));
+    }
+
+    private static int drain(OpIterator plan) throws Exception {
+        int rows = 0;
+        plan.open();
+        while (plan.hasNext()) {
+            plan.next();
+            rows++;
+        }
+        plan.close();
+        return rows;
+    }
+
+    /**
+     * Runs a plan with profiles attached, and checks the rows, pages and
+     * memory counted for each operator
+     */
+    @Test public void testProfiledPlan() throws Exception {
+        int expected = 0;
+        for (List<Integer> t : tuples) {
+            if (t.get(1) < 30) {
+                expected++;
+            }
+        }
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, table.getId(), TABLE);
+        Filter filter = new Filter(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(30)), scan);
+        OrderBy orderBy = new OrderBy(new int[]{0}, new boolean[]{true}, filter);
+        OperatorProfile.attach(orderBy);
+        assertEquals(expected, drain(orderBy));
+        Database.getBufferPool().transactionComplete(tid);
+
+        Map<OpIterator, OperatorProfile> profiles = OperatorProfile.summarize(orderBy);
+        assertEquals(expected, profiles.get(orderBy).getRows());
+        assertEquals(expected, profiles.get(filter).getRows());
+        assertTrue(profiles.get(scan).getRows() >= expected);
+        assertEquals(table.numPages(), profiles.get(scan).getPagesRead() + profiles.get(scan).getPageHits());
+        assertTrue(profiles.get(orderBy).getPeakMemory() > 0);
+        assertEquals(0, profiles.get(filter).getPeakMemory());
+        OpIterator[] plan = {orderBy, filter, scan};
+        for (int i = 0; i < plan.length; i++) {
+            OperatorProfile p = profiles.get(plan[i]);
+            assertTrue(p.getSelfNanos() >= 0 && p.getSelfNanos() <= p.getTotalNanos());
+            if (i > 0) {
+                assertTrue(p.getTotalNanos() <= profiles.get(plan[i - 1]).getTotalNanos());
+            }
+        }
+        String tree = new QueryPlanVisualizer().getAnalyzedQueryPlanTree(orderBy);
+        assertTrue(tree, tree.contains("actual:" + expected));
+    }
+
+    /**
+     * The counters of the producers of an Exchange are summed into the
+     * profile of the first producer, which stands for all of them in the plan
+     */
+    @Test public void testExchangeProducers() throws Exception {
+        TransactionId tid = new TransactionId();
+        SeqScan[] producers = SeqScan.partition(tid, table.getId(), TABLE, 4);
+        Exchange exchange = new Exchange(producers);
+        OperatorProfile.attach(exchange);
+        assertEquals(ROWS, drain(exchange));
+        Database.getBufferPool().transactionComplete(tid);
+
+        Map<OpIterator, OperatorProfile> profiles = OperatorProfile.summarize(exchange);
+        assertEquals(ROWS, profiles.get(exchange).getRows());
+        assertEquals(ROWS, profiles.get(producers[0]).getRows());
+        assertEquals(table.numPages(), profiles.get(producers[0]).getPagesRead()
+                + profiles.get(producers[0]).getPageHits());
+        assertTrue(profiles.get(producers[0]).getTotalNanos() <= profiles.get(exchange).getTotalNanos());
+    }
+
+    /**
+     * EXPLAIN ANALYZE runs the query and prints its plan with the actual
+     * cardinalities instead of its result
+     */
+    @Test public void testExplainAnalyzeStatement() throws Exception {
+        int expected = 0;
+        for (List<Integer> t : tuples) {
+            if (t.get(2) >= 50) {
+                expected++;
+            }
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(output, true));
+        try {
+            new Parser().processNextStatement("explain analyze SELECT " + TABLE + ".c0 FROM " + TABLE
+                    + " WHERE " + TABLE + ".c2 >= 50;");
+        } finally {
+            System.setOut(out);
+        }
+        String printed = output.toString();
+        assertTrue(printed, printed.contains(" " + expected + " rows."));
+        assertTrue(printed, printed.contains("The analyzed query plan is:"));
+        assertTrue(printed, printed.contains("actual:" + expected));
+        assertFalse(printed, printed.contains("Tuple{"));
+    }
+
+    @Test(expected = ParsingException.class)
+    public void testExplainAnalyzeOnlySelect() throws Exception {
+        new Parser().generateLogicalPlan(new TransactionId(),
+                "EXPLAIN ANALYZE DELETE FROM " + TABLE + " WHERE " + TABLE + ".c0 = 1;");
+    }
+}
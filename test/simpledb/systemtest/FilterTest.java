@@ -2,11 +2,19 @@ package simpledb.systemtest;
 
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.execution.Filter;
 import simpledb.execution.Predicate;
 import simpledb.execution.SeqScan;
 import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
@@ -28,6 +36,40 @@ public class FilterTest extends FilterBase {
         return resultCount;
     }
 
+    /**
+     * Pushes the predicates of Filters down into narrowed scans over page
+     * ranges of the table, which evaluate them on the bytes of the pages
+     */
+    @Test public void testPushedDownPredicates() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(3, 3000, 100, null, tuples);
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> t : tuples) {
+            if (t.get(2) < 60 && t.get(0) != 7) {
+                expected.add(Arrays.asList(t.get(2), t.get(0)));
+            }
+        }
+
+        TransactionId tid = new TransactionId();
+        List<Predicate> predicates = Arrays.asList(
+                new Predicate(0, Predicate.Op.LESS_THAN, new IntField(60)),
+                new Predicate(1, Predicate.Op.NOT_EQUALS, new IntField(7)));
+        List<List<Integer>> actual = new ArrayList<>();
+        for (SeqScan ss : SeqScan.partition(tid, table.getId(), "", 3)) {
+            ss.setOutputFields(new int[]{2, 0});
+            Filter filter = new Filter(predicates, ss);
+            filter.open();
+            while (filter.hasNext()) {
+                actual.add(SystemTestUtil.tupleToList(filter.next()));
+            }
+            filter.rewind();
+            assertTrue(filter.hasNext() || actual.isEmpty());
+            filter.close();
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(expected, actual);
+    }
+
     /** Make scantest compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(FilterTest.class);
@@ -2,19 +2,42 @@ package simpledb.systemtest;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import org.junit.Test;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import simpledb.Parser;
 import simpledb.common.Database;
 import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.Exchange;
+import simpledb.execution.Filter;
+import simpledb.execution.HashEquiJoin;
+import simpledb.execution.IndexNestedLoopJoin;
 import simpledb.execution.Join;
 import simpledb.execution.JoinPredicate;
+import simpledb.execution.MergeJoin;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.OrderBy;
+import simpledb.execution.ParallelHashJoin;
 import simpledb.execution.Predicate;
+import simpledb.execution.Project;
 import simpledb.execution.SeqScan;
+import simpledb.execution.WorkMemory;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.optimizer.TableStats;
 import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
@@ -77,6 +100,412 @@ public class JoinTest extends SimpleDbTestBase {
         validateJoin(1, 3, 1, 3);
     }
 
+    /**
+     * A hash join whose build side does not fit into its memory budget, so
+     * that partitions are spilled to disk (and re-partitioned once more).
+     */
+    @Test public void testSpillingHashJoin()
+            throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> t1Tuples = new ArrayList<>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 3000, 500, null, t1Tuples);
+        List<List<Integer>> t2Tuples = new ArrayList<>();
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 2000, 500, null, t2Tuples);
+
+        List<List<Integer>> expectedResults = equiJoin(t1Tuples, t2Tuples);
+
+        TransactionId tid = new TransactionId();
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        // room for a small part of the build side; with the smaller budget,
+        // the spilled partitions are too large as well and are split again
+        for (long budget : new long[]{30000, 4000}) {
+            HashEquiJoin joinOp = new HashEquiJoin(p,
+                    new SeqScan(tid, table1.getId(), ""), new SeqScan(tid, table2.getId(), ""));
+            joinOp.setMemoryBudget(budget);
+            SystemTestUtil.matchTuples(joinOp, expectedResults);
+            assertTrue(joinOp.getSpilledPartitions() > 0);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Joins whose inputs are larger than the optimizer expected: a nested
+     * loop equi-join whose outer relation does not fit into one block
+     * switches to a hash join, and a hash join whose build side overflows
+     * its memory budget while its probe side fits swaps its inputs.
+     */
+    @Test public void testAdaptiveJoin()
+            throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> t1Tuples = new ArrayList<>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 3000, 500, null, t1Tuples);
+        List<List<Integer>> t2Tuples = new ArrayList<>();
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 200, 500, null, t2Tuples);
+        List<List<Integer>> expectedResults = equiJoin(t1Tuples, t2Tuples);
+
+        TransactionId tid = new TransactionId();
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        long budget = 400 * WorkMemory.estimateTupleBytes(table1.getTupleDesc());
+        for (boolean adaptive : new boolean[]{true, false}) {
+            Join joinOp = new Join(p, new SeqScan(tid, table1.getId(), ""), new SeqScan(tid, table2.getId(), ""));
+            joinOp.setMemoryBudget(budget);
+            joinOp.setAdaptive(adaptive);
+            SystemTestUtil.matchTuples(joinOp, expectedResults);
+            assertEquals(adaptive, joinOp.hasSwitchedToHashJoin());
+            assertEquals(adaptive ? 1 : 8, joinOp.getBlocks());
+
+            HashEquiJoin hashJoin = new HashEquiJoin(p,
+                    new SeqScan(tid, table1.getId(), ""), new SeqScan(tid, table2.getId(), ""));
+            hashJoin.setMemoryBudget(budget);
+            hashJoin.setAdaptive(adaptive);
+            SystemTestUtil.matchTuples(hashJoin, expectedResults);
+            assertEquals(adaptive, hashJoin.hasSwappedInputs());
+            assertEquals(adaptive, hashJoin.getSpilledPartitions() == 0);
+        }
+
+        // the outer relation fits into one block, whose tuples are hashed
+        Join joinOp = new Join(p, new SeqScan(tid, table2.getId(), ""), new SeqScan(tid, table1.getId(), ""));
+        joinOp.setMemoryBudget(budget);
+        List<List<Integer>> swappedResults = equiJoin(t2Tuples, t1Tuples);
+        SystemTestUtil.matchTuples(joinOp, swappedResults);
+        assertFalse(joinOp.hasSwitchedToHashJoin());
+        assertEquals(1, joinOp.getBlocks());
+
+        // a switched join reads the whole outer relation again when rewound
+        joinOp = new Join(p, new SeqScan(tid, table1.getId(), ""), new SeqScan(tid, table2.getId(), ""));
+        joinOp.setMemoryBudget(budget);
+        joinOp.open();
+        for (int pass = 0; pass < 2; pass++) {
+            int rows = 0;
+            while (joinOp.hasNext()) {
+                joinOp.next();
+                rows++;
+            }
+            assertEquals(expectedResults.size(), rows);
+            joinOp.rewind();
+        }
+        joinOp.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * The parallel hash join, with a build side that is partitioned by the
+     * producers of a gather exchange, both in memory and with partitions
+     * spilled to disk.
+     */
+    @Test public void testParallelHashJoin()
+            throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> t1Tuples = new ArrayList<>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 3000, 500, null, t1Tuples);
+        List<List<Integer>> t2Tuples = new ArrayList<>();
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 2000, 500, null, t2Tuples);
+        List<List<Integer>> expectedResults = equiJoin(t1Tuples, t2Tuples);
+
+        TransactionId tid = new TransactionId();
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        for (long budget : new long[]{-1, 30000}) {
+            ParallelHashJoin joinOp = new ParallelHashJoin(p,
+                    new Exchange(SeqScan.partition(tid, table1.getId(), "", 3)),
+                    new SeqScan(tid, table2.getId(), ""));
+            joinOp.setNumPartitions(16);
+            joinOp.setMemoryBudget(budget);
+            SystemTestUtil.matchTuples(joinOp, expectedResults);
+            assertEquals(16, joinOp.getNumPartitions());
+            assertEquals(budget > 0, joinOp.getSpilledPartitions() > 0);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * The sort-merge join with many duplicate keys, sorting its inputs in
+     * memory and on disk, and reading an input that is already sorted as it is.
+     */
+    @Test public void testMergeJoin()
+            throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> t1Tuples = new ArrayList<>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 2000, 100, null, t1Tuples);
+        List<List<Integer>> t2Tuples = new ArrayList<>();
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 1000, 150, null, t2Tuples);
+        List<List<Integer>> expectedResults = equiJoin(t1Tuples, t2Tuples);
+
+        TransactionId tid = new TransactionId();
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        for (long budget : new long[]{-1, 20000}) {
+            MergeJoin joinOp = new MergeJoin(p,
+                    new SeqScan(tid, table1.getId(), ""), new SeqScan(tid, table2.getId(), ""));
+            joinOp.setMemoryBudget(budget);
+            SystemTestUtil.matchTuples(joinOp, expectedResults);
+            assertEquals(2, joinOp.getSortedInputs());
+        }
+
+        MergeJoin joinOp = new MergeJoin(p,
+                new OrderBy(0, true, new SeqScan(tid, table1.getId(), "")),
+                new SeqScan(tid, table2.getId(), ""));
+        SystemTestUtil.matchTuples(joinOp, expectedResults);
+        assertEquals(1, joinOp.getSortedInputs());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** The merge join with inequality predicates, within and over its memory budget */
+    @Test public void testMergeJoinInequality()
+            throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> t1Tuples = new ArrayList<>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 200, 100, null, t1Tuples);
+        List<List<Integer>> t2Tuples = new ArrayList<>();
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 100, 100, null, t2Tuples);
+
+        TransactionId tid = new TransactionId();
+        for (Predicate.Op op : new Predicate.Op[]{Predicate.Op.GREATER_THAN, Predicate.Op.LESS_THAN_OR_EQ,
+                Predicate.Op.NOT_EQUALS}) {
+            List<List<Integer>> expectedResults = new ArrayList<>();
+            for (List<Integer> t1 : t1Tuples) {
+                for (List<Integer> t2 : t2Tuples) {
+                    if (new IntField(t1.get(0)).compare(op, new IntField(t2.get(0)))) {
+                        List<Integer> out = new ArrayList<>(t1);
+                        out.addAll(t2);
+                        expectedResults.add(out);
+                    }
+                }
+            }
+            // the right input sorted in memory, and on disk
+            for (long budget : new long[]{-1, 1000}) {
+                MergeJoin joinOp = new MergeJoin(new JoinPredicate(0, op, 0),
+                        new SeqScan(tid, table1.getId(), ""), new SeqScan(tid, table2.getId(), ""));
+                joinOp.setMemoryBudget(budget);
+                SystemTestUtil.matchTuples(joinOp, expectedResults);
+            }
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * The block nested-loop join with an inequality predicate: the inner
+     * relation is scanned once per block of outer tuples.
+     */
+    @Test public void testBlockNestedLoopJoin()
+            throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> t1Tuples = new ArrayList<>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 300, 100, null, t1Tuples);
+        List<List<Integer>> t2Tuples = new ArrayList<>();
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 100, 100, null, t2Tuples);
+        List<List<Integer>> expectedResults = new ArrayList<>();
+        for (List<Integer> t1 : t1Tuples) {
+            for (List<Integer> t2 : t2Tuples) {
+                if (t1.get(0) < t2.get(0)) {
+                    List<Integer> out = new ArrayList<>(t1);
+                    out.addAll(t2);
+                    expectedResults.add(out);
+                }
+            }
+        }
+
+        TransactionId tid = new TransactionId();
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.LESS_THAN, 0);
+        // room for all outer tuples, then for 50 of them per block
+        for (long budget : new long[]{-1, 50 * WorkMemory.estimateTupleBytes(table1.getTupleDesc())}) {
+            Join joinOp = new Join(p, new SeqScan(tid, table1.getId(), ""), new SeqScan(tid, table2.getId(), ""));
+            joinOp.setMemoryBudget(budget);
+            SystemTestUtil.matchTuples(joinOp, expectedResults);
+            assertEquals(budget < 0 ? 1 : 6, joinOp.getBlocks());
+        }
+
+        // an empty outer relation
+        HeapFile empty = SystemTestUtil.createRandomHeapFile(COLUMNS, 0, null, null);
+        Join joinOp = new Join(p, new SeqScan(tid, empty.getId(), ""), new SeqScan(tid, table2.getId(), ""));
+        SystemTestUtil.matchTuples(joinOp, new ArrayList<>());
+        assertEquals(0, joinOp.getBlocks());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * A hash join with a small, selective build side: its runtime filter
+     * drops most probe tuples in the probe scan, or in a Filter over it, and
+     * the result is the same as without the filter, also when spilling.
+     */
+    @Test public void testRuntimeFilter()
+            throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> t1Tuples = new ArrayList<>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 50, 10000, null, t1Tuples);
+        List<List<Integer>> t2Tuples = new ArrayList<>();
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 2000, 10000, null, t2Tuples);
+        List<List<Integer>> expectedResults = equiJoin(t1Tuples, t2Tuples);
+
+        TransactionId tid = new TransactionId();
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        for (long budget : new long[]{-1, 1000}) {
+            HashEquiJoin joinOp = new HashEquiJoin(p,
+                    new SeqScan(tid, table1.getId(), ""), new SeqScan(tid, table2.getId(), ""));
+            joinOp.setMemoryBudget(budget);
+            SystemTestUtil.matchTuples(joinOp, expectedResults);
+            assertTrue(joinOp.getRuntimeFilter().getRejected() > 1500);
+        }
+
+        OpIterator probe = new Filter(new Predicate(1, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(0)),
+                new SeqScan(tid, table2.getId(), ""));
+        HashEquiJoin joinOp = new HashEquiJoin(p, new SeqScan(tid, table1.getId(), ""), probe);
+        SystemTestUtil.matchTuples(joinOp, expectedResults);
+        assertTrue(joinOp.getRuntimeFilter().getRejected() > 1500);
+
+        joinOp = new HashEquiJoin(p, new SeqScan(tid, table1.getId(), ""), new SeqScan(tid, table2.getId(), ""));
+        joinOp.setRuntimeFilterEnabled(false);
+        SystemTestUtil.matchTuples(joinOp, expectedResults);
+        assertNull(joinOp.getRuntimeFilter());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * The index nested-loop join, looking up the inner tuples of each outer
+     * tuple in a B+ tree on the inner join field, with equality and range
+     * predicates and a filter on the inner relation.
+     */
+    @Test public void testIndexNestedLoopJoin()
+            throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> t1Tuples = new ArrayList<>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 200, 100, null, t1Tuples);
+        List<List<Integer>> t2Tuples = new ArrayList<>();
+        BTreeFile table2 = BTreeUtility.createRandomBTreeFile(
+                COLUMNS, 2000, 100, null, t2Tuples, 0);
+
+        TransactionId tid = new TransactionId();
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        IndexNestedLoopJoin joinOp = new IndexNestedLoopJoin(p,
+                new SeqScan(tid, table1.getId(), ""), new SeqScan(tid, table2.getId(), ""));
+        SystemTestUtil.matchTuples(joinOp, equiJoin(t1Tuples, t2Tuples));
+
+        for (Predicate.Op op : new Predicate.Op[]{Predicate.Op.GREATER_THAN, Predicate.Op.LESS_THAN_OR_EQ}) {
+            List<List<Integer>> expectedResults = new ArrayList<>();
+            for (List<Integer> t1 : t1Tuples) {
+                for (List<Integer> t2 : t2Tuples) {
+                    if (new IntField(t1.get(0)).compare(op, new IntField(t2.get(0))) && t2.get(1) < 50) {
+                        List<Integer> out = new ArrayList<>(t1);
+                        out.addAll(t2);
+                        expectedResults.add(out);
+                    }
+                }
+            }
+            OpIterator inner = new Filter(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(50)),
+                    new SeqScan(tid, table2.getId(), ""));
+            joinOp = new IndexNestedLoopJoin(new JoinPredicate(0, op, 0),
+                    new SeqScan(tid, table1.getId(), ""), inner);
+            SystemTestUtil.matchTuples(joinOp, expectedResults);
+        }
+
+        // only a B+ tree on the join field can be probed
+        assertFalse(IndexNestedLoopJoin.canProbe(p, new SeqScan(tid, table1.getId(), "")));
+        assertFalse(IndexNestedLoopJoin.canProbe(new JoinPredicate(0, Predicate.Op.EQUALS, 1),
+                new SeqScan(tid, table2.getId(), "")));
+        assertFalse(IndexNestedLoopJoin.canProbe(new JoinPredicate(0, Predicate.Op.NOT_EQUALS, 0),
+                new SeqScan(tid, table2.getId(), "")));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Joins over scans that return only some fields: an index join whose
+     * inner scan returns the key as its second field, a hash join with a
+     * runtime filter in the narrowed probe scan, and a parsed join query,
+     * whose scans only return the fields it refers to.
+     */
+    @Test public void testNarrowedScans() throws Exception {
+        List<List<Integer>> t1Tuples = new ArrayList<>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(3, 300, 100, null, t1Tuples, "c");
+        List<List<Integer>> t2Tuples = new ArrayList<>();
+        BTreeFile table2 = BTreeUtility.createRandomBTreeFile(3, 2000, 100, null, t2Tuples, 0);
+        List<List<Integer>> expectedResults = new ArrayList<>();
+        for (List<Integer> t1 : t1Tuples) {
+            for (List<Integer> t2 : t2Tuples) {
+                if (t1.get(0).equals(t2.get(0)) && t2.get(1) < 50) {
+                    expectedResults.add(Arrays.asList(t1.get(0), t2.get(2), t2.get(0)));
+                }
+            }
+        }
+
+        TransactionId tid = new TransactionId();
+        SeqScan outer = new SeqScan(tid, table1.getId(), "");
+        outer.setOutputFields(new int[]{0});
+        SeqScan inner = new SeqScan(tid, table2.getId(), "");
+        inner.setOutputFields(new int[]{1, 2, 0});
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 2);
+        OpIterator filtered = new Filter(new Predicate(0, Predicate.Op.LESS_THAN, new IntField(50)), inner);
+        assertTrue(IndexNestedLoopJoin.canProbe(p, filtered));
+        List<Integer> fields = Arrays.asList(0, 2, 3);
+        List<Type> types = Arrays.asList(Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE);
+        SystemTestUtil.matchTuples(new Project(fields, types, new IndexNestedLoopJoin(p, outer, filtered)),
+                expectedResults);
+
+        HashEquiJoin hashJoin = new HashEquiJoin(p, outer, filtered);
+        SystemTestUtil.matchTuples(new Project(fields, types, hashJoin), expectedResults);
+        assertTrue(hashJoin.getRuntimeFilter().getTested() > 0);
+        Database.getBufferPool().transactionComplete(tid);
+
+        // the same join over heap files with named fields, through the parser
+        List<List<Integer>> t3Tuples = new ArrayList<>();
+        HeapFile table3 = SystemTestUtil.createRandomHeapFile(3, 2000, 100, null, t3Tuples, "c");
+        expectedResults.clear();
+        for (List<Integer> t1 : t1Tuples) {
+            for (List<Integer> t3 : t3Tuples) {
+                if (t1.get(0).equals(t3.get(0)) && t3.get(1) < 50) {
+                    expectedResults.add(Arrays.asList(t1.get(0), t3.get(0)));
+                }
+            }
+        }
+        Database.getCatalog().addTable(table1, "narrow_a");
+        Database.getCatalog().addTable(table3, "narrow_b");
+        TableStats.setTableStats("narrow_a", new TableStats(table1.getId(), 1));
+        TableStats.setTableStats("narrow_b", new TableStats(table3.getId(), 1));
+        tid = new TransactionId();
+        OpIterator plan = new Parser().generateLogicalPlan(tid,
+                "SELECT narrow_a.c0, narrow_b.c0 FROM narrow_a, narrow_b"
+                        + " WHERE narrow_a.c0 = narrow_b.c0 AND narrow_b.c1 < 50;")
+                .physicalPlan(tid, TableStats.getStatsMap(), false);
+        List<SeqScan> scans = new ArrayList<>();
+        findScans(plan, scans);
+        assertEquals(2, scans.size());
+        for (SeqScan scan : scans) {
+            assertTrue(scan.getTupleDesc().numFields() < 3);
+        }
+        SystemTestUtil.matchTuples(plan, expectedResults);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static void findScans(OpIterator plan, List<SeqScan> scans) {
+        if (plan instanceof SeqScan) {
+            scans.add((SeqScan) plan);
+        } else if (plan instanceof Operator) {
+            for (OpIterator child : ((Operator) plan).getChildren()) {
+                findScans(child, scans);
+            }
+        }
+    }
+
+    private static List<List<Integer>> equiJoin(List<List<Integer>> t1Tuples, List<List<Integer>> t2Tuples) {
+        Map<Integer, List<List<Integer>>> t1ByKey = new HashMap<>();
+        for (List<Integer> t1 : t1Tuples) {
+            t1ByKey.computeIfAbsent(t1.get(0), k -> new ArrayList<>()).add(t1);
+        }
+        List<List<Integer>> expectedResults = new ArrayList<>();
+        for (List<Integer> t2 : t2Tuples) {
+            for (List<Integer> t1 : t1ByKey.getOrDefault(t2.get(0), new ArrayList<>())) {
+                List<Integer> out = new ArrayList<>(t1);
+                out.addAll(t2);
+                expectedResults.add(out);
+            }
+        }
+        return expectedResults;
+    }
+
     /** Make scantest compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(JoinTest.class);
@@ -0,0 +1,109 @@
+package simpledb.systemtest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import simpledb.Parser;
+import simpledb.ParsingException;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.execution.OpIterator;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+public class LimitTest extends SimpleDbTestBase {
+    private static final String TABLE = "limit_t";
+
+    private List<List<Integer>> tuples;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 2000, 100, null, tuples, "c");
+        Database.getCatalog().addTable(table, TABLE);
+        TableStats.setTableStats(TABLE, new TableStats(table.getId(), 1));
+    }
+
+    /** Runs a query through the parser and returns its rows in order */
+    private List<List<Integer>> runQuery(String sql)
+            throws IOException, ParsingException, DbException, TransactionAbortedException {
+        TransactionId tid = new TransactionId();
+        OpIterator plan = new Parser().generateLogicalPlan(tid, sql)
+                .physicalPlan(tid, TableStats.getStatsMap(), false);
+        List<List<Integer>> rows = new ArrayList<>();
+        plan.open();
+        while (plan.hasNext()) {
+            rows.add(SystemTestUtil.tupleToList(plan.next()));
+        }
+        plan.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return rows;
+    }
+
+    private List<List<Integer>> sortedRange(boolean asc, int from, int to) {
+        Comparator<List<Integer>> byFirst = Comparator.comparing(t -> t.get(0));
+        List<List<Integer>> sorted = new ArrayList<>(tuples);
+        sorted.sort(asc ? byFirst : byFirst.reversed());
+        return sorted.subList(Math.min(from, sorted.size()), Math.min(to, sorted.size()));
+    }
+
+    @Test public void testLimit() throws Exception {
+        assertEquals(tuples.subList(0, 7), runQuery("SELECT * FROM " + TABLE + " LIMIT 7;"));
+        assertEquals(tuples.subList(3, 8), runQuery("SELECT * FROM " + TABLE + " limit 5 offset 3;"));
+        assertEquals(new ArrayList<>(), runQuery("SELECT * FROM " + TABLE + " LIMIT 0;"));
+    }
+
+    /** ORDER BY with a small limit is planned as a Top-N */
+    @Test public void testOrderByLimit() throws Exception {
+        String orderBy = "SELECT * FROM " + TABLE + " ORDER BY " + TABLE + ".c0";
+        assertEquals(sortedRange(true, 0, 10), runQuery(orderBy + " LIMIT 10;"));
+        assertEquals(sortedRange(true, 4, 14), runQuery(orderBy + " LIMIT 10 OFFSET 4;"));
+        assertEquals(sortedRange(false, 0, 25), runQuery(orderBy + " DESC LIMIT 25;"));
+        assertEquals(sortedRange(true, 1990, 2000), runQuery(orderBy + " LIMIT 100 OFFSET 1990;"));
+    }
+
+    /** A statement with a LIMIT is read from a stream without reading the statements after it */
+    @Test public void testLimitLeavesRestOfStream() throws Exception {
+        String next = " SELECT * FROM " + TABLE + ";";
+        InputStream in = new ByteArrayInputStream(("SELECT * FROM " + TABLE + " LIMIT 3;" + next)
+                .getBytes(StandardCharsets.UTF_8));
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(output, true));
+        try {
+            new Parser().processNextStatement(in);
+        } finally {
+            System.setOut(out);
+        }
+        assertTrue(output.toString(), output.toString().contains("3 rows."));
+        byte[] rest = new byte[next.length() + 1];
+        assertEquals(next.length(), in.read(rest));
+        assertEquals(next, new String(rest, 0, next.length(), StandardCharsets.UTF_8));
+    }
+
+    @Test(expected = ParsingException.class)
+    public void testLimitOnInsert() throws Exception {
+        new Parser().generateLogicalPlan(new TransactionId(),
+                "INSERT INTO " + TABLE + " VALUES (1, 2) LIMIT 1;");
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(LimitTest.class);
+    }
+}
@@ -0,0 +1,139 @@
+package simpledb.systemtest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import simpledb.Parser;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.execution.ExternalSorter;
+import simpledb.execution.OpIterator;
+import simpledb.execution.OrderBy;
+import simpledb.execution.SeqScan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+public class OrderByTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 2;
+    private static final int ROWS = 5000;
+
+    /**
+     * Sorts a table by its first column with the given memory budget, and
+     * checks that the output is in the expected (stable) order, also after a
+     * rewind.
+     *
+     * @return the number of runs the sort spilled to disk
+     */
+    private int validateOrderBy(boolean asc, long budget)
+            throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, ROWS, 300, null, tuples);
+        Comparator<List<Integer>> byFirst = Comparator.comparing(t -> t.get(0));
+        List<List<Integer>> expected = new ArrayList<>(tuples);
+        expected.sort(asc ? byFirst : byFirst.reversed());
+
+        TransactionId tid = new TransactionId();
+        OrderBy orderBy = new OrderBy(0, asc, new SeqScan(tid, table.getId(), ""));
+        orderBy.setMemoryBudget(budget);
+        orderBy.open();
+        for (int pass = 0; pass < 2; pass++) {
+            List<List<Integer>> actual = new ArrayList<>();
+            while (orderBy.hasNext()) {
+                actual.add(SystemTestUtil.tupleToList(orderBy.next()));
+            }
+            assertEquals(expected, actual);
+            orderBy.rewind();
+        }
+        int runs = orderBy.getSpilledRuns();
+        orderBy.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return runs;
+    }
+
+    @Test public void testInMemory()
+            throws IOException, DbException, TransactionAbortedException {
+        assertEquals(0, validateOrderBy(true, -1));
+        assertEquals(0, validateOrderBy(false, -1));
+    }
+
+    /** Sorted runs on disk, merged in a single pass */
+    @Test public void testExternal()
+            throws IOException, DbException, TransactionAbortedException {
+        assertTrue(validateOrderBy(true, 40000) > 1);
+        assertTrue(validateOrderBy(false, 40000) > 1);
+    }
+
+    /** More runs than can be merged at once, so that runs are merged into longer ones first */
+    @Test public void testMultiPassMerge()
+            throws IOException, DbException, TransactionAbortedException {
+        assertTrue(validateOrderBy(true, 2000) > ExternalSorter.MERGE_FAN_IN);
+    }
+
+    /** Sorts by the first column descending, then by the second ascending, in memory and on disk */
+    @Test public void testMultipleFields()
+            throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(3, ROWS, 30, null, tuples);
+        Comparator<List<Integer>> byFirst = Comparator.comparing(t -> t.get(0));
+        Comparator<List<Integer>> bySecond = Comparator.comparing(t -> t.get(1));
+        List<List<Integer>> expected = new ArrayList<>(tuples);
+        expected.sort(byFirst.reversed().thenComparing(bySecond));
+
+        for (long budget : new long[]{-1, 40000}) {
+            TransactionId tid = new TransactionId();
+            OrderBy orderBy = new OrderBy(new int[]{0, 1}, new boolean[]{false, true},
+                    new SeqScan(tid, table.getId(), ""));
+            orderBy.setMemoryBudget(budget);
+            orderBy.open();
+            List<List<Integer>> actual = new ArrayList<>();
+            while (orderBy.hasNext()) {
+                actual.add(SystemTestUtil.tupleToList(orderBy.next()));
+            }
+            assertEquals(expected, actual);
+            assertEquals(budget > 0, orderBy.getSpilledRuns() > 1);
+            orderBy.close();
+            Database.getBufferPool().transactionComplete(tid);
+        }
+    }
+
+    /** A multi-column ORDER BY through the parser, with and without a limit */
+    @Test public void testParsedMultipleFields() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, ROWS, 20, null, tuples, "c");
+        Database.getCatalog().addTable(table, "sorted_t");
+        TableStats.setTableStats("sorted_t", new TableStats(table.getId(), 1));
+        Comparator<List<Integer>> bySecond = Comparator.comparing(t -> t.get(1));
+        Comparator<List<Integer>> byFirst = Comparator.comparing(t -> t.get(0));
+        List<List<Integer>> expected = new ArrayList<>(tuples);
+        expected.sort(bySecond.thenComparing(byFirst.reversed()));
+
+        for (String limit : new String[]{"", " LIMIT 50"}) {
+            TransactionId tid = new TransactionId();
+            OpIterator plan = new Parser().generateLogicalPlan(tid,
+                    "SELECT * FROM sorted_t ORDER BY sorted_t.c1, sorted_t.c0 DESC" + limit + ";")
+                    .physicalPlan(tid, TableStats.getStatsMap(), false);
+            List<List<Integer>> actual = new ArrayList<>();
+            plan.open();
+            while (plan.hasNext()) {
+                actual.add(SystemTestUtil.tupleToList(plan.next()));
+            }
+            plan.close();
+            Database.getBufferPool().transactionComplete(tid);
+            assertEquals(limit.isEmpty() ? expected : expected.subList(0, 50), actual);
+        }
+    }
+
+    /** Make scantest compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(OrderByTest.class);
+    }
+}
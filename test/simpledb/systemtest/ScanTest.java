@@ -3,6 +3,10 @@ package simpledb.systemtest;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Utility;
+import simpledb.execution.Exchange;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Query;
+import simpledb.execution.QueryScheduler;
 import simpledb.execution.SeqScan;
 import simpledb.storage.*;
 
@@ -11,6 +15,7 @@ import static org.junit.Assert.*;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Random;
@@ -81,6 +86,105 @@ public class ScanTest extends SimpleDbTestBase {
         Database.getBufferPool().transactionComplete(tid);
     }
 
+    /**
+     * Test that scanning disjoint page ranges in parallel returns every tuple once.
+     */
+    @Test
+    public void testParallelScan() throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 5000, null, tuples);
+        assertTrue(f.numPages() > 4);
+
+        TransactionId tid = new TransactionId();
+        SeqScan[] scans = SeqScan.partition(tid, f.getId(), "table", 4);
+        assertEquals(4, scans.length);
+        Exchange gather = new Exchange(scans);
+        SystemTestUtil.matchTuples(gather, tuples);
+
+        // more partitions than pages
+        OpIterator[] single = SeqScan.partition(tid, f.getId(), "table", f.numPages() + 3);
+        assertEquals(f.numPages(), single.length);
+        SystemTestUtil.matchTuples(new Exchange(single), tuples);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Test that the workers of a morsel-driven scan return every tuple once,
+     * also when only some of them may claim morsels.
+     */
+    @Test
+    public void testMorselScan() throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10000, null, tuples);
+
+        TransactionId tid = new TransactionId();
+        MorselSource morsels = new MorselSource(f.numPages(), 2, 4);
+        OpIterator[] workers = new OpIterator[4];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new SeqScan(tid, f.getId(), "table", morsels, i);
+        }
+        Exchange gather = new Exchange(workers, morsels);
+        SystemTestUtil.matchTuples(gather, tuples);
+
+        morsels.setParallelism(1);
+        assertEquals(1, morsels.getParallelism());
+        SystemTestUtil.matchTuples(gather, tuples);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Test that a worker whose share of the pages is exhausted steals the
+     * remaining pages of the others, from the back of their shares.
+     */
+    @Test
+    public void testMorselStealing() {
+        MorselSource morsels = new MorselSource(21, 2, 3);
+        // worker 0 owns pages [0, 7) and reads them in order
+        assertArrayEquals(new int[]{0, 2}, morsels.claim(0));
+        assertArrayEquals(new int[]{2, 4}, morsels.claim(0));
+        assertArrayEquals(new int[]{4, 6}, morsels.claim(0));
+        assertArrayEquals(new int[]{6, 7}, morsels.claim(0));
+        assertArrayEquals(new int[]{7, 9}, morsels.claim(1));
+        // then it steals from the back of the largest share left, that of worker 2
+        assertArrayEquals(new int[]{19, 21}, morsels.claim(0));
+
+        boolean[] claimed = new boolean[21];
+        for (int page = 0; page < 9; page++) {
+            claimed[page] = true;
+        }
+        claimed[19] = claimed[20] = true;
+        int[] morsel;
+        while ((morsel = morsels.claim(0)) != null) {
+            for (int page = morsel[0]; page < morsel[1]; page++) {
+                assertFalse(claimed[page]);
+                claimed[page] = true;
+            }
+        }
+        for (boolean c : claimed) {
+            assertTrue(c);
+        }
+        assertNull(morsels.claim(1));
+        assertNull(morsels.claim(2));
+    }
+
+    /**
+     * Test that a query gives up its share of the worker pool once its
+     * results are exhausted, even if it is never closed.
+     */
+    @Test
+    public void testExhaustedQueryReleasesWorkers() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 100, null, null);
+        TransactionId tid = new TransactionId();
+        Query query = new Query(new SeqScan(tid, f.getId(), "table"), tid);
+        query.start();
+        assertEquals(1, QueryScheduler.getRunningQueries());
+        while (query.hasNext()) {
+            query.next();
+        }
+        assertEquals(0, QueryScheduler.getRunningQueries());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
     /**
      * Verifies that the buffer pool is actually caching data.
      *
@@ -122,6 +226,48 @@ public class ScanTest extends SimpleDbTestBase {
         assertEquals(0, table.readCount);
     }
 
+    /**
+     * Verifies that a scan restricted to some fields returns those fields,
+     * in order, with the record ids of the tuples of the table.
+     */
+    @Test
+    public void testOutputFields() throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(3, 2000, null, tuples, "c");
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> t : tuples) {
+            expected.add(Arrays.asList(t.get(2), t.get(0)));
+        }
+
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, f.getId(), "t");
+        scan.setOutputFields(new int[]{2, 0});
+        assertEquals(2, scan.getTupleDesc().numFields());
+        assertEquals("t.c2", scan.getTupleDesc().getFieldName(0));
+        assertEquals(0, scan.tableField(1));
+        SystemTestUtil.matchTuples(scan, expected);
+
+        SeqScan all = new SeqScan(tid, f.getId(), "t");
+        scan.open();
+        all.open();
+        while (all.hasNext()) {
+            Tuple t = all.next();
+            Tuple narrowed = scan.next();
+            assertEquals(t.getRecordId(), narrowed.getRecordId());
+            assertEquals(t.getField(2), narrowed.getField(0));
+        }
+        assertFalse(scan.hasNext());
+        scan.close();
+        all.close();
+
+        try {
+            scan.setOutputFields(new int[]{3});
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException expectedException) {
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
     /**
      * Verifies SeqScan's getTupleDesc prefixes the table name + "." to the field names
      *
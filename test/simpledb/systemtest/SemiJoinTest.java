@@ -0,0 +1,162 @@
+package simpledb.systemtest;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+import simpledb.Parser;
+import simpledb.common.Database;
+import simpledb.execution.OpIterator;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.transaction.TransactionId;
+
+/**
+ * IN, NOT IN, EXISTS and NOT EXISTS subqueries through the parser, which
+ * plans them as semi-joins and anti-joins.
+ */
+public class SemiJoinTest extends SimpleDbTestBase {
+    private List<List<Integer>> outerTuples;
+    private List<List<Integer>> innerTuples;
+
+    @Before public void setUp() throws Exception {
+        outerTuples = new ArrayList<>();
+        HeapFile outer = SystemTestUtil.createRandomHeapFile(2, 500, 100, null, outerTuples, "c");
+        Database.getCatalog().addTable(outer, "semi_outer");
+        TableStats.setTableStats("semi_outer", new TableStats(outer.getId(), 1));
+        // many duplicate keys, which must not duplicate outer tuples
+        innerTuples = new ArrayList<>();
+        HeapFile inner = SystemTestUtil.createRandomHeapFile(2, 300, 60, null, innerTuples, "c");
+        Database.getCatalog().addTable(inner, "semi_inner");
+        TableStats.setTableStats("semi_inner", new TableStats(inner.getId(), 1));
+    }
+
+    private static List<List<Integer>> run(String query) throws Exception {
+        TransactionId tid = new TransactionId();
+        OpIterator plan = new Parser().generateLogicalPlan(tid, query)
+                .physicalPlan(tid, TableStats.getStatsMap(), false);
+        List<List<Integer>> result = new ArrayList<>();
+        plan.open();
+        while (plan.hasNext()) {
+            result.add(SystemTestUtil.tupleToList(plan.next()));
+        }
+        plan.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return result;
+    }
+
+    /** @return the outer tuples whose first field is (not) in keys */
+    private List<List<Integer>> outerWithKeys(Set<Integer> keys, boolean in) {
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> t : outerTuples) {
+            if (keys.contains(t.get(0)) == in) {
+                expected.add(t);
+            }
+        }
+        return expected;
+    }
+
+    private static void assertSameTuples(List<List<Integer>> expected, List<List<Integer>> actual) {
+        expected = new ArrayList<>(expected);
+        actual = new ArrayList<>(actual);
+        expected.sort(SemiJoinTest::compare);
+        actual.sort(SemiJoinTest::compare);
+        assertEquals(expected, actual);
+    }
+
+    private static int compare(List<Integer> a, List<Integer> b) {
+        for (int i = 0; i < a.size(); i++) {
+            int c = Integer.compare(a.get(i), b.get(i));
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    @Test public void testIn() throws Exception {
+        Set<Integer> keys = new HashSet<>();
+        for (List<Integer> t : innerTuples) {
+            keys.add(t.get(0));
+        }
+        assertSameTuples(outerWithKeys(keys, true), run(
+                "SELECT * FROM semi_outer WHERE semi_outer.c0 IN (SELECT semi_inner.c0 FROM semi_inner);"));
+        assertSameTuples(outerWithKeys(keys, false), run(
+                "SELECT * FROM semi_outer WHERE semi_outer.c0 NOT IN (SELECT semi_inner.c0 FROM semi_inner);"));
+    }
+
+    /** A subquery with a filter of its own, combined with a filter on the outer table */
+    @Test public void testInWithFilters() throws Exception {
+        Set<Integer> keys = new HashSet<>();
+        for (List<Integer> t : innerTuples) {
+            if (t.get(1) < 30) {
+                keys.add(t.get(0));
+            }
+        }
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> t : outerWithKeys(keys, true)) {
+            if (t.get(1) > 50) {
+                expected.add(t);
+            }
+        }
+        assertSameTuples(expected, run("SELECT * FROM semi_outer WHERE semi_outer.c1 > 50 AND semi_outer.c0 IN "
+                + "(SELECT semi_inner.c0 FROM semi_inner WHERE semi_inner.c1 < 30);"));
+    }
+
+    /** A semi-join on one of two joined tables */
+    @Test public void testInWithJoin() throws Exception {
+        Set<Integer> keys = new HashSet<>();
+        for (List<Integer> t : innerTuples) {
+            if (t.get(1) < 10) {
+                keys.add(t.get(0));
+            }
+        }
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> o : outerWithKeys(keys, true)) {
+            for (List<Integer> i : innerTuples) {
+                if (o.get(1).equals(i.get(1))) {
+                    List<Integer> out = new ArrayList<>(o);
+                    out.addAll(i);
+                    expected.add(out);
+                }
+            }
+        }
+        assertSameTuples(expected, run("SELECT * FROM semi_outer, semi_inner WHERE semi_outer.c1 = semi_inner.c1 "
+                + "AND semi_outer.c0 IN (SELECT s.c0 FROM semi_inner s WHERE s.c1 < 10);"));
+    }
+
+    /** Correlated EXISTS subqueries, turned into semi-joins and anti-joins */
+    @Test public void testCorrelatedExists() throws Exception {
+        Set<Integer> keys = new HashSet<>();
+        for (List<Integer> t : innerTuples) {
+            if (t.get(1) >= 20) {
+                keys.add(t.get(0));
+            }
+        }
+        assertSameTuples(outerWithKeys(keys, true), run("SELECT * FROM semi_outer WHERE EXISTS "
+                + "(SELECT * FROM semi_inner WHERE semi_inner.c0 = semi_outer.c0 AND semi_inner.c1 >= 20);"));
+        assertSameTuples(outerWithKeys(keys, false), run("SELECT * FROM semi_outer WHERE NOT EXISTS "
+                + "(SELECT * FROM semi_inner WHERE semi_outer.c0 = semi_inner.c0 AND semi_inner.c1 >= 20);"));
+    }
+
+    /** Uncorrelated EXISTS subqueries keep all or none of the outer tuples */
+    @Test public void testUncorrelatedExists() throws Exception {
+        assertSameTuples(outerTuples, run("SELECT * FROM semi_outer WHERE EXISTS "
+                + "(SELECT * FROM semi_inner WHERE semi_inner.c1 < 100);"));
+        assertSameTuples(new ArrayList<>(), run("SELECT * FROM semi_outer WHERE EXISTS "
+                + "(SELECT * FROM semi_inner WHERE semi_inner.c1 > 100);"));
+        assertSameTuples(outerTuples, run("SELECT * FROM semi_outer WHERE NOT EXISTS "
+                + "(SELECT * FROM semi_inner WHERE semi_inner.c1 > 100);"));
+    }
+
+    /** Make scantest compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(SemiJoinTest.class);
+    }
+}